@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.CmykJpegReader;
+
+import com.alkacon.simapi.benchmark.BenchmarkImages;
+
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.RasterOp;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for reading CMYK and YCCK JPEG images with the {@link JPEGImageReader}.<p>
+ *
+ * Besides the complete read, the phases of the raster read path are measured separately:
+ * parsing the segments (including the embedded ICC profile), decoding the raster with the JDK decoder,
+ * and converting the decoded YCCK raster to RGB.<p>
+ *
+ * This benchmark is in the package of the reader to access the package private phases.
+ * Run with <code>gradle jmhCodecs</code> to include the allocation profiler.<p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class CmykJpegBenchmark {
+
+    /** The CMYK or YCCK source image from the test corpus. */
+    @Param({"CMYK-p1.jpg", "CMYK-p2.jpg", "CMYK-p3.jpg", "CMYK-p4.jpg", "blume-CMYK.jpg", "cms-tueten-cmyk.jpg"})
+    public String m_image;
+
+    /** The bytes of the source image. */
+    private byte[] m_data;
+
+    /** The decoded, not yet converted raster. */
+    private Raster m_raster;
+
+    /** The embedded ICC profile. */
+    private ICC_Profile m_profile;
+
+    /** The reader provider. */
+    private JPEGImageReaderSpi m_provider;
+
+    /** The color space of the decoded raster. */
+    private JPEGColorSpace m_csType;
+
+    /** The default read parameters. */
+    private ImageReadParam m_param;
+
+    /**
+     * Converts the decoded raster to RGB, with the same conversion the raster read path of the reader uses.<p>
+     *
+     * The raster is copied first because the YCCK and CMYK conversion is done in place.<p>
+     *
+     * @return the converted raster
+     */
+    @Benchmark
+    public WritableRaster convertColors() {
+
+        WritableRaster raster = m_raster.createCompatibleWritableRaster();
+        raster.setRect(m_raster);
+        RasterOp convert = JPEGImageReader.createColorConvert(
+            ColorSpaces.createColorSpace(m_profile),
+            ColorSpace.getInstance(ColorSpace.CS_sRGB));
+        WritableRaster result = new BufferedImage(
+            raster.getWidth(),
+            raster.getHeight(),
+            BufferedImage.TYPE_3BYTE_BGR).getRaster();
+        JPEGImageReader.convertRaster(raster, m_csType, convert, result, 0, 0, raster.getHeight(), m_param);
+        return result;
+    }
+
+    /**
+     * Decodes the raster with the JDK decoder, without any color conversion.<p>
+     *
+     * @return the decoded raster
+     *
+     * @throws IOException in case of errors
+     */
+    @Benchmark
+    public Raster decodeRaster() throws IOException {
+
+        JPEGImageReader reader = createReader();
+        try {
+            return reader.readRaster(0, null);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Parses the segments and the embedded ICC profile.<p>
+     *
+     * @return the embedded ICC profile
+     *
+     * @throws IOException in case of errors
+     */
+    @Benchmark
+    public ICC_Profile parseSegments() throws IOException {
+
+        JPEGImageReader reader = createReader();
+        try {
+            // same order as in JPEGImageReader#read, the first call parses the segments
+            ICC_Profile profile = reader.getEmbeddedICCProfile(false);
+            reader.getAdobeDCT();
+            reader.getSOF();
+            return profile;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Reads the complete image, including all phases.<p>
+     *
+     * @return the image
+     *
+     * @throws IOException in case of errors
+     */
+    @Benchmark
+    public BufferedImage read() throws IOException {
+
+        JPEGImageReader reader = createReader();
+        try {
+            return reader.read(0, null);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Loads the source image and prepares the input of the color conversion phase.<p>
+     *
+     * @throws Exception in case the image could not be loaded
+     */
+    @Setup
+    public void setUp() throws Exception {
+
+        m_provider = new JPEGImageReaderSpi(JPEGImageReaderSpi.lookupDelegateProvider(IIORegistry.getDefaultInstance()));
+        InputStream in = BenchmarkImages.getResource(m_image).openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            m_data = out.toByteArray();
+        } finally {
+            in.close();
+        }
+        JPEGImageReader reader = createReader();
+        try {
+            m_profile = reader.getEmbeddedICCProfile(false);
+            m_csType = JPEGImageReader.getSourceCSType(reader.getJFIF(), reader.getAdobeDCT(), reader.getSOF());
+            m_param = reader.getDefaultReadParam();
+            m_raster = reader.readRaster(0, null);
+        } finally {
+            reader.dispose();
+        }
+        if (m_profile == null) {
+            throw new IllegalStateException("Image '" + m_image + "' has no embedded ICC profile");
+        }
+    }
+
+    /**
+     * Creates a reader for the source image.<p>
+     *
+     * @return the reader
+     *
+     * @throws IOException in case of errors
+     */
+    private JPEGImageReader createReader() throws IOException {
+
+        JPEGImageReader reader = (JPEGImageReader)m_provider.createReaderInstance(null);
+        ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(m_data));
+        reader.setInput(stream);
+        return reader;
+    }
+}
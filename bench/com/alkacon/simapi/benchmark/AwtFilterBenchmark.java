@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.benchmark;
+
+import com.alkacon.simapi.Simapi;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageFilter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the AWT image filters in <code>com.alkacon.simapi.filter</code>,
+ * applied with {@link Simapi#applyFilter(BufferedImage, ImageFilter)}.<p>
+ *
+ * The score is reported in nanoseconds per pixel. Run with the GC profiler to see the allocation rate,
+ * where <code>gc.alloc.rate.norm</code> is the number of bytes allocated per pixel:
+ * <code>gradle jmh -Pjmh_includes=AwtFilterBenchmark -Pjmh_args="-prof gc"</code>.<p>
+ *
+ * The <code>BinaryFilter</code>, <code>BorderFilter</code>, <code>GradientFilter</code>, <code>OffsetFilter</code>
+ * and <code>WarpFilter</code> are not included, since they throw an exception with the default settings.
+ * Several filters based on <code>WholeImageFilter</code> print a stack trace while the image is produced,
+ * but still return the filtered image.<p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AwtFilterBenchmark {
+
+    /** The simple class name of the filter. */
+    @Param({
+        "AverageFilter",
+        "BlockFilter",
+        "BlurFilter",
+        "BumpFilter",
+        "CausticsFilter",
+        "CellularFilter",
+        "ChannelMixFilter",
+        "CheckFilter",
+        "ContrastFilter",
+        "ConvolveFilter",
+        "CraterFilter",
+        "CrystalizeFilter",
+        "DiffusionFilter",
+        "DilateFilter",
+        "DistanceFilter",
+        "DitherFilter",
+        "EdgeFilter",
+        "EmbossFilter",
+        "ErodeFilter",
+        "FBMFilter",
+        "FillFilter",
+        "FlipFilter",
+        "GammaFilter",
+        "GaussianFilter",
+        "GrayFilter",
+        "GrayscaleFilter",
+        "HSBAdjustFilter",
+        "InvertFilter",
+        "LifeFilter",
+        "LightFilter",
+        "LookupFilter",
+        "MarbleFilter",
+        "MaximumFilter",
+        "MedianFilter",
+        "MinimumFilter",
+        "MotionBlurFilter",
+        "NoiseFilter",
+        "OilFilter",
+        "OpacityFilter",
+        "OutlineFilter",
+        "PerspectivFilter",
+        "PlasmaFilter",
+        "PolarFilter",
+        "QuantizeFilter",
+        "QuiltFilter",
+        "ReduceFilter",
+        "RescaleFilter",
+        "RGBAdjustFilter",
+        "RippleFilter",
+        "RotateFilter",
+        "ShadowFilter",
+        "ShapeFilter",
+        "SharpenFilter",
+        "ShearFilter",
+        "SkeletonFilter",
+        "SolarizeFilter",
+        "SparkleFilter",
+        "SphereFilter",
+        "TextureFilter",
+        "ThresholdFilter",
+        "TileImageFilter",
+        "TwirlFilter",
+        "WaterFilter",
+        "WeaveFilter"})
+    public String m_filter;
+
+    /** The filter instance. */
+    private ImageFilter m_imageFilter;
+
+    /** The 1 megapixel source image. */
+    private BufferedImage m_image1MP;
+
+    /** The 12 megapixel source image. */
+    private BufferedImage m_image12MP;
+
+    /** The API instance. */
+    private Simapi m_simapi;
+
+    /**
+     * Applies the filter to the 12 megapixel image.<p>
+     *
+     * @return the filtered image
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkImages.PIXELS_12MP)
+    public BufferedImage filter12MP() {
+
+        return m_simapi.applyFilter(m_image12MP, m_imageFilter);
+    }
+
+    /**
+     * Applies the filter to the 1 megapixel image.<p>
+     *
+     * @return the filtered image
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkImages.PIXELS_1MP)
+    public BufferedImage filter1MP() {
+
+        return m_simapi.applyFilter(m_image1MP, m_imageFilter);
+    }
+
+    /**
+     * Creates the filter and the source images.<p>
+     *
+     * @throws Exception in case the filter or the images could not be created
+     */
+    @Setup
+    public void setUp() throws Exception {
+
+        m_imageFilter = (ImageFilter)Class.forName("com.alkacon.simapi.filter." + m_filter).newInstance();
+        m_image1MP = BenchmarkImages.create(1000, 1000);
+        m_image12MP = BenchmarkImages.create(BenchmarkImages.WIDTH_12MP, BenchmarkImages.HEIGHT_12MP);
+        m_simapi = new Simapi();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.benchmark;
+
+import com.alkacon.simapi.Simapi;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Provides the images used by the benchmarks.<p>
+ *
+ * The corpus images are loaded from the test sources, which are part of the benchmark class path.<p>
+ */
+public final class BenchmarkImages {
+
+    /** Height of the 12 megapixel image. */
+    public static final int HEIGHT_12MP = 3000;
+
+    /** Number of pixels of the 1 megapixel image. */
+    public static final int PIXELS_1MP = 1000 * 1000;
+
+    /** Number of pixels of the 12 megapixel image. */
+    public static final int PIXELS_12MP = 4000 * HEIGHT_12MP;
+
+    /** Width of the 12 megapixel image. */
+    public static final int WIDTH_12MP = 4000;
+
+    /** The corpus image used to create images of a given size. */
+    private static final String SIZED_IMAGE = "DSCN0754.JPG";
+
+    /** The package of the test corpus images. */
+    private static final String CORPUS_PATH = "/com/alkacon/simapi/";
+
+    /**
+     * Hide constructor to prevent generation of class instances.<p>
+     */
+    private BenchmarkImages() {
+
+        // empty
+    }
+
+    /**
+     * Creates a photographic image with the given dimensions from the test corpus.<p>
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     *
+     * @return the created image
+     *
+     * @throws IOException in case the corpus image could not be loaded
+     */
+    public static BufferedImage create(int width, int height) throws IOException {
+
+        return new Simapi().scale(load(SIZED_IMAGE), width, height);
+    }
+
+    /**
+     * Returns the URL of an image from the test corpus.<p>
+     *
+     * @param name the file name of the image
+     *
+     * @return the URL of the image
+     */
+    public static URL getResource(String name) {
+
+        URL result = BenchmarkImages.class.getResource(CORPUS_PATH + name);
+        if (result == null) {
+            throw new IllegalArgumentException("Image '" + name + "' not found in test corpus");
+        }
+        return result;
+    }
+
+    /**
+     * Loads an image from the test corpus.<p>
+     *
+     * @param name the file name of the image
+     *
+     * @return the loaded image
+     *
+     * @throws IOException in case the image could not be loaded
+     */
+    public static BufferedImage load(String name) throws IOException {
+
+        return Simapi.read(getResource(name));
+    }
+
+    /**
+     * Returns a copy of the given image with an alpha channel that fades out from left to right.<p>
+     *
+     * @param image the opaque image
+     *
+     * @return a copy of the image with alpha channel
+     */
+    public static BufferedImage withAlpha(BufferedImage image) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = result.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        int[] pixels = ((DataBufferInt)result.getRaster().getDataBuffer()).getData();
+        for (int x = 0; x < width; x++) {
+            int alpha = 255 - ((255 * x) / width);
+            for (int i = x; i < pixels.length; i += width) {
+                pixels[i] = (pixels[i] & 0x00ffffff) | (alpha << 24);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the image operations in <code>com.alkacon.simapi.filter.buffered</code>,
+ * applied directly with {@link BufferedImageOp#filter(BufferedImage, BufferedImage)}.<p>
+ *
+ * The score is reported in nanoseconds per pixel. Run with the GC profiler to see the allocation rate,
+ * where <code>gc.alloc.rate.norm</code> is the number of bytes allocated per pixel:
+ * <code>gradle jmh -Pjmh_includes=BufferedImageOpBenchmark -Pjmh_args="-prof gc"</code>.<p>
+ *
+ * The <code>RaysFilter</code> requires a source image with alpha channel,
+ * so it is applied to a copy of the source images with an alpha gradient.<p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BufferedImageOpBenchmark {
+
+    /** The simple class name of the filter. */
+    @Param({
+        "BoxBlurFilter",
+        "ConvolveFilter",
+        "GaussianFilter",
+        "MotionBlurFilter",
+        "MotionBlurOp",
+        "RaysFilter",
+        "ShadowFilter",
+        "SmartBlurFilter",
+        "UnsharpFilter",
+        "VariableBlurFilter"})
+    public String m_filter;
+
+    /** The 1 megapixel source image. */
+    private BufferedImage m_image1MP;
+
+    /** The 12 megapixel source image. */
+    private BufferedImage m_image12MP;
+
+    /** The filter instance. */
+    private BufferedImageOp m_op;
+
+    /**
+     * Applies the filter to the 12 megapixel image.<p>
+     *
+     * @return the filtered image
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkImages.PIXELS_12MP)
+    public BufferedImage filter12MP() {
+
+        return m_op.filter(m_image12MP, null);
+    }
+
+    /**
+     * Applies the filter to the 1 megapixel image.<p>
+     *
+     * @return the filtered image
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkImages.PIXELS_1MP)
+    public BufferedImage filter1MP() {
+
+        return m_op.filter(m_image1MP, null);
+    }
+
+    /**
+     * Creates the filter and the source images.<p>
+     *
+     * @throws Exception in case the filter or the images could not be created
+     */
+    @Setup
+    public void setUp() throws Exception {
+
+        m_op = (BufferedImageOp)Class.forName("com.alkacon.simapi.filter.buffered." + m_filter).newInstance();
+        m_image1MP = BenchmarkImages.create(1000, 1000);
+        m_image12MP = BenchmarkImages.create(BenchmarkImages.WIDTH_12MP, BenchmarkImages.HEIGHT_12MP);
+        if ("RaysFilter".equals(m_filter)) {
+            m_image1MP = BenchmarkImages.withAlpha(m_image1MP);
+            m_image12MP = BenchmarkImages.withAlpha(m_image12MP);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.benchmark;
+
+import com.alkacon.simapi.GifWriter.GifAcmeEncoder;
+import com.alkacon.simapi.GifWriter.GifImageWriterSpi;
+import com.alkacon.simapi.GifWriter.Quantize;
+
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for writing GIF images.<p>
+ *
+ * The GIF output is measured in phases: color quantization with {@link Quantize#process(BufferedImage, int, boolean)},
+ * LZW encoding of the already quantized image with {@link GifAcmeEncoder#write(java.io.DataOutput)},
+ * and both phases together through the {@link com.alkacon.simapi.GifWriter.GifImageWriter}.<p>
+ *
+ * Run with <code>gradle jmhCodecs</code> to include the allocation profiler.<p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class GifBenchmark {
+
+    /**
+     * Output stream that discards all data and only counts the bytes written.<p>
+     */
+    static class CountingOutputStream extends OutputStream {
+
+        /** The number of bytes written. */
+        long m_count;
+
+        /**
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) {
+
+            m_count += len;
+        }
+
+        /**
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(int b) {
+
+            m_count++;
+        }
+    }
+
+    /** The source image from the test corpus. */
+    @Param({"screen_1280.png", "logo_alkacon_160_t.png", "113_org.jpg", "DSCN0754.JPG"})
+    public String m_image;
+
+    /** The quantized source image. */
+    private BufferedImage m_indexed;
+
+    /** The source image. */
+    private BufferedImage m_source;
+
+    /**
+     * Encodes the quantized image with the LZW encoder.<p>
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException in case of errors
+     */
+    @Benchmark
+    public long encode() throws IOException {
+
+        CountingOutputStream out = new CountingOutputStream();
+        new GifAcmeEncoder(m_indexed).write(new DataOutputStream(out));
+        return out.m_count;
+    }
+
+    /**
+     * Quantizes the image to 256 colors.<p>
+     *
+     * @return the quantized image
+     */
+    @Benchmark
+    public BufferedImage quantize() {
+
+        return Quantize.process(m_source, 256, true);
+    }
+
+    /**
+     * Quantizes the image to 256 colors, building the palette from a sample of the pixels.<p>
+     *
+     * @return the quantized image
+     */
+    @Benchmark
+    public BufferedImage quantizeSampled() {
+
+        return Quantize.process(m_source, 256, true, Quantize.DEFAULT_MAX_SAMPLES);
+    }
+
+    /**
+     * Loads the source image and quantizes it for the encoder benchmark.<p>
+     *
+     * @throws Exception in case the image could not be loaded
+     */
+    @Setup
+    public void setUp() throws Exception {
+
+        m_source = BenchmarkImages.load(m_image);
+        m_indexed = Quantize.process(m_source, 256, true);
+    }
+
+    /**
+     * Writes the image with the GIF image writer, which quantizes and encodes the image.<p>
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException in case of errors
+     */
+    @Benchmark
+    public long write() throws IOException {
+
+        CountingOutputStream out = new CountingOutputStream();
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+        ImageWriter writer = new GifImageWriterSpi().createWriterInstance();
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(m_source, null, null), null);
+        writer.dispose();
+        stream.close();
+        return out.m_count;
+    }
+}
@@ -0,0 +1,697 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.benchmark;
+
+import com.alkacon.simapi.Simapi;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for the complete rendition pipeline.<p>
+ *
+ * A mix of read, resize and write jobs on the test corpus is executed by a configurable number
+ * of concurrent threads. For each concurrency level, the throughput, the latency percentiles,
+ * the number of failed jobs, the GC time and the peak heap usage are written to a CSV file.
+ * If a baseline CSV file is given, the results are compared with it and the test fails
+ * if more jobs failed, or if the throughput or the 99th percentile latency is worse than the baseline
+ * by more than the threshold. The test also fails if the baseline file does not exist, unless a new baseline
+ * is requested, then the results are written to the baseline file instead of being compared.<p>
+ *
+ * Every level runs for at least the measurement time and until at least the minimum number of jobs
+ * is completed, so that the 99.9th percentile is not just the maximum latency. A baseline is only accepted
+ * if it was recorded with the same number of processors and the same maximum heap size, and without
+ * failed jobs.<p>
+ *
+ * Run with <code>gradle loadTest</code>, options can be set with the
+ * <code>load_threads</code>, <code>load_warmup</code>, <code>load_duration</code>,
+ * <code>load_min_jobs</code> and <code>load_threshold</code> properties. The baseline must be recorded on the
+ * hardware it is compared on, use <code>gradle loadTest -Pload_new_baseline</code>
+ * to record a new baseline in <code>bench/load-baseline.csv</code>.<p>
+ *
+ * Arguments:
+ * <ul>
+ * <li><code>--threads 1,8,32</code> the concurrency levels to run</li>
+ * <li><code>--warmup 10</code> the warm up time per level in seconds</li>
+ * <li><code>--duration 30</code> the minimum measurement time per level in seconds</li>
+ * <li><code>--min-jobs 2000</code> the minimum number of measured jobs per level</li>
+ * <li><code>--out file</code> the CSV file to write the results to</li>
+ * <li><code>--baseline file</code> the CSV file with the baseline results</li>
+ * <li><code>--threshold 0.15</code> the allowed regression compared to the baseline</li>
+ * <li><code>--new-baseline true</code> write the results to the baseline file instead of comparing them</li>
+ * </ul>
+ */
+public final class LoadTest {
+
+    /**
+     * A single rendition job.<p>
+     */
+    static class Job {
+
+        /** The bytes of the source image. */
+        final byte[] m_data;
+
+        /** The target height. */
+        final int m_height;
+
+        /** The output format. */
+        final String m_type;
+
+        /** The target width. */
+        final int m_width;
+
+        /**
+         * Creates a new job.<p>
+         *
+         * @param data the bytes of the source image
+         * @param width the target width
+         * @param height the target height
+         * @param type the output format
+         */
+        Job(byte[] data, int width, int height, String type) {
+
+            m_data = data;
+            m_width = width;
+            m_height = height;
+            m_type = type;
+        }
+
+        /**
+         * Executes this job.<p>
+         *
+         * @param simapi the API instance to use
+         *
+         * @return the number of bytes written
+         *
+         * @throws IOException in case of errors
+         */
+        int run(Simapi simapi) throws IOException {
+
+            BufferedImage image = Simapi.read(m_data);
+            image = simapi.resize(image, m_width, m_height, true);
+            return simapi.getBytes(image, m_type).length;
+        }
+    }
+
+    /**
+     * The results of a single concurrency level.<p>
+     */
+    static class Result {
+
+        /** The number of GC runs. */
+        long m_gcCount;
+
+        /** The time spent in GC in milliseconds. */
+        long m_gcMillis;
+
+        /** The number of failed jobs. */
+        int m_errors;
+
+        /** The number of completed jobs. */
+        int m_jobs;
+
+        /** The 50th percentile latency in milliseconds. */
+        double m_p50;
+
+        /** The 99th percentile latency in milliseconds. */
+        double m_p99;
+
+        /** The 99.9th percentile latency in milliseconds. */
+        double m_p999;
+
+        /** The maximum latency in milliseconds. */
+        double m_max;
+
+        /** The peak heap usage in megabytes. */
+        long m_peakHeapMb;
+
+        /** The measurement time in seconds. */
+        double m_seconds;
+
+        /** The number of concurrent threads. */
+        int m_threads;
+
+        /** The throughput in images per second. */
+        double m_throughput;
+
+        /**
+         * Parses a result from a CSV line.<p>
+         *
+         * @param line the CSV line
+         *
+         * @return the parsed result
+         */
+        static Result fromCsv(String line) {
+
+            String[] values = line.split(",");
+            Result result = new Result();
+            result.m_threads = Integer.parseInt(values[0].trim());
+            result.m_jobs = Integer.parseInt(values[1].trim());
+            result.m_errors = Integer.parseInt(values[2].trim());
+            result.m_seconds = Double.parseDouble(values[3].trim());
+            result.m_throughput = Double.parseDouble(values[4].trim());
+            result.m_p50 = Double.parseDouble(values[5].trim());
+            result.m_p99 = Double.parseDouble(values[6].trim());
+            result.m_p999 = Double.parseDouble(values[7].trim());
+            result.m_max = Double.parseDouble(values[8].trim());
+            result.m_gcCount = Long.parseLong(values[9].trim());
+            result.m_gcMillis = Long.parseLong(values[10].trim());
+            result.m_peakHeapMb = Long.parseLong(values[11].trim());
+            return result;
+        }
+
+        /**
+         * Returns this result as CSV line.<p>
+         *
+         * @return this result as CSV line
+         */
+        String toCsv() {
+
+            return String.format(
+                Locale.ENGLISH,
+                "%d,%d,%d,%.1f,%.2f,%.1f,%.1f,%.1f,%.1f,%d,%d,%d",
+                Integer.valueOf(m_threads),
+                Integer.valueOf(m_jobs),
+                Integer.valueOf(m_errors),
+                Double.valueOf(m_seconds),
+                Double.valueOf(m_throughput),
+                Double.valueOf(m_p50),
+                Double.valueOf(m_p99),
+                Double.valueOf(m_p999),
+                Double.valueOf(m_max),
+                Long.valueOf(m_gcCount),
+                Long.valueOf(m_gcMillis),
+                Long.valueOf(m_peakHeapMb));
+        }
+    }
+
+    /**
+     * Worker thread that executes jobs until the end of the run.<p>
+     */
+    static class Worker extends Thread {
+
+        /** The number of latencies recorded. */
+        int m_count;
+
+        /** The number of failed jobs. */
+        int m_errors;
+
+        /** The recorded latencies in nanoseconds. */
+        long[] m_latencies = new long[1024];
+
+        /** The time when the measurement starts, in nanoseconds. */
+        private final long m_measureStart;
+
+        /** The time when the run ends, in nanoseconds. */
+        private final long m_end;
+
+        /** The jobs to execute. */
+        private final List<Job> m_jobs;
+
+        /** The minimum number of measured jobs of all workers. */
+        private final int m_minJobs;
+
+        /** The shared counter of measured jobs. */
+        private final AtomicInteger m_measured;
+
+        /** The shared job counter. */
+        private final AtomicInteger m_next;
+
+        /** Signals that all workers are done. */
+        private final CountDownLatch m_done;
+
+        /**
+         * Creates a new worker.<p>
+         *
+         * @param index the index of the worker
+         * @param jobs the jobs to execute
+         * @param next the shared job counter
+         * @param measureStart the time when the measurement starts, in nanoseconds
+         * @param end the earliest time when the run ends, in nanoseconds
+         * @param minJobs the minimum number of measured jobs of all workers
+         * @param measured the shared counter of measured jobs
+         * @param done signals that all workers are done
+         */
+        Worker(
+            int index,
+            List<Job> jobs,
+            AtomicInteger next,
+            long measureStart,
+            long end,
+            int minJobs,
+            AtomicInteger measured,
+            CountDownLatch done) {
+
+            super("simapi-load-" + index);
+            setDaemon(true);
+            m_jobs = jobs;
+            m_next = next;
+            m_measureStart = measureStart;
+            m_end = end;
+            m_minJobs = minJobs;
+            m_measured = measured;
+            m_done = done;
+        }
+
+        /**
+         * @see java.lang.Thread#run()
+         */
+        @Override
+        public void run() {
+
+            Simapi simapi = new Simapi();
+            try {
+                long now;
+                while (((now = System.nanoTime()) < m_end) || (m_measured.get() < m_minJobs)) {
+                    Job job = m_jobs.get((m_next.getAndIncrement() & Integer.MAX_VALUE) % m_jobs.size());
+                    try {
+                        job.run(simapi);
+                    } catch (Throwable t) {
+                        // count the failure, usually an OutOfMemoryError under high concurrency
+                        if (now >= m_measureStart) {
+                            m_errors++;
+                            m_measured.incrementAndGet();
+                        }
+                        continue;
+                    }
+                    long done = System.nanoTime();
+                    if (now >= m_measureStart) {
+                        if (m_count == m_latencies.length) {
+                            m_latencies = Arrays.copyOf(m_latencies, m_count * 2);
+                        }
+                        m_latencies[m_count++] = done - now;
+                        m_measured.incrementAndGet();
+                    }
+                }
+            } finally {
+                m_done.countDown();
+            }
+        }
+    }
+
+    /** The CSV header line. */
+    static final String CSV_HEADER = "threads,jobs,errors,seconds,imagesPerSec,p50Ms,p99Ms,p999Ms,maxMs,gcCount,gcTimeMs,peakHeapMb";
+
+    /** The minimum number of jobs of a baseline level, so that the 99.9th percentile is not the maximum. */
+    static final int MIN_BASELINE_JOBS = 1001;
+
+    /** The corpus images with the output format used for them. */
+    private static final String[][] CORPUS = {
+        {"slow_scale01.jpg", Simapi.TYPE_JPEG},
+        {"DSCN0754.JPG", Simapi.TYPE_JPEG},
+        {"113_org.jpg", Simapi.TYPE_JPEG},
+        {"blume-CMYK.jpg", Simapi.TYPE_JPEG},
+        {"cms-tueten-cmyk.jpg", Simapi.TYPE_JPEG},
+        {"screen_1280.png", Simapi.TYPE_PNG},
+        {"logo_alkacon_160_t.png", Simapi.TYPE_PNG},
+        {"logo_alkacon_150_t.gif", Simapi.TYPE_GIF}};
+
+    /** The target sizes, width and height. */
+    private static final int[][] SIZES = {{200, 150}, {800, 600}};
+
+    /**
+     * Hide constructor to prevent generation of class instances.<p>
+     */
+    private LoadTest() {
+
+        // empty
+    }
+
+    /**
+     * Runs the load test.<p>
+     *
+     * @param args the arguments, see the class description
+     *
+     * @throws Exception in case of errors
+     */
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("threads", "1,8,32");
+        options.put("warmup", "10");
+        options.put("duration", "30");
+        options.put("min-jobs", "2000");
+        options.put("threshold", "0.15");
+        options.put("new-baseline", "false");
+        for (int i = 0; (i + 1) < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Invalid argument '" + args[i] + "'");
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        // the baseline must be read before the results are written, a missing baseline is only accepted if
+        // a new one is requested explicitly, otherwise the gate would silently pass
+        String baselineFile = options.get("baseline");
+        String out = options.get("out");
+        boolean record = Boolean.parseBoolean(options.get("new-baseline"));
+        Map<Integer, Result> baseline = null;
+        boolean validBaseline = true;
+        if (record) {
+            if (baselineFile == null) {
+                throw new IllegalArgumentException("A new baseline requires the '--baseline' argument");
+            }
+            out = baselineFile;
+            System.out.println("Recording a new baseline to " + out);
+        } else if (baselineFile != null) {
+            if ((out != null) && new File(out).getAbsoluteFile().equals(new File(baselineFile).getAbsoluteFile())) {
+                throw new IllegalArgumentException(
+                    "The baseline '" + baselineFile + "' is only overwritten with '--new-baseline true'");
+            }
+            if (!new File(baselineFile).exists()) {
+                System.out.println(
+                    "No baseline found at " + baselineFile + ", record one with '--new-baseline true'");
+                System.exit(1);
+            }
+            baseline = readBaseline(new File(baselineFile));
+            validBaseline = baseline != null;
+        }
+
+        List<Job> jobs = createJobs();
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int duration = Integer.parseInt(options.get("duration"));
+        int minJobs = Integer.parseInt(options.get("min-jobs"));
+        List<Result> results = new ArrayList<Result>();
+        System.out.println(getEnvironment());
+        System.out.println(CSV_HEADER);
+        for (String threads : options.get("threads").split(",")) {
+            Result result = run(jobs, Integer.parseInt(threads.trim()), warmup, duration, minJobs);
+            System.out.println(result.toCsv());
+            results.add(result);
+        }
+
+        if (out != null) {
+            File file = new File(out);
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            PrintWriter writer = new PrintWriter(new FileWriter(file));
+            try {
+                writer.println(getEnvironment());
+                writer.println(CSV_HEADER);
+                for (Result result : results) {
+                    writer.println(result.toCsv());
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        if (!validBaseline) {
+            System.exit(1);
+        }
+        if (baseline != null) {
+            double threshold = Double.parseDouble(options.get("threshold"));
+            if (!compare(baseline, results, threshold)) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Compares the results with the baseline.<p>
+     *
+     * @param baseline the baseline results, by number of threads
+     * @param results the results
+     * @param threshold the allowed regression, for example 0.15 for 15%
+     *
+     * @return <code>true</code> if no result is worse than the baseline
+     */
+    static boolean compare(Map<Integer, Result> baseline, List<Result> results, double threshold) {
+
+        boolean success = true;
+        for (Result result : results) {
+            Result base = baseline.get(Integer.valueOf(result.m_threads));
+            if (base == null) {
+                continue;
+            }
+            if (result.m_errors > base.m_errors) {
+                System.out.println(String.format(
+                    "REGRESSION threads=%d: %d failed jobs, baseline %d",
+                    Integer.valueOf(result.m_threads),
+                    Integer.valueOf(result.m_errors),
+                    Integer.valueOf(base.m_errors)));
+                success = false;
+            }
+            if (result.m_throughput < (base.m_throughput * (1 - threshold))) {
+                System.out.println(String.format(
+                    Locale.ENGLISH,
+                    "REGRESSION threads=%d: %.2f images/sec, baseline %.2f",
+                    Integer.valueOf(result.m_threads),
+                    Double.valueOf(result.m_throughput),
+                    Double.valueOf(base.m_throughput)));
+                success = false;
+            }
+            if (result.m_p99 > (base.m_p99 * (1 + threshold))) {
+                System.out.println(String.format(
+                    Locale.ENGLISH,
+                    "REGRESSION threads=%d: p99 %.1f ms, baseline %.1f ms",
+                    Integer.valueOf(result.m_threads),
+                    Double.valueOf(result.m_p99),
+                    Double.valueOf(base.m_p99)));
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Returns the given percentile of the sorted latencies in milliseconds.<p>
+     *
+     * @param sorted the sorted latencies in nanoseconds
+     * @param percentile the percentile, between 0 and 1
+     *
+     * @return the percentile in milliseconds
+     */
+    static double percentile(long[] sorted, double percentile) {
+
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int)Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000000.0;
+    }
+
+    /**
+     * Creates the jobs from the test corpus.<p>
+     *
+     * @return the jobs
+     *
+     * @throws IOException in case a corpus image could not be read
+     */
+    private static List<Job> createJobs() throws IOException {
+
+        List<Job> result = new ArrayList<Job>();
+        for (String[] image : CORPUS) {
+            InputStream in = BenchmarkImages.getResource(image[0]).openStream();
+            byte[] data;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                data = out.toByteArray();
+            } finally {
+                in.close();
+            }
+            for (int[] size : SIZES) {
+                result.add(new Job(data, size[0], size[1], image[1]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total number of GC runs and the total GC time in milliseconds.<p>
+     *
+     * @return the total number of GC runs and the total GC time in milliseconds
+     */
+    private static long[] getGcTotals() {
+
+        long[] result = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result[0] += Math.max(0, gc.getCollectionCount());
+            result[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the description of the environment the test runs in, written as comment to the CSV file.<p>
+     *
+     * @return the description of the environment
+     */
+    private static String getEnvironment() {
+
+        return String.format(
+            Locale.ENGLISH,
+            "# cpus=%d maxHeapMb=%d java=%s",
+            Integer.valueOf(Runtime.getRuntime().availableProcessors()),
+            Long.valueOf(Runtime.getRuntime().maxMemory() / (1024 * 1024)),
+            System.getProperty("java.version"));
+    }
+
+    /**
+     * Reads the baseline results.<p>
+     *
+     * The baseline is rejected if it was recorded in a different environment, if a level has failed jobs,
+     * or if a level has too few jobs for meaningful percentiles.<p>
+     *
+     * @param file the baseline CSV file
+     *
+     * @return the baseline results, by number of threads, or <code>null</code> if the baseline can not be used
+     *
+     * @throws IOException in case the file could not be read
+     */
+    private static Map<Integer, Result> readBaseline(File file) throws IOException {
+
+        Map<Integer, Result> result = new HashMap<Integer, Result>();
+        String environment = null;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#")) {
+                    environment = line;
+                } else if ((line.length() > 0) && !line.startsWith("threads")) {
+                    Result base = Result.fromCsv(line);
+                    result.put(Integer.valueOf(base.m_threads), base);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // the java version may differ, but not the hardware and the heap size
+        String expected = getEnvironment();
+        expected = expected.substring(0, expected.indexOf(" java="));
+        if ((environment == null) || !environment.startsWith(expected + " ")) {
+            System.out.println(
+                "INVALID BASELINE: recorded with '" + environment + "', but running with '" + getEnvironment() + "'");
+            return null;
+        }
+        boolean valid = true;
+        for (Result base : result.values()) {
+            if ((base.m_errors > 0) || (base.m_jobs < MIN_BASELINE_JOBS)) {
+                System.out.println(String.format(
+                    "INVALID BASELINE threads=%d: %d jobs, %d failed, at least %d jobs without failures are required",
+                    Integer.valueOf(base.m_threads),
+                    Integer.valueOf(base.m_jobs),
+                    Integer.valueOf(base.m_errors),
+                    Integer.valueOf(MIN_BASELINE_JOBS)));
+                valid = false;
+            }
+        }
+        return valid ? result : null;
+    }
+
+    /**
+     * Runs the jobs with the given concurrency.<p>
+     *
+     * @param jobs the jobs to run
+     * @param threads the number of concurrent threads
+     * @param warmup the warm up time in seconds
+     * @param duration the minimum measurement time in seconds
+     * @param minJobs the minimum number of measured jobs
+     *
+     * @return the results
+     *
+     * @throws InterruptedException in case the test was interrupted
+     */
+    private static Result run(List<Job> jobs, int threads, int warmup, int duration, int minJobs)
+    throws InterruptedException {
+
+        System.gc();
+        long start = System.nanoTime();
+        long measureStart = start + (warmup * 1000000000L);
+        long end = measureStart + (duration * 1000000000L);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger measured = new AtomicInteger();
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, jobs, next, measureStart, end, minJobs, measured, done);
+            workers[i].start();
+        }
+
+        // wait for the warm up to finish, then sample the heap usage until all workers are done
+        Thread.sleep(Math.max(0, (measureStart - System.nanoTime()) / 1000000L));
+        long[] gcStart = getGcTotals();
+        long peakHeap = 0;
+        Runtime runtime = Runtime.getRuntime();
+        while (done.getCount() > 0) {
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+            Thread.sleep(10);
+        }
+        long[] gcEnd = getGcTotals();
+        double seconds = (System.nanoTime() - measureStart) / 1000000000.0;
+
+        int count = 0;
+        int errors = 0;
+        for (Worker worker : workers) {
+            count += worker.m_count;
+            errors += worker.m_errors;
+        }
+        long[] latencies = new long[count];
+        int pos = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.m_latencies, 0, latencies, pos, worker.m_count);
+            pos += worker.m_count;
+        }
+        Arrays.sort(latencies);
+
+        Result result = new Result();
+        result.m_threads = threads;
+        result.m_jobs = count;
+        result.m_errors = errors;
+        result.m_seconds = seconds;
+        result.m_throughput = count / seconds;
+        result.m_p50 = percentile(latencies, 0.5);
+        result.m_p99 = percentile(latencies, 0.99);
+        result.m_p999 = percentile(latencies, 0.999);
+        result.m_max = percentile(latencies, 1.0);
+        result.m_gcCount = gcEnd[0] - gcStart[0];
+        result.m_gcMillis = gcEnd[1] - gcStart[1];
+        result.m_peakHeapMb = peakHeap / (1024 * 1024);
+        return result;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.benchmark;
+
+import com.alkacon.simapi.RenderSettings;
+import com.alkacon.simapi.Simapi;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for scaling, resizing and cropping images.<p>
+ *
+ * Every operation is measured for each render mode, on the test corpus images,
+ * with a thumbnail and a medium target size, and with opaque and transparent source images.<p>
+ *
+ * Run with <code>gradle jmh -Pjmh_includes=ScaleBenchmark</code>.<p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class ScaleBenchmark {
+
+    /** Use a transparent copy of the source image. */
+    @Param({"false", "true"})
+    public boolean m_alpha;
+
+    /** The source image from the test corpus. */
+    @Param({"slow_scale01.jpg", "screen_1280.png", "DSCN0754.JPG", "CMYK-p1.jpg", "blume-CMYK.jpg"})
+    public String m_image;
+
+    /** The render mode, see the <code>RENDER_*</code> constants of {@link Simapi}. */
+    @Param({"QUALITY", "QUALITY_BICUBIC", "QUALITY_SOFT", "MEDIUM", "SPEED"})
+    public String m_mode;
+
+    /** The target size. */
+    @Param({"thumbnail", "medium"})
+    public String m_target;
+
+    /** The source image. */
+    private BufferedImage m_source;
+
+    /** The API instance configured with the render mode. */
+    private Simapi m_simapi;
+
+    /** The target height. */
+    private int m_targetHeight;
+
+    /** The target width. */
+    private int m_targetWidth;
+
+    /**
+     * Returns the <code>RENDER_*</code> constant for the given name.<p>
+     *
+     * @param mode the name of the render mode
+     *
+     * @return the <code>RENDER_*</code> constant
+     */
+    static int getRenderMode(String mode) {
+
+        if ("QUALITY".equals(mode)) {
+            return Simapi.RENDER_QUALITY;
+        } else if ("QUALITY_BICUBIC".equals(mode)) {
+            return Simapi.RENDER_QUALITY_BICUBIC;
+        } else if ("QUALITY_SOFT".equals(mode)) {
+            return Simapi.RENDER_QUALITY_SOFT;
+        } else if ("MEDIUM".equals(mode)) {
+            return Simapi.RENDER_MEDIUM;
+        } else if ("SPEED".equals(mode)) {
+            return Simapi.RENDER_SPEED;
+        }
+        throw new IllegalArgumentException("Unknown render mode '" + mode + "'");
+    }
+
+    /**
+     * Crops the center of the image and resizes it to the target size.<p>
+     *
+     * @return the result image
+     */
+    @Benchmark
+    public BufferedImage cropToSize() {
+
+        int width = m_source.getWidth() / 2;
+        int height = m_source.getHeight() / 2;
+        return m_simapi.cropToSize(m_source, width / 2, height / 2, width, height, m_targetWidth, m_targetHeight);
+    }
+
+    /**
+     * Resizes the image to fit into the target size.<p>
+     *
+     * @return the result image
+     */
+    @Benchmark
+    public BufferedImage resize() {
+
+        return m_simapi.resize(m_source, m_targetWidth, m_targetHeight, true);
+    }
+
+    /**
+     * Scales the image to the target width, including the blur applied before scaling down.<p>
+     *
+     * @return the result image
+     */
+    @Benchmark
+    public BufferedImage scale() {
+
+        return m_simapi.scale(m_source, (float)m_targetWidth / m_source.getWidth());
+    }
+
+    /**
+     * Loads the source image and creates the API instance.<p>
+     *
+     * @throws Exception in case the image could not be loaded
+     */
+    @Setup
+    public void setUp() throws Exception {
+
+        m_source = BenchmarkImages.load(m_image);
+        if (m_alpha) {
+            m_source = BenchmarkImages.withAlpha(m_source);
+        }
+        m_simapi = new Simapi(new RenderSettings(getRenderMode(m_mode)));
+        if ("thumbnail".equals(m_target)) {
+            m_targetWidth = 200;
+            m_targetHeight = 150;
+        } else {
+            m_targetWidth = 800;
+            m_targetHeight = 600;
+        }
+    }
+}
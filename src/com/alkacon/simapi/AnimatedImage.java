@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An animated image, for example read from an animated GIF.<p>
+ *
+ * All frames are complete images of the same size, as they are displayed during the animation.
+ * The frame rectangles and disposal methods of the original GIF have already been applied when reading,
+ * so every frame can be scaled or cropped on its own. When writing, the differences between
+ * consecutive frames are computed again.<p>
+ *
+ * @see Simapi#readAnimation(java.io.File)
+ * @see Simapi#write(AnimatedImage, java.io.OutputStream)
+ */
+public class AnimatedImage {
+
+    /** Loop count indicating that the animation is played only once. */
+    public static final int LOOP_NONE = -1;
+
+    /** Loop count indicating that the animation is repeated forever. */
+    public static final int LOOP_FOREVER = 0;
+
+    /** The display times of the frames in milliseconds. */
+    private List<Integer> m_delays;
+
+    /** The frames. */
+    private List<BufferedImage> m_frames;
+
+    /** The number of times the animation is repeated. */
+    private int m_loopCount;
+
+    /**
+     * Creates a new, empty animation that is repeated forever.<p>
+     */
+    public AnimatedImage() {
+
+        this(LOOP_FOREVER);
+    }
+
+    /**
+     * Creates a new, empty animation.<p>
+     *
+     * @param loopCount the number of times the animation is repeated, {@link #LOOP_FOREVER} or {@link #LOOP_NONE}
+     */
+    public AnimatedImage(int loopCount) {
+
+        m_frames = new ArrayList<BufferedImage>();
+        m_delays = new ArrayList<Integer>();
+        m_loopCount = loopCount;
+    }
+
+    /**
+     * Adds a frame to the animation.<p>
+     *
+     * @param frame the frame to add
+     * @param delay the display time of the frame in milliseconds
+     */
+    public void addFrame(BufferedImage frame, int delay) {
+
+        if (frame == null) {
+            throw new IllegalArgumentException("frame == null!");
+        }
+        m_frames.add(frame);
+        m_delays.add(Integer.valueOf(delay));
+    }
+
+    /**
+     * Returns the display time of the given frame in milliseconds.<p>
+     *
+     * @param index the index of the frame
+     *
+     * @return the display time of the given frame in milliseconds
+     */
+    public int getDelay(int index) {
+
+        return m_delays.get(index).intValue();
+    }
+
+    /**
+     * Returns the given frame.<p>
+     *
+     * @param index the index of the frame
+     *
+     * @return the given frame
+     */
+    public BufferedImage getFrame(int index) {
+
+        return m_frames.get(index);
+    }
+
+    /**
+     * Returns the number of frames.<p>
+     *
+     * @return the number of frames
+     */
+    public int getFrameCount() {
+
+        return m_frames.size();
+    }
+
+    /**
+     * Returns an unmodifiable list of all frames.<p>
+     *
+     * @return an unmodifiable list of all frames
+     */
+    public List<BufferedImage> getFrames() {
+
+        return Collections.unmodifiableList(m_frames);
+    }
+
+    /**
+     * Returns the height of the animation, which is the height of the first frame.<p>
+     *
+     * @return the height of the animation
+     */
+    public int getHeight() {
+
+        return m_frames.isEmpty() ? 0 : m_frames.get(0).getHeight();
+    }
+
+    /**
+     * Returns the number of times the animation is repeated.<p>
+     *
+     * @return the number of times the animation is repeated, {@link #LOOP_FOREVER} or {@link #LOOP_NONE}
+     */
+    public int getLoopCount() {
+
+        return m_loopCount;
+    }
+
+    /**
+     * Returns the width of the animation, which is the width of the first frame.<p>
+     *
+     * @return the width of the animation
+     */
+    public int getWidth() {
+
+        return m_frames.isEmpty() ? 0 : m_frames.get(0).getWidth();
+    }
+
+    /**
+     * Sets the number of times the animation is repeated.<p>
+     *
+     * @param loopCount the number of times the animation is repeated, {@link #LOOP_FOREVER} or {@link #LOOP_NONE}
+     */
+    public void setLoopCount(int loopCount) {
+
+        m_loopCount = loopCount;
+    }
+}
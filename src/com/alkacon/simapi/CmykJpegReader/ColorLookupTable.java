@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.CmykJpegReader;
+
+import com.alkacon.simapi.SimapiExecutors;
+import com.alkacon.simapi.SimapiMetrics;
+
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RasterOp;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Converts CMYK or RGB rasters with an ICC color profile to sRGB, using a precomputed color lookup table.
+ * <p>
+ * The table is built once per distinct ICC profile with a {@link ColorConvertOp} on a grid of
+ * 16 bit samples, and kept in a small LRU cache keyed by the shared color space of the profile.
+ * Pixels are converted with tetrahedral integer interpolation in the grid (linear in K for CMYK),
+ * in parallel row stripes.
+ * <p>
+ * The result differs from a direct {@link ColorConvertOp} by at most a few levels, which is below the
+ * accuracy of the color management system itself, but avoids its per-image setup and per-pixel cost.
+ *
+ * @see ColorConvertOp
+ */
+final class ColorLookupTable implements RasterOp {
+
+    /** Grid points per dimension for CMYK (4D) tables. */
+    private static final int CMYK_GRID_SIZE = 17;
+
+    /** Grid points per dimension for RGB (3D) tables. */
+    private static final int RGB_GRID_SIZE = 33;
+
+    /** Maximum number of cached tables. */
+    private static final int CACHE_SIZE = 8;
+
+    /** Minimum number of pixels per stripe when converting in parallel. */
+    private static final int MIN_STRIPE_PIXELS = 1 << 14;
+
+    /**
+     * Cache for the latest used tables, the value is {@code null} if no table could be built for a color space.
+     * Keyed by the color space instance, {@link ColorSpaces} shares one instance for profiles with the same content.
+     */
+    private static final Map<ICC_ColorSpace, FutureTask<ColorLookupTable>> cache = new LRUHashMap<ICC_ColorSpace, FutureTask<ColorLookupTable>>(CACHE_SIZE);
+
+    /** Number of source components, 3 or 4. */
+    private final int numComponents;
+
+    /** Grid points per dimension. */
+    private final int gridSize;
+
+    /** 16 bit RGB values for each grid point, the last source component varies fastest, except K which varies slowest. */
+    private final int[] table;
+
+    /** Grid cell of each 8 bit sample value. */
+    private final int[] cellIndex = new int[256];
+
+    /** Position of each 8 bit sample value in its grid cell, from 0 to 256. */
+    private final int[] cellFraction = new int[256];
+
+    private ColorLookupTable(int numComponents, int gridSize, int[] table) {
+        this.numComponents = numComponents;
+        this.gridSize = gridSize;
+        this.table = table;
+
+        for (int v = 0; v < 256; v++) {
+            int position = v * (gridSize - 1);
+            int index = Math.min(position / 255, gridSize - 2);
+            cellIndex[v] = index;
+            cellFraction[v] = ((position - index * 255) * 256 + 127) / 255;
+        }
+    }
+
+    /**
+     * Returns the lookup table converting from the given color space to the given destination color space.
+     * <p>
+     * Tables are only available for CMYK and RGB ICC color spaces, converted to sRGB.
+     *
+     * @param source the source color space
+     * @param dest the destination color space
+     * @return the lookup table, or {@code null} if the conversion is not supported
+     */
+    static ColorLookupTable getInstance(final ICC_ColorSpace source, final ColorSpace dest) {
+        if (!dest.isCS_sRGB() || source.getType() != ColorSpace.TYPE_CMYK && source.getType() != ColorSpace.TYPE_RGB) {
+            return null;
+        }
+
+        FutureTask<ColorLookupTable> task;
+        boolean hit;
+
+        synchronized (cache) {
+            task = cache.get(source);
+            hit = task != null;
+
+            if (task == null) {
+                task = new FutureTask<ColorLookupTable>(new Callable<ColorLookupTable>() {
+                    public ColorLookupTable call() {
+                        return create(source, dest);
+                    }
+                });
+                cache.put(source, task);
+            }
+        }
+
+        SimapiMetrics.cacheAccessed(SimapiMetrics.CACHE_COLOR_TRANSFORM, hit);
+
+        // Runs only once, concurrent callers for the same profile wait for the result
+        task.run();
+
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static ColorLookupTable create(ICC_ColorSpace source, ColorSpace dest) {
+        int numComponents = source.getNumComponents();
+        int gridSize = numComponents == 4 ? CMYK_GRID_SIZE : RGB_GRID_SIZE;
+        int points = 1;
+
+        for (int i = 0; i < numComponents; i++) {
+            points *= gridSize;
+        }
+
+        WritableRaster grid = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, points, 1, numComponents, null);
+        int[] samples = new int[numComponents];
+
+        for (int i = 0; i < points; i++) {
+            // Index is ((k * n + c) * n + m) * n + y for CMYK, and (r * n + g) * n + b for RGB
+            int rest = i;
+            for (int c = numComponents == 4 ? 2 : numComponents - 1; c >= 0; c--) {
+                samples[c] = rest % gridSize * 65535 / (gridSize - 1);
+                rest /= gridSize;
+            }
+            if (numComponents == 4) {
+                samples[3] = rest * 65535 / (gridSize - 1);
+            }
+            grid.setPixel(i, 0, samples);
+        }
+
+        WritableRaster rgb = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, points, 1, 3, null);
+
+        try {
+            new ColorConvertOp(source, dest, null).filter(grid, rgb);
+        }
+        catch (RuntimeException e) {
+            // Let the caller fall back to a plain ColorConvertOp
+            return null;
+        }
+
+        return new ColorLookupTable(numComponents, gridSize, rgb.getPixels(0, 0, points, 1, (int[]) null));
+    }
+
+    /**
+     * Converts the source raster to the destination RGB raster.
+     *
+     * @param src raster with 3 (RGB) or 4 (CMYK) bands of 8 bit samples
+     * @param dest raster, in either 3 byte BGR/BGR, 4 byte ABGR or int RGB/ARGB format, or {@code null}
+     * @return {@code dest}, or a new {@link WritableRaster} if {@code dest} is {@code null}.
+     */
+    public WritableRaster filter(final Raster src, WritableRaster dest) {
+        Validate.notNull(src, "src may not be null");
+        Validate.isTrue(src.getTransferType() == DataBuffer.TYPE_BYTE, src, "only TYPE_BYTE rasters supported as src: %s");
+        Validate.isTrue(src.getNumBands() == numComponents, src.getNumBands(), "src raster must have " + numComponents + " bands: %s");
+
+        if (dest == null) {
+            dest = createCompatibleDestRaster(src);
+        }
+
+        final WritableRaster target = dest;
+        final int width = src.getWidth();
+        final boolean direct = src.getSampleModel() instanceof ComponentSampleModel && src.getDataBuffer() instanceof DataBufferByte
+                && src.getDataBuffer().getNumBanks() == 1;
+
+        SimapiExecutors.forEachStripe(src.getHeight(), MIN_STRIPE_PIXELS / width + 1, new SimapiExecutors.StripeTask() {
+            public void process(int start, int end) {
+                int[] rgb = new int[width];
+
+                if (direct) {
+                    ComponentSampleModel model = (ComponentSampleModel) src.getSampleModel();
+                    byte[] data = ((DataBufferByte) src.getDataBuffer()).getData();
+                    int pixelStride = model.getPixelStride();
+                    int scanlineStride = model.getScanlineStride();
+                    int[] bandOffsets = model.getBandOffsets();
+                    int offset = src.getDataBuffer().getOffset()
+                            + (src.getMinY() + start - src.getSampleModelTranslateY()) * scanlineStride
+                            + (src.getMinX() - src.getSampleModelTranslateX()) * pixelStride;
+
+                    for (int y = start; y < end; y++, offset += scanlineStride) {
+                        convertRow(data, offset, pixelStride, bandOffsets, width, rgb);
+                        writeRow(target, y, rgb);
+                    }
+                }
+                else {
+                    int[] samples = new int[width * numComponents];
+                    byte[] row = new byte[samples.length];
+                    int[] bandOffsets = new int[numComponents];
+
+                    for (int b = 0; b < numComponents; b++) {
+                        bandOffsets[b] = b;
+                    }
+
+                    for (int y = start; y < end; y++) {
+                        src.getPixels(src.getMinX(), src.getMinY() + y, width, 1, samples);
+                        for (int i = 0; i < samples.length; i++) {
+                            row[i] = (byte) samples[i];
+                        }
+
+                        convertRow(row, 0, numComponents, bandOffsets, width, rgb);
+                        writeRow(target, y, rgb);
+                    }
+                }
+            }
+        });
+
+        return dest;
+    }
+
+    /**
+     * Converts one row of samples to packed 8 bit RGB values.
+     */
+    private void convertRow(final byte[] data, int offset, final int pixelStride, final int[] bandOffsets, final int width, final int[] rgb) {
+        final int[] t = table;
+        final int[] index = cellIndex;
+        final int[] fraction = cellFraction;
+        final int n = gridSize;
+        final int o0 = bandOffsets[0];
+        final int o1 = bandOffsets[1];
+        final int o2 = bandOffsets[2];
+        final int o3 = numComponents == 4 ? bandOffsets[3] : 0;
+        final int stride3 = 3 * n * n * n;
+        final int[] low = new int[3];
+        final int[] high = new int[3];
+
+        for (int x = 0; x < width; x++, offset += pixelStride) {
+            int v0 = data[offset + o0] & 0xff;
+            int v1 = data[offset + o1] & 0xff;
+            int v2 = data[offset + o2] & 0xff;
+            int base = 3 * ((index[v0] * n + index[v1]) * n + index[v2]);
+
+            if (numComponents == 4) {
+                int k = data[offset + o3] & 0xff;
+                int fk = fraction[k];
+                base += index[k] * stride3;
+
+                interpolate(t, base, n, fraction[v0], fraction[v1], fraction[v2], low);
+                interpolate(t, base + stride3, n, fraction[v0], fraction[v1], fraction[v2], high);
+
+                for (int c = 0; c < 3; c++) {
+                    low[c] = ((low[c] << 8) + fk * (high[c] - low[c]) + 128) >> 8;
+                }
+            }
+            else {
+                interpolate(t, base, n, fraction[v0], fraction[v1], fraction[v2], low);
+            }
+
+            // Exact rounding from 16 to 8 bits
+            rgb[x] = (low[0] * 255 + 32895) >> 16 << 16 | (low[1] * 255 + 32895) >> 16 << 8 | (low[2] * 255 + 32895) >> 16;
+        }
+    }
+
+    /**
+     * Tetrahedral interpolation in the 3D grid cell at {@code base}, resulting in 16 bit values.
+     */
+    private static void interpolate(final int[] t, final int base, final int n, final int f0, final int f1, final int f2, final int[] out) {
+        final int s0 = 3 * n * n;
+        final int s1 = 3 * n;
+        final int s2 = 3;
+
+        // Walk from the low to the high corner of the cell, along the axes in order of decreasing fraction
+        int sa, sb, fa, fb, fc;
+        if (f0 >= f1) {
+            if (f1 >= f2) {
+                sa = s0; sb = s1; fa = f0; fb = f1; fc = f2;
+            }
+            else if (f0 >= f2) {
+                sa = s0; sb = s2; fa = f0; fb = f2; fc = f1;
+            }
+            else {
+                sa = s2; sb = s0; fa = f2; fb = f0; fc = f1;
+            }
+        }
+        else {
+            if (f0 >= f2) {
+                sa = s1; sb = s0; fa = f1; fb = f0; fc = f2;
+            }
+            else if (f1 >= f2) {
+                sa = s1; sb = s2; fa = f1; fb = f2; fc = f0;
+            }
+            else {
+                sa = s2; sb = s1; fa = f2; fb = f1; fc = f0;
+            }
+        }
+
+        final int a = base + sa;
+        final int b = a + sb;
+        final int c = base + s0 + s1 + s2;
+
+        for (int i = 0; i < 3; i++) {
+            int v = t[base + i];
+            int va = t[a + i];
+            int vb = t[b + i];
+            out[i] = ((v << 8) + fa * (va - v) + fb * (vb - va) + fc * (t[c + i] - vb) + 128) >> 8;
+        }
+    }
+
+    /**
+     * Writes one row of packed 8 bit RGB values to the destination.
+     */
+    private static void writeRow(final WritableRaster dest, final int y, final int[] rgb) {
+        final int width = rgb.length;
+
+        if (dest.getSampleModel() instanceof ComponentSampleModel && dest.getDataBuffer() instanceof DataBufferByte
+                && dest.getDataBuffer().getNumBanks() == 1) {
+            ComponentSampleModel model = (ComponentSampleModel) dest.getSampleModel();
+            byte[] data = ((DataBufferByte) dest.getDataBuffer()).getData();
+            int pixelStride = model.getPixelStride();
+            int[] bandOffsets = model.getBandOffsets();
+            int r = bandOffsets[0];
+            int g = bandOffsets[1];
+            int b = bandOffsets[2];
+            int a = dest.getNumBands() > 3 ? bandOffsets[3] : -1;
+            int out = dest.getDataBuffer().getOffset()
+                    + (dest.getMinY() + y - dest.getSampleModelTranslateY()) * model.getScanlineStride()
+                    + (dest.getMinX() - dest.getSampleModelTranslateX()) * pixelStride;
+
+            for (int x = 0; x < width; x++, out += pixelStride) {
+                int pixel = rgb[x];
+                data[out + r] = (byte) (pixel >> 16);
+                data[out + g] = (byte) (pixel >> 8);
+                data[out + b] = (byte) pixel;
+                if (a >= 0) {
+                    data[out + a] = (byte) 0xFF;
+                }
+            }
+        }
+        else if (dest.getSampleModel() instanceof SinglePixelPackedSampleModel && dest.getDataBuffer() instanceof DataBufferInt
+                && dest.getDataBuffer().getNumBanks() == 1) {
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) dest.getSampleModel();
+            int[] data = ((DataBufferInt) dest.getDataBuffer()).getData();
+            int[] bitOffsets = model.getBitOffsets();
+            int alpha = bitOffsets.length > 3 ? 0xFF << bitOffsets[3] : 0;
+            int out = dest.getDataBuffer().getOffset()
+                    + (dest.getMinY() + y - dest.getSampleModelTranslateY()) * model.getScanlineStride()
+                    + (dest.getMinX() - dest.getSampleModelTranslateX());
+
+            for (int x = 0; x < width; x++) {
+                int pixel = rgb[x];
+                data[out++] = alpha | (pixel >> 16 & 0xFF) << bitOffsets[0] | (pixel >> 8 & 0xFF) << bitOffsets[1] | (pixel & 0xFF) << bitOffsets[2];
+            }
+        }
+        else {
+            int bands = dest.getNumBands();
+            int[] samples = new int[width * bands];
+
+            for (int x = 0, i = 0; x < width; x++, i += bands) {
+                int pixel = rgb[x];
+                samples[i] = pixel >> 16 & 0xFF;
+                samples[i + 1] = pixel >> 8 & 0xFF;
+                samples[i + 2] = pixel & 0xFF;
+                if (bands > 3) {
+                    samples[i + 3] = 0xFF;
+                }
+            }
+
+            dest.setPixels(dest.getMinX(), dest.getMinY() + y, width, 1, samples);
+        }
+    }
+
+    public Rectangle2D getBounds2D(Raster src) {
+        return src.getBounds();
+    }
+
+    public WritableRaster createCompatibleDestRaster(final Raster src) {
+        return Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, src.getWidth(), src.getHeight(), 3, null);
+    }
+
+    public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
+        if (dstPt == null) {
+            dstPt = new Point2D.Double(srcPt.getX(), srcPt.getY());
+        }
+        else {
+            dstPt.setLocation(srcPt);
+        }
+
+        return dstPt;
+    }
+
+    public RenderingHints getRenderingHints() {
+        return null;
+    }
+}
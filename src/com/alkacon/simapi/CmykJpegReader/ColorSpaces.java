@@ -28,15 +28,21 @@
 
 package com.alkacon.simapi.CmykJpegReader;
 
+import com.alkacon.simapi.SimapiMetrics;
+
 import java.awt.color.ColorSpace;
 import java.awt.color.ICC_ColorSpace;
 import java.awt.color.ICC_Profile;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A helper class for working with ICC color profiles and color spaces.
@@ -58,6 +64,11 @@ import java.util.Properties;
  * ADOBE_RGB_1998=/path/to/Adobe RGB 1998.icc
  * GENERIC_CMYK=/path/to/Generic CMYK.icc
  * </pre>
+ * <p>
+ * Color spaces are kept in a thread-safe registry, which shares one color space between all
+ * profiles with the same content, and evicts the least recently used color spaces.
+ * The standard profiles are loaded only once and are never evicted.
+ * Call {@link #warmUp()} on startup to avoid loading them while serving requests.
  *
  * @author <a href="mailto:harald.kuhr@gmail.com">Harald Kuhr</a>
  * @author last modified by $Author: haraldk$
@@ -78,25 +89,53 @@ public final class ColorSpaces {
 
     // NOTE: java.awt.color.ColorSpace.CS_* uses 1000-1004, we'll use 5000+ to not interfere with future additions
 
+    /**
+     * A color space in the registry.
+     * <p>
+     * Entries with the same profile header are chained, they are told apart by the digest of the profile data.
+     */
+    private static final class Entry {
+
+        private final ICC_ColorSpace colorSpace;
+
+        private final byte[] digest;
+
+        private final Entry next;
+
+        Entry(ICC_ColorSpace colorSpace, byte[] digest, Entry next) {
+
+            this.colorSpace = colorSpace;
+            this.digest = digest;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Registry key of a profile, which is the profile header.
+     * <p>
+     * Profiles with different content may share the header, even if the header contains a profile ID,
+     * since the ID is not verified and may be reused or forged. Entries are therefore always compared
+     * by the digest of the complete profile data.
+     */
     private static final class Key {
 
-        private final byte[] data;
+        private final byte[] header;
 
-        public Key(byte[] data) {
+        public Key(byte[] header) {
 
-            this.data = data;
+            this.header = header;
         }
 
         @Override
         public boolean equals(Object other) {
 
-            return (other instanceof Key) && Arrays.equals(data, ((Key)other).data);
+            return (other instanceof Key) && Arrays.equals(header, ((Key)other).header);
         }
 
         @Override
         public int hashCode() {
 
-            return Arrays.hashCode(data);
+            return Arrays.hashCode(header);
         }
     }
 
@@ -181,13 +220,22 @@ public final class ColorSpaces {
     /** Value used instead of 'XYZ ' in problematic Corbis RGB Profiles */
     private static final byte[] CORBIS_RGB_ALTERNATE_XYZ = new byte[] {0x17, (byte)0xA5, 0x05, (byte)0xB8};
 
-    // Weak references to hold the color spaces while cached
-    private static WeakReference<ICC_Profile> adobeRGB1998 = new WeakReference<ICC_Profile>(null);
+    /** Maximum number of color spaces in the registry, not counting the standard color spaces. */
+    private static final int MAX_REGISTRY_SIZE = 64;
 
-    private static WeakReference<ICC_Profile> genericCMYK = new WeakReference<ICC_Profile>(null);
+    // The standard color spaces, pinned once loaded
+    private static volatile ICC_ColorSpace adobeRGB1998;
 
-    // Cache for the latest used color spaces
-    private static final Map<Key, ICC_ColorSpace> cache = new LRUHashMap<Key, ICC_ColorSpace>(10);
+    private static volatile ColorSpace genericCMYK;
+
+    // Registry of the created color spaces, keyed by the profile header, the least recently used entries come first
+    private static final Map<Key, Entry> registry = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    // Number of profiles read from disk or classpath
+    private static final AtomicInteger profileLoadCount = new AtomicInteger();
+
+    // Number of color spaces created for the registry
+    private static final AtomicInteger colorSpaceCreateCount = new AtomicInteger();
 
     private ColorSpaces() {
 
@@ -243,7 +291,7 @@ public final class ColorSpaces {
             fixProfileXYZTag(profile, ICC_Profile.icSigBlueColorantTag);
         }
 
-        return getCachedOrCreateCS(profile, profileHeader);
+        return getCachedOrCreateCS(profile);
     }
 
     /**
@@ -261,56 +309,54 @@ public final class ColorSpaces {
      */
     public static ColorSpace getColorSpace(int colorSpace) {
 
-        ICC_Profile profile;
-
         switch (colorSpace) {
             case CS_ADOBE_RGB_1998:
-                synchronized (ColorSpaces.class) {
-                    profile = adobeRGB1998.get();
-
-                    if (profile == null) {
-                        // Try to get system default or user-defined profile
-                        profile = readProfileFromPath(Profiles.getPath("ADOBE_RGB_1998"));
-
-                        if (profile == null) {
-                            // Fall back to the bundled ClayRGB1998 public domain Adobe RGB 1998 compatible profile,
-                            // which is identical for all practical purposes
-                            profile = readProfileFromClasspathResource("/profiles/ClayRGB1998.icc");
+                if (adobeRGB1998 == null) {
+                    synchronized (ColorSpaces.class) {
+                        if (adobeRGB1998 == null) {
+                            // Try to get system default or user-defined profile
+                            ICC_Profile profile = readProfileFromPath(Profiles.getPath("ADOBE_RGB_1998"));
 
                             if (profile == null) {
-                                // Should never happen given we now bundle fallback profile...
-                                throw new IllegalStateException("Could not read AdobeRGB1998 profile");
+                                // Fall back to the bundled ClayRGB1998 public domain Adobe RGB 1998 compatible profile,
+                                // which is identical for all practical purposes
+                                profile = readProfileFromClasspathResource("/profiles/ClayRGB1998.icc");
+
+                                if (profile == null) {
+                                    // Should never happen given we now bundle fallback profile...
+                                    throw new IllegalStateException("Could not read AdobeRGB1998 profile");
+                                }
                             }
-                        }
 
-                        adobeRGB1998 = new WeakReference<ICC_Profile>(profile);
+                            adobeRGB1998 = createColorSpace(profile);
+                        }
                     }
                 }
 
-                return createColorSpace(profile);
+                return adobeRGB1998;
 
             case CS_GENERIC_CMYK:
-                synchronized (ColorSpaces.class) {
-                    profile = genericCMYK.get();
+                if (genericCMYK == null) {
+                    synchronized (ColorSpaces.class) {
+                        if (genericCMYK == null) {
+                            // Try to get system default or user-defined profile
+                            ICC_Profile profile = readProfileFromPath(Profiles.getPath("GENERIC_CMYK"));
 
-                    if (profile == null) {
-                        // Try to get system default or user-defined profile
-                        profile = readProfileFromPath(Profiles.getPath("GENERIC_CMYK"));
-
-                        if (profile == null) {
-                            if (DEBUG) {
-                                System.out.println("Using fallback profile");
+                            if (profile == null) {
+                                if (DEBUG) {
+                                    System.out.println("Using fallback profile");
+                                }
+
+                                // Fall back to generic CMYK ColorSpace, which is *insanely slow* using ColorConvertOp... :-P
+                                genericCMYK = CMYKColorSpace.getInstance();
+                            } else {
+                                genericCMYK = createColorSpace(profile);
                             }
-
-                            // Fall back to generic CMYK ColorSpace, which is *insanely slow* using ColorConvertOp... :-P
-                            return CMYKColorSpace.getInstance();
                         }
-
-                        genericCMYK = new WeakReference<ICC_Profile>(profile);
                     }
                 }
 
-                return createColorSpace(profile);
+                return genericCMYK;
 
             default:
                 // Default cases for convenience
@@ -318,6 +364,30 @@ public final class ColorSpaces {
         }
     }
 
+    /**
+     * Returns the number of color spaces created for the registry since startup.
+     * <p>
+     * Color spaces are created once per distinct profile content, unless evicted from the registry.
+     *
+     * @return the number of color spaces created
+     */
+    public static int getColorSpaceCreateCount() {
+
+        return colorSpaceCreateCount.get();
+    }
+
+    /**
+     * Returns the number of ICC profiles read from disk or from the classpath since startup.
+     * <p>
+     * The standard profiles are read only once, so this number should not grow while serving requests.
+     *
+     * @return the number of ICC profiles read
+     */
+    public static int getProfileLoadCount() {
+
+        return profileLoadCount.get();
+    }
+
     /**
      * Tests whether an ICC color profile is equal to the default sRGB profile.
      *
@@ -366,6 +436,39 @@ public final class ColorSpaces {
         return data[ICC_Profile.icHdrRenderingIntent] != 0;
     }
 
+    /**
+     * Loads the standard color spaces and prepares the color conversion from generic CMYK to sRGB.
+     * <p>
+     * Call this method on startup, so the profiles are not read from disk while serving the first requests.
+     */
+    public static void warmUp() {
+
+        try {
+            getColorSpace(CS_ADOBE_RGB_1998);
+        } catch (IllegalStateException e) {
+            // no Adobe RGB profile available, it will fail again when requested
+        }
+        ColorSpace cmyk = getColorSpace(CS_GENERIC_CMYK);
+        if (cmyk instanceof ICC_ColorSpace) {
+            ColorLookupTable.getInstance((ICC_ColorSpace)cmyk, ColorSpace.getInstance(ColorSpace.CS_sRGB));
+        }
+    }
+
+    /**
+     * Returns a digest of the data of the given profile, used to detect profiles with the same content.
+     *
+     * @param profile the ICC color profile
+     * @return the digest of the profile data
+     */
+    private static byte[] getProfileDigest(final ICC_Profile profile) {
+
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(profile.getData());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Fixes problematic 'XYZ ' tags in Corbis RGB profile.
      *
@@ -392,20 +495,70 @@ public final class ColorSpaces {
         return false;
     }
 
-    private static ICC_ColorSpace getCachedOrCreateCS(final ICC_Profile profile, final byte[] profileHeader) {
+    /**
+     * Returns the color space of the registry entry with the given digest.
+     *
+     * @param entry the first entry with the same profile header
+     * @param digest the digest of the profile data
+     * @return the color space, or {@code null} if there is no such entry
+     */
+    private static ICC_ColorSpace findEntry(Entry entry, byte[] digest) {
 
-        Key key = new Key(profileHeader);
+        for (Entry e = entry; e != null; e = e.next) {
+            if (Arrays.equals(digest, e.digest)) {
+                return e.colorSpace;
+            }
+        }
+        return null;
+    }
 
-        synchronized (cache) {
-            ICC_ColorSpace cs = cache.get(key);
+    /**
+     * Returns the standard color space in the given chain of registry entries.
+     *
+     * @param entry the first entry of the chain
+     * @return the standard color space, or {@code null} if the chain contains no standard color space
+     */
+    private static ICC_ColorSpace findStandard(Entry entry) {
 
-            if (cs == null) {
-                cs = new ICC_ColorSpace(profile);
-                cache.put(key, cs);
+        for (Entry e = entry; e != null; e = e.next) {
+            if ((e.colorSpace == adobeRGB1998) || (e.colorSpace == genericCMYK)) {
+                return e.colorSpace;
             }
+        }
+        return null;
+    }
 
-            return cs;
+    private static ICC_ColorSpace getCachedOrCreateCS(final ICC_Profile profile) {
+
+        // The header is a cheap key, the digest of the complete data tells profiles with the same header apart.
+        // The profile ID in the header is not trusted, since it is not verified and may be forged.
+        Key key = new Key(profile.getData(ICC_Profile.icSigHead));
+        byte[] digest = getProfileDigest(profile);
+
+        Entry entry;
+        synchronized (registry) {
+            entry = registry.get(key);
         }
+        ICC_ColorSpace cs = findEntry(entry, digest);
+        SimapiMetrics.cacheAccessed(SimapiMetrics.CACHE_COLOR_SPACE, cs != null);
+
+        if (cs == null) {
+            // Created outside of any lock, if two threads race for the same profile only one color space is kept
+            cs = new ICC_ColorSpace(profile);
+            colorSpaceCreateCount.incrementAndGet();
+
+            synchronized (registry) {
+                entry = registry.get(key);
+                ICC_ColorSpace existing = findEntry(entry, digest);
+                if (existing != null) {
+                    return existing;
+                }
+                registry.put(key, new Entry(cs, digest, entry));
+                trimRegistry();
+            }
+        }
+
+        return cs;
     }
 
     private static ICC_ColorSpace getInternalCS(final int profileCSType, final byte[] profileHeader) {
@@ -425,6 +578,22 @@ public final class ColorSpaces {
         return null;
     }
 
+    /**
+     * Removes the least recently used color spaces from the registry until it is within its maximum size,
+     * keeping the standard color spaces. Must be called while holding the lock of the registry.
+     */
+    private static void trimRegistry() {
+
+        int excess = registry.size() - MAX_REGISTRY_SIZE;
+        for (Iterator<Entry> it = registry.values().iterator(); (excess > 0) && it.hasNext();) {
+            Entry entry = it.next();
+            if (findStandard(entry) == null) {
+                it.remove();
+                excess--;
+            }
+        }
+    }
+
     private static ICC_Profile readProfileFromClasspathResource(final String profilePath) {
 
         InputStream stream = ColorSpaces.class.getResourceAsStream(profilePath);
@@ -436,7 +605,9 @@ public final class ColorSpaces {
 
             try {
 
-                return ICC_Profile.getInstance(stream);
+                ICC_Profile profile = ICC_Profile.getInstance(stream);
+                profileLoadCount.incrementAndGet();
+                return profile;
             } catch (IOException ignore) {
                 if (DEBUG) {
                     ignore.printStackTrace();
@@ -457,7 +628,9 @@ public final class ColorSpaces {
             }
 
             try {
-                return ICC_Profile.getInstance(profilePath);
+                ICC_Profile profile = ICC_Profile.getInstance(profilePath);
+                profileLoadCount.incrementAndGet();
+                return profile;
             } catch (IOException ignore) {
                 if (DEBUG) {
                     ignore.printStackTrace();
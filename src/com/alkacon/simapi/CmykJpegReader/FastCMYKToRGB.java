@@ -28,6 +28,8 @@
 
 package com.alkacon.simapi.CmykJpegReader;
 
+import com.alkacon.simapi.SimapiExecutors;
+
 import java.awt.*;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
@@ -37,6 +39,7 @@ import java.awt.image.*;
  * This class performs a pixel by pixel conversion of the source image, from CMYK to RGB.
  * <p>
  * The conversion is fast, but performed without any color space conversion.
+ * Rasters backed by a single data array are converted directly on the array, in parallel row stripes.
  *
  * @author <a href="mailto:harald.kuhr@gmail.com">Harald Kuhr</a>
  * @author last modified by $Author: haraldk$
@@ -46,6 +49,15 @@ import java.awt.image.*;
 class FastCMYKToRGB implements /*BufferedImageOp,*/ RasterOp {
     // TODO: Force dest alpha to match source alpha?
 
+    /** Minimum number of pixels per stripe when converting in parallel. */
+    private static final int MIN_STRIPE_PIXELS = 1 << 16;
+
+    /**
+     * Conversion table, indexed by {@code (k << 8) | c}.
+     * Contains {@code 255 - (c * (255 - k) / 255 + k)}, so no division is needed per pixel.
+     */
+    private static final byte[] CMYK_TO_RGB = createTable();
+
     public FastCMYKToRGB() {
     }
 
@@ -79,6 +91,10 @@ class FastCMYKToRGB implements /*BufferedImageOp,*/ RasterOp {
         final int height = src.getHeight();
         final int width = src.getWidth();
 
+        if (filterBulk(src, dest)) {
+            return dest;
+        }
+
         final byte[] in = new byte[src.getNumDataElements()]; // CMYK
 
         if (dest.getTransferType() == DataBuffer.TYPE_BYTE) {
@@ -130,11 +146,128 @@ class FastCMYKToRGB implements /*BufferedImageOp,*/ RasterOp {
     }
 
     private void convertCMYKToRGB(byte[] cmyk, byte[] rgb) {
+        final int k = (cmyk[3] & 0xFF) << 8;
+        rgb[0] = CMYK_TO_RGB[k | cmyk[0] & 0xFF];
+        rgb[1] = CMYK_TO_RGB[k | cmyk[1] & 0xFF];
+        rgb[2] = CMYK_TO_RGB[k | cmyk[2] & 0xFF];
+    }
+
+    private static byte[] createTable() {
         // Adapted from http://www.easyrgb.com/index.php?X=MATH
-        final int k = cmyk[3] & 0xFF;
-        rgb[0] = (byte) (255 - (((cmyk[0] & 0xFF) * (255 - k) / 255) + k));
-        rgb[1] = (byte) (255 - (((cmyk[1] & 0xFF) * (255 - k) / 255) + k));
-        rgb[2] = (byte) (255 - (((cmyk[2] & 0xFF) * (255 - k) / 255) + k));
+        byte[] table = new byte[256 * 256];
+
+        for (int k = 0; k < 256; k++) {
+            for (int c = 0; c < 256; c++) {
+                table[k << 8 | c] = (byte) (255 - ((c * (255 - k) / 255) + k));
+            }
+        }
+
+        return table;
+    }
+
+    /**
+     * Converts directly on the data arrays of the rasters, in parallel row stripes.
+     *
+     * @return {@code true} if the rasters were converted, {@code false} if their layout is not supported
+     */
+    private boolean filterBulk(final Raster src, final WritableRaster dest) {
+        if (!(src.getSampleModel() instanceof ComponentSampleModel) || !(src.getDataBuffer() instanceof DataBufferByte)
+                || src.getDataBuffer().getNumBanks() != 1 || src.getWidth() != dest.getWidth() || src.getHeight() != dest.getHeight()) {
+            return false;
+        }
+
+        final ComponentSampleModel srcModel = (ComponentSampleModel) src.getSampleModel();
+        final byte[] srcData = ((DataBufferByte) src.getDataBuffer()).getData();
+        final int srcPixelStride = srcModel.getPixelStride();
+        final int srcScanlineStride = srcModel.getScanlineStride();
+        final int[] srcOffsets = srcModel.getBandOffsets();
+        final int srcBase = src.getDataBuffer().getOffset()
+                + (src.getMinY() - src.getSampleModelTranslateY()) * srcScanlineStride
+                + (src.getMinX() - src.getSampleModelTranslateX()) * srcPixelStride;
+        final int cOffset = srcOffsets[0];
+        final int mOffset = srcOffsets[1];
+        final int yOffset = srcOffsets[2];
+        final int kOffset = srcOffsets[3];
+        final int width = src.getWidth();
+
+        if (dest.getSampleModel() instanceof ComponentSampleModel && dest.getDataBuffer() instanceof DataBufferByte
+                && dest.getDataBuffer().getNumBanks() == 1) {
+            final ComponentSampleModel destModel = (ComponentSampleModel) dest.getSampleModel();
+            final byte[] destData = ((DataBufferByte) dest.getDataBuffer()).getData();
+            final int destPixelStride = destModel.getPixelStride();
+            final int destScanlineStride = destModel.getScanlineStride();
+            final int[] destOffsets = destModel.getBandOffsets();
+            final int destBase = dest.getDataBuffer().getOffset()
+                    + (dest.getMinY() - dest.getSampleModelTranslateY()) * destScanlineStride
+                    + (dest.getMinX() - dest.getSampleModelTranslateX()) * destPixelStride;
+            final int rOffset = destOffsets[0];
+            final int gOffset = destOffsets[1];
+            final int bOffset = destOffsets[2];
+            final int aOffset = dest.getNumDataElements() > 3 ? destOffsets[3] : -1;
+
+            SimapiExecutors.forEachStripe(src.getHeight(), MIN_STRIPE_PIXELS / Math.max(1, width) + 1, new SimapiExecutors.StripeTask() {
+                public void process(int start, int end) {
+                    final byte[] table = CMYK_TO_RGB;
+
+                    for (int y = start; y < end; y++) {
+                        int in = srcBase + y * srcScanlineStride;
+                        int out = destBase + y * destScanlineStride;
+
+                        for (int x = 0; x < width; x++) {
+                            final int k = (srcData[in + kOffset] & 0xFF) << 8;
+                            destData[out + rOffset] = table[k | srcData[in + cOffset] & 0xFF];
+                            destData[out + gOffset] = table[k | srcData[in + mOffset] & 0xFF];
+                            destData[out + bOffset] = table[k | srcData[in + yOffset] & 0xFF];
+                            if (aOffset >= 0) {
+                                destData[out + aOffset] = (byte) 0xFF;
+                            }
+                            in += srcPixelStride;
+                            out += destPixelStride;
+                        }
+                    }
+                }
+            });
+
+            return true;
+        }
+        else if (dest.getSampleModel() instanceof SinglePixelPackedSampleModel && dest.getDataBuffer() instanceof DataBufferInt
+                && dest.getDataBuffer().getNumBanks() == 1) {
+            final SinglePixelPackedSampleModel destModel = (SinglePixelPackedSampleModel) dest.getSampleModel();
+            final int[] destData = ((DataBufferInt) dest.getDataBuffer()).getData();
+            final int destScanlineStride = destModel.getScanlineStride();
+            final int destBase = dest.getDataBuffer().getOffset()
+                    + (dest.getMinY() - dest.getSampleModelTranslateY()) * destScanlineStride
+                    + (dest.getMinX() - dest.getSampleModelTranslateX());
+            final int[] bitOffsets = destModel.getBitOffsets();
+            final int rShift = bitOffsets[0];
+            final int gShift = bitOffsets[1];
+            final int bShift = bitOffsets[2];
+            final int alpha = bitOffsets.length > 3 ? 0xFF << 24 : 0;
+
+            SimapiExecutors.forEachStripe(src.getHeight(), MIN_STRIPE_PIXELS / Math.max(1, width) + 1, new SimapiExecutors.StripeTask() {
+                public void process(int start, int end) {
+                    final byte[] table = CMYK_TO_RGB;
+
+                    for (int y = start; y < end; y++) {
+                        int in = srcBase + y * srcScanlineStride;
+                        int out = destBase + y * destScanlineStride;
+
+                        for (int x = 0; x < width; x++) {
+                            final int k = (srcData[in + kOffset] & 0xFF) << 8;
+                            destData[out++] = alpha
+                                    | (table[k | srcData[in + cOffset] & 0xFF] & 0xFF) << rShift
+                                    | (table[k | srcData[in + mOffset] & 0xFF] & 0xFF) << gShift
+                                    | (table[k | srcData[in + yOffset] & 0xFF] & 0xFF) << bShift;
+                            in += srcPixelStride;
+                        }
+                    }
+                }
+            });
+
+            return true;
+        }
+
+        return false;
     }
 
     public Rectangle2D getBounds2D(Raster src) {
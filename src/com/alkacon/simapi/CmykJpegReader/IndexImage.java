@@ -80,6 +80,8 @@
 
 package com.alkacon.simapi.CmykJpegReader;
 
+import com.alkacon.simapi.GifWriter.PaletteMapper;
+
 import javax.imageio.ImageIO;
 
 import java.awt.*;
@@ -1009,14 +1011,9 @@ class IndexImage {
         switch (pHints & DITHER_MASK) {
             case DITHER_DIFFUSION:
             case DITHER_DIFFUSION_ALTSCANS:
-                // Create a DiffusionDither to apply dither to indexed
-                DiffusionDither dither = new DiffusionDither(pColors);
-
-                if ((pHints & DITHER_MASK) == DITHER_DIFFUSION_ALTSCANS) {
-                    dither.setAlternateScans(true);
-                }
-
-                dither.filter(solid, indexed);
+                // Apply Floyd-Steinberg dither to indexed, alternating the scan direction if requested
+                boolean alternateScans = (pHints & DITHER_MASK) == DITHER_DIFFUSION_ALTSCANS;
+                new PaletteMapper(pColors, 0).map(solid, indexed, true, alternateScans);
 
                 break;
             case DITHER_NONE:
@@ -1025,8 +1022,7 @@ class IndexImage {
                 // Graphics2D.drawImage, and VALUE_DITHER_DISABLE,
                 // however you possibly end up getting a dithered image anyway,
                 // therefore, do it slower and produce correct result. :-)
-                CopyDither copy = new CopyDither(pColors);
-                copy.filter(solid, indexed);
+                new PaletteMapper(pColors, 0).map(solid, indexed, false);
 
                 break;
             case DITHER_DEFAULT:
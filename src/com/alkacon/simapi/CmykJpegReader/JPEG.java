@@ -48,6 +48,8 @@ public interface JPEG {
     int DQT = 0xFFDB;
     /** Define Huffman Tables segment marker (DHT). */
     int DHT = 0xFFC4;
+    /** Define Restart Interval segment marker (DRI). */
+    int DRI = 0xFFDD;
 
     // App segment markers (APPn).
     int APP0 = 0xFFE0;
@@ -0,0 +1,939 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.CmykJpegReader;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import javax.imageio.IIOException;
+
+/**
+ * A pure Java decoder for baseline and progressive Huffman coded JPEG images with 8 bit samples and 1 to 4 components.
+ * <p>
+ * In contrast to the JDK decoder, the image can be decoded at 1/2, 1/4 or 1/8 of its size directly in the DCT domain,
+ * using only the low frequency coefficients of each block. At 1/8, only the DC coefficients are transformed.
+ * This makes reading thumbnails of large images much cheaper.
+ * <p>
+ * Like {@link javax.imageio.ImageReader#readRaster(int, javax.imageio.ImageReadParam)}, the decoder returns the raw,
+ * upsampled component samples as stored in the file, without any color conversion.
+ * Arithmetic coded, lossless, hierarchical and 12 bit images are not supported.
+ */
+class JPEGDecoder {
+
+    /** Natural order index of the zig-zag ordered coefficients (with some extra entries for corrupt data). */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21,
+            28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61,
+            54, 47, 55, 62, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63
+    };
+
+    /** Number of bits in the fast Huffman lookup tables. */
+    private static final int LOOKAHEAD = 9;
+
+    /** Inverse DCT matrices for 1, 2, 4 and 8 output samples per block and dimension, indexed by log2 of the size. */
+    private static final float[][] IDCT = new float[4][];
+
+    static {
+        for (int log = 0; log < 4; log++) {
+            int n = 1 << log;
+            float[] matrix = new float[n * n];
+
+            for (int x = 0; x < n; x++) {
+                for (int u = 0; u < n; u++) {
+                    double c = u == 0 ? Math.sqrt(0.5) : 1;
+                    matrix[x * n + u] = (float) (c * Math.cos((2 * x + 1) * u * Math.PI / (2 * n)) / 2);
+                }
+            }
+
+            IDCT[log] = matrix;
+        }
+    }
+
+    private static final class HuffmanTable {
+        /** Fast lookup: (length << 8 | symbol) for codes up to {@link #LOOKAHEAD} bits, 0 for longer codes. */
+        final int[] lookup = new int[1 << LOOKAHEAD];
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final int[] values;
+
+        HuffmanTable(int[] counts, int[] values) throws IIOException {
+            this.values = values;
+
+            int code = 0;
+            int k = 0;
+
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k - code;
+
+                for (int i = 0; i < counts[length - 1]; i++, k++, code++) {
+                    if (k >= values.length) {
+                        throw new IIOException("Corrupt JPEG data: bad Huffman table");
+                    }
+
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        for (int j = 0; j < 1 << shift; j++) {
+                            lookup[code << shift | j] = length << 8 | values[k];
+                        }
+                    }
+                }
+
+                maxCode[length] = counts[length - 1] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    private static final class Component {
+        final int id;
+        final int h;
+        final int v;
+        final int quantizationTable;
+        int blocksPerLine;
+        int blocksPerColumn;
+        int planeStride;
+        /** Coefficients of all blocks, only used for progressive images. */
+        short[] coefficients;
+        /** Decoded samples, at the scaled size. */
+        byte[] plane;
+        int prediction;
+        HuffmanTable dcTable;
+        HuffmanTable acTable;
+
+        Component(int id, int h, int v, int quantizationTable) {
+            this.id = id;
+            this.h = h;
+            this.v = v;
+            this.quantizationTable = quantizationTable;
+        }
+    }
+
+    private final byte[] data;
+    private int pos;
+
+    private final int[][] quantizationTables = new int[4][];
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+    private Component[] components;
+    private int width;
+    private int height;
+    private boolean progressive;
+    private int maxH;
+    private int maxV;
+    private int mcusPerLine;
+    private int mcusPerColumn;
+    private int restartInterval;
+
+    /** Output samples per block and dimension, and its log2. */
+    private int blockSize;
+    private int blockSizeLog;
+
+    /** Intermediate results of the inverse DCT of one block, reused for all blocks. */
+    private float[] idctTemp;
+
+    // Entropy decoder state
+    private long bitBuffer;
+    private int bitCount;
+    private boolean markerReached;
+    private int eobRun;
+    private int successiveState;
+    private int successiveValue;
+
+    private volatile boolean aborted;
+
+    /**
+     * Creates a decoder for the given JPEG data.
+     *
+     * @param data the complete JPEG stream, starting with the SOI marker
+     */
+    JPEGDecoder(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Aborts decoding, {@link #decode(int)} will return {@code null}.
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Called after each decoded row of MCUs, or scan of progressive images.
+     *
+     * @param percentageDone the estimated percentage of the decoding done
+     */
+    protected void processProgress(float percentageDone) {
+    }
+
+    /**
+     * Decodes the image at the given scale.
+     *
+     * @param scale the scale denominator, either 1, 2, 4 or 8
+     * @return a pixel interleaved byte raster with one band per component, or {@code null} if aborted
+     * @throws IIOException if the image is not supported or corrupt
+     */
+    Raster decode(int scale) throws IIOException {
+        if (scale != 1 && scale != 2 && scale != 4 && scale != 8) {
+            throw new IllegalArgumentException("Unsupported scale: " + scale);
+        }
+
+        blockSize = 8 / scale;
+        blockSizeLog = Integer.numberOfTrailingZeros(blockSize);
+        idctTemp = new float[blockSize * blockSize];
+
+        try {
+            if (!decodeStream()) {
+                return null;
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IIOException("Corrupt JPEG data: unexpected end of data", e);
+        }
+
+        return createRaster(scale);
+    }
+
+    private boolean decodeStream() throws IIOException {
+        pos = 0;
+
+        if (readMarker() != JPEG.SOI) {
+            throw new IIOException("Not a JPEG stream: no SOI marker");
+        }
+
+        int scans = 0;
+
+        while (true) {
+            int marker = readMarker();
+
+            switch (marker) {
+                case JPEG.SOF0:
+                case JPEG.SOF1:
+                case JPEG.SOF2:
+                    if (components != null) {
+                        throw new IIOException("Unsupported JPEG: multiple frames");
+                    }
+                    readFrame(marker == JPEG.SOF2);
+                    break;
+                case JPEG.SOF3:
+                case JPEG.SOF5:
+                case JPEG.SOF6:
+                case JPEG.SOF7:
+                case JPEG.SOF9:
+                case JPEG.SOF10:
+                case JPEG.SOF11:
+                case JPEG.SOF13:
+                case JPEG.SOF14:
+                case JPEG.SOF15:
+                    throw new IIOException(String.format("Unsupported JPEG: SOF%d", marker & 0xf));
+                case JPEG.DHT:
+                    readHuffmanTables();
+                    break;
+                case JPEG.DQT:
+                    readQuantizationTables();
+                    break;
+                case JPEG.DRI:
+                    readUShort();
+                    restartInterval = readUShort();
+                    break;
+                case JPEG.SOS:
+                    if (components == null) {
+                        throw new IIOException("Corrupt JPEG data: SOS before SOF");
+                    }
+                    readScan();
+                    scans++;
+                    if (aborted) {
+                        return false;
+                    }
+                    if (progressive) {
+                        // The number of scans is not known in advance, assume 10 as most encoders do
+                        processProgress(Math.min(99f, scans * 10f));
+                    }
+                    break;
+                case JPEG.EOI:
+                    if (components == null || scans == 0) {
+                        throw new IIOException("Corrupt JPEG data: no image data");
+                    }
+                    finish();
+                    return true;
+                default:
+                    // APPn, COM, DNL and anything else is skipped
+                    if (marker >= 0xFFD0 && marker <= 0xFFD7) {
+                        // Stray RSTn, no length
+                        break;
+                    }
+                    int length = readUShort();
+                    pos += length - 2;
+                    break;
+            }
+
+            if (pos >= data.length) {
+                // Missing EOI, use what we have
+                if (components == null || scans == 0) {
+                    throw new IIOException("Corrupt JPEG data: no image data");
+                }
+                finish();
+                return true;
+            }
+        }
+    }
+
+    private int readMarker() throws IIOException {
+        // Skip fill bytes and garbage before the marker
+        while (pos < data.length - 1 && ((data[pos] & 0xff) != 0xff || (data[pos + 1] & 0xff) == 0xff || data[pos + 1] == 0)) {
+            pos++;
+        }
+
+        if (pos >= data.length - 1) {
+            pos = data.length;
+            return JPEG.EOI;
+        }
+
+        int marker = 0xff00 | data[pos + 1] & 0xff;
+        pos += 2;
+
+        return marker;
+    }
+
+    private int readUShort() {
+        int value = (data[pos] & 0xff) << 8 | data[pos + 1] & 0xff;
+        pos += 2;
+        return value;
+    }
+
+    private void readFrame(boolean progressive) throws IIOException {
+        int start = pos;
+        int end = start + readUShort();
+        int precision = data[pos++] & 0xff;
+
+        if (precision != 8) {
+            throw new IIOException("Unsupported JPEG: " + precision + " bit samples");
+        }
+
+        height = readUShort();
+        width = readUShort();
+        int count = data[pos++] & 0xff;
+
+        if (width == 0 || height == 0) {
+            throw new IIOException("Unsupported JPEG: image height defined by DNL marker");
+        }
+        if (count < 1 || count > 4) {
+            throw new IIOException("Unsupported JPEG: " + count + " components");
+        }
+
+        this.progressive = progressive;
+        components = new Component[count];
+        maxH = 1;
+        maxV = 1;
+
+        for (int i = 0; i < count; i++) {
+            int id = data[pos++] & 0xff;
+            int sampling = data[pos++] & 0xff;
+            int table = data[pos++] & 0x3;
+            Component component = new Component(id, Math.max(1, sampling >> 4), Math.max(1, sampling & 0xf), table);
+            maxH = Math.max(maxH, component.h);
+            maxV = Math.max(maxV, component.v);
+            components[i] = component;
+        }
+
+        mcusPerLine = (width + 8 * maxH - 1) / (8 * maxH);
+        mcusPerColumn = (height + 8 * maxV - 1) / (8 * maxV);
+
+        for (Component component : components) {
+            int componentWidth = (width * component.h + maxH - 1) / maxH;
+            int componentHeight = (height * component.v + maxV - 1) / maxV;
+            component.blocksPerLine = (componentWidth + 7) / 8;
+            component.blocksPerColumn = (componentHeight + 7) / 8;
+
+            // Storage is padded to complete MCUs
+            int paddedBlocksPerLine = mcusPerLine * component.h;
+            int paddedBlocksPerColumn = mcusPerColumn * component.v;
+            component.planeStride = paddedBlocksPerLine * blockSize;
+            component.plane = new byte[component.planeStride * paddedBlocksPerColumn * blockSize];
+
+            if (progressive) {
+                component.coefficients = new short[paddedBlocksPerLine * paddedBlocksPerColumn * 64];
+            }
+        }
+
+        pos = end;
+    }
+
+    private void readHuffmanTables() throws IIOException {
+        int start = pos;
+        int end = start + readUShort();
+
+        while (pos < end) {
+            int info = data[pos++] & 0xff;
+            int[] counts = new int[16];
+            int total = 0;
+
+            for (int i = 0; i < 16; i++) {
+                counts[i] = data[pos++] & 0xff;
+                total += counts[i];
+            }
+
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = data[pos++] & 0xff;
+            }
+
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if ((info >> 4) == 0) {
+                dcTables[info & 0x3] = table;
+            }
+            else {
+                acTables[info & 0x3] = table;
+            }
+        }
+
+        pos = end;
+    }
+
+    private void readQuantizationTables() {
+        int start = pos;
+        int end = start + readUShort();
+
+        while (pos < end) {
+            int info = data[pos++] & 0xff;
+            int[] table = new int[64];
+
+            for (int k = 0; k < 64; k++) {
+                if ((info >> 4) == 0) {
+                    table[ZIGZAG[k]] = data[pos++] & 0xff;
+                }
+                else {
+                    table[ZIGZAG[k]] = readUShort();
+                }
+            }
+
+            quantizationTables[info & 0x3] = table;
+        }
+
+        pos = end;
+    }
+
+    private void readScan() throws IIOException {
+        int start = pos;
+        int end = start + readUShort();
+        int count = data[pos++] & 0xff;
+        Component[] scanComponents = new Component[count];
+
+        for (int i = 0; i < count; i++) {
+            int id = data[pos++] & 0xff;
+            int tables = data[pos++] & 0xff;
+            Component component = null;
+
+            for (Component candidate : components) {
+                if (candidate.id == id) {
+                    component = candidate;
+                }
+            }
+
+            if (component == null) {
+                throw new IIOException("Corrupt JPEG data: unknown component " + id + " in scan");
+            }
+
+            component.dcTable = dcTables[tables >> 4 & 0x3];
+            component.acTable = acTables[tables & 0x3];
+            scanComponents[i] = component;
+        }
+
+        int spectralStart = data[pos++] & 0xff;
+        int spectralEnd = data[pos++] & 0xff;
+        int approximation = data[pos++] & 0xff;
+        pos = end;
+
+        decodeScan(scanComponents, spectralStart, Math.min(63, spectralEnd), approximation >> 4, approximation & 0xf);
+    }
+
+    private void decodeScan(Component[] scanComponents, int spectralStart, int spectralEnd, int successiveHigh, int successiveLow) throws IIOException {
+        for (Component component : scanComponents) {
+            component.prediction = 0;
+
+            if ((!progressive || spectralStart == 0 && successiveHigh == 0) && component.dcTable == null
+                    || (!progressive || spectralStart > 0) && component.acTable == null) {
+                throw new IIOException("Corrupt JPEG data: missing Huffman table");
+            }
+            if (!progressive && quantizationTables[component.quantizationTable] == null) {
+                throw new IIOException("Corrupt JPEG data: missing quantization table");
+            }
+        }
+
+        resetDecoder();
+
+        boolean single = scanComponents.length == 1;
+        int mcusPerRow = single ? scanComponents[0].blocksPerLine : mcusPerLine;
+        int mcuRows = single ? scanComponents[0].blocksPerColumn : mcusPerColumn;
+        int total = mcusPerRow * mcuRows;
+        int interval = restartInterval > 0 ? restartInterval : total;
+        short[] block = new short[64];
+
+        int mcu = 0;
+        while (mcu < total) {
+            for (int n = 0; n < interval && mcu < total; n++, mcu++) {
+                int mcuRow = mcu / mcusPerRow;
+                int mcuCol = mcu % mcusPerRow;
+
+                if (single) {
+                    decodeBlock(scanComponents[0], mcuRow, mcuCol, block, spectralStart, spectralEnd, successiveHigh, successiveLow);
+                }
+                else {
+                    for (Component component : scanComponents) {
+                        for (int v = 0; v < component.v; v++) {
+                            for (int h = 0; h < component.h; h++) {
+                                decodeBlock(component, mcuRow * component.v + v, mcuCol * component.h + h,
+                                        block, spectralStart, spectralEnd, successiveHigh, successiveLow);
+                            }
+                        }
+                    }
+                }
+
+                if (mcuCol == mcusPerRow - 1) {
+                    if (aborted) {
+                        return;
+                    }
+                    if (!progressive) {
+                        processProgress(100f * (mcuRow + 1) / mcuRows);
+                    }
+                }
+            }
+
+            if (mcu < total) {
+                // Expect a restart marker, continue decoding after it
+                skipToMarker();
+                if (pos < data.length - 1 && (data[pos + 1] & 0xff) >= 0xD0 && (data[pos + 1] & 0xff) <= 0xD7) {
+                    pos += 2;
+                }
+                resetDecoder();
+                for (Component component : scanComponents) {
+                    component.prediction = 0;
+                }
+            }
+        }
+
+        skipToMarker();
+    }
+
+    private void resetDecoder() {
+        bitBuffer = 0;
+        bitCount = 0;
+        markerReached = false;
+        eobRun = 0;
+        successiveState = 0;
+    }
+
+    /**
+     * Moves to the next marker, after the entropy coded data consumed so far.
+     */
+    private void skipToMarker() {
+        while (pos < data.length - 1 && ((data[pos] & 0xff) != 0xff || data[pos + 1] == 0 || (data[pos + 1] & 0xff) == 0xff)) {
+            pos++;
+        }
+    }
+
+    private void decodeBlock(Component component, int blockRow, int blockCol, short[] block,
+                             int spectralStart, int spectralEnd, int successiveHigh, int successiveLow) throws IIOException {
+        if (progressive) {
+            int offset = (blockRow * mcusPerLine * component.h + blockCol) * 64;
+            short[] coefficients = component.coefficients;
+
+            if (spectralStart == 0) {
+                if (successiveHigh == 0) {
+                    decodeDCFirst(component, coefficients, offset, successiveLow);
+                }
+                else if (readBit() != 0) {
+                    coefficients[offset] |= 1 << successiveLow;
+                }
+            }
+            else if (successiveHigh == 0) {
+                decodeACFirst(component, coefficients, offset, spectralStart, spectralEnd, successiveLow);
+            }
+            else {
+                decodeACSuccessive(component, coefficients, offset, spectralStart, spectralEnd, successiveLow);
+            }
+        }
+        else {
+            decodeBaseline(component, block);
+            inverseDCT(block, 0, quantizationTables[component.quantizationTable], component.plane,
+                    blockRow * blockSize * component.planeStride + blockCol * blockSize, component.planeStride);
+            Arrays.fill(block, (short) 0);
+        }
+    }
+
+    private void decodeBaseline(Component component, short[] block) throws IIOException {
+        int t = decodeHuffman(component.dcTable);
+        component.prediction += t == 0 ? 0 : receiveExtend(t);
+        block[0] = (short) component.prediction;
+
+        HuffmanTable table = component.acTable;
+        int k = 1;
+        while (k < 64) {
+            int rs = decodeHuffman(table);
+            int s = rs & 15;
+            int r = rs >> 4;
+
+            if (s == 0) {
+                if (r < 15) {
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+
+            k += r;
+            if (k > 63) {
+                break;
+            }
+            block[ZIGZAG[k]] = (short) receiveExtend(s);
+            k++;
+        }
+    }
+
+    private void decodeDCFirst(Component component, short[] coefficients, int offset, int successiveLow) throws IIOException {
+        int t = decodeHuffman(component.dcTable);
+        component.prediction += t == 0 ? 0 : receiveExtend(t) << successiveLow;
+        coefficients[offset] = (short) component.prediction;
+    }
+
+    private void decodeACFirst(Component component, short[] coefficients, int offset, int spectralStart, int spectralEnd, int successiveLow) throws IIOException {
+        if (eobRun > 0) {
+            eobRun--;
+            return;
+        }
+
+        HuffmanTable table = component.acTable;
+        int k = spectralStart;
+        while (k <= spectralEnd) {
+            int rs = decodeHuffman(table);
+            int s = rs & 15;
+            int r = rs >> 4;
+
+            if (s == 0) {
+                if (r < 15) {
+                    eobRun = receive(r) + (1 << r) - 1;
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+
+            k += r;
+            if (k > 63) {
+                break;
+            }
+            coefficients[offset + ZIGZAG[k]] = (short) (receiveExtend(s) * (1 << successiveLow));
+            k++;
+        }
+    }
+
+    private void decodeACSuccessive(Component component, short[] coefficients, int offset, int spectralStart, int spectralEnd, int successiveLow) throws IIOException {
+        int k = spectralStart;
+        int r = 0;
+
+        while (k <= spectralEnd) {
+            int z = offset + ZIGZAG[k];
+            int coefficient = coefficients[z];
+
+            switch (successiveState) {
+                case 0:
+                    // Initial state, read the next run
+                    int rs = decodeHuffman(component.acTable);
+                    int s = rs & 15;
+                    r = rs >> 4;
+
+                    if (s == 0) {
+                        if (r < 15) {
+                            eobRun = receive(r) + (1 << r);
+                            successiveState = 4;
+                        }
+                        else {
+                            r = 16;
+                            successiveState = 1;
+                        }
+                    }
+                    else {
+                        if (s != 1) {
+                            throw new IIOException("Corrupt JPEG data: bad AC refinement");
+                        }
+                        successiveValue = receiveExtend(s);
+                        successiveState = r != 0 ? 2 : 3;
+                    }
+                    continue;
+                case 1:
+                case 2:
+                    // Skipping r zero coefficients, refining the non-zero ones on the way
+                    if (coefficient != 0) {
+                        coefficients[z] += (coefficient < 0 ? -1 : 1) * (readBit() << successiveLow);
+                    }
+                    else {
+                        r--;
+                        if (r == 0) {
+                            successiveState = successiveState == 2 ? 3 : 0;
+                        }
+                    }
+                    break;
+                case 3:
+                    // Set the new value at the next zero coefficient
+                    if (coefficient != 0) {
+                        coefficients[z] += (coefficient < 0 ? -1 : 1) * (readBit() << successiveLow);
+                    }
+                    else {
+                        coefficients[z] = (short) (successiveValue << successiveLow);
+                        successiveState = 0;
+                    }
+                    break;
+                case 4:
+                    // End of band, only refine the non-zero coefficients
+                    if (coefficient != 0) {
+                        coefficients[z] += (coefficient < 0 ? -1 : 1) * (readBit() << successiveLow);
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            k++;
+        }
+
+        if (successiveState == 4) {
+            eobRun--;
+            if (eobRun == 0) {
+                successiveState = 0;
+            }
+        }
+    }
+
+    private void fillBits() {
+        while (bitCount <= 56) {
+            int b = 0;
+
+            if (!markerReached && pos < data.length) {
+                b = data[pos] & 0xff;
+
+                if (b == 0xff) {
+                    int next = pos + 1 < data.length ? data[pos + 1] & 0xff : 0xd9;
+
+                    if (next == 0) {
+                        pos += 2;
+                    }
+                    else if (next == 0xff) {
+                        // Fill byte, skip it
+                        pos++;
+                        continue;
+                    }
+                    else {
+                        // Marker, leave it for the marker parser and pad with zeros
+                        markerReached = true;
+                        b = 0;
+                    }
+                }
+                else {
+                    pos++;
+                }
+            }
+
+            bitBuffer = bitBuffer << 8 | b;
+            bitCount += 8;
+        }
+    }
+
+    private int decodeHuffman(HuffmanTable table) throws IIOException {
+        if (bitCount < 16) {
+            fillBits();
+        }
+
+        int peek = (int) (bitBuffer >>> (bitCount - LOOKAHEAD)) & (1 << LOOKAHEAD) - 1;
+        int entry = table.lookup[peek];
+
+        if (entry != 0) {
+            bitCount -= entry >> 8;
+            return entry & 0xff;
+        }
+
+        // Longer code, decode bit by bit
+        int length = LOOKAHEAD + 1;
+        int code = (int) (bitBuffer >>> (bitCount - length)) & (1 << length) - 1;
+
+        while (code > table.maxCode[length]) {
+            length++;
+            if (length > 16) {
+                throw new IIOException("Corrupt JPEG data: bad Huffman code");
+            }
+            code = (int) (bitBuffer >>> (bitCount - length)) & (1 << length) - 1;
+        }
+
+        bitCount -= length;
+        return table.values[table.valueOffset[length] + code];
+    }
+
+    private int readBit() {
+        if (bitCount < 1) {
+            fillBits();
+        }
+
+        bitCount--;
+        return (int) (bitBuffer >>> bitCount) & 1;
+    }
+
+    private int receive(int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (bitCount < length) {
+            fillBits();
+        }
+
+        bitCount -= length;
+        return (int) (bitBuffer >>> bitCount) & (1 << length) - 1;
+    }
+
+    private int receiveExtend(int length) {
+        int value = receive(length);
+        return value < 1 << length - 1 ? value - (1 << length) + 1 : value;
+    }
+
+    /**
+     * Transforms the coefficients of one block to {@code blockSize} x {@code blockSize} samples,
+     * using only the coefficients of the lowest frequencies.
+     */
+    private void inverseDCT(short[] coefficients, int offset, int[] quantization, byte[] plane, int planeOffset, int stride) {
+        int n = blockSize;
+
+        if (n == 1) {
+            plane[planeOffset] = clamp(Math.round(coefficients[offset] * quantization[0] / 8f) + 128);
+            return;
+        }
+
+        float[] matrix = IDCT[blockSizeLog];
+        float[] temp = idctTemp;
+
+        // Rows: temp[v][x] = sum(u) F(v, u) * M[x][u]
+        for (int v = 0; v < n; v++) {
+            int row = offset + v * 8;
+            boolean zero = true;
+            for (int u = 0; u < n; u++) {
+                if (coefficients[row + u] != 0) {
+                    zero = false;
+                    break;
+                }
+            }
+            if (zero) {
+                Arrays.fill(temp, v * n, v * n + n, 0f);
+                continue;
+            }
+
+            for (int x = 0; x < n; x++) {
+                float sum = 0;
+                for (int u = 0; u < n; u++) {
+                    sum += coefficients[row + u] * quantization[v * 8 + u] * matrix[x * n + u];
+                }
+                temp[v * n + x] = sum;
+            }
+        }
+
+        // Columns: out[y][x] = sum(v) M[y][v] * temp[v][x]
+        for (int y = 0; y < n; y++) {
+            int out = planeOffset + y * stride;
+            for (int x = 0; x < n; x++) {
+                float sum = 128.5f;
+                for (int v = 0; v < n; v++) {
+                    sum += matrix[y * n + v] * temp[v * n + x];
+                }
+                plane[out + x] = clamp((int) Math.floor(sum));
+            }
+        }
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+    }
+
+    /**
+     * Transforms the coefficients of progressive images, when all scans are decoded.
+     */
+    private void finish() throws IIOException {
+        if (!progressive) {
+            return;
+        }
+
+        for (Component component : components) {
+            int[] quantization = quantizationTables[component.quantizationTable];
+            if (quantization == null) {
+                throw new IIOException("Corrupt JPEG data: missing quantization table");
+            }
+
+            int blocksPerLine = mcusPerLine * component.h;
+            int blocksPerColumn = mcusPerColumn * component.v;
+
+            for (int row = 0; row < blocksPerColumn; row++) {
+                for (int col = 0; col < blocksPerLine; col++) {
+                    inverseDCT(component.coefficients, (row * blocksPerLine + col) * 64, quantization, component.plane,
+                            row * blockSize * component.planeStride + col * blockSize, component.planeStride);
+                }
+            }
+
+            component.coefficients = null;
+        }
+    }
+
+    /**
+     * Upsamples the component planes to the scaled image size and interleaves them.
+     */
+    private Raster createRaster(int scale) {
+        int scaledWidth = (width + scale - 1) / scale;
+        int scaledHeight = (height + scale - 1) / scale;
+        int bands = components.length;
+
+        WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, scaledWidth, scaledHeight, bands, null);
+        byte[] out = ((DataBufferByte) raster.getDataBuffer()).getData();
+
+        for (int c = 0; c < bands; c++) {
+            Component component = components[c];
+            byte[] plane = component.plane;
+            int[] xIndex = new int[scaledWidth];
+
+            for (int x = 0; x < scaledWidth; x++) {
+                xIndex[x] = x * component.h / maxH;
+            }
+
+            for (int y = 0; y < scaledHeight; y++) {
+                int in = y * component.v / maxV * component.planeStride;
+                int offset = y * scaledWidth * bands + c;
+
+                for (int x = 0; x < scaledWidth; x++, offset += bands) {
+                    out[offset] = plane[in + xIndex[x]];
+                }
+            }
+
+            component.plane = null;
+        }
+
+        return raster;
+    }
+}
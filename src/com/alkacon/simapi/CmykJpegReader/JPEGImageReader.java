@@ -28,6 +28,9 @@
 
 package com.alkacon.simapi.CmykJpegReader;
 
+import com.alkacon.simapi.SimapiExecutors;
+import com.alkacon.simapi.SimapiMetrics;
+
 import javax.imageio.*;
 import javax.imageio.event.IIOReadUpdateListener;
 import javax.imageio.event.IIOReadWarningListener;
@@ -88,18 +91,44 @@ public class JPEGImageReader extends ImageReaderBase {
 
     final static boolean DEBUG = "true".equalsIgnoreCase(System.getProperty("com.twelvemonkeys.imageio.plugins.jpeg.debug"));
 
+    /**
+     * Decode CMYK/YCCK images in a single pass, instead of re-reading the stream for every strip.
+     * Needs memory for the complete CMYK image, may be disabled by setting the system property to {@code false}.
+     */
+    final static boolean STREAMING = !"false".equalsIgnoreCase(System.getProperty("com.alkacon.simapi.CmykJpegReader.streaming"));
+
+    /** Number of pixels converted at once while streaming, small enough to still be in the CPU caches. */
+    private final static int STREAMING_CHUNK_PIXELS = 1 << 18;
+
+    /**
+     * Decode images read with a source subsampling of 2, 4 or 8 with the pure Java decoder, which scales in the DCT domain
+     * instead of decoding the full image. May be disabled by setting the system property to {@code false}.
+     */
+    final static boolean SCALED_DECODING = !"false".equalsIgnoreCase(System.getProperty("com.alkacon.simapi.CmykJpegReader.scaledDecoding"));
+
     /** Internal constant for referring all APP segments */
     static final int ALL_APP_MARKERS = -1;
 
     /** Segment identifiers for the JPEG segments we care about reading. */
-    private static final Map<Integer, List<String>> SEGMENT_IDENTIFIERS = createSegmentIds();
+    private static final Map<Integer, List<String>> SEGMENT_IDENTIFIERS = createSegmentIds(false);
+
+    /** Segments needed for decoding only, used if metadata is ignored */
+    private static final Map<Integer, List<String>> DECODING_SEGMENT_IDENTIFIERS = createSegmentIds(true);
 
-    private static Map<Integer, List<String>> createSegmentIds() {
+    private static Map<Integer, List<String>> createSegmentIds(boolean decodingOnly) {
         Map<Integer, List<String>> map = new LinkedHashMap<Integer, List<String>>();
 
-        // Need all APP markers to be able to re-generate proper metadata later
-        for (int appMarker = JPEG.APP0; appMarker <= JPEG.APP15; appMarker++) {
-            map.put(appMarker, JPEGSegmentUtil.ALL_IDS);
+        if (decodingOnly) {
+            // JFIF/JFXX and Adobe for the color space, ICC_PROFILE for color conversion
+            map.put(JPEG.APP0, Arrays.asList("JFIF", "JFXX"));
+            map.put(JPEG.APP2, Collections.singletonList("ICC_PROFILE"));
+            map.put(JPEG.APP14, Collections.singletonList("Adobe"));
+        }
+        else {
+            // Need all APP markers to be able to re-generate proper metadata later
+            for (int appMarker = JPEG.APP0; appMarker <= JPEG.APP15; appMarker++) {
+                map.put(appMarker, JPEGSegmentUtil.ALL_IDS);
+            }
         }
 
         // SOFn markers
@@ -275,7 +304,7 @@ public class JPEGImageReader extends ImageReaderBase {
         super.setInput(input, seekForwardOnly, ignoreMetadata);
 
         // JPEGSegmentImageInputStream that filters out/skips bad/unnecessary segments
-        delegate.setInput(imageInput != null ? new JPEGSegmentImageInputStream(imageInput) : null, seekForwardOnly, ignoreMetadata);
+        delegate.setInput(imageInput != null ? new JPEGSegmentImageInputStream(imageInput, ignoreMetadata) : null, seekForwardOnly, ignoreMetadata);
     }
 
     @Override
@@ -309,6 +338,7 @@ public class JPEGImageReader extends ImageReaderBase {
         // We need to apply ICC profile unless the profile is sRGB/default gray (whatever that is)
         // - or only filter out the bad ICC profiles in the JPEGSegmentImageInputStream.
         if (delegate.canReadRaster() && (
+                isScalable(param) ||
                 sourceCSType == JPEGColorSpace.CMYK ||
                 sourceCSType == JPEGColorSpace.YCCK ||
                 adobeDCT != null && adobeDCT.getTransform() == AdobeDCTSegment.YCCK ||
@@ -320,6 +350,10 @@ public class JPEGImageReader extends ImageReaderBase {
             }
 
             // TODO: Possible to optimize slightly, to avoid readAsRaster for non-CMyK and other good types?
+            if (!isScalable(param)) {
+                // Scaled reads report their code path once the decoder accepted the image
+                SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_DECODE, "jpegRaster");
+            }
             return readImageAsRasterAndReplaceColorProfile(imageIndex, param, sof, sourceCSType, adobeDCT, ensureDisplayProfile(profile));
         }
 
@@ -327,6 +361,7 @@ public class JPEGImageReader extends ImageReaderBase {
             System.out.println("Reading using delegate");
         }
 
+        SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_DECODE, "jpegDelegate");
         return delegate.read(imageIndex, param);
     }
 
@@ -375,7 +410,7 @@ public class JPEGImageReader extends ImageReaderBase {
                 if (DEBUG) {
                     System.err.println("Converting from " + intendedCS + " to " + (image.getColorModel().getColorSpace().isCS_sRGB() ? "sRGB" : image.getColorModel().getColorSpace()));
                 }
-                convert = new ColorConvertOp(intendedCS, image.getColorModel().getColorSpace(), null);
+                convert = createColorConvert(intendedCS, image.getColorModel().getColorSpace());
             }
             // Else, pass through with no conversion
         }
@@ -388,7 +423,7 @@ public class JPEGImageReader extends ImageReaderBase {
                                 "Colors may look incorrect."
                 );
 
-                convert = new ColorConvertOp(cmykCS, image.getColorModel().getColorSpace(), null);
+                convert = createColorConvert((ICC_ColorSpace) cmykCS, image.getColorModel().getColorSpace());
             }
             else {
                 // ColorConvertOp using non-ICC CS is deadly slow, fall back to fast conversion instead
@@ -421,6 +456,46 @@ public class JPEGImageReader extends ImageReaderBase {
         // We're ready to go
         processImageStarted(imageIndex);
 
+        // Color conversion is measured across all strips
+        SimapiMetrics.Timer convertTimer = SimapiMetrics.timer(SimapiMetrics.STAGE_COLOR_CONVERT);
+        if (convertTimer != null) {
+            SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_COLOR_CONVERT,
+                    convert instanceof FastCMYKToRGB ? "fastCmyk" : convert instanceof ColorLookupTable ? "colorLookupTable"
+                            : convert != null ? "colorConvertOp" : "copy");
+        }
+
+        if (isScalable(param)) {
+            Raster raster = readScaledRaster(param.getSourceXSubsampling());
+
+            if (raster != null) {
+                if (convertTimer != null) {
+                    convertTimer.resume();
+                }
+
+                convertRaster(raster, csType, convert, destination, dstRegion.x, dstRegion.y,
+                        Math.min(raster.getHeight(), dstRegion.height), param);
+
+                SimapiMetrics.stop(convertTimer, image);
+                processImageComplete();
+
+                return image;
+            }
+            else if (abortRequested()) {
+                processReadAborted();
+
+                return image;
+            }
+        }
+
+        if (isStreamable(csType, adobeDCT, startOfFrame, param)) {
+            readStreaming(imageIndex, param, convert, image, srcRegion, dstRegion, convertTimer);
+
+            SimapiMetrics.stop(convertTimer, image);
+            processImageComplete();
+
+            return image;
+        }
+
         // Unfortunately looping is slower than reading all at once, but
         // that requires 2 x memory or more, so a few steps is an ok compromise I guess
         try {
@@ -443,30 +518,15 @@ public class JPEGImageReader extends ImageReaderBase {
                 param.setSourceRegion(subRegion);
                 Raster raster = delegate.readRaster(imageIndex, param); // non-converted
 
-                // Apply source color conversion from implicit color space
-                if (csType == JPEGColorSpace.YCbCr || csType == JPEGColorSpace.YCbCrA) {
-                    YCbCrConverter.convertYCbCr2RGB(raster);
-                }
-                else if (csType == JPEGColorSpace.YCCK) {
-                    YCbCrConverter.convertYCCK2CMYK(raster);
+                if (convertTimer != null) {
+                    convertTimer.resume();
                 }
-                else if (csType == JPEGColorSpace.CMYK) {
-                    invertCMYK(raster);
-                }
-                // ...else assume the raster is already converted
 
                 int destHeight = Math.min(raster.getHeight(), dstRegion.height - destY); // Avoid off-by-one
-                Raster src = raster.createChild(0, 0, raster.getWidth(), destHeight, 0, 0, param.getSourceBands());
-                WritableRaster dest = destination.createWritableChild(dstRegion.x, destY, raster.getWidth(), destHeight, 0, 0, param.getDestinationBands());
-
-                // Apply further color conversion for explicit color space, or just copy the pixels into place
-                if (convert != null) {
-                    convert.filter(src, dest);
-//                    WritableRaster filtered = convert.filter(src, null);
-//                    new AffineTransformOp(AffineTransform.getRotateInstance(2 * Math.PI, filtered.getWidth() / 2.0, filtered.getHeight() / 2.0), null).filter(filtered, dest);
-                }
-                else {
-                    dest.setRect(0, 0, src);
+                convertRaster(raster, csType, convert, destination, dstRegion.x, destY, destHeight, param);
+
+                if (convertTimer != null) {
+                    convertTimer.pause();
                 }
 
                 destY += raster.getHeight();
@@ -485,11 +545,198 @@ public class JPEGImageReader extends ImageReaderBase {
             param.setSourceRegion(origSourceRegion);
         }
 
+        SimapiMetrics.stop(convertTimer, image);
         processImageComplete();
 
         return image;
     }
 
+    /**
+     * Creates the conversion from the given ICC color space to the destination color space.
+     * The cached color lookup table is used if possible, otherwise a {@code ColorConvertOp}.
+     */
+    static RasterOp createColorConvert(ICC_ColorSpace source, ColorSpace dest) {
+        RasterOp convert = ColorLookupTable.getInstance(source, dest);
+
+        return convert != null ? convert : new ColorConvertOp(source, dest, null);
+    }
+
+    /**
+     * Converts a raw raster, as read by the delegate, and writes it to the destination.
+     */
+    static void convertRaster(Raster raster, JPEGColorSpace csType, RasterOp convert, WritableRaster destination,
+                                      int destX, int destY, int destHeight, ImageReadParam param) {
+        // Apply source color conversion from implicit color space
+        if (csType == JPEGColorSpace.YCbCr || csType == JPEGColorSpace.YCbCrA) {
+            YCbCrConverter.convertYCbCr2RGB(raster);
+        }
+        else if (csType == JPEGColorSpace.YCCK) {
+            YCbCrConverter.convertYCCK2CMYK(raster);
+        }
+        else if (csType == JPEGColorSpace.CMYK) {
+            invertCMYK(raster);
+        }
+        // ...else assume the raster is already converted
+
+        Raster src = raster.createChild(0, 0, raster.getWidth(), destHeight, 0, 0, param.getSourceBands());
+        WritableRaster dest = destination.createWritableChild(destX, destY, raster.getWidth(), destHeight, 0, 0, param.getDestinationBands());
+
+        // Apply further color conversion for explicit color space, or just copy the pixels into place
+        if (convert != null) {
+            convert.filter(src, dest);
+//            WritableRaster filtered = convert.filter(src, null);
+//            new AffineTransformOp(AffineTransform.getRotateInstance(2 * Math.PI, filtered.getWidth() / 2.0, filtered.getHeight() / 2.0), null).filter(filtered, dest);
+        }
+        else {
+            dest.setRect(0, 0, src);
+        }
+    }
+
+    /**
+     * Tests if the image can be decoded at a reduced size by the {@link JPEGDecoder}.
+     * This is the case for a uniform source subsampling of 2, 4 or 8 of the complete image, without band selection.
+     */
+    private boolean isScalable(ImageReadParam param) throws IOException {
+        if (!SCALED_DECODING || param == null || param.getSourceBands() != null
+                || param.getSubsamplingXOffset() != 0 || param.getSubsamplingYOffset() != 0) {
+            return false;
+        }
+
+        int subsampling = param.getSourceXSubsampling();
+        if (subsampling != param.getSourceYSubsampling() || subsampling != 2 && subsampling != 4 && subsampling != 8) {
+            return false;
+        }
+
+        Rectangle region = param.getSourceRegion();
+        return region == null || region.equals(new Rectangle(0, 0, getWidth(0), getHeight(0)));
+    }
+
+    /**
+     * Decodes the raw raster at a reduced size, using the {@link JPEGDecoder}.
+     *
+     * @return the raw raster, or {@code null} if the image is not supported by the decoder
+     */
+    private Raster readScaledRaster(int subsampling) throws IOException {
+        byte[] data = readStreamBytes();
+
+        JPEGDecoder decoder = new JPEGDecoder(data) {
+            @Override
+            protected void processProgress(float percentageDone) {
+                processImageProgress(percentageDone);
+
+                if (abortRequested()) {
+                    abort();
+                }
+            }
+        };
+
+        try {
+            Raster raster = decoder.decode(subsampling);
+            SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_DECODE, "jpegScaled");
+
+            return raster;
+        }
+        catch (IIOException e) {
+            // Fall back to the delegate, which decodes at full size
+            if (DEBUG) {
+                e.printStackTrace();
+            }
+
+            SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_DECODE, "jpegRaster");
+            return null;
+        }
+    }
+
+    /**
+     * Reads the complete stream into memory, without changing the stream position.
+     */
+    private byte[] readStreamBytes() throws IOException {
+        imageInput.mark();
+
+        try {
+            imageInput.seek(0);
+
+            long length = imageInput.length();
+            if (length >= 0 && length <= Integer.MAX_VALUE) {
+                byte[] data = new byte[(int) length];
+                imageInput.readFully(data);
+                return data;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = imageInput.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+
+            return bytes.toByteArray();
+        }
+        finally {
+            imageInput.reset();
+        }
+    }
+
+    /**
+     * Tests if the image can be decoded in a single pass by the delegate.
+     * This is the case for sequential CMYK and YCCK images, where the delegate interprets the Adobe App14 marker the same way as this reader.
+     * Progressive images are not streamed, as the delegate delivers the rows once per pass.
+     */
+    private static boolean isStreamable(JPEGColorSpace csType, AdobeDCTSegment adobeDCT, SOFSegment startOfFrame, ImageReadParam param) {
+        if (!STREAMING || adobeDCT == null || param.getSourceBands() != null) {
+            return false;
+        }
+
+        int marker = startOfFrame.marker;
+        if (marker == JPEG.SOF2 || marker == JPEG.SOF6 || marker == JPEG.SOF10 || marker == JPEG.SOF14) {
+            return false;
+        }
+
+        return csType == JPEGColorSpace.YCCK && adobeDCT.getTransform() == AdobeDCTSegment.YCCK
+                || csType == JPEGColorSpace.CMYK && adobeDCT.getTransform() == AdobeDCTSegment.Unknown;
+    }
+
+    /**
+     * Decodes the image in a single pass, and converts the rows to the destination in strips, as soon as they are decoded.
+     * Only one strip of decoded CMYK rows is held in memory.
+     */
+    private void readStreaming(int imageIndex, ImageReadParam param, RasterOp convert, BufferedImage image,
+                               Rectangle srcRegion, Rectangle dstRegion, SimapiMetrics.Timer convertTimer) throws IOException {
+        // The delegate decodes YCCK to CMYK, and inverts the Adobe CMYK values, when reading to a 4 band image
+        ImageTypeSpecifier cmykType = ImageTypeSpecifier.createInterleaved(
+                CMYKColorSpace.getInstance(), new int[] {0, 1, 2, 3}, DataBuffer.TYPE_BYTE, false, false
+        );
+
+        int stripRows = Math.min(dstRegion.height, Math.max(16, STREAMING_CHUNK_PIXELS / dstRegion.width));
+        StripRaster strip = new StripRaster(
+                cmykType.createBufferedImage(dstRegion.width, stripRows).getRaster(), dstRegion.height,
+                image, convert, dstRegion, param, convertTimer
+        );
+
+        ImageReadParam streamParam = delegate.getDefaultReadParam();
+        streamParam.setSourceRegion(srcRegion);
+        streamParam.setSourceSubsampling(param.getSourceXSubsampling(), param.getSourceYSubsampling(), 0, 0);
+        streamParam.setDestination(new BufferedImage(cmykType.getColorModel(), strip, false, null));
+
+        progressDelegator.updateProgressRange(100f);
+        progressDelegator.forwardUpdates = false;
+
+        try {
+            delegate.read(imageIndex, streamParam);
+
+            if (abortRequested()) {
+                processReadAborted();
+            }
+            else {
+                strip.flush();
+            }
+        }
+        finally {
+            progressDelegator.forwardUpdates = true;
+            progressDelegator.resetProgressRange();
+        }
+    }
+
     static JPEGColorSpace getSourceCSType(JFIFSegment jfif, AdobeDCTSegment adobeDCT, final SOFSegment startOfFrame) throws IIOException {
         /*
         ADAPTED from http://download.oracle.com/javase/6/docs/api/javax/imageio/metadata/doc-files/jpeg_metadata.html:
@@ -659,7 +906,8 @@ public class JPEGImageReader extends ImageReaderBase {
         try {
             imageInput.seek(0); // TODO: Seek to wanted image, skip images on the way
 
-            segments = JPEGSegmentUtil.readSegments(imageInput, SEGMENT_IDENTIFIERS);
+            // Only index the segments, payloads (that may be megabytes of XMP) are read on demand
+            segments = JPEGSegmentUtil.readSegments(imageInput, ignoreMetadata ? DECODING_SEGMENT_IDENTIFIERS : SEGMENT_IDENTIFIERS, true);
         }
         catch (IIOException ignore) {
             if (DEBUG) {
@@ -1057,17 +1305,24 @@ public class JPEGImageReader extends ImageReaderBase {
     }
 
     private static void invertCMYK(final Raster raster) {
-        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
 
-        for (int i = 0, dataLength = data.length; i < dataLength; i++) {
-            data[i] = (byte) (255 - data[i] & 0xff);
-        }
+        SimapiExecutors.forEachStripe(data.length, YCbCrConverter.MIN_STRIPE_PIXELS * 4, new SimapiExecutors.StripeTask() {
+            public void process(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    data[i] = (byte) ~data[i];
+                }
+            }
+        });
     }
 
     /**
      * Static inner class for lazy-loading of conversion tables.
      */
     static final class YCbCrConverter {
+        /** Minimum number of pixels per stripe when converting in parallel. */
+        static final int MIN_STRIPE_PIXELS = 1 << 16;
+
         /** Define tables for YCC->RGB color space conversion. */
         private final static int SCALEBITS = 16;
         private final static int MAXJSAMPLE = 255;
@@ -1079,6 +1334,12 @@ public class JPEGImageReader extends ImageReaderBase {
         private final static int[] Cr_G_LUT = new int[MAXJSAMPLE + 1];
         private final static int[] Cb_G_LUT = new int[MAXJSAMPLE + 1];
 
+        /** Offset of the value 0 in the clamp table. */
+        private final static int CLAMP_OFFSET = 512;
+
+        /** Clamps values in the range -512..1023 to 0..255, without branches. */
+        private final static byte[] CLAMP = new byte[3 * CLAMP_OFFSET];
+
         /**
          * Initializes tables for YCC->RGB color space conversion.
          */
@@ -1100,22 +1361,42 @@ public class JPEGImageReader extends ImageReaderBase {
                 // We also add in ONE_HALF so that need not do it in inner loop
                 Cb_G_LUT[i] = -(int) ((0.34414) * (1 << SCALEBITS) + 0.5) * x + ONE_HALF;
             }
+
+            for (int i = 0; i < CLAMP.length; i++) {
+                CLAMP[i] = clamp(i - CLAMP_OFFSET);
+            }
         }
 
         static {
             buildYCCtoRGBtable();
         }
 
+        /**
+         * Converts the raster in place, operating directly on the data array, in parallel row stripes.
+         *
+         * @param raster a pixel interleaved byte raster, as returned by the delegate reader
+         */
         static void convertYCbCr2RGB(final Raster raster) {
-            final int height = raster.getHeight();
             final int width = raster.getWidth();
+            final int pixelStride = raster.getNumDataElements();
+            final int scanlineStride = width * pixelStride;
             final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
 
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    convertYCbCr2RGB(data, data, (x + y * width) * 3);
+            SimapiExecutors.forEachStripe(raster.getHeight(), MIN_STRIPE_PIXELS / width + 1, new SimapiExecutors.StripeTask() {
+                public void process(int start, int end) {
+                    final byte[] clamp = CLAMP;
+
+                    for (int offset = start * scanlineStride, max = end * scanlineStride; offset < max; offset += pixelStride) {
+                        int y  = (data[offset    ] & 0xff) + CLAMP_OFFSET;
+                        int cb = data[offset + 1] & 0xff;
+                        int cr = data[offset + 2] & 0xff;
+
+                        data[offset    ] = clamp[y + Cr_R_LUT[cr]];
+                        data[offset + 1] = clamp[y + (Cb_G_LUT[cb] + Cr_G_LUT[cr] >> SCALEBITS)];
+                        data[offset + 2] = clamp[y + Cb_B_LUT[cb]];
+                    }
                 }
-            }
+            });
         }
 
         static void convertYCbCr2RGB(final byte[] yCbCr, final byte[] rgb, final int offset) {
@@ -1128,37 +1409,108 @@ public class JPEGImageReader extends ImageReaderBase {
             rgb[offset + 2] = clamp(y + Cb_B_LUT[cb]);
         }
 
+        /**
+         * Converts the raster in place, operating directly on the data array, in parallel row stripes.
+         * The result equals the YCCK conversion of the delegate, including the inversion of the Adobe CMYK values.
+         *
+         * @param raster a pixel interleaved 4 byte raster, as returned by the delegate reader
+         */
         static void convertYCCK2CMYK(final Raster raster) {
-            final int height = raster.getHeight();
             final int width = raster.getWidth();
+            final int pixelStride = raster.getNumDataElements();
+            final int scanlineStride = width * pixelStride;
             final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
 
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    convertYCCK2CMYK(data, data, (x + y * width) * 4);
+            SimapiExecutors.forEachStripe(raster.getHeight(), MIN_STRIPE_PIXELS / width + 1, new SimapiExecutors.StripeTask() {
+                public void process(int start, int end) {
+                    final byte[] clamp = CLAMP;
+
+                    for (int offset = start * scanlineStride, max = end * scanlineStride; offset < max; offset += pixelStride) {
+                        // MAXJSAMPLE - (MAXJSAMPLE - (y + lut)) == y + lut
+                        int y  = (data[offset    ] & 0xff) + CLAMP_OFFSET;
+                        int cb = data[offset + 1] & 0xff;
+                        int cr = data[offset + 2] & 0xff;
+
+                        data[offset    ] = clamp[y + Cr_R_LUT[cr]];
+                        data[offset + 1] = clamp[y + (Cb_G_LUT[cb] + Cr_G_LUT[cr] >> SCALEBITS)];
+                        data[offset + 2] = clamp[y + Cb_B_LUT[cb]];
+                        data[offset + 3] = (byte) ~data[offset + 3]; // K is only inverted
+                    }
                 }
-            }
+            });
+        }
+
+        private static byte clamp(int val) {
+            return (byte) Math.max(0, Math.min(255, val));
+        }
+    }
+
+    /**
+     * The destination raster of the delegate while streaming, that keeps only one strip of the decoded rows.
+     * The delegate copies each decoded row with {@link #setRect(int, int, Raster)}, from top to bottom.
+     * A complete strip is converted to the destination, while its pixels are still in the CPU caches.
+     * No other methods of this raster may be used.
+     */
+    private class StripRaster extends WritableRaster {
+        private final WritableRaster strip;
+        private final BufferedImage image;
+        private final RasterOp convert;
+        private final Rectangle dstRegion;
+        private final ImageReadParam param;
+        private final SimapiMetrics.Timer convertTimer;
+        private int stripY;
+        private int stripHeight;
+
+        StripRaster(WritableRaster strip, int height, BufferedImage image, RasterOp convert, Rectangle dstRegion,
+                    ImageReadParam param, SimapiMetrics.Timer convertTimer) {
+            super(strip.getSampleModel().createCompatibleSampleModel(strip.getWidth(), height), strip.getDataBuffer(), new Point());
+
+            this.strip = strip;
+            this.image = image;
+            this.convert = convert;
+            this.dstRegion = dstRegion;
+            this.param = param;
+            this.convertTimer = convertTimer;
         }
 
-        private static void convertYCCK2CMYK(byte[] ycck, byte[] cmyk, int offset) {
-            // Inverted
-            int y  = 255 - ycck[offset    ] & 0xff;
-            int cb = 255 - ycck[offset + 1] & 0xff;
-            int cr = 255 - ycck[offset + 2] & 0xff;
-            int k  = 255 - ycck[offset + 3] & 0xff;
+        @Override
+        public void setRect(int dx, int dy, Raster srcRaster) {
+            int rows = srcRaster.getHeight();
+            if (dy != stripY + stripHeight || rows > strip.getHeight()) {
+                throw new IllegalStateException("Rows must be decoded from top to bottom");
+            }
 
-            int cmykC = MAXJSAMPLE - (y + Cr_R_LUT[cr]);
-            int cmykM = MAXJSAMPLE - (y + (Cb_G_LUT[cb] + Cr_G_LUT[cr] >> SCALEBITS));
-            int cmykY = MAXJSAMPLE - (y + Cb_B_LUT[cb]);
+            if (stripHeight + rows > strip.getHeight()) {
+                flush();
+            }
 
-            cmyk[offset    ] = clamp(cmykC);
-            cmyk[offset + 1] = clamp(cmykM);
-            cmyk[offset + 2] = clamp(cmykY);
-            cmyk[offset + 3] = (byte) k; // K passes through unchanged
+            strip.setRect(dx, stripHeight, srcRaster);
+            stripHeight += rows;
+
+            if (stripHeight == strip.getHeight()) {
+                flush();
+            }
         }
 
-        private static byte clamp(int val) {
-            return (byte) Math.max(0, Math.min(255, val));
+        void flush() {
+            if (stripHeight == 0) {
+                return;
+            }
+
+            if (convertTimer != null) {
+                convertTimer.resume();
+            }
+
+            // The delegate already converted the samples to CMYK, so no source color conversion is applied
+            convertRaster(strip, null, convert, image.getRaster(), dstRegion.x, dstRegion.y + stripY, stripHeight, param);
+
+            if (convertTimer != null) {
+                convertTimer.pause();
+            }
+
+            processImageUpdate(image, dstRegion.x, dstRegion.y + stripY, dstRegion.width, stripHeight, 1, 1, param.getDestinationBands());
+            stripY += stripHeight;
+            stripHeight = 0;
         }
     }
 
@@ -1166,6 +1518,9 @@ public class JPEGImageReader extends ImageReaderBase {
         float readProgressStart = -1;
         float readProgressStop = -1;
 
+        // Image updates of the delegate refer to an intermediate image while streaming
+        boolean forwardUpdates = true;
+
         void resetProgressRange() {
             readProgressStart = -1;
             readProgressStop = -1;
@@ -1239,15 +1594,21 @@ public class JPEGImageReader extends ImageReaderBase {
         }
 
         public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
-            processPassStarted(theImage, pass, minPass, maxPass, minX, minY, periodX, periodY, bands);
+            if (forwardUpdates) {
+                processPassStarted(theImage, pass, minPass, maxPass, minX, minY, periodX, periodY, bands);
+            }
         }
 
         public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width, int height, int periodX, int periodY, int[] bands) {
-            processImageUpdate(theImage, minX, minY, width, height, periodX, periodY, bands);
+            if (forwardUpdates) {
+                processImageUpdate(theImage, minX, minY, width, height, periodX, periodY, bands);
+            }
         }
 
         public void passComplete(ImageReader source, BufferedImage theImage) {
-            processPassComplete(theImage);
+            if (forwardUpdates) {
+                processPassComplete(theImage);
+            }
         }
 
         public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
@@ -28,13 +28,20 @@
 
 package com.alkacon.simapi.CmykJpegReader;
 
+import javax.imageio.stream.ImageInputStream;
+
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 
 /**
  * Represents a JPEG segment.
+ * <p>
+ * A segment is either read completely, or only indexed by its position in the stream,
+ * in which case the payload is read from the stream when it is first accessed.
  *
  * @author <a href="mailto:harald.kuhr@gmail.com">Harald Kuhr</a>
  * @author last modified by $Author: haraldk$
@@ -42,15 +49,39 @@ import java.util.Arrays;
  */
 public final class JPEGSegment implements Serializable {
     final int marker;
-    final byte[] data;
     final int length;
+    private byte[] data;
+
+    // Only set for indexed segments, until the payload is read, see writeObject
+    private transient ImageInputStream stream;
+    private final long position;
 
     private transient String id;
+    private transient boolean idKnown;
 
     JPEGSegment(int marker, byte[] data, int length) {
         this.marker = marker;
         this.data = data;
         this.length = length;
+        this.position = -1;
+    }
+
+    /**
+     * Creates an indexed segment.
+     *
+     * @param marker the segment marker
+     * @param identifier the APPn identifier, or {@code null}
+     * @param stream the stream to read the payload from, must not be flushed beyond {@code position}
+     * @param position the stream position of the payload, after the length field
+     * @param length the length field as read from the stream
+     */
+    JPEGSegment(int marker, String identifier, ImageInputStream stream, long position, int length) {
+        this.marker = marker;
+        this.id = identifier;
+        this.idKnown = true;
+        this.stream = stream;
+        this.position = position;
+        this.length = length;
     }
 
     int segmentLength() {
@@ -63,16 +94,50 @@ public final class JPEGSegment implements Serializable {
     }
 
     public String identifier() {
-        if (id == null) {
-            if (isAppSegmentMarker(marker)) {
+        if (!idKnown) {
+            if (isAppSegmentMarker(marker) && data != null) {
                 // Only for APPn markers
                 id = JPEGSegmentUtil.asNullTerminatedAsciiString(data, 0);
             }
+
+            idKnown = true;
         }
 
         return id;
     }
 
+    /**
+     * Returns the complete payload, reading it from the stream for indexed segments.
+     *
+     * @return the payload, including the identifier of APPn segments, or {@code null} if the segment has no data
+     * @throws IOException if the payload can not be read from the stream
+     */
+    byte[] payload() throws IOException {
+        if (data == null && stream != null) {
+            byte[] bytes = new byte[Math.max(0, length - 2)];
+
+            stream.mark();
+            try {
+                stream.seek(position);
+                stream.readFully(bytes);
+            }
+            finally {
+                stream.reset();
+            }
+
+            data = bytes;
+            stream = null;
+        }
+
+        return data;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        // The stream of an indexed segment is not serialized, so the payload must be read first
+        payload();
+        out.defaultWriteObject();
+    }
+
     static boolean isAppSegmentMarker(final int marker) {
         return marker >= 0xFFE0 && marker <= 0xFFEF;
     }
@@ -80,11 +145,24 @@ public final class JPEGSegment implements Serializable {
     // TODO: Consider returning an ImageInputStream and use ByteArrayImageInputStream directly, for less wrapping and better performance
     // TODO: BUT: Must find a way to skip padding in/after segment identifier (eg: Exif has null-term + null-pad, ICC_PROFILE has only null-term). Is data always word-aligned?
     public InputStream data() {
-        return data != null ? new ByteArrayInputStream(data, offset(), length()) : null;
+        byte[] payload;
+
+        try {
+            payload = payload();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not read the payload of " + this, e);
+        }
+
+        return payload != null ? new ByteArrayInputStream(payload, offset(), length()) : null;
     }
 
     public int length() {
-        return data != null ? data.length - offset() : 0;
+        if (data != null) {
+            return data.length - offset();
+        }
+
+        return stream != null ? Math.max(0, length - 2 - offset()) : 0;
     }
 
     int offset() {
@@ -113,7 +191,15 @@ public final class JPEGSegment implements Serializable {
 
     @Override
     public boolean equals(final Object other) {
-        return other instanceof JPEGSegment &&
-                ((JPEGSegment) other).marker == marker && Arrays.equals(((JPEGSegment) other).data, data);
+        if (!(other instanceof JPEGSegment) || ((JPEGSegment) other).marker != marker) {
+            return false;
+        }
+
+        try {
+            return Arrays.equals(((JPEGSegment) other).payload(), payload());
+        }
+        catch (IOException e) {
+            return false;
+        }
     }
 }
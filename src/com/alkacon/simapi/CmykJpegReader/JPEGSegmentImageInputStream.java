@@ -53,13 +53,21 @@ final class JPEGSegmentImageInputStream extends ImageInputStreamImpl {
     // TODO: Sort out ICC_PROFILE issues (duplicate sequence numbers etc)?
 
     final private ImageInputStream stream;
+
+    /** If {@code true}, the Exif segment is skipped as well, as the delegate will not need it for metadata */
+    final private boolean ignoreMetadata;
     
     private final List<Segment> segments = new ArrayList<Segment>(64);
     private int currentSegment = -1;
     private Segment segment;
 
     JPEGSegmentImageInputStream(final ImageInputStream stream) {
+        this(stream, false);
+    }
+
+    JPEGSegmentImageInputStream(final ImageInputStream stream, final boolean ignoreMetadata) {
         this.stream = notNull(stream, "stream");
+        this.ignoreMetadata = ignoreMetadata;
     }
 
     private Segment fetchSegment() throws IOException {
@@ -110,7 +118,7 @@ final class JPEGSegmentImageInputStream extends ImageInputStreamImpl {
 
                 // TODO: Optionally skip JFIF only for non-JFIF conformant streams
                 // TODO: Refactor to make various segments optional, we probably only want the "Adobe" APP14 segment, 'Exif' APP1 and very few others
-                if (isAppSegmentMarker(marker) && !(marker == JPEG.APP1 && isAppSegmentWithId("Exif", stream)) && marker != JPEG.APP14) {
+                if (isAppSegmentMarker(marker) && !(marker == JPEG.APP1 && !ignoreMetadata && isAppSegmentWithId("Exif", stream)) && marker != JPEG.APP14) {
                     int length = stream.readUnsignedShort(); // Length including length field itself
                     stream.seek(realPosition + trash + 2 + length);  // Skip marker (2) + length
                 }
@@ -176,7 +184,8 @@ final class JPEGSegmentImageInputStream extends ImageInputStreamImpl {
         try {
             int length = stream.readUnsignedShort(); // Length including length field itself
 
-            byte[] data = new byte[Math.max(20, length - 2)];
+            // Only the identifier and its null-termination is needed, not the (possibly large) payload
+            byte[] data = new byte[Math.max(0, Math.min(segmentId.length() + 1, length - 2))];
             stream.readFully(data);
 
             return segmentId.equals(asNullTerminatedAsciiString(data, 0));
@@ -84,6 +84,26 @@ public final class JPEGSegmentUtil {
      * @see #ALL_IDS
      */
     public static List<JPEGSegment> readSegments(final ImageInputStream stream, final Map<Integer, List<String>> segmentIdentifiers) throws IOException {
+        return readSegments(stream, segmentIdentifiers, false);
+    }
+
+    /**
+     * Reads or indexes the requested JPEG segments from the stream.
+     * The stream position must be directly before the SOI marker, and only segments for the current image is read.
+     * <p>
+     * If {@code indexOnly} is {@code true}, only the identifier and stream position of requested APPn segments is read,
+     * and the payload is read from the stream when first accessed. This avoids copying large EXIF, XMP or
+     * Photoshop segments that are never used. The stream must then not be closed or flushed while the segments are in use.
+     *
+     * @param stream the stream to read from.
+     * @param segmentIdentifiers the segment identifiers
+     * @param indexOnly if {@code true}, APPn payloads are read on demand
+     * @return a list of segments with the given app markers and optional identifiers. If no segments are found, an
+     *         empty list is returned.
+     * @throws IIOException if a JPEG format exception occurs during reading
+     * @throws IOException if an I/O exception occurs during reading
+     */
+    public static List<JPEGSegment> readSegments(final ImageInputStream stream, final Map<Integer, List<String>> segmentIdentifiers, final boolean indexOnly) throws IOException {
         readSOI(notNull(stream, "stream"));
 
         List<JPEGSegment> segments = Collections.emptyList();
@@ -91,7 +111,7 @@ public final class JPEGSegmentUtil {
         JPEGSegment segment;
         try {
             do {
-                segment = readSegment(stream, segmentIdentifiers);
+                segment = readSegment(stream, segmentIdentifiers, indexOnly);
 //                System.err.println("segment: " + segment);
 
                 if (isRequested(segment, segmentIdentifiers)) {
@@ -149,6 +169,10 @@ public final class JPEGSegmentUtil {
     }
 
     static JPEGSegment readSegment(final ImageInputStream stream, final Map<Integer, List<String>> segmentIdentifiers) throws IOException {
+        return readSegment(stream, segmentIdentifiers, false);
+    }
+
+    static JPEGSegment readSegment(final ImageInputStream stream, final Map<Integer, List<String>> segmentIdentifiers, final boolean indexOnly) throws IOException {
         int marker = stream.readUnsignedShort();
 
         // Skip over weird 0x00 padding...?
@@ -180,7 +204,16 @@ public final class JPEGSegmentUtil {
 
         byte[] data;
 
-        if (segmentIdentifiers.containsKey(marker)) {
+        if (indexOnly && JPEGSegment.isAppSegmentMarker(marker) && segmentIdentifiers.containsKey(marker)) {
+            // Read just enough to know the identifier (at most 256 chars + null-termination), skip the rest
+            long position = stream.getStreamPosition();
+            byte[] prefix = new byte[Math.max(0, Math.min(length - 2, 257))];
+            stream.readFully(prefix);
+            stream.seek(position + Math.max(0, length - 2));
+
+            return new JPEGSegment(marker, asNullTerminatedAsciiString(prefix, 0), stream, position, length);
+        }
+        else if (segmentIdentifiers.containsKey(marker)) {
             data = new byte[length - 2];
             stream.readFully(data);
         }
@@ -268,30 +301,30 @@ public final class JPEGSegmentUtil {
                 System.err.println("segment: " + segment);
 
                 if ("Exif".equals(segment.identifier())) {
-                    ImageInputStream stream = new ByteArrayImageInputStream(segment.data, segment.offset() + 1, segment.length() - 1);
+                    ImageInputStream stream = new ByteArrayImageInputStream(segment.payload(), segment.offset() + 1, segment.length() - 1);
 
                     // Root entry is TIFF, that contains the EXIF sub-IFD
                     Directory tiff = new EXIFReader().read(stream);
                     System.err.println("EXIF: " + tiff);
                 }
                 else if (XMP.NS_XAP.equals(segment.identifier())) {
-                    Directory xmp = new XMPReader().read(new ByteArrayImageInputStream(segment.data, segment.offset(), segment.length()));
+                    Directory xmp = new XMPReader().read(new ByteArrayImageInputStream(segment.payload(), segment.offset(), segment.length()));
                     System.err.println("XMP: " + xmp);
-                    System.err.println(EXIFReader.HexDump.dump(segment.data));
+                    System.err.println(EXIFReader.HexDump.dump(segment.payload()));
                 }
                 else if ("Photoshop 3.0".equals(segment.identifier())) {
                     // TODO: The "Photoshop 3.0" segment contains several image resources, of which one might contain
                     //       IPTC metadata. Probably duplicated in the XMP though...
-                    ImageInputStream stream = new ByteArrayImageInputStream(segment.data, segment.offset(), segment.length());
+                    ImageInputStream stream = new ByteArrayImageInputStream(segment.payload(), segment.offset(), segment.length());
                     Directory psd = new PSDReader().read(stream);
                     System.err.println("PSD: " + psd);
-                    System.err.println(EXIFReader.HexDump.dump(segment.data));
+                    System.err.println(EXIFReader.HexDump.dump(segment.payload()));
                 }
                 else if ("ICC_PROFILE".equals(segment.identifier())) {
                     // Skip
                 }
                 else {
-                    System.err.println(EXIFReader.HexDump.dump(segment.data));
+                    System.err.println(EXIFReader.HexDump.dump(segment.payload()));
                 }
             }
 
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A deadline for long running image operations, which can also be cancelled explicitly.<p>
+ *
+ * Set the deadline with {@link RenderSettings#setDeadline(Deadline)} for scaling, blurring, filtering and writing,
+ * or provide it to {@link Simapi#read(java.io.InputStream, Deadline)} for decoding.
+ * Once the deadline has expired or was cancelled, the running operation is stopped at the next
+ * check point with a {@link RenderAbortedException}.<p>
+ *
+ * A deadline can be cancelled from any thread, for example when the client that requested
+ * the image has disconnected.<p>
+ */
+public class Deadline {
+
+    /** The deadline bound to the current thread. */
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+    /** Indicates if this deadline was cancelled. */
+    private volatile boolean m_cancelled;
+
+    /** The expiry time in nanoseconds, based on {@link System#nanoTime()}. */
+    private final long m_expires;
+
+    /** The timeout in milliseconds. */
+    private final long m_timeout;
+
+    /**
+     * Creates a new deadline that expires after the given time.<p>
+     *
+     * @param timeout the time until the deadline expires
+     * @param unit the unit of the timeout
+     */
+    public Deadline(long timeout, TimeUnit unit) {
+
+        m_timeout = unit.toMillis(timeout);
+        m_expires = System.nanoTime() + unit.toNanos(timeout);
+    }
+
+    /**
+     * Creates a new deadline that expires after the given number of milliseconds.<p>
+     *
+     * @param timeoutMillis the time in milliseconds until the deadline expires
+     */
+    public Deadline(long timeoutMillis) {
+
+        this(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks the deadline bound to the current thread, if any.<p>
+     *
+     * This is called by the image filters between row stripes.<p>
+     *
+     * @throws RenderAbortedException in case the deadline bound to the current thread has expired or was cancelled
+     */
+    public static void checkCurrent() throws RenderAbortedException {
+
+        Deadline deadline = CURRENT.get();
+        if (deadline != null) {
+            deadline.check();
+        }
+    }
+
+    /**
+     * Binds the given deadline to the current thread.<p>
+     *
+     * @param deadline the deadline to bind, may be <code>null</code>
+     *
+     * @return the deadline previously bound to the current thread, must be passed to {@link #restore(Deadline)}
+     */
+    static Deadline bind(Deadline deadline) {
+
+        Deadline previous = CURRENT.get();
+        if (deadline != null) {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+
+    /**
+     * Restores the deadline previously bound to the current thread.<p>
+     *
+     * @param previous the deadline returned by {@link #bind(Deadline)}
+     */
+    static void restore(Deadline previous) {
+
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Cancels this deadline.<p>
+     *
+     * All operations using this deadline will stop at their next check point.<p>
+     */
+    public void cancel() {
+
+        m_cancelled = true;
+    }
+
+    /**
+     * Checks this deadline.<p>
+     *
+     * @throws RenderAbortedException in case this deadline has expired or was cancelled
+     */
+    public void check() throws RenderAbortedException {
+
+        if (m_cancelled) {
+            throw new RenderAbortedException("Image operation cancelled", false);
+        }
+        if (isExpired()) {
+            throw new RenderAbortedException("Image operation exceeded the timeout of " + m_timeout + " ms", true);
+        }
+    }
+
+    /**
+     * Returns the remaining time until this deadline expires in milliseconds.<p>
+     *
+     * @return the remaining time until this deadline expires in milliseconds, or <code>0</code> if it has expired
+     */
+    public long getRemainingMillis() {
+
+        return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(m_expires - System.nanoTime()));
+    }
+
+    /**
+     * Returns <code>true</code> if this deadline was cancelled.<p>
+     *
+     * @return <code>true</code> if this deadline was cancelled
+     */
+    public boolean isCancelled() {
+
+        return m_cancelled;
+    }
+
+    /**
+     * Returns <code>true</code> if this deadline has expired.<p>
+     *
+     * @return <code>true</code> if this deadline has expired
+     */
+    public boolean isExpired() {
+
+        return (System.nanoTime() - m_expires) >= 0;
+    }
+
+    /**
+     * Returns <code>true</code> if this deadline has expired or was cancelled.<p>
+     *
+     * @return <code>true</code> if this deadline has expired or was cancelled
+     */
+    public boolean isOver() {
+
+        return m_cancelled || isExpired();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Base class for quantizers that choose the opaque colors of the palette from the pixels of the image.<p>
+ *
+ * Handles the transparency and the creation of the color model, so implementations only
+ * have to choose the opaque colors.<p>
+ */
+abstract class AbstractPaletteQuantizer implements PaletteQuantizer {
+
+    /**
+     * @see com.alkacon.simapi.GifWriter.PaletteQuantizer#createPalette(java.awt.image.BufferedImage, int)
+     */
+    public IndexColorModel createPalette(BufferedImage image, int maxColors) {
+
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        boolean transparent = false;
+        boolean opaque = false;
+        for (int i = 0; (i < pixels.length) && !(transparent && opaque); i++) {
+            if ((pixels[i] >>> 24) < PaletteMapper.DEFAULT_ALPHA_THRESHOLD) {
+                transparent = true;
+            } else {
+                opaque = true;
+            }
+        }
+
+        int first = transparent ? 1 : 0;
+        int[] colors;
+        if (opaque) {
+            colors = createColors(pixels, Math.max(1, Math.min(256, maxColors) - first));
+        } else {
+            // there are no opaque pixels, but the palette needs an opaque color for the mapping
+            colors = new int[] {0};
+        }
+        int size = colors.length + first;
+        byte[] red = new byte[size];
+        byte[] green = new byte[size];
+        byte[] blue = new byte[size];
+        for (int i = 0; i < colors.length; i++) {
+            red[i + first] = (byte)(colors[i] >> 16);
+            green[i + first] = (byte)(colors[i] >> 8);
+            blue[i + first] = (byte)colors[i];
+        }
+        int bits = 1;
+        while ((1 << bits) < size) {
+            bits++;
+        }
+        if (transparent) {
+            // the transparent color is always the first color, like in the palettes created by Quantize
+            return new IndexColorModel(bits, size, red, green, blue, 0);
+        }
+        return new IndexColorModel(bits, size, red, green, blue);
+    }
+
+    /**
+     * Chooses the opaque colors of the palette.<p>
+     *
+     * Pixels with an alpha value below {@link PaletteMapper#DEFAULT_ALPHA_THRESHOLD} must be ignored.
+     * At least one of the pixels is opaque.<p>
+     *
+     * @param pixels the ARGB pixels of the image
+     * @param maxColors the maximum number of colors to choose
+     *
+     * @return the chosen colors as RGB values, at least one and at most <code>maxColors</code>
+     */
+    protected abstract int[] createColors(int[] pixels, int maxColors);
+}
@@ -25,10 +25,19 @@
 
 package com.alkacon.simapi.GifWriter;
 
+import com.alkacon.simapi.SimapiExecutors;
+
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * GifEncoder - writes out an image as a GIF.<p>
@@ -64,75 +73,63 @@ import java.io.IOException;
  * Adapted from ppmtogif, which is based on GIFENCOD by David
  * Rowley &lt;mgardi@watdscu.waterloo.edu&gt;. Lempel-Zim compression
  * based on "compress".<p>
+ *
+ * The pixels of 8-bit images are compressed directly from the byte data of the image raster
+ * with {@link GifLzwEncoder}, and all output is buffered.<p>
  */
 public class GifAcmeEncoder {
 
-    private static final int BITS = 12;
-    private static final int EOF = -1;
-    private static final int HSIZE = 5003; // 80% occupancy
-    private int a_count;
-    private byte[] accum = new byte[256];
-    private boolean clear_flg = false;
-    private int ClearCode;
-    private int[] codetab = new int[HSIZE];
-    private int cur_accum = 0;
-    private int cur_bits = 0;
-    private int EOFCode;
-    private int free_ent = 0; // first unused entry
-    private int g_init_bits;
-
-    // Adapted from ppmtogif, which is based on GIFENCOD by David
-    // Rowley <mgardi@watdscu.waterloo.edu>.  Lempel-Zim compression
-    // based on "compress".
-
-    private int hsize = HSIZE; // for dynamic table sizing
-    private int[] htab = new int[HSIZE];
+    /**
+     * Output stream writing to a {@link DataOutput}.<p>
+     */
+    static final class DataOutputStreamAdapter extends OutputStream {
+
+        /** The target of the stream. */
+        private final DataOutput m_out;
+
+        /**
+         * Creates a new adapter.<p>
+         *
+         * @param out the target of the stream
+         */
+        DataOutputStreamAdapter(DataOutput out) {
+
+            m_out = out;
+        }
+
+        /**
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            m_out.write(b, off, len);
+        }
+
+        /**
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(int b) throws IOException {
+
+            m_out.write(b);
+        }
+    }
+
+    /** The size of the output buffer. */
+    static final int BUFFER_SIZE = 8192;
 
     private boolean interlace = false;
 
-    private int masks[] = {
-        0x0000,
-        0x0001,
-        0x0003,
-        0x0007,
-        0x000F,
-        0x001F,
-        0x003F,
-        0x007F,
-        0x00FF,
-        0x01FF,
-        0x03FF,
-        0x07FF,
-        0x0FFF,
-        0x1FFF,
-        0x3FFF,
-        0x7FFF,
-        0xFFFF};
-    private int maxbits = BITS; // user settable max # bits/code
-    private int maxcode; // maximum code, given n_bits
-
-    // General DEFINEs
-
-    private int maxmaxcode = 1 << BITS; // should NEVER generate this code
-
-    // GIF Image compression - modified 'compress'
-    //
-    // Based on: compress.c - File compression ala IEEE Computer, June 1984.
-    //
-    // By Authors:  Spencer W. Thomas      (decvax!harpo!utah-cs!utah-gr!thomas)
-    //              Jim McKie              (decvax!mcvax!jim)
-    //              Steve Davies           (decvax!vax135!petsd!peora!srd)
-    //              Ken Turkowski          (decvax!decwrl!turtlevax!ken)
-    //              James A. Woods         (decvax!ihnp4!ames!jaw)
-    //              Joe Orost              (decvax!vax135!petsd!joe)
-
-    private int n_bits; // number of bits/code
-    private int numPixels;
-    private int pixelIndex;
-    private int[] pixels;
+    private int maxChunks = 1; // the maximum number of chunks compressed in parallel
+
+    private int pixelOffset; // index of the first pixel
+    private byte[] pixels; // the palette indices of the pixels
 
     private byte[] r, g, b; // the color look-up table
 
+    private int scanlineStride; // distance between two rows of pixels
+
     private int transparentPixel = -1; // hpm
     private int width, height;
 
@@ -152,7 +149,7 @@ public class GifAcmeEncoder {
             throw new IllegalArgumentException("GIF Encoder: Image must be 8-bit");
         }
 
-        pixels = img.getRaster().getPixels(0, 0, width, height, (int[])null);
+        initPixels(img.getRaster());
         IndexColorModel icm = (IndexColorModel)img.getColorModel();
         transparentPixel = icm.getTransparentPixel();
         int mapSize = icm.getMapSize();
@@ -163,26 +160,52 @@ public class GifAcmeEncoder {
         icm.getGreens(g);
         icm.getBlues(b);
         interlace = false;
-        pixelIndex = 0;
-        numPixels = width * height;
     }
 
-    private static void writeString(DataOutput out, String str) throws IOException {
+    /**
+     * Enables or disables interlacing.<p>
+     *
+     * Interlaced images are written in four passes: every 8th row starting with row 0,
+     * every 8th row starting with row 4, every 4th row starting with row 2, and finally all odd rows.<p>
+     *
+     * @param interlace if <code>true</code>, the image is written interlaced
+     */
+    public void setInterlace(boolean interlace) {
 
-        out.write(str.getBytes());
+        this.interlace = interlace;
     }
 
-    // Algorithm:  use open addressing double hashing (no chaining) on the
-    // prefix code / next character combination.  We do a variant of Knuth's
-    // algorithm D (vol. 3, sec. 6.4) along with G. Knott's relatively-prime
-    // secondary probe.  Here, the modular division first probe is gives way
-    // to a faster exclusive-or manipulation.  Also do block compression with
-    // an adaptive reset, whereby the code table is cleared when the compression
-    // ratio decreases, but after the table fills.  The variable-length output
-    // codes are re-sized at this point, and a special CLEAR code is generated
-    // for the decompressor.  Late addition:  construct the table according to
-    // file size for noticeable speed improvement on small files.  Please direct
-    // questions about this implementation to ames!jaw.
+    /**
+     * Enables or disables the parallel compression of large images.<p>
+     *
+     * In parallel mode, the image is split into chunks of rows that are compressed independently
+     * on the CPU executor of Simapi, each starting with a new code table.
+     * This produces slightly larger files.<p>
+     *
+     * @param parallel if <code>true</code>, large images are compressed in parallel
+     */
+    public void setParallel(boolean parallel) {
+
+        maxChunks = parallel ? SimapiExecutors.getParallelism() : 1;
+    }
+
+    /**
+     * Sets the maximum number of chunks of rows a large image is split into for parallel compression.<p>
+     *
+     * Enabling parallel compression with {@link #setParallel(boolean)} sets this to the number of processors.
+     * Images are only split into chunks of at least 256K pixels.<p>
+     *
+     * @param maxChunks the maximum number of chunks, <code>1</code> for sequential compression
+     */
+    public void setMaxChunks(int maxChunks) {
+
+        this.maxChunks = Math.max(1, maxChunks);
+    }
+
+    private static void writeString(OutputStream out, String str) throws IOException {
+
+        out.write(str.getBytes());
+    }
 
     /**
      * Saves the image as a GIF file to the given DataOutput.<p>
@@ -216,147 +239,13 @@ public class GifAcmeEncoder {
             blus[i] = b[i];
         }
 
-        GIFEncode(out, width, height, interlace, (byte)0, transparentPixel, BitsPerPixel, reds, grns, blus);
-    }
-
-    // Set up the 'byte output' routine
-    private void char_init() {
-
-        a_count = 0;
-    }
-
-    // output
-    //
-    // Output the given code.
-    // Inputs:
-    //      code:   A n_bits-bit integer.  If == -1, then EOF.  This assumes
-    //              that n_bits =< wordsize - 1.
-    // Outputs:
-    //      Outputs code to the file.
-    // Assumptions:
-    //      Chars are 8 bits long.
-    // Algorithm:
-    //      Maintain a BITS character long buffer (so that 8 codes will
-    // fit in it exactly).  Use the VAX insv instruction to insert each
-    // code in turn.  When the buffer fills up empty it and start over.
-
-    // Add a character to the end of the current packet, and if it is 254
-    // characters, flush the packet to disk.
-    private void char_out(byte c, DataOutput outs) throws IOException {
-
-        accum[a_count++] = c;
-        if (a_count >= 254) {
-            flush_char(outs);
-        }
-    }
-
-    // table clear for block compress
-    private void cl_block(DataOutput outs) throws IOException {
-
-        cl_hash(hsize);
-        free_ent = ClearCode + 2;
-        clear_flg = true;
-
-        output(ClearCode, outs);
-    }
-
-    // reset code table
-    private void cl_hash(int hxsize) {
-
-        for (int i = 0; i < hxsize; ++i) {
-            htab[i] = -1;
-        }
-    }
-
-    private void compress(int init_bits, DataOutput outs) throws IOException {
-
-        int fcode;
-        int i /* = 0 */;
-        int c;
-        int ent;
-        int disp;
-        int hsize_reg;
-        int hshift;
-
-        // Set up the globals:  g_init_bits - initial number of bits
-        g_init_bits = init_bits;
-
-        // Set up the necessary values
-        clear_flg = false;
-        n_bits = g_init_bits;
-        maxcode = MAXCODE(n_bits);
-
-        ClearCode = 1 << (init_bits - 1);
-        EOFCode = ClearCode + 1;
-        free_ent = ClearCode + 2;
-
-        char_init();
-
-        ent = GIFNextPixel();
-
-        hshift = 0;
-        for (fcode = hsize; fcode < 65536; fcode *= 2) {
-            ++hshift;
-        }
-        hshift = 8 - hshift; // set hash code range bound
-
-        hsize_reg = hsize;
-        cl_hash(hsize_reg); // clear hash table
-
-        output(ClearCode, outs);
-
-        outer_loop: while ((c = GIFNextPixel()) != EOF) {
-            fcode = (c << maxbits) + ent;
-            i = (c << hshift) ^ ent; // xor hashing
-
-            if (htab[i] == fcode) {
-                ent = codetab[i];
-                continue;
-            } else if (htab[i] >= 0) // non-empty slot
-            {
-                disp = hsize_reg - i; // secondary hash (after G. Knott)
-                if (i == 0) {
-                    disp = 1;
-                }
-                do {
-                    if ((i -= disp) < 0) {
-                        i += hsize_reg;
-                    }
-
-                    if (htab[i] == fcode) {
-                        ent = codetab[i];
-                        continue outer_loop;
-                    }
-                } while (htab[i] >= 0);
-            }
-            output(ent, outs);
-            ent = c;
-            if (free_ent < maxmaxcode) {
-                codetab[i] = free_ent++; // code -> hashtable
-                htab[i] = fcode;
-            } else {
-                cl_block(outs);
-            }
-        }
-        // Put out the final code.
-        output(ent, outs);
-        output(EOFCode, outs);
-    }
-
-    // Clear out the hash table
-
-    // Flush the packet to disk, and reset the accumulator
-    private void flush_char(DataOutput outs) throws IOException {
-
-        if (a_count > 0) {
-            outs.write(a_count);
-            outs.write(accum, 0, a_count);
-            a_count = 0;
-        }
+        OutputStream outs = new BufferedOutputStream(new DataOutputStreamAdapter(out), BUFFER_SIZE);
+        GIFEncode(outs, width, height, interlace, (byte)0, transparentPixel, BitsPerPixel, reds, grns, blus);
+        outs.flush();
     }
 
     private void GIFEncode(
-        DataOutput outs,
+        OutputStream outs,
         int Width,
         int Height,
         boolean Interlace,
@@ -451,7 +340,16 @@ public class GifAcmeEncoder {
         Putbyte((byte)InitCodeSize, outs);
 
         // Go and actually compress the data
-        compress(InitCodeSize + 1, outs);
+        if (Interlace) {
+            new GifLzwEncoder(InitCodeSize, outs, maxChunks).compress(getInterlacedPixels(), 0, Width, Width, Height);
+        } else {
+            new GifLzwEncoder(InitCodeSize, outs, maxChunks).compress(
+                pixels,
+                pixelOffset,
+                scanlineStride,
+                Width,
+                Height);
+        }
 
         // Write out a Zero-length packet (to end the series)
         Putbyte((byte)0, outs);
@@ -460,79 +358,75 @@ public class GifAcmeEncoder {
         Putbyte((byte)';', outs);
     }
 
-    // GIF Specific routines
-
-    // Return the next pixel from the image
-    private int GIFNextPixel() {
-
-        if (pixelIndex == numPixels) {
-            return EOF;
-        } else {
-            return pixels[pixelIndex++];
+    /**
+     * Returns the pixels with the rows in the order of the interlace passes.<p>
+     *
+     * @return the pixels with the rows in the order of the interlace passes
+     */
+    private byte[] getInterlacedPixels() {
+
+        byte[] result = new byte[width * height];
+        int[] starts = {0, 4, 2, 1};
+        int[] steps = {8, 8, 4, 2};
+        int row = 0;
+        for (int pass = 0; pass < starts.length; pass++) {
+            for (int y = starts[pass]; y < height; y += steps[pass]) {
+                System.arraycopy(pixels, pixelOffset + (y * scanlineStride), result, row * width, width);
+                row++;
+            }
         }
+        return result;
     }
 
-    private final int MAXCODE(int nx_bits) {
-
-        return (1 << nx_bits) - 1;
-    }
-
-    private void output(int code, DataOutput outs) throws IOException {
-
-        cur_accum &= masks[cur_bits];
-
-        if (cur_bits > 0) {
-            cur_accum |= (code << cur_bits);
+    /**
+     * Initializes the pixel data from the given raster.<p>
+     *
+     * If the raster stores one byte per pixel, its data is used directly,
+     * otherwise the pixels are unpacked row by row.<p>
+     *
+     * @param raster the raster of the image
+     */
+    private void initPixels(WritableRaster raster) {
+
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel sm = raster.getSampleModel();
+        if ((buffer instanceof DataBufferByte)
+            && (sm instanceof ComponentSampleModel)
+            && (sm.getNumBands() == 1)
+            && (((ComponentSampleModel)sm).getPixelStride() == 1)) {
+            ComponentSampleModel csm = (ComponentSampleModel)sm;
+            int bank = csm.getBankIndices()[0];
+            pixels = ((DataBufferByte)buffer).getData(bank);
+            pixelOffset = buffer.getOffsets()[bank]
+                + csm.getOffset(
+                    raster.getMinX() - raster.getSampleModelTranslateX(),
+                    raster.getMinY() - raster.getSampleModelTranslateY());
+            scanlineStride = csm.getScanlineStride();
         } else {
-            cur_accum = code;
-        }
-
-        cur_bits += n_bits;
-
-        while (cur_bits >= 8) {
-            char_out((byte)(cur_accum & 0xff), outs);
-            cur_accum >>= 8;
-            cur_bits -= 8;
-        }
-
-        // If the next entry is going to be too big for the code size,
-        // then increase it, if possible.
-        if ((free_ent > maxcode) || clear_flg) {
-            if (clear_flg) {
-                maxcode = MAXCODE(n_bits = g_init_bits);
-                clear_flg = false;
-            } else {
-                ++n_bits;
-                if (n_bits == maxbits) {
-                    maxcode = maxmaxcode;
-                } else {
-                    maxcode = MAXCODE(n_bits);
+            pixels = new byte[width * height];
+            pixelOffset = 0;
+            scanlineStride = width;
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                raster.getPixels(raster.getMinX(), raster.getMinY() + y, width, 1, row);
+                int p = y * width;
+                for (int x = 0; x < width; x++) {
+                    pixels[p + x] = (byte)row[x];
                 }
             }
         }
-
-        if (code == EOFCode) {
-            // At EOF, write the rest of the buffer.
-            while (cur_bits > 0) {
-                char_out((byte)(cur_accum & 0xff), outs);
-                cur_accum >>= 8;
-                cur_bits -= 8;
-            }
-
-            flush_char(outs);
-        }
     }
 
     // Write out a byte to the GIF file
-    private void Putbyte(byte bo, DataOutput outs) throws IOException {
+    private void Putbyte(byte bo, OutputStream outs) throws IOException {
 
         outs.write(bo);
     }
 
     // Write out a word to the GIF file
-    private void Putword(int w, DataOutput outs) throws IOException {
+    private void Putword(int w, OutputStream outs) throws IOException {
 
         Putbyte((byte)(w & 0xff), outs);
         Putbyte((byte)((w >> 8) & 0xff), outs);
     }
-}
\ No newline at end of file
+}
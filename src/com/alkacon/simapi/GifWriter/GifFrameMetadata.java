@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Metadata of a frame written with {@link GifImageWriter#writeToSequence(javax.imageio.IIOImage, javax.imageio.ImageWriteParam)}.<p>
+ *
+ * Contains the display time of the frame and, for the first frame of a sequence,
+ * the number of times the animation is repeated.
+ * The writer also understands the native image metadata of the GIF reader of the JDK,
+ * so frames read with that reader keep their display times.<p>
+ *
+ * For frames read from a GIF, the position and the disposal method of the frame are available as well.
+ * They are not used by the writer, which computes the frame rectangles and disposal methods itself.<p>
+ */
+public class GifFrameMetadata extends IIOMetadata {
+
+    /** Disposal method: not specified. */
+    public static final int DISPOSAL_NONE = 0;
+
+    /** Disposal method: leave the frame in place. */
+    public static final int DISPOSAL_DO_NOT_DISPOSE = 1;
+
+    /** Disposal method: restore the frame rectangle to the background color. */
+    public static final int DISPOSAL_RESTORE_TO_BACKGROUND = 2;
+
+    /** Disposal method: restore the frame rectangle to what was displayed before the frame. */
+    public static final int DISPOSAL_RESTORE_TO_PREVIOUS = 3;
+
+    /** The name of the native metadata format. */
+    public static final String NATIVE_FORMAT_NAME = "com_alkacon_simapi_gif_frame_1.0";
+
+    /** The name of the native image metadata format of the JDK GIF reader. */
+    static final String JDK_FORMAT_NAME = "javax_imageio_gif_image_1.0";
+
+    /** The display time of the frame in hundredths of a second. */
+    private int m_delayTime;
+
+    /** The disposal method of the frame. */
+    private int m_disposalMethod;
+
+    /** The horizontal position of the frame. */
+    private int m_left;
+
+    /** The number of times the animation is repeated, or <code>-1</code> to play it only once. */
+    private int m_loopCount;
+
+    /** The vertical position of the frame. */
+    private int m_top;
+
+    /**
+     * Creates new frame metadata.<p>
+     *
+     * @param delayTime the display time of the frame in hundredths of a second
+     * @param loopCount the number of times the animation is repeated, <code>0</code> to repeat it forever,
+     *      or <code>-1</code> to play it only once
+     */
+    public GifFrameMetadata(int delayTime, int loopCount) {
+
+        super(false, NATIVE_FORMAT_NAME, null, null, null);
+        m_delayTime = delayTime;
+        m_loopCount = loopCount;
+    }
+
+    /**
+     * Returns the frame metadata contained in the given metadata.<p>
+     *
+     * @param metadata the metadata of an image, may be <code>null</code>
+     *
+     * @return the frame metadata contained in the given metadata, or <code>null</code> if there is none
+     */
+    public static GifFrameMetadata getFrameMetadata(IIOMetadata metadata) {
+
+        if (metadata instanceof GifFrameMetadata) {
+            return (GifFrameMetadata)metadata;
+        }
+        if ((metadata == null) || !JDK_FORMAT_NAME.equals(metadata.getNativeMetadataFormatName())) {
+            return null;
+        }
+        GifFrameMetadata result = new GifFrameMetadata(0, -1);
+        for (Node node = metadata.getAsTree(JDK_FORMAT_NAME).getFirstChild(); node != null; node = node.getNextSibling()) {
+            if ("ImageDescriptor".equals(node.getNodeName())) {
+                result.m_left = Integer.parseInt(getAttribute(node, "imageLeftPosition", "0"));
+                result.m_top = Integer.parseInt(getAttribute(node, "imageTopPosition", "0"));
+            } else if ("GraphicControlExtension".equals(node.getNodeName())) {
+                result.m_delayTime = Integer.parseInt(getAttribute(node, "delayTime", "0"));
+                String disposal = getAttribute(node, "disposalMethod", "none");
+                if ("doNotDispose".equals(disposal)) {
+                    result.m_disposalMethod = DISPOSAL_DO_NOT_DISPOSE;
+                } else if ("restoreToBackgroundColor".equals(disposal)) {
+                    result.m_disposalMethod = DISPOSAL_RESTORE_TO_BACKGROUND;
+                } else if ("restoreToPrevious".equals(disposal)) {
+                    result.m_disposalMethod = DISPOSAL_RESTORE_TO_PREVIOUS;
+                }
+            } else if ("ApplicationExtensions".equals(node.getNodeName())) {
+                for (Node ext = node.getFirstChild(); ext != null; ext = ext.getNextSibling()) {
+                    Object data = (ext instanceof IIOMetadataNode) ? ((IIOMetadataNode)ext).getUserObject() : null;
+                    if ("NETSCAPE".equals(getAttribute(ext, "applicationID", null))
+                        && (data instanceof byte[])
+                        && (((byte[])data).length >= 3)) {
+                        byte[] bytes = (byte[])data;
+                        result.m_loopCount = (bytes[1] & 0xff) | ((bytes[2] & 0xff) << 8);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value of the given attribute.<p>
+     *
+     * @param node the node to read the attribute from
+     * @param name the name of the attribute
+     * @param defaultValue the value to return if the attribute is not set
+     *
+     * @return the value of the given attribute
+     */
+    private static String getAttribute(Node node, String name, String defaultValue) {
+
+        NamedNodeMap attributes = node.getAttributes();
+        Node attribute = (attributes != null) ? attributes.getNamedItem(name) : null;
+        return (attribute != null) ? attribute.getNodeValue() : defaultValue;
+    }
+
+    /**
+     * @see javax.imageio.metadata.IIOMetadata#getAsTree(java.lang.String)
+     */
+    @Override
+    public Node getAsTree(String formatName) {
+
+        if (!NATIVE_FORMAT_NAME.equals(formatName)) {
+            throw new IllegalArgumentException("Unsupported format: " + formatName);
+        }
+        IIOMetadataNode root = new IIOMetadataNode(NATIVE_FORMAT_NAME);
+        root.setAttribute("delayTime", String.valueOf(m_delayTime));
+        root.setAttribute("loopCount", String.valueOf(m_loopCount));
+        return root;
+    }
+
+    /**
+     * Returns the display time of the frame.<p>
+     *
+     * @return the display time of the frame in hundredths of a second
+     */
+    public int getDelayTime() {
+
+        return m_delayTime;
+    }
+
+    /**
+     * Returns the disposal method of the frame.<p>
+     *
+     * @return the disposal method of the frame, for example {@link #DISPOSAL_RESTORE_TO_BACKGROUND}
+     */
+    public int getDisposalMethod() {
+
+        return m_disposalMethod;
+    }
+
+    /**
+     * Returns the horizontal position of the frame.<p>
+     *
+     * @return the horizontal position of the frame
+     */
+    public int getLeft() {
+
+        return m_left;
+    }
+
+    /**
+     * Returns the number of times the animation is repeated.<p>
+     *
+     * @return the number of times the animation is repeated, <code>0</code> to repeat it forever,
+     *      or <code>-1</code> to play it only once
+     */
+    public int getLoopCount() {
+
+        return m_loopCount;
+    }
+
+    /**
+     * Returns the vertical position of the frame.<p>
+     *
+     * @return the vertical position of the frame
+     */
+    public int getTop() {
+
+        return m_top;
+    }
+
+    /**
+     * @see javax.imageio.metadata.IIOMetadata#isReadOnly()
+     */
+    @Override
+    public boolean isReadOnly() {
+
+        return true;
+    }
+
+    /**
+     * @see javax.imageio.metadata.IIOMetadata#mergeTree(java.lang.String, org.w3c.dom.Node)
+     */
+    @Override
+    public void mergeTree(String formatName, Node root) {
+
+        throw new IllegalStateException("Metadata is read only");
+    }
+
+    /**
+     * @see javax.imageio.metadata.IIOMetadata#reset()
+     */
+    @Override
+    public void reset() {
+
+        throw new IllegalStateException("Metadata is read only");
+    }
+}
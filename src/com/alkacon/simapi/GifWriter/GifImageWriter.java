@@ -25,9 +25,12 @@
 
 package com.alkacon.simapi.GifWriter;
 
+import com.alkacon.simapi.SimapiExecutors;
+
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 
 import javax.imageio.IIOImage;
@@ -44,6 +47,16 @@ import javax.imageio.stream.ImageOutputStream;
  */
 public class GifImageWriter extends ImageWriter {
 
+    /**
+     * Compress large images in parallel on all processors, at the cost of slightly larger files.
+     * May be disabled by setting the system property to <code>false</code>.
+     */
+    static final boolean PARALLEL_COMPRESSION = !"false".equalsIgnoreCase(
+        System.getProperty("com.alkacon.simapi.GifWriter.parallelCompression"));
+
+    /** The encoder of the sequence currently written. */
+    private GifSequenceEncoder m_sequence;
+
     /**
      * Public constructor.<p>
      * 
@@ -54,6 +67,15 @@ public class GifImageWriter extends ImageWriter {
         super(provider);
     }
 
+    /**
+     * @see javax.imageio.ImageWriter#canWriteSequence()
+     */
+    @Override
+    public boolean canWriteSequence() {
+
+        return true;
+    }
+
     /**
      * @see javax.imageio.ImageTranscoder#convertImageMetadata(javax.imageio.metadata.IIOMetadata, javax.imageio.ImageTypeSpecifier, javax.imageio.ImageWriteParam)
      */
@@ -70,6 +92,21 @@ public class GifImageWriter extends ImageWriter {
         return null;
     }
 
+    /**
+     * Writes the last frame of the current animated GIF sequence and the GIF trailer.<p>
+     *
+     * @see javax.imageio.ImageWriter#endWriteSequence()
+     */
+    @Override
+    public void endWriteSequence() throws IOException {
+
+        if (m_sequence == null) {
+            throw new IllegalStateException("prepareWriteSequence was not called");
+        }
+        m_sequence.finish();
+        m_sequence = null;
+    }
+
     /**
      * @see javax.imageio.ImageWriter#getDefaultImageMetadata(javax.imageio.ImageTypeSpecifier, javax.imageio.ImageWriteParam)
      */
@@ -78,6 +115,17 @@ public class GifImageWriter extends ImageWriter {
         return null;
     }
 
+    /**
+     * Returns new {@link GifWriteParam} with the default values.<p>
+     *
+     * @see javax.imageio.ImageWriter#getDefaultWriteParam()
+     */
+    @Override
+    public ImageWriteParam getDefaultWriteParam() {
+
+        return new GifWriteParam(getLocale());
+    }
+
     /**
      * @see javax.imageio.ImageWriter#getDefaultStreamMetadata(javax.imageio.ImageWriteParam)
      */
@@ -86,6 +134,38 @@ public class GifImageWriter extends ImageWriter {
         return null;
     }
 
+    /**
+     * Starts writing an animated GIF.<p>
+     *
+     * The frames are then written with {@link #writeToSequence(IIOImage, ImageWriteParam)},
+     * the display times of the frames and the loop count are taken from {@link GifFrameMetadata}.<p>
+     *
+     * @see javax.imageio.ImageWriter#prepareWriteSequence(javax.imageio.metadata.IIOMetadata)
+     */
+    @Override
+    public void prepareWriteSequence(IIOMetadata streamMetadata) throws IOException {
+
+        output = getOutput();
+        if (output == null) {
+            throw new IllegalStateException("output was not set");
+        }
+        m_sequence = new GifSequenceEncoder(
+            new BufferedOutputStream(
+                new GifAcmeEncoder.DataOutputStreamAdapter((ImageOutputStream)output),
+                GifAcmeEncoder.BUFFER_SIZE),
+            PARALLEL_COMPRESSION ? SimapiExecutors.getParallelism() : 1);
+    }
+
+    /**
+     * @see javax.imageio.ImageWriter#reset()
+     */
+    @Override
+    public void reset() {
+
+        super.reset();
+        m_sequence = null;
+    }
+
     /**
      * @see javax.imageio.ImageWriter#write(javax.imageio.metadata.IIOMetadata, javax.imageio.IIOImage, javax.imageio.ImageWriteParam)
      */
@@ -104,23 +184,16 @@ public class GifImageWriter extends ImageWriter {
             throw new IllegalStateException("output was not set");
         }
 
-        if (param == null) {
-            param = getDefaultWriteParam();
-        }
-
+        GifWriteParam gifParam = getGifWriteParam(param);
         ImageOutputStream ios = (ImageOutputStream)output;
         RenderedImage ri = image.getRenderedImage();
 
         if (ri instanceof BufferedImage) {
 
-            BufferedImage bi = (BufferedImage)ri;
-            BufferedImage indexed;
-            if (!(bi.getColorModel() instanceof IndexColorModel)) {
-                indexed = Quantize.process(bi, 256, true);
-            } else {
-                indexed = bi;
-            }
+            BufferedImage indexed = getIndexedImage((BufferedImage)ri, gifParam);
             GifAcmeEncoder encoder = new GifAcmeEncoder(indexed);
+            encoder.setParallel(gifParam.isParallelCompression());
+            encoder.setInterlace(gifParam.isInterlaced());
             encoder.write(ios);
 
         } else {
@@ -128,4 +201,100 @@ public class GifImageWriter extends ImageWriter {
             throw new IOException("Image not of type BufferedImage");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Adds a frame to the current animated GIF sequence.<p>
+     *
+     * Frames are written as soon as the next frame is added, or the sequence is ended.<p>
+     *
+     * @see javax.imageio.ImageWriter#writeToSequence(javax.imageio.IIOImage, javax.imageio.ImageWriteParam)
+     */
+    @Override
+    public void writeToSequence(IIOImage image, ImageWriteParam param) throws IOException {
+
+        if (m_sequence == null) {
+            throw new IllegalStateException("prepareWriteSequence was not called");
+        }
+        if (image == null) {
+            throw new IllegalArgumentException("image == null");
+        }
+        if (!(image.getRenderedImage() instanceof BufferedImage)) {
+            throw new IOException("Image not of type BufferedImage");
+        }
+        GifFrameMetadata metadata = GifFrameMetadata.getFrameMetadata(image.getMetadata());
+        m_sequence.addFrame(
+            getIndexedImage((BufferedImage)image.getRenderedImage(), getGifWriteParam(param)),
+            (metadata != null) ? metadata.getDelayTime() : 0,
+            (metadata != null) ? metadata.getLoopCount() : 0);
+    }
+
+    /**
+     * Returns the given image with only the transparency below the given alpha threshold.<p>
+     *
+     * @param image the image
+     * @param alphaThreshold the alpha value below which pixels are transparent
+     *
+     * @return an image where all pixels are either completely transparent or opaque
+     */
+    private static BufferedImage applyAlphaThreshold(BufferedImage image, int alphaThreshold) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = ((pixels[i] >>> 24) < alphaThreshold) ? 0 : (pixels[i] | 0xff000000);
+        }
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        result.setRGB(0, 0, width, height, pixels, 0, width);
+        return result;
+    }
+
+    /**
+     * Returns the given image with an indexed color model, reducing the colors if required.<p>
+     *
+     * @param image the image
+     * @param param the parameters for the color reduction
+     *
+     * @return the image with an indexed color model
+     */
+    private static BufferedImage getIndexedImage(BufferedImage image, GifWriteParam param) {
+
+        if (image.getColorModel() instanceof IndexColorModel) {
+            return image;
+        }
+        if (image.getColorModel().hasAlpha() && (param.getAlphaThreshold() != PaletteMapper.DEFAULT_ALPHA_THRESHOLD)) {
+            image = applyAlphaThreshold(image, param.getAlphaThreshold());
+        }
+        IndexColorModel palette = Quantize.createPalette(image, param.getMaxColors(), true, 0);
+        PaletteMapper mapper = new PaletteMapper(palette);
+        switch (param.getDitherMode()) {
+            case GifWriteParam.DITHER_ORDERED:
+                return mapper.mapOrdered(image);
+            case GifWriteParam.DITHER_DIFFUSION:
+                return mapper.map(image, true);
+            default:
+                return mapper.map(image, false);
+        }
+    }
+
+    /**
+     * Returns the GIF parameters for the given write parameters.<p>
+     *
+     * Standard write parameters only control the interlacing with the progressive mode.<p>
+     *
+     * @param param the write parameters, may be <code>null</code>
+     *
+     * @return the GIF parameters
+     */
+    private GifWriteParam getGifWriteParam(ImageWriteParam param) {
+
+        if (param instanceof GifWriteParam) {
+            return (GifWriteParam)param;
+        }
+        GifWriteParam result = new GifWriteParam(getLocale());
+        if ((param != null) && param.canWriteProgressive()) {
+            result.setInterlaced(param.getProgressiveMode() == ImageWriteParam.MODE_DEFAULT);
+        }
+        return result;
+    }
+}
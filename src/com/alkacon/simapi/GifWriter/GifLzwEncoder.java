@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+import com.alkacon.simapi.SimapiExecutors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * LZW compressor for GIF image data, working directly on an array of 8-bit palette indices.<p>
+ *
+ * The compressed codes are written as complete data sub-blocks of 255 bytes, each with a single
+ * call to the output stream. The hash tables are kept per thread, so encoding many small images
+ * does not allocate them again for every image.<p>
+ *
+ * The compression itself is the same as in {@link GifAcmeEncoder}: a variant of the Unix "compress"
+ * algorithm with open addressing double hashing, and a clear code once the code table is full.
+ * It is based on the GIF encoder by Jef Poskanzer, Copyright (C) 1996 by Jef Poskanzer &lt;jef@acme.com&gt;,
+ * see {@link GifAcmeEncoder} for the license terms.<p>
+ *
+ * Large images can be compressed in parallel. The rows are split into chunks that are compressed
+ * independently, each starting with an empty code table. Every chunk except the last one ends with a clear code,
+ * so the concatenated codes form a valid GIF image data stream. Compression is slightly worse,
+ * since the code table is reset at every chunk boundary.<p>
+ */
+final class GifLzwEncoder {
+
+    /**
+     * The hash tables reused by all encoders running in the same thread.<p>
+     */
+    private static final class Tables {
+
+        /** The codes of the table entries. */
+        final int[] m_codes = new int[HSIZE];
+
+        /** The hashed (prefix code, next pixel) combinations of the table entries. */
+        final int[] m_hashes = new int[HSIZE];
+    }
+
+    /** The minimum number of pixels in a chunk that is compressed in parallel. */
+    static final int MIN_CHUNK_PIXELS = 1 << 18;
+
+    /** The maximum number of bits per code. */
+    private static final int BITS = 12;
+
+    /** The size of the hash table, for 80% occupancy. */
+    private static final int HSIZE = 5003;
+
+    /** The shift for the first hash probe, so that the hash codes stay below {@link #HSIZE}. */
+    private static final int HSHIFT = 4;
+
+    /** The first code that can not be used any more. */
+    private static final int MAX_MAX_CODE = 1 << BITS;
+
+    /** The size of a complete data sub-block. */
+    private static final int MAX_BLOCK_SIZE = 255;
+
+    /** The hash tables of the current thread. */
+    private static final ThreadLocal<Tables> TABLES = new ThreadLocal<Tables>() {
+
+        @Override
+        protected Tables initialValue() {
+
+            return new Tables();
+        }
+    };
+
+    /** The bits not yet written. */
+    private int m_accum;
+
+    /** The number of bits not yet written. */
+    private int m_accumBits;
+
+    /** The current data sub-block, starting with its length byte, or the complete compressed data of a chunk. */
+    private byte[] m_block = new byte[MAX_BLOCK_SIZE + 1];
+
+    /** The number of bytes in the current data sub-block. */
+    private int m_blockLength;
+
+    /** The current number of bits per code. */
+    private int m_bits;
+
+    /** The clear code. */
+    private final int m_clearCode;
+
+    /** Indicates that the code table was just cleared. */
+    private boolean m_clearFlag;
+
+    /** The end of information code. */
+    private final int m_eofCode;
+
+    /** The next unused code. */
+    private int m_freeEntry;
+
+    /** The initial number of bits per code. */
+    private final int m_initBits;
+
+    /** The maximum number of chunks compressed in parallel. */
+    private final int m_maxChunks;
+
+    /** The maximum code for the current number of bits. */
+    private int m_maxCode;
+
+    /** The output stream, or <code>null</code> if the compressed data of a chunk is collected. */
+    private final OutputStream m_out;
+
+    /**
+     * Creates a new LZW encoder.<p>
+     *
+     * @param initCodeSize the initial code size, as written to the GIF image descriptor
+     * @param out the output stream for the data sub-blocks
+     */
+    GifLzwEncoder(int initCodeSize, OutputStream out) {
+
+        this(initCodeSize, out, 1);
+    }
+
+    /**
+     * Creates a new LZW encoder that may compress large images in parallel.<p>
+     *
+     * @param initCodeSize the initial code size, as written to the GIF image descriptor
+     * @param out the output stream for the data sub-blocks
+     * @param maxChunks the maximum number of chunks compressed in parallel, <code>1</code> for sequential compression
+     */
+    GifLzwEncoder(int initCodeSize, OutputStream out, int maxChunks) {
+
+        m_initBits = initCodeSize + 1;
+        m_clearCode = 1 << initCodeSize;
+        m_eofCode = m_clearCode + 1;
+        m_out = out;
+        m_maxChunks = Math.max(1, maxChunks);
+        m_bits = m_initBits;
+        m_maxCode = maxCode(m_bits);
+        m_freeEntry = m_clearCode + 2;
+    }
+
+    /**
+     * Compresses the given pixels and writes them as data sub-blocks, without the terminating empty block.<p>
+     *
+     * @param pixels the palette indices of the pixels
+     * @param offset the index of the first pixel
+     * @param scanlineStride the distance between the first pixels of two rows
+     * @param width the number of pixels per row
+     * @param height the number of rows
+     *
+     * @throws IOException in case writing fails
+     */
+    void compress(
+        final byte[] pixels,
+        final int offset,
+        final int scanlineStride,
+        final int width,
+        final int height) throws IOException {
+
+        m_accum = 0;
+        m_accumBits = 0;
+        m_blockLength = 0;
+        m_bits = m_initBits;
+        m_maxCode = maxCode(m_bits);
+        m_freeEntry = m_clearCode + 2;
+        m_clearFlag = false;
+
+        final int chunks = (int)Math.min(
+            Math.min(m_maxChunks, height),
+            ((long)width * height) / MIN_CHUNK_PIXELS);
+        if (chunks <= 1) {
+            output(m_clearCode, 0);
+            compressRows(pixels, offset, scanlineStride, width, 0, height);
+            output(m_eofCode, 0);
+        } else {
+            final GifLzwEncoder[] parts = new GifLzwEncoder[chunks];
+            SimapiExecutors.forEachStripe(chunks, 1, new SimapiExecutors.StripeTask() {
+
+                public void process(int start, int end) {
+
+                    for (int i = start; i < end; i++) {
+                        int startRow = (i * height) / chunks;
+                        int endRow = ((i + 1) * height) / chunks;
+                        GifLzwEncoder part = new GifLzwEncoder(m_initBits - 1, null);
+                        part.m_block = new byte[(width * (endRow - startRow)) / 2];
+                        try {
+                            if (i == 0) {
+                                part.output(m_clearCode, 0);
+                            }
+                            part.compressRows(pixels, offset, scanlineStride, width, startRow, endRow);
+                            // the next chunk starts with an empty code table
+                            part.output((i == (chunks - 1)) ? m_eofCode : m_clearCode, 0);
+                        } catch (IOException e) {
+                            // can not happen, the chunk is compressed into memory
+                            throw new IllegalStateException(e);
+                        }
+                        parts[i] = part;
+                    }
+                }
+            });
+            // concatenate the codes of the chunks bit by bit
+            for (GifLzwEncoder part : parts) {
+                for (int i = 0; i < part.m_blockLength; i++) {
+                    output(part.m_block[i] & 0xff, 8);
+                }
+                if (part.m_accumBits > 0) {
+                    output(part.m_accum, part.m_accumBits);
+                }
+            }
+        }
+
+        // write the remaining bits and the last, incomplete sub-block
+        while (m_accumBits > 0) {
+            writeByte(m_accum & 0xff);
+            m_accum >>= 8;
+            m_accumBits -= 8;
+        }
+        flushBlock();
+    }
+
+    /**
+     * Returns the maximum code for the given number of bits.<p>
+     *
+     * @param bits the number of bits
+     *
+     * @return the maximum code
+     */
+    private static int maxCode(int bits) {
+
+        return (1 << bits) - 1;
+    }
+
+    /**
+     * Compresses the given rows of pixels, starting with an empty code table.<p>
+     *
+     * The clear code that precedes an empty code table in the data stream is not written.<p>
+     *
+     * @param pixels the palette indices of the pixels
+     * @param offset the index of the first pixel
+     * @param scanlineStride the distance between the first pixels of two rows
+     * @param width the number of pixels per row
+     * @param startRow the first row to compress
+     * @param endRow the row after the last row to compress
+     *
+     * @throws IOException in case writing fails
+     */
+    private void compressRows(byte[] pixels, int offset, int scanlineStride, int width, int startRow, int endRow)
+    throws IOException {
+
+        Tables tables = TABLES.get();
+        int[] hashes = tables.m_hashes;
+        int[] codes = tables.m_codes;
+        Arrays.fill(hashes, -1);
+
+        m_bits = m_initBits;
+        m_maxCode = maxCode(m_bits);
+        m_freeEntry = m_clearCode + 2;
+        m_clearFlag = false;
+
+        int ent = -1;
+        for (int y = startRow; y < endRow; y++) {
+            int p = offset + (y * scanlineStride);
+            int end = p + width;
+            if (ent < 0) {
+                ent = pixels[p++] & 0xff;
+            }
+            pixels: for (; p < end; p++) {
+                int c = pixels[p] & 0xff;
+                int fcode = (c << BITS) + ent;
+                int i = (c << HSHIFT) ^ ent; // xor hashing
+
+                if (hashes[i] == fcode) {
+                    ent = codes[i];
+                    continue;
+                } else if (hashes[i] >= 0) {
+                    // non-empty slot, secondary hash (after G. Knott)
+                    int disp = (i == 0) ? 1 : HSIZE - i;
+                    do {
+                        if ((i -= disp) < 0) {
+                            i += HSIZE;
+                        }
+                        if (hashes[i] == fcode) {
+                            ent = codes[i];
+                            continue pixels;
+                        }
+                    } while (hashes[i] >= 0);
+                }
+                output(ent, 0);
+                ent = c;
+                if (m_freeEntry < MAX_MAX_CODE) {
+                    codes[i] = m_freeEntry++;
+                    hashes[i] = fcode;
+                } else {
+                    // table is full, start over
+                    Arrays.fill(hashes, -1);
+                    m_freeEntry = m_clearCode + 2;
+                    m_clearFlag = true;
+                    output(m_clearCode, 0);
+                }
+            }
+        }
+
+        if (ent >= 0) {
+            output(ent, 0);
+        }
+    }
+
+    /**
+     * Writes the current data sub-block.<p>
+     *
+     * @throws IOException in case writing fails
+     */
+    private void flushBlock() throws IOException {
+
+        if ((m_blockLength > 0) && (m_out != null)) {
+            m_block[0] = (byte)m_blockLength;
+            m_out.write(m_block, 0, m_blockLength + 1);
+            m_blockLength = 0;
+        }
+    }
+
+    /**
+     * Writes a code with the current number of bits, and increases the number of bits if required.<p>
+     *
+     * If a number of bits is given, the bits are written without changing the code size.<p>
+     *
+     * @param code the code to write
+     * @param bits the number of bits to write, or <code>0</code> to write a code with the current code size
+     *
+     * @throws IOException in case writing fails
+     */
+    private void output(int code, int bits) throws IOException {
+
+        m_accum |= code << m_accumBits;
+        m_accumBits += (bits > 0) ? bits : m_bits;
+        while (m_accumBits >= 8) {
+            writeByte(m_accum & 0xff);
+            m_accum >>>= 8;
+            m_accumBits -= 8;
+        }
+
+        // if the next entry is going to be too big for the code size, then increase it, if possible
+        if ((bits == 0) && ((m_freeEntry > m_maxCode) || m_clearFlag)) {
+            if (m_clearFlag) {
+                m_bits = m_initBits;
+                m_maxCode = maxCode(m_bits);
+                m_clearFlag = false;
+            } else {
+                m_bits++;
+                m_maxCode = (m_bits == BITS) ? MAX_MAX_CODE : maxCode(m_bits);
+            }
+        }
+    }
+
+    /**
+     * Adds a byte to the current data sub-block, and writes the sub-block if it is complete.<p>
+     *
+     * @param b the byte to add
+     *
+     * @throws IOException in case writing fails
+     */
+    private void writeByte(int b) throws IOException {
+
+        if (m_out == null) {
+            // collect the complete data of a chunk
+            if (m_blockLength == m_block.length) {
+                m_block = Arrays.copyOf(m_block, (m_block.length * 2) + MAX_BLOCK_SIZE);
+            }
+            m_block[m_blockLength++] = (byte)b;
+            return;
+        }
+        m_block[++m_blockLength] = (byte)b;
+        if (m_blockLength == MAX_BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+}
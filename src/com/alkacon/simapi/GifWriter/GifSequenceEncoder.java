@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.imageio.IIOException;
+
+/**
+ * Writes a sequence of indexed images of the same size as an animated GIF.<p>
+ *
+ * Every frame is given as the complete image that is displayed. Only the rectangle that changed compared
+ * to the previous frame is written, and unchanged pixels inside this rectangle are written as transparent
+ * if the palette has a free entry for this, which compresses much better.
+ * Frames that use the same palette as the first frame are written without a local color table.<p>
+ *
+ * Since the disposal method of a frame depends on the next frame, every frame is written
+ * when the next frame is added, or when the sequence is finished.<p>
+ */
+final class GifSequenceEncoder {
+
+    /**
+     * A frame that has not been written yet.<p>
+     */
+    private static final class Frame {
+
+        /** The displayed colors of the pixels, with all transparent pixels as <code>0</code>. */
+        int[] m_argb;
+
+        /** The display time of the frame in hundredths of a second. */
+        int m_delayTime;
+
+        /** The palette indices of the pixels. */
+        byte[] m_indices;
+
+        /** The palette of the frame. */
+        IndexColorModel m_palette;
+    }
+
+    /** The colors currently displayed, before the pending frame. */
+    private int[] m_canvas;
+
+    /** The number of frames written. */
+    private int m_frameCount;
+
+    /** The number of bits of the global color table. */
+    private int m_globalBits;
+
+    /** The colors of the global palette. */
+    private int[] m_globalColors;
+
+    /** The height of all frames. */
+    private int m_height;
+
+    /** The output stream. */
+    private final OutputStream m_out;
+
+    /** The maximum number of chunks the image data of a frame is compressed in. */
+    private final int m_maxChunks;
+
+    /** The frame that is written when the next frame is added. */
+    private Frame m_pending;
+
+    /** The width of all frames. */
+    private int m_width;
+
+    /**
+     * Creates a new sequence encoder.<p>
+     *
+     * @param out the output stream, should be buffered
+     * @param maxChunks the maximum number of chunks the image data of a frame is compressed in parallel
+     */
+    GifSequenceEncoder(OutputStream out, int maxChunks) {
+
+        m_out = out;
+        m_maxChunks = maxChunks;
+    }
+
+    /**
+     * Returns the number of bits required for the color table of the given palette.<p>
+     *
+     * If the palette has no transparent color, an additional entry is reserved for unchanged pixels.<p>
+     *
+     * @param palette the palette
+     *
+     * @return the number of bits required for the color table
+     */
+    private static int getTableBits(IndexColorModel palette) {
+
+        int size = Math.min(256, palette.getMapSize() + ((palette.getTransparentPixel() < 0) ? 1 : 0));
+        int bits = 1;
+        while ((1 << bits) < size) {
+            bits++;
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the palette index that is used for transparent and unchanged pixels.<p>
+     *
+     * @param palette the palette
+     *
+     * @return the palette index used for transparent pixels, or <code>-1</code> if the palette has no free entry
+     */
+    private static int getTransparentIndex(IndexColorModel palette) {
+
+        if (palette.getTransparentPixel() >= 0) {
+            return palette.getTransparentPixel();
+        }
+        return (palette.getMapSize() < 256) ? palette.getMapSize() : -1;
+    }
+
+    /**
+     * Adds a frame to the sequence.<p>
+     *
+     * @param image the frame, must use an {@link IndexColorModel}
+     * @param delayTime the display time of the frame in hundredths of a second
+     * @param loopCount the number of times the animation is repeated, only used for the first frame
+     *
+     * @throws IOException in case writing fails
+     */
+    void addFrame(BufferedImage image, int delayTime, int loopCount) throws IOException {
+
+        if (!(image.getColorModel() instanceof IndexColorModel)) {
+            throw new IllegalArgumentException("GIF Encoder: Image must be 8-bit");
+        }
+        Frame frame = new Frame();
+        frame.m_palette = (IndexColorModel)image.getColorModel();
+        frame.m_delayTime = delayTime;
+        if (m_canvas == null) {
+            m_width = image.getWidth();
+            m_height = image.getHeight();
+            m_canvas = new int[m_width * m_height];
+            m_globalColors = getColors(frame.m_palette);
+            writeHeader(frame.m_palette, loopCount);
+        } else if ((image.getWidth() != m_width) || (image.getHeight() != m_height)) {
+            throw new IIOException("All frames of a GIF sequence must have the same size");
+        }
+        readPixels(image, frame);
+
+        if (m_pending != null) {
+            writeFrame(m_pending, frame);
+        }
+        m_pending = frame;
+    }
+
+    /**
+     * Writes the last frame and the GIF trailer.<p>
+     *
+     * @throws IOException in case writing fails
+     */
+    void finish() throws IOException {
+
+        if (m_pending != null) {
+            writeFrame(m_pending, null);
+            m_pending = null;
+        }
+        if (m_canvas != null) {
+            m_out.write(';');
+        }
+        m_out.flush();
+    }
+
+    /**
+     * Returns the colors of the given palette.<p>
+     *
+     * @param palette the palette
+     *
+     * @return the colors of the given palette
+     */
+    private static int[] getColors(IndexColorModel palette) {
+
+        int[] colors = new int[palette.getMapSize()];
+        palette.getRGBs(colors);
+        return colors;
+    }
+
+    /**
+     * Reads the palette indices and displayed colors of the given image.<p>
+     *
+     * @param image the image
+     * @param frame the frame to store the pixels in
+     */
+    private void readPixels(BufferedImage image, Frame frame) {
+
+        int[] colors = getColors(frame.m_palette);
+        for (int i = 0; i < colors.length; i++) {
+            // GIF only supports fully transparent pixels
+            colors[i] = ((colors[i] >>> 24) < 0x80) ? 0 : (colors[i] | 0xff000000);
+        }
+        WritableRaster raster = image.getRaster();
+        frame.m_indices = new byte[m_width * m_height];
+        frame.m_argb = new int[m_width * m_height];
+        int[] row = new int[m_width];
+        for (int y = 0; y < m_height; y++) {
+            raster.getPixels(raster.getMinX(), raster.getMinY() + y, m_width, 1, row);
+            int p = y * m_width;
+            for (int x = 0; x < m_width; x++) {
+                int index = row[x];
+                frame.m_indices[p + x] = (byte)index;
+                frame.m_argb[p + x] = (index < colors.length) ? colors[index] : 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the color table of the given palette.<p>
+     *
+     * @param palette the palette
+     * @param bits the number of bits of the color table
+     *
+     * @throws IOException in case writing fails
+     */
+    private void writeColorTable(IndexColorModel palette, int bits) throws IOException {
+
+        int size = 1 << bits;
+        byte[] table = new byte[3 * size];
+        for (int i = 0; i < palette.getMapSize(); i++) {
+            int rgb = palette.getRGB(i);
+            table[3 * i] = (byte)(rgb >> 16);
+            table[(3 * i) + 1] = (byte)(rgb >> 8);
+            table[(3 * i) + 2] = (byte)rgb;
+        }
+        m_out.write(table);
+    }
+
+    /**
+     * Writes the given frame.<p>
+     *
+     * @param frame the frame to write
+     * @param next the frame after the frame to write, or <code>null</code> if it is the last frame
+     *
+     * @throws IOException in case writing fails
+     */
+    private void writeFrame(Frame frame, Frame next) throws IOException {
+
+        int[] argb = frame.m_argb;
+        int minX = m_width, minY = m_height, maxX = -1, maxY = -1;
+        for (int y = 0; y < m_height; y++) {
+            int p = y * m_width;
+            for (int x = 0; x < m_width; x++, p++) {
+                // pixels that change now, or that must be cleared before the next frame
+                if ((argb[p] != m_canvas[p]) || ((next != null) && (next.m_argb[p] == 0) && (argb[p] != 0))) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        int disposal = GifFrameMetadata.DISPOSAL_DO_NOT_DISPOSE;
+        if (next != null) {
+            for (int p = 0; p < argb.length; p++) {
+                if ((next.m_argb[p] == 0) && (argb[p] != 0)) {
+                    disposal = GifFrameMetadata.DISPOSAL_RESTORE_TO_BACKGROUND;
+                    break;
+                }
+            }
+        }
+        if (m_frameCount == 0) {
+            // always write the first frame completely
+            minX = 0;
+            minY = 0;
+            maxX = m_width - 1;
+            maxY = m_height - 1;
+        } else if (maxX < 0) {
+            // nothing changed, but a frame must contain at least one pixel
+            minX = 0;
+            minY = 0;
+            maxX = 0;
+            maxY = 0;
+        }
+        int width = (maxX - minX) + 1;
+        int height = (maxY - minY) + 1;
+
+        // unchanged pixels are written as transparent, if possible
+        int transparent = getTransparentIndex(frame.m_palette);
+        byte[] indices = frame.m_indices;
+        if (transparent >= 0) {
+            for (int y = minY; y <= maxY; y++) {
+                int p = (y * m_width) + minX;
+                for (int x = 0; x < width; x++, p++) {
+                    if ((argb[p] == m_canvas[p]) || (argb[p] == 0)) {
+                        indices[p] = (byte)transparent;
+                    }
+                }
+            }
+        }
+
+        // graphic control extension
+        m_out.write(0x21);
+        m_out.write(0xf9);
+        m_out.write(4);
+        m_out.write((disposal << 2) | ((transparent >= 0) ? 1 : 0));
+        writeShort(frame.m_delayTime);
+        m_out.write(Math.max(transparent, 0));
+        m_out.write(0);
+
+        // image descriptor, with a local color table if the palette differs from the global palette
+        boolean local = !Arrays.equals(m_globalColors, getColors(frame.m_palette));
+        int bits = local ? getTableBits(frame.m_palette) : m_globalBits;
+        m_out.write(',');
+        writeShort(minX);
+        writeShort(minY);
+        writeShort(width);
+        writeShort(height);
+        m_out.write(local ? (0x80 | (bits - 1)) : 0);
+        if (local) {
+            writeColorTable(frame.m_palette, bits);
+        }
+
+        // image data
+        int codeSize = Math.max(2, bits);
+        m_out.write(codeSize);
+        new GifLzwEncoder(codeSize, m_out, m_maxChunks).compress(
+            indices,
+            (minY * m_width) + minX,
+            m_width,
+            width,
+            height);
+        m_out.write(0);
+
+        // update the displayed colors
+        for (int y = minY; y <= maxY; y++) {
+            int p = (y * m_width) + minX;
+            if (disposal == GifFrameMetadata.DISPOSAL_RESTORE_TO_BACKGROUND) {
+                Arrays.fill(m_canvas, p, p + width, 0);
+            } else {
+                System.arraycopy(argb, p, m_canvas, p, width);
+            }
+        }
+        m_frameCount++;
+    }
+
+    /**
+     * Writes the GIF header, the global color table and the loop extension.<p>
+     *
+     * @param palette the global palette
+     * @param loopCount the number of times the animation is repeated, or <code>-1</code> to play it only once
+     *
+     * @throws IOException in case writing fails
+     */
+    private void writeHeader(IndexColorModel palette, int loopCount) throws IOException {
+
+        m_globalBits = getTableBits(palette);
+        m_out.write("GIF89a".getBytes());
+        writeShort(m_width);
+        writeShort(m_height);
+        // global color table, 8 bits color resolution
+        m_out.write(0x80 | 0x70 | (m_globalBits - 1));
+        m_out.write(0); // background color
+        m_out.write(0); // pixel aspect ratio
+        writeColorTable(palette, m_globalBits);
+
+        if (loopCount >= 0) {
+            // Netscape application extension
+            m_out.write(0x21);
+            m_out.write(0xff);
+            m_out.write(11);
+            m_out.write("NETSCAPE2.0".getBytes());
+            m_out.write(3);
+            m_out.write(1);
+            writeShort(loopCount);
+            m_out.write(0);
+        }
+    }
+
+    /**
+     * Writes a 16 bit value in little endian byte order.<p>
+     *
+     * @param value the value to write
+     *
+     * @throws IOException in case writing fails
+     */
+    private void writeShort(int value) throws IOException {
+
+        m_out.write(value & 0xff);
+        m_out.write((value >> 8) & 0xff);
+    }
+}
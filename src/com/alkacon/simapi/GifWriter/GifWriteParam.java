@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+import java.util.Locale;
+
+import javax.imageio.ImageWriteParam;
+
+/**
+ * Parameters for writing GIF images with the {@link GifImageWriter}.<p>
+ *
+ * The parameters control how true color images are reduced to a palette: the maximum number of colors,
+ * the dithering, and the alpha value below which pixels are transparent. Images that already
+ * have an indexed color model are written unchanged.<p>
+ *
+ * For graphics like logos or icons, a small palette without dithering gives much smaller files,
+ * since GIF compresses long runs of equal pixels best. Interlacing is supported with the standard
+ * progressive mode of {@link ImageWriteParam}, or with {@link #setInterlaced(boolean)}.<p>
+ */
+public class GifWriteParam extends ImageWriteParam {
+
+    /** Dithering mode: map every pixel to the closest palette color. */
+    public static final int DITHER_NONE = 0;
+
+    /** Dithering mode: ordered dithering with a 4x4 Bayer matrix. */
+    public static final int DITHER_ORDERED = 1;
+
+    /** Dithering mode: Floyd-Steinberg error diffusion. */
+    public static final int DITHER_DIFFUSION = 2;
+
+    /** The alpha value below which pixels are transparent. */
+    private int m_alphaThreshold;
+
+    /** The dithering mode. */
+    private int m_ditherMode;
+
+    /** The maximum number of colors of the palette. */
+    private int m_maxColors;
+
+    /** Indicates if large images are compressed in parallel. */
+    private boolean m_parallelCompression;
+
+    /**
+     * Creates new GIF write parameters with the default values.<p>
+     *
+     * The defaults are a palette with 256 colors, no dithering, a transparency threshold of
+     * {@link PaletteMapper#DEFAULT_ALPHA_THRESHOLD} and no interlacing.<p>
+     *
+     * @param locale the locale used for messages, may be <code>null</code>
+     */
+    public GifWriteParam(Locale locale) {
+
+        super(locale);
+        canWriteProgressive = true;
+        progressiveMode = MODE_DISABLED;
+        m_maxColors = 256;
+        m_ditherMode = DITHER_NONE;
+        m_alphaThreshold = PaletteMapper.DEFAULT_ALPHA_THRESHOLD;
+        m_parallelCompression = GifImageWriter.PARALLEL_COMPRESSION;
+    }
+
+    /**
+     * Returns the alpha value below which pixels are transparent.<p>
+     *
+     * @return the alpha value below which pixels are transparent
+     */
+    public int getAlphaThreshold() {
+
+        return m_alphaThreshold;
+    }
+
+    /**
+     * Returns the dithering mode.<p>
+     *
+     * @return the dithering mode, one of {@link #DITHER_NONE}, {@link #DITHER_ORDERED} or {@link #DITHER_DIFFUSION}
+     */
+    public int getDitherMode() {
+
+        return m_ditherMode;
+    }
+
+    /**
+     * Returns the maximum number of colors of the palette, including the transparent color.<p>
+     *
+     * @return the maximum number of colors of the palette
+     */
+    public int getMaxColors() {
+
+        return m_maxColors;
+    }
+
+    /**
+     * Returns <code>true</code> if the image is written interlaced.<p>
+     *
+     * @return <code>true</code> if the image is written interlaced
+     */
+    public boolean isInterlaced() {
+
+        return progressiveMode == MODE_DEFAULT;
+    }
+
+    /**
+     * Returns <code>true</code> if large images are compressed in parallel.<p>
+     *
+     * @return <code>true</code> if large images are compressed in parallel
+     */
+    public boolean isParallelCompression() {
+
+        return m_parallelCompression;
+    }
+
+    /**
+     * Sets the alpha value below which pixels are transparent.<p>
+     *
+     * @param alphaThreshold the alpha value below which pixels are transparent,
+     *      <code>0</code> to write all pixels opaque
+     */
+    public void setAlphaThreshold(int alphaThreshold) {
+
+        if ((alphaThreshold < 0) || (alphaThreshold > 255)) {
+            throw new IllegalArgumentException("Invalid alpha threshold " + alphaThreshold);
+        }
+        m_alphaThreshold = alphaThreshold;
+    }
+
+    /**
+     * Sets the dithering mode.<p>
+     *
+     * @param ditherMode the dithering mode, one of {@link #DITHER_NONE}, {@link #DITHER_ORDERED}
+     *      or {@link #DITHER_DIFFUSION}
+     */
+    public void setDitherMode(int ditherMode) {
+
+        if ((ditherMode < DITHER_NONE) || (ditherMode > DITHER_DIFFUSION)) {
+            throw new IllegalArgumentException("Invalid dither mode " + ditherMode);
+        }
+        m_ditherMode = ditherMode;
+    }
+
+    /**
+     * Sets if the image is written interlaced.<p>
+     *
+     * Interlaced images can be displayed in a low resolution while they are loaded,
+     * but are usually slightly larger. Frames of animations are never interlaced.<p>
+     *
+     * @param interlaced if <code>true</code>, the image is written interlaced
+     */
+    public void setInterlaced(boolean interlaced) {
+
+        setProgressiveMode(interlaced ? MODE_DEFAULT : MODE_DISABLED);
+    }
+
+    /**
+     * Sets the maximum number of colors of the palette, including the transparent color.<p>
+     *
+     * @param maxColors the maximum number of colors of the palette, from <code>2</code> to <code>256</code>
+     */
+    public void setMaxColors(int maxColors) {
+
+        if ((maxColors < 2) || (maxColors > 256)) {
+            throw new IllegalArgumentException("Invalid number of colors " + maxColors);
+        }
+        m_maxColors = maxColors;
+    }
+
+    /**
+     * Sets if large images are compressed in parallel.<p>
+     *
+     * Parallel compression is much faster on multi core systems, but produces slightly larger files.<p>
+     *
+     * @param parallelCompression if <code>true</code>, large images are compressed in parallel
+     */
+    public void setParallelCompression(boolean parallelCompression) {
+
+        m_parallelCompression = parallelCompression;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+import java.util.Arrays;
+
+/**
+ * Calculates palettes with the median cut color quantization.<p>
+ *
+ * The pixels are counted in a histogram with 5 bits per color channel. The box containing all colors
+ * of the histogram is then split at the median of the channel with the largest error, and this is repeated
+ * for the box with the largest squared error, until the palette is full.
+ * Every box contributes the average color of its pixels to the palette.<p>
+ *
+ * Apart from counting the pixels, this does not depend on the size of the image, and it keeps colors used by
+ * large areas of the image.<p>
+ */
+public final class MedianCutQuantizer extends AbstractPaletteQuantizer {
+
+    /** Number of bits of each color channel used for the histogram. */
+    private static final int HIST_BITS = 5;
+
+    /** Mask for a color channel in the histogram index. */
+    private static final int HIST_MASK = (1 << HIST_BITS) - 1;
+
+    /** The number of bits of the histogram index. */
+    private static final int INDEX_BITS = 3 * HIST_BITS;
+
+    /**
+     * @see com.alkacon.simapi.GifWriter.AbstractPaletteQuantizer#createColors(int[], int)
+     */
+    @Override
+    protected int[] createColors(int[] pixels, int maxColors) {
+
+        int[] counts = new int[1 << INDEX_BITS];
+        long[] red = new long[counts.length];
+        long[] green = new long[counts.length];
+        long[] blue = new long[counts.length];
+        for (int argb : pixels) {
+            if ((argb >>> 24) >= PaletteMapper.DEFAULT_ALPHA_THRESHOLD) {
+                int r = (argb >> 16) & 0xff;
+                int g = (argb >> 8) & 0xff;
+                int b = argb & 0xff;
+                int index = ((r >> (8 - HIST_BITS)) << (2 * HIST_BITS))
+                    | ((g >> (8 - HIST_BITS)) << HIST_BITS)
+                    | (b >> (8 - HIST_BITS));
+                counts[index]++;
+                red[index] += r;
+                green[index] += g;
+                blue[index] += b;
+            }
+        }
+
+        // the used histogram cells, every box is a range of this array
+        int used = 0;
+        int[] cells = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                cells[used++] = i;
+            }
+        }
+        int[] starts = new int[maxColors + 1];
+        long[] priorities = new long[maxColors];
+        int[] channels = new int[maxColors];
+        int boxes = 1;
+        starts[1] = used;
+        priorities[0] = getPriority(cells, counts, 0, used, channels, 0);
+        while (boxes < maxColors) {
+            // split the box with the largest squared error
+            int best = 0;
+            for (int box = 1; box < boxes; box++) {
+                if (priorities[box] > priorities[best]) {
+                    best = box;
+                }
+            }
+            if (priorities[best] == 0) {
+                // all boxes contain a single cell
+                break;
+            }
+            int split = split(cells, counts, starts[best], starts[best + 1], channels[best]);
+            System.arraycopy(starts, best + 1, starts, best + 2, boxes - best);
+            System.arraycopy(priorities, best + 1, priorities, best + 2, boxes - best - 1);
+            System.arraycopy(channels, best + 1, channels, best + 2, boxes - best - 1);
+            starts[best + 1] = split;
+            boxes++;
+            priorities[best] = getPriority(cells, counts, starts[best], starts[best + 1], channels, best);
+            priorities[best + 1] = getPriority(cells, counts, starts[best + 1], starts[best + 2], channels, best + 1);
+        }
+
+        int[] result = new int[boxes];
+        for (int box = 0; box < boxes; box++) {
+            long count = 0;
+            long r = 0;
+            long g = 0;
+            long b = 0;
+            for (int k = starts[box]; k < starts[box + 1]; k++) {
+                int cell = cells[k];
+                count += counts[cell];
+                r += red[cell];
+                g += green[cell];
+                b += blue[cell];
+            }
+            if (count > 0) {
+                result[box] = (int)(((r + (count / 2)) / count) << 16)
+                    | (int)(((g + (count / 2)) / count) << 8)
+                    | (int)((b + (count / 2)) / count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the priority for splitting the given box, which is the weighted squared error of its pixels.<p>
+     *
+     * @param cells the histogram cells
+     * @param counts the pixel counts of the histogram
+     * @param start the first cell of the box
+     * @param end the cell after the last cell of the box
+     * @param channels used to return the channel with the largest error, <code>0</code> for blue,
+     *      <code>1</code> for green and <code>2</code> for red
+     * @param box the index of the box in <code>channels</code>
+     *
+     * @return the priority for splitting the box, <code>0</code> if the box can not be split
+     */
+    private static long getPriority(int[] cells, int[] counts, int start, int end, int[] channels, int box) {
+
+        if ((end - start) < 2) {
+            return 0;
+        }
+        long count = 0;
+        long[] sum = new long[3];
+        long[] squares = new long[3];
+        for (int k = start; k < end; k++) {
+            int cell = cells[k];
+            long n = counts[cell];
+            count += n;
+            for (int c = 0; c < 3; c++) {
+                long value = (cell >> (c * HIST_BITS)) & HIST_MASK;
+                sum[c] += n * value;
+                squares[c] += n * value * value;
+            }
+        }
+        // green differences are more visible, blue differences are less visible
+        int[] weights = {1, 3, 2};
+        double result = 0;
+        double largest = -1;
+        for (int c = 0; c < 3; c++) {
+            double error = weights[c] * (squares[c] - (((double)sum[c] * sum[c]) / count));
+            result += error;
+            if (error > largest) {
+                largest = error;
+                channels[box] = c;
+            }
+        }
+        return (long)result + 1;
+    }
+
+    /**
+     * Sorts the cells of the given box along the given channel and returns the position of the median.<p>
+     *
+     * @param cells the histogram cells
+     * @param counts the pixel counts of the histogram
+     * @param start the first cell of the box
+     * @param end the cell after the last cell of the box
+     * @param channel the channel to split, <code>0</code> for blue, <code>1</code> for green and <code>2</code> for red
+     *
+     * @return the first cell of the second box, always between <code>start + 1</code> and <code>end - 1</code>
+     */
+    private static int split(int[] cells, int[] counts, int start, int end, int channel) {
+
+        // sort by the channel value first, and by the cell index for equal values
+        int shift = channel * HIST_BITS;
+        long total = 0;
+        for (int k = start; k < end; k++) {
+            int cell = cells[k];
+            cells[k] = (((cell >> shift) & HIST_MASK) << INDEX_BITS) | cell;
+            total += counts[cell];
+        }
+        Arrays.sort(cells, start, end);
+        int mask = (1 << INDEX_BITS) - 1;
+        for (int k = start; k < end; k++) {
+            cells[k] &= mask;
+        }
+        long half = total / 2;
+        long sum = 0;
+        int result = start + 1;
+        for (int k = start; k < (end - 1); k++) {
+            sum += counts[cells[k]];
+            result = k + 1;
+            if (sum >= half) {
+                break;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+/**
+ * Calculates palettes with the NeuQuant neural network color quantization.<p>
+ *
+ * A one dimensional self organizing map of colors is trained with a sample of the pixels of the image.
+ * The sample factor controls the trade off between speed and quality: with a factor of <code>1</code> all pixels
+ * are used, with a factor of <code>10</code> every tenth pixel is used, which is several times faster than the
+ * octree quantization for photographs with comparable quality. For graphics with few colors,
+ * the {@link OctreeQuantizer} gives better results.<p>
+ *
+ * NeuQuant Neural-Net Quantization Algorithm, Copyright (c) 1994 Anthony Dekker.<p>
+ *
+ * See "Kohonen neural networks for optimal colour quantization"
+ * in "Network: Computation in Neural Systems" Vol. 5 (1994) pp 351-367
+ * for a discussion of the algorithm.<p>
+ *
+ * Any party obtaining a copy of these files from the author, directly or
+ * indirectly, is granted, free of charge, a full and unrestricted irrevocable,
+ * world-wide, paid up, royalty-free, nonexclusive right and license to deal
+ * in this software and documentation files (the "Software"), including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons who receive
+ * copies from any such party to do so, with the only requirement being
+ * that this copyright notice remain intact.<p>
+ *
+ * Ported to Java 12/00 K Weiner.<p>
+ */
+public final class NeuQuantizer extends AbstractPaletteQuantizer {
+
+    /**
+     * The network of one call, with the colors biased by {@link NeuQuantizer#NET_BIAS_SHIFT} bits.<p>
+     */
+    private static final class Network {
+
+        /** The bias of the neurons, for frequently chosen neurons this is negative. */
+        private final int[] m_bias;
+
+        /** The blue components of the neurons. */
+        private final int[] m_blue;
+
+        /** The frequency of the neurons. */
+        private final int[] m_freq;
+
+        /** The green components of the neurons. */
+        private final int[] m_green;
+
+        /** The precomputed alpha * (1 - ((i - j)^2 / r^2)) for the neighbors of a neuron. */
+        private final int[] m_radPower;
+
+        /** The red components of the neurons. */
+        private final int[] m_red;
+
+        /** The number of neurons. */
+        private final int m_size;
+
+        /**
+         * Creates a new network with the colors evenly distributed on the gray axis.<p>
+         *
+         * @param size the number of neurons
+         */
+        Network(int size) {
+
+            m_size = size;
+            m_red = new int[size];
+            m_green = new int[size];
+            m_blue = new int[size];
+            m_bias = new int[size];
+            m_freq = new int[size];
+            m_radPower = new int[size >> 3];
+            for (int i = 0; i < size; i++) {
+                int gray = (i << (NET_BIAS_SHIFT + 8)) / size;
+                m_red[i] = gray;
+                m_green[i] = gray;
+                m_blue[i] = gray;
+                m_freq[i] = INT_BIAS / size;
+            }
+        }
+
+        /**
+         * Trains the network with a sample of the given pixels.<p>
+         *
+         * @param pixels the ARGB pixels
+         * @param sampleFactor the sample factor
+         */
+        void learn(int[] pixels, int sampleFactor) {
+
+            int length = pixels.length;
+            if (length < MIN_PICTURE_PIXELS) {
+                sampleFactor = 1;
+            }
+            int alphaDec = 30 + ((sampleFactor - 1) / 3);
+            int samplePixels = length / sampleFactor;
+            int delta = Math.max(1, samplePixels / CYCLES);
+            int alpha = INIT_ALPHA;
+            int radius = (m_size >> 3) * RADIUS_BIAS;
+            int rad = updateRadPower(alpha, radius);
+
+            // visit the pixels in a pseudo random order, using a step that is prime to the length
+            int step;
+            if (length < MIN_PICTURE_PIXELS) {
+                step = 1;
+            } else if ((length % PRIME1) != 0) {
+                step = PRIME1;
+            } else if ((length % PRIME2) != 0) {
+                step = PRIME2;
+            } else if ((length % PRIME3) != 0) {
+                step = PRIME3;
+            } else {
+                step = PRIME4;
+            }
+
+            int pix = 0;
+            for (int i = 1; i <= samplePixels; i++) {
+                int argb = pixels[pix];
+                if ((argb >>> 24) >= PaletteMapper.DEFAULT_ALPHA_THRESHOLD) {
+                    int r = ((argb >> 16) & 0xff) << NET_BIAS_SHIFT;
+                    int g = ((argb >> 8) & 0xff) << NET_BIAS_SHIFT;
+                    int b = (argb & 0xff) << NET_BIAS_SHIFT;
+                    int j = contest(r, g, b);
+                    alterSingle(alpha, j, r, g, b);
+                    if (rad != 0) {
+                        alterNeighbors(rad, j, r, g, b);
+                    }
+                }
+                pix += step;
+                if (pix >= length) {
+                    pix -= length;
+                }
+                if ((i % delta) == 0) {
+                    alpha -= alpha / alphaDec;
+                    radius -= radius / RADIUS_DEC;
+                    rad = updateRadPower(alpha, radius);
+                }
+            }
+        }
+
+        /**
+         * Returns the colors of the trained network.<p>
+         *
+         * @return the colors of the trained network as RGB values
+         */
+        int[] getColors() {
+
+            int[] result = new int[m_size];
+            for (int i = 0; i < m_size; i++) {
+                result[i] = (unbias(m_red[i]) << 16) | (unbias(m_green[i]) << 8) | unbias(m_blue[i]);
+            }
+            return result;
+        }
+
+        /**
+         * Moves the neighbors of neuron <code>i</code> towards the given color.<p>
+         *
+         * @param rad the radius of the neighborhood
+         * @param i the neuron
+         * @param r the biased red component
+         * @param g the biased green component
+         * @param b the biased blue component
+         */
+        private void alterNeighbors(int rad, int i, int r, int g, int b) {
+
+            int lo = Math.max(i - rad, -1);
+            int hi = Math.min(i + rad, m_size);
+            int j = i + 1;
+            int k = i - 1;
+            int m = 1;
+            while ((j < hi) || (k > lo)) {
+                int a = m_radPower[m++];
+                if (j < hi) {
+                    m_red[j] -= (a * (m_red[j] - r)) / ALPHA_RAD_BIAS;
+                    m_green[j] -= (a * (m_green[j] - g)) / ALPHA_RAD_BIAS;
+                    m_blue[j] -= (a * (m_blue[j] - b)) / ALPHA_RAD_BIAS;
+                    j++;
+                }
+                if (k > lo) {
+                    m_red[k] -= (a * (m_red[k] - r)) / ALPHA_RAD_BIAS;
+                    m_green[k] -= (a * (m_green[k] - g)) / ALPHA_RAD_BIAS;
+                    m_blue[k] -= (a * (m_blue[k] - b)) / ALPHA_RAD_BIAS;
+                    k--;
+                }
+            }
+        }
+
+        /**
+         * Moves neuron <code>i</code> towards the given color by the factor alpha.<p>
+         *
+         * @param alpha the factor
+         * @param i the neuron
+         * @param r the biased red component
+         * @param g the biased green component
+         * @param b the biased blue component
+         */
+        private void alterSingle(int alpha, int i, int r, int g, int b) {
+
+            m_red[i] -= (alpha * (m_red[i] - r)) / INIT_ALPHA;
+            m_green[i] -= (alpha * (m_green[i] - g)) / INIT_ALPHA;
+            m_blue[i] -= (alpha * (m_blue[i] - b)) / INIT_ALPHA;
+        }
+
+        /**
+         * Finds the best neuron for the given color, and updates the frequencies of the neurons.<p>
+         *
+         * The best neuron is the one with the minimal distance minus bias,
+         * so that rarely chosen neurons are also trained.<p>
+         *
+         * @param r the biased red component
+         * @param g the biased green component
+         * @param b the biased blue component
+         *
+         * @return the best neuron
+         */
+        private int contest(int r, int g, int b) {
+
+            int bestDist = Integer.MAX_VALUE;
+            int bestBiasDist = Integer.MAX_VALUE;
+            int bestPos = 0;
+            int bestBiasPos = 0;
+            for (int i = 0; i < m_size; i++) {
+                int dist = Math.abs(m_red[i] - r) + Math.abs(m_green[i] - g) + Math.abs(m_blue[i] - b);
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    bestPos = i;
+                }
+                int biasDist = dist - (m_bias[i] >> (INT_BIAS_SHIFT - NET_BIAS_SHIFT));
+                if (biasDist < bestBiasDist) {
+                    bestBiasDist = biasDist;
+                    bestBiasPos = i;
+                }
+                int betaFreq = m_freq[i] >> BETA_SHIFT;
+                m_freq[i] -= betaFreq;
+                m_bias[i] += betaFreq << GAMMA_SHIFT;
+            }
+            m_freq[bestPos] += BETA;
+            m_bias[bestPos] -= BETA_GAMMA;
+            return bestBiasPos;
+        }
+
+        /**
+         * Precomputes the factors for moving the neighbors of a neuron.<p>
+         *
+         * @param alpha the current alpha factor
+         * @param radius the current biased radius
+         *
+         * @return the radius of the neighborhood, <code>0</code> if neighbors are not moved
+         */
+        private int updateRadPower(int alpha, int radius) {
+
+            int rad = radius >> RADIUS_BIAS_SHIFT;
+            if (rad <= 1) {
+                return 0;
+            }
+            for (int i = 0; i < rad; i++) {
+                m_radPower[i] = alpha * ((((rad * rad) - (i * i)) * RAD_BIAS) / (rad * rad));
+            }
+            return rad;
+        }
+    }
+
+    /** The default sample factor. */
+    public static final int DEFAULT_SAMPLE_FACTOR = 10;
+
+    /** The maximum sample factor. */
+    public static final int MAX_SAMPLE_FACTOR = 30;
+
+    /** Bias of the fractions of alpha. */
+    private static final int ALPHA_BIAS_SHIFT = 10;
+
+    /** Bias of the radius power. */
+    private static final int RAD_BIAS_SHIFT = 8;
+
+    /** Bias of the factors for moving the neighbors. */
+    private static final int ALPHA_RAD_BIAS = 1 << (ALPHA_BIAS_SHIFT + RAD_BIAS_SHIFT);
+
+    /** Bias of the frequencies. */
+    private static final int INT_BIAS_SHIFT = 16;
+
+    /** The frequencies are biased by this value. */
+    private static final int INT_BIAS = 1 << INT_BIAS_SHIFT;
+
+    /** Shift for beta = 1 / 1024. */
+    private static final int BETA_SHIFT = 10;
+
+    /** The factor for updating the frequencies. */
+    private static final int BETA = INT_BIAS >> BETA_SHIFT;
+
+    /** Shift for gamma = 1024. */
+    private static final int GAMMA_SHIFT = 10;
+
+    /** The factor for updating the bias. */
+    private static final int BETA_GAMMA = INT_BIAS << (GAMMA_SHIFT - BETA_SHIFT);
+
+    /** The number of learning cycles. */
+    private static final int CYCLES = 100;
+
+    /** The initial alpha factor, 1.0 biased by 10 bits. */
+    private static final int INIT_ALPHA = 1 << ALPHA_BIAS_SHIFT;
+
+    /** Bias of the color values of the neurons. */
+    private static final int NET_BIAS_SHIFT = 4;
+
+    /** The first of four primes near 500, no image has a number of pixels that is divisible by all four. */
+    private static final int PRIME1 = 499;
+
+    /** The second of four primes near 500. */
+    private static final int PRIME2 = 491;
+
+    /** The third of four primes near 500. */
+    private static final int PRIME3 = 487;
+
+    /** The fourth of four primes near 500. */
+    private static final int PRIME4 = 503;
+
+    /** The minimum number of pixels for sampling. */
+    private static final int MIN_PICTURE_PIXELS = PRIME4;
+
+    /** The multiplier for the radius power. */
+    private static final int RAD_BIAS = 1 << RAD_BIAS_SHIFT;
+
+    /** Bias of the radius. */
+    private static final int RADIUS_BIAS_SHIFT = 6;
+
+    /** The radius is biased by this value. */
+    private static final int RADIUS_BIAS = 1 << RADIUS_BIAS_SHIFT;
+
+    /** The radius decreases by a factor of 1/30 each cycle. */
+    private static final int RADIUS_DEC = 30;
+
+    /** The sample factor. */
+    private final int m_sampleFactor;
+
+    /**
+     * Creates a new NeuQuant quantizer with the default sample factor.<p>
+     */
+    public NeuQuantizer() {
+
+        this(DEFAULT_SAMPLE_FACTOR);
+    }
+
+    /**
+     * Creates a new NeuQuant quantizer with the given sample factor.<p>
+     *
+     * @param sampleFactor the sample factor, from <code>1</code> (best quality) to {@link #MAX_SAMPLE_FACTOR} (fastest)
+     */
+    public NeuQuantizer(int sampleFactor) {
+
+        m_sampleFactor = Math.max(1, Math.min(MAX_SAMPLE_FACTOR, sampleFactor));
+    }
+
+    /**
+     * Returns the sample factor.<p>
+     *
+     * @return the sample factor
+     */
+    public int getSampleFactor() {
+
+        return m_sampleFactor;
+    }
+
+    /**
+     * @see com.alkacon.simapi.GifWriter.AbstractPaletteQuantizer#createColors(int[], int)
+     */
+    @Override
+    protected int[] createColors(int[] pixels, int maxColors) {
+
+        Network network = new Network(maxColors);
+        network.learn(pixels, m_sampleFactor);
+        return network.getColors();
+    }
+
+    /**
+     * Returns the unbiased color component for the given biased component of a neuron.<p>
+     *
+     * @param value the biased component
+     *
+     * @return the unbiased component
+     */
+    private static int unbias(int value) {
+
+        return Math.max(0, Math.min(255, (value + (1 << (NET_BIAS_SHIFT - 1))) >> NET_BIAS_SHIFT));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Calculates palettes with the octree color quantization of {@link Quantize}.<p>
+ *
+ * This is the quantizer used by default. It is exact for images with few colors,
+ * and gives good results for graphics and photographs.<p>
+ */
+public final class OctreeQuantizer implements PaletteQuantizer {
+
+    /** The maximum number of pixels used to build the palette. */
+    private final int m_maxSamples;
+
+    /**
+     * Creates a new octree quantizer that uses all pixels of the image.<p>
+     */
+    public OctreeQuantizer() {
+
+        this(0);
+    }
+
+    /**
+     * Creates a new octree quantizer that uses a sample of the pixels of large images.<p>
+     *
+     * @param maxSamples the maximum number of pixels used to build the palette,
+     *      or <code>0</code> to use all pixels, for example {@link Quantize#DEFAULT_MAX_SAMPLES}
+     */
+    public OctreeQuantizer(int maxSamples) {
+
+        m_maxSamples = maxSamples;
+    }
+
+    /**
+     * @see com.alkacon.simapi.GifWriter.PaletteQuantizer#createPalette(java.awt.image.BufferedImage, int)
+     */
+    public IndexColorModel createPalette(BufferedImage image, int maxColors) {
+
+        return Quantize.createPalette(image, maxColors, true, m_maxSamples);
+    }
+}
@@ -0,0 +1,738 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.GifWriter;
+
+import com.alkacon.simapi.SimapiExecutors;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps true color pixels to the closest colors of a fixed palette.<p>
+ *
+ * An inverse color map with 5 bits per channel is built for the palette. For every cell of this map,
+ * it contains the few palette colors that can be the closest color of a pixel in the cell,
+ * so every pixel is mapped exactly by checking only these instead of searching the complete palette.
+ * Together with a small cache of recently mapped colors, this is much faster than a tree search.
+ * Pixels are mapped in parallel stripes with the CPU executor of Simapi,
+ * or serially with Floyd-Steinberg error diffusion if dithering is requested.
+ * Error diffusion uses alternating scan directions, unless left to right scans are requested.<p>
+ *
+ * Pixels with an alpha value below the transparency threshold are mapped to the transparent
+ * color of the palette. All other pixels are mapped to the closest palette color
+ * with an alpha value of at least the threshold, so palettes with partially transparent colors are not supported.<p>
+ *
+ * Instances are thread safe, and should be reused for all images with the same palette,
+ * since the cells of the inverse color map are filled when they are used first.<p>
+ */
+public final class PaletteMapper {
+
+    /** The default alpha value below which pixels are transparent. */
+    public static final int DEFAULT_ALPHA_THRESHOLD = 0x80;
+
+    /** Minimum number of pixels mapped by one thread. */
+    static final int MIN_STRIPE_PIXELS = 1 << 16;
+
+    /** The 4x4 Bayer matrix used for ordered dithering. */
+    private static final int[] BAYER_MATRIX = {0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5};
+
+    /** The dither offsets used if no dithering is done. */
+    private static final int[] NO_DITHER = new int[BAYER_MATRIX.length];
+
+    /** Number of bits of the slots of the cache of recently mapped colors. */
+    private static final int CACHE_BITS = 12;
+
+    /** Number of bits of each color channel used for the lookup. */
+    private static final int QUANT_BITS = 5;
+
+    /** Number of cells of the inverse color map. */
+    private static final int CELLS = 1 << (3 * QUANT_BITS);
+
+    /** The number of bits of each color channel that are ignored for the lookup. */
+    private static final int CELL_SHIFT = 8 - QUANT_BITS;
+
+    /** The number of values of a color channel in a cell. */
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+    /** The alpha value below which pixels are mapped to the transparent color. */
+    private final int m_alphaThreshold;
+
+    /** The blue components of the palette. */
+    private final int[] m_blue;
+
+    /**
+     * The inverse color map, containing the palette indices that can be closest to a color in the cell.<p>
+     *
+     * Most cells are never used for typical images, so the cells are only filled when they are used first.
+     * Since the content of a cell does not depend on the thread that fills it, no locking is required.<p>
+     */
+    private final AtomicReferenceArray<int[]> m_cells;
+
+    /** The green components of the palette. */
+    private final int[] m_green;
+
+    /** The indices of the distinct opaque colors, ordered by the sum of their components. */
+    private final int[] m_opaque;
+
+    /** The sums of the components of the opaque colors, in the same order. */
+    private final int[] m_opaqueSums;
+
+    /** The palette. */
+    private final IndexColorModel m_palette;
+
+    /** The red components of the palette. */
+    private final int[] m_red;
+
+    /** For every possible sum of the components, the position of the first opaque color with at least this sum. */
+    private final int[] m_sumPositions;
+
+    /** The index of the transparent color, or <code>-1</code> if the palette has none. */
+    private final int m_transparentIndex;
+
+    /**
+     * Creates a new mapper for the given palette, using the {@link #DEFAULT_ALPHA_THRESHOLD}.<p>
+     *
+     * @param palette the palette
+     */
+    public PaletteMapper(IndexColorModel palette) {
+
+        this(palette, DEFAULT_ALPHA_THRESHOLD);
+    }
+
+    /**
+     * Creates a new mapper for the given palette.<p>
+     *
+     * @param palette the palette
+     * @param alphaThreshold the alpha value below which pixels are mapped to the transparent color,
+     *      and below which palette colors are not used for the other pixels,
+     *      <code>0</code> to map all pixels to the closest color that is not the transparent color
+     *
+     * @throws IllegalArgumentException if the palette has more than 256 colors
+     */
+    public PaletteMapper(IndexColorModel palette, int alphaThreshold) {
+
+        int size = palette.getMapSize();
+        if (size > 256) {
+            throw new IllegalArgumentException("Palette with " + size + " colors not supported");
+        }
+        m_palette = palette;
+        m_transparentIndex = palette.getTransparentPixel();
+        m_alphaThreshold = m_transparentIndex < 0 ? 0 : alphaThreshold;
+        m_red = new int[size];
+        m_green = new int[size];
+        m_blue = new int[size];
+        m_cells = new AtomicReferenceArray<int[]>(CELLS);
+        long[] sorted = new long[size];
+        Set<Integer> colors = new HashSet<Integer>();
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int rgb = palette.getRGB(i);
+            m_red[i] = (rgb >> 16) & 0xff;
+            m_green[i] = (rgb >> 8) & 0xff;
+            m_blue[i] = rgb & 0xff;
+            // only colors above the threshold are used for the lookup, and only the first of equal colors
+            if ((i != m_transparentIndex)
+                && ((rgb >>> 24) >= alphaThreshold)
+                && colors.add(Integer.valueOf(rgb & 0xffffff))) {
+                sorted[count++] = ((long)(m_red[i] + m_green[i] + m_blue[i]) << 8) | i;
+            }
+        }
+        if (count == 0) {
+            // all pixels that are not transparent will use the first color
+            sorted[count++] = 0;
+        }
+        Arrays.sort(sorted, 0, count);
+        m_opaque = new int[count];
+        m_opaqueSums = new int[count];
+        for (int k = 0; k < count; k++) {
+            m_opaque[k] = (int)(sorted[k] & 0xff);
+            m_opaqueSums[k] = (int)(sorted[k] >> 8);
+        }
+        m_sumPositions = new int[(3 * 255) + 1];
+        for (int sum = 0, k = 0; sum < m_sumPositions.length; sum++) {
+            while ((k < count) && (m_opaqueSums[k] < sum)) {
+                k++;
+            }
+            m_sumPositions[sum] = k;
+        }
+    }
+
+    /**
+     * Returns the palette index for the given color.<p>
+     *
+     * @param argb the color in the default ARGB color model
+     *
+     * @return the palette index for the given color
+     */
+    public int getIndex(int argb) {
+
+        if ((argb >>> 24) < m_alphaThreshold) {
+            return m_transparentIndex;
+        }
+        return getClosestIndex((argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff);
+    }
+
+    /**
+     * Returns the palette.<p>
+     *
+     * @return the palette
+     */
+    public IndexColorModel getPalette() {
+
+        return m_palette;
+    }
+
+    /**
+     * Returns the index of the transparent palette color.<p>
+     *
+     * @return the index of the transparent palette color, or <code>-1</code> if the palette has none
+     */
+    public int getTransparentIndex() {
+
+        return m_transparentIndex;
+    }
+
+    /**
+     * Creates an indexed image with the palette of this mapper from the given image.<p>
+     *
+     * @param image the image to map
+     * @param dither if <code>true</code>, Floyd-Steinberg error diffusion is used
+     *
+     * @return an image of type {@link BufferedImage#TYPE_BYTE_INDEXED} with the palette of this mapper
+     */
+    public BufferedImage map(BufferedImage image, boolean dither) {
+
+        BufferedImage result = new BufferedImage(
+            image.getWidth(),
+            image.getHeight(),
+            BufferedImage.TYPE_BYTE_INDEXED,
+            m_palette);
+        map(image, result, dither);
+        return result;
+    }
+
+    /**
+     * Maps the given image to the given indexed image.<p>
+     *
+     * The destination image must use the palette of this mapper, or a palette with the same colors,
+     * and must not be smaller than the source image.<p>
+     *
+     * @param image the image to map
+     * @param dest the indexed image to write the palette indices to
+     * @param dither if <code>true</code>, Floyd-Steinberg error diffusion is used
+     */
+    public void map(BufferedImage image, BufferedImage dest, boolean dither) {
+
+        map(image, dest, dither, true);
+    }
+
+    /**
+     * Maps the given image to the given indexed image, selecting the scan order of the error diffusion.<p>
+     *
+     * The destination image must use the palette of this mapper, or a palette with the same colors,
+     * and must not be smaller than the source image.<p>
+     *
+     * @param image the image to map
+     * @param dest the indexed image to write the palette indices to
+     * @param dither if <code>true</code>, Floyd-Steinberg error diffusion is used
+     * @param alternateScans if <code>true</code>, every other row is diffused from right to left,
+     *      otherwise all rows are diffused from left to right
+     */
+    public void map(BufferedImage image, BufferedImage dest, boolean dither, boolean alternateScans) {
+
+        map(image, dest, NO_DITHER, dither, alternateScans);
+    }
+
+    /**
+     * Creates an indexed image with the palette of this mapper from the given image, using ordered dithering.<p>
+     *
+     * A 4x4 Bayer matrix is added to the colors before they are mapped. The strength of the dithering
+     * depends on the number of colors of the palette. In contrast to error diffusion,
+     * the image is mapped in parallel stripes, and the pattern does not change if only a part of the image changes.<p>
+     *
+     * @param image the image to map
+     *
+     * @return an image of type {@link BufferedImage#TYPE_BYTE_INDEXED} with the palette of this mapper
+     */
+    public BufferedImage mapOrdered(BufferedImage image) {
+
+        BufferedImage result = new BufferedImage(
+            image.getWidth(),
+            image.getHeight(),
+            BufferedImage.TYPE_BYTE_INDEXED,
+            m_palette);
+        // the dithering amplitude is about half the distance of the colors of an evenly distributed palette
+        double amplitude = 128.0 / Math.cbrt(m_opaque.length);
+        int[] offsets = new int[BAYER_MATRIX.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (int)Math.round((((BAYER_MATRIX[i] + 0.5) / BAYER_MATRIX.length) - 0.5) * amplitude);
+        }
+        map(image, result, offsets, false, false);
+        return result;
+    }
+
+    /**
+     * Maps the given pixels to palette indices.<p>
+     *
+     * @param pixels the pixels in the default ARGB color model, row by row without gaps
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param dest the array to write the palette indices to, with the same layout as the pixels
+     * @param dither if <code>true</code>, Floyd-Steinberg error diffusion is used
+     */
+    public void map(final int[] pixels, final int width, int height, final byte[] dest, boolean dither) {
+
+        if (dither) {
+            int[] errors = new int[(width + 2) * 3];
+            int[] nextErrors = new int[(width + 2) * 3];
+            int[] cache = createCache();
+            for (int y = 0; y < height; y++) {
+                ditherRow(pixels, y * width, width, dest, y * width, errors, nextErrors, (y & 1) == 0, cache);
+                int[] swap = errors;
+                errors = nextErrors;
+                nextErrors = swap;
+            }
+        } else {
+            SimapiExecutors.forEachStripe(
+                height,
+                (MIN_STRIPE_PIXELS / Math.max(1, width)) + 1,
+                new SimapiExecutors.StripeTask() {
+
+                    public void process(int start, int end) {
+
+                        mapRow(pixels, start * width, (end - start) * width, dest, start * width, createCache());
+                    }
+                });
+        }
+    }
+
+    /**
+     * Adds the offsets of a row of the ordered dither matrix to the color components of the given pixels.<p>
+     *
+     * @param row the pixels
+     * @param width the number of pixels
+     * @param offsets the offsets of the dither matrix
+     * @param matrixRow the index of the first offset of the row of the dither matrix
+     */
+    private static void addOffsets(int[] row, int width, int[] offsets, int matrixRow) {
+
+        for (int x = 0; x < width; x++) {
+            int argb = row[x];
+            int offset = offsets[matrixRow + (x & 3)];
+            row[x] = (argb & 0xff000000)
+                | (clamp(((argb >> 16) & 0xff) + offset) << 16)
+                | (clamp(((argb >> 8) & 0xff) + offset) << 8)
+                | clamp((argb & 0xff) + offset);
+        }
+    }
+
+    /**
+     * Returns the distance of a color component to the nearest value in the given cell.<p>
+     *
+     * @param value the color component
+     * @param cell the component of the cell
+     *
+     * @return the distance to the nearest value in the cell
+     */
+    private static int cellDistance(int value, int cell) {
+
+        int low = cell << CELL_SHIFT;
+        if (value < low) {
+            return low - value;
+        }
+        int high = (low + CELL_SIZE) - 1;
+        return value > high ? value - high : 0;
+    }
+
+    /**
+     * Limits the given value to the range of a color channel.<p>
+     *
+     * @param value the value
+     *
+     * @return the value in the range from <code>0</code> to <code>255</code>
+     */
+    private static int clamp(int value) {
+
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Returns the distance of a color component to the farthest value in the given cell.<p>
+     *
+     * @param value the color component
+     * @param cell the component of the cell
+     *
+     * @return the distance to the farthest value in the cell
+     */
+    private static int maxCellDistance(int value, int cell) {
+
+        int low = cell << CELL_SHIFT;
+        return Math.max(value - low, ((low + CELL_SIZE) - 1) - value);
+    }
+
+    /**
+     * Writes a row of palette indices to a raster that does not store them as bytes.<p>
+     *
+     * @param raster the raster
+     * @param y the row
+     * @param indices the palette indices
+     * @param width the width of the row
+     */
+    private static void writeRow(WritableRaster raster, int y, byte[] indices, int width) {
+
+        int[] samples = new int[width];
+        for (int x = 0; x < width; x++) {
+            samples[x] = indices[x] & 0xff;
+        }
+        raster.setSamples(0, y, width, 1, 0, samples);
+    }
+
+    /**
+     * Creates a cache of recently mapped colors for a single thread.<p>
+     *
+     * Every slot of the cache contains a color in the lowest 24 bits, and its palette index in the highest 8 bits.
+     * Initially, all slots contain black.<p>
+     *
+     * @return the cache
+     */
+    private int[] createCache() {
+
+        int[] result = new int[1 << CACHE_BITS];
+        Arrays.fill(result, getClosestIndex(0, 0, 0) << 24);
+        return result;
+    }
+
+    /**
+     * Returns the palette indices that can be closest to a color in the given cell of the inverse color map.<p>
+     *
+     * Every point of the cell is at most as far away from the palette color with the smallest
+     * maximum distance to the cell as this maximum distance. So only the palette colors with a minimum
+     * distance to the cell that is not larger than this can be the closest color for a point of the cell.<p>
+     *
+     * Since the squared difference of the component sums of two colors is at most three times their
+     * squared distance, only the palette colors with a component sum close to the sums in the cell are checked.<p>
+     *
+     * @param red the red component of the cell
+     * @param green the green component of the cell
+     * @param blue the blue component of the cell
+     *
+     * @return the palette indices that can be closest to a color in the cell
+     */
+    private int[] createCell(int red, int green, int blue) {
+
+        int low = (red + green + blue) << CELL_SHIFT;
+        int high = low + (3 * (CELL_SIZE - 1));
+        int[] candidates = new int[m_opaque.length];
+        int[] distances = new int[m_opaque.length];
+        int count = 0;
+        int limit = Integer.MAX_VALUE;
+        int position = m_sumPositions[(low + high) / 2];
+        // search upwards and downwards from the colors with the sum of the center of the cell
+        for (int step = 1; step >= -1; step -= 2) {
+            for (int k = step > 0 ? position : position - 1; (k >= 0) && (k < m_opaque.length); k += step) {
+                int sum = m_opaqueSums[k];
+                int gap = sum > high ? sum - high : (sum < low ? low - sum : 0);
+                if ((long)gap * gap > 3L * limit) {
+                    // all following colors are even further away
+                    break;
+                }
+                int i = m_opaque[k];
+                int dr = cellDistance(m_red[i], red);
+                int dg = cellDistance(m_green[i], green);
+                int db = cellDistance(m_blue[i], blue);
+                candidates[count] = i;
+                distances[count++] = (dr * dr) + (dg * dg) + (db * db);
+                dr = maxCellDistance(m_red[i], red);
+                dg = maxCellDistance(m_green[i], green);
+                db = maxCellDistance(m_blue[i], blue);
+                limit = Math.min(limit, (dr * dr) + (dg * dg) + (db * db));
+            }
+        }
+        int[] result = new int[count];
+        int size = 0;
+        for (int k = 0; k < count; k++) {
+            if (distances[k] <= limit) {
+                result[size++] = candidates[k];
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Returns the squared distance of the given color to a palette color.<p>
+     *
+     * @param red the red component
+     * @param green the green component
+     * @param blue the blue component
+     * @param index the palette index
+     *
+     * @return the squared distance of the color to the palette color
+     */
+    private int distance(int red, int green, int blue, int index) {
+
+        int dr = red - m_red[index];
+        int dg = green - m_green[index];
+        int db = blue - m_blue[index];
+        return (dr * dr) + (dg * dg) + (db * db);
+    }
+
+    /**
+     * Maps the given image to the given indexed image, with error diffusion or with the given ordered dithering.<p>
+     *
+     * @param image the image to map
+     * @param dest the indexed image to write the palette indices to
+     * @param offsets the offsets of the 4x4 ordered dither matrix, all <code>0</code> for no dithering,
+     *      not used with error diffusion
+     * @param dither if <code>true</code>, Floyd-Steinberg error diffusion is used
+     * @param alternateScans if <code>true</code>, every other row is diffused from right to left
+     */
+    private void map(
+        final BufferedImage image,
+        BufferedImage dest,
+        final int[] offsets,
+        boolean dither,
+        boolean alternateScans) {
+
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final WritableRaster raster = dest.getRaster();
+        byte[] data = null;
+        int offset = 0;
+        int stride = width;
+        if ((raster.getSampleModel() instanceof ComponentSampleModel)
+            && (raster.getDataBuffer() instanceof DataBufferByte)
+            && (raster.getNumBands() == 1)
+            && (((ComponentSampleModel)raster.getSampleModel()).getPixelStride() == 1)) {
+            // write the indices directly into the image data
+            ComponentSampleModel model = (ComponentSampleModel)raster.getSampleModel();
+            data = ((DataBufferByte)raster.getDataBuffer()).getData();
+            stride = model.getScanlineStride();
+            offset = raster.getDataBuffer().getOffset()
+                + model.getOffset(
+                    -raster.getSampleModelTranslateX(),
+                    -raster.getSampleModelTranslateY());
+        }
+        final byte[] target = data;
+        final int targetOffset = offset;
+        final int targetStride = stride;
+        if (dither) {
+            int[] row = new int[width];
+            byte[] indices = target != null ? target : new byte[width];
+            int[] errors = new int[(width + 2) * 3];
+            int[] nextErrors = new int[(width + 2) * 3];
+            int[] cache = createCache();
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                int rowOffset = target != null ? targetOffset + (y * targetStride) : 0;
+                boolean forward = !alternateScans || ((y & 1) == 0);
+                ditherRow(row, 0, width, indices, rowOffset, errors, nextErrors, forward, cache);
+                int[] swap = errors;
+                errors = nextErrors;
+                nextErrors = swap;
+                if (target == null) {
+                    writeRow(raster, y, indices, width);
+                }
+            }
+        } else {
+            SimapiExecutors.forEachStripe(
+                height,
+                (MIN_STRIPE_PIXELS / Math.max(1, width)) + 1,
+                new SimapiExecutors.StripeTask() {
+
+                    public void process(int start, int end) {
+
+                        int[] row = new int[width];
+                        byte[] indices = target != null ? target : new byte[width];
+                        int[] cache = createCache();
+                        for (int y = start; y < end; y++) {
+                            image.getRGB(0, y, width, 1, row, 0, width);
+                            if (offsets != NO_DITHER) {
+                                addOffsets(row, width, offsets, (y & 3) << 2);
+                            }
+                            int rowOffset = target != null ? targetOffset + (y * targetStride) : 0;
+                            mapRow(row, 0, width, indices, rowOffset, cache);
+                            if (target == null) {
+                                writeRow(raster, y, indices, width);
+                            }
+                        }
+                    }
+                });
+        }
+    }
+
+    /**
+     * Maps a row of pixels with Floyd-Steinberg error diffusion.<p>
+     *
+     * The errors are given in sixteenths, for every pixel and color channel,
+     * with an additional pixel at both ends of the row.<p>
+     *
+     * @param pixels the pixels
+     * @param offset the index of the first pixel of the row
+     * @param width the width of the row
+     * @param dest the array to write the palette indices to
+     * @param destOffset the index of the first palette index of the row
+     * @param errors the errors diffused to this row, will be updated
+     * @param nextErrors the errors diffused to the next row, will be overwritten
+     * @param forward if <code>true</code>, the row is processed from left to right, otherwise from right to left
+     * @param cache the cache of recently mapped colors
+     */
+    private void ditherRow(
+        int[] pixels,
+        int offset,
+        int width,
+        byte[] dest,
+        int destOffset,
+        int[] errors,
+        int[] nextErrors,
+        boolean forward,
+        int[] cache) {
+
+        Arrays.fill(nextErrors, 0);
+        int step = forward ? 1 : -1;
+        int x = forward ? 0 : width - 1;
+        for (int n = 0; n < width; n++, x += step) {
+            int pixel = pixels[offset + x];
+            if ((pixel >>> 24) < m_alphaThreshold) {
+                dest[destOffset + x] = (byte)m_transparentIndex;
+                continue;
+            }
+            int e = (x + 1) * 3;
+            int red = clamp(((pixel >> 16) & 0xff) + ((errors[e] + 8) >> 4));
+            int green = clamp(((pixel >> 8) & 0xff) + ((errors[e + 1] + 8) >> 4));
+            int blue = clamp((pixel & 0xff) + ((errors[e + 2] + 8) >> 4));
+            int index = getCachedIndex((red << 16) | (green << 8) | blue, cache);
+            dest[destOffset + x] = (byte)index;
+            int ahead = e + (3 * step);
+            int behind = e - (3 * step);
+            int d = red - m_red[index];
+            errors[ahead] += d * 7;
+            nextErrors[behind] += d * 3;
+            nextErrors[e] += d * 5;
+            nextErrors[ahead] += d;
+            d = green - m_green[index];
+            errors[ahead + 1] += d * 7;
+            nextErrors[behind + 1] += d * 3;
+            nextErrors[e + 1] += d * 5;
+            nextErrors[ahead + 1] += d;
+            d = blue - m_blue[index];
+            errors[ahead + 2] += d * 7;
+            nextErrors[behind + 2] += d * 3;
+            nextErrors[e + 2] += d * 5;
+            nextErrors[ahead + 2] += d;
+        }
+    }
+
+    /**
+     * Returns the index of the opaque palette color closest to the given color, using the given cache.<p>
+     *
+     * Photos usually contain many pixels with the same colors, which are mapped only once with the cache.<p>
+     *
+     * @param rgb the color, without alpha
+     * @param cache the cache of recently mapped colors
+     *
+     * @return the index of the closest opaque palette color
+     */
+    private int getCachedIndex(int rgb, int[] cache) {
+
+        int slot = (rgb * 0x9E3779B1) >>> (32 - CACHE_BITS);
+        int entry = cache[slot];
+        if ((entry & 0xffffff) == rgb) {
+            return entry >>> 24;
+        }
+        int result = getClosestIndex((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+        cache[slot] = rgb | (result << 24);
+        return result;
+    }
+
+    /**
+     * Returns the index of the opaque palette color closest to the given color.<p>
+     *
+     * Of equally close colors, the one with the lowest index is used.<p>
+     *
+     * @param red the red component
+     * @param green the green component
+     * @param blue the blue component
+     *
+     * @return the index of the closest opaque palette color
+     */
+    private int getClosestIndex(int red, int green, int blue) {
+
+        int cell = ((red >> CELL_SHIFT) << (2 * QUANT_BITS))
+            | ((green >> CELL_SHIFT) << QUANT_BITS)
+            | (blue >> CELL_SHIFT);
+        int[] candidates = m_cells.get(cell);
+        if (candidates == null) {
+            candidates = createCell(red >> CELL_SHIFT, green >> CELL_SHIFT, blue >> CELL_SHIFT);
+            m_cells.set(cell, candidates);
+        }
+        int result = candidates[0];
+        if (candidates.length > 1) {
+            int best = distance(red, green, blue, result);
+            for (int k = 1; (k < candidates.length) && (best > 0); k++) {
+                int d = distance(red, green, blue, candidates[k]);
+                if ((d < best) || ((d == best) && (candidates[k] < result))) {
+                    best = d;
+                    result = candidates[k];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Maps a range of pixels without dithering.<p>
+     *
+     * @param pixels the pixels
+     * @param offset the index of the first pixel
+     * @param length the number of pixels
+     * @param dest the array to write the palette indices to
+     * @param destOffset the index of the first palette index
+     * @param cache the cache of recently mapped colors
+     */
+    private void mapRow(int[] pixels, int offset, int length, byte[] dest, int destOffset, int[] cache) {
+
+        int threshold = m_alphaThreshold;
+        byte transparent = (byte)m_transparentIndex;
+        int previous = length > 0 ? ~pixels[offset] : 0;
+        byte index = 0;
+        for (int i = 0; i < length; i++) {
+            int pixel = pixels[offset + i];
+            if (pixel != previous) {
+                // runs of the same color are common, so the last result is reused
+                previous = pixel;
+                if ((pixel >>> 24) < threshold) {
+                    index = transparent;
+                } else {
+                    index = (byte)getCachedIndex(pixel & 0xffffff, cache);
+                }
+            }
+            dest[destOffset + i] = index;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi.GifWriter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Calculates the palette used to reduce the colors of an image.<p>
+ *
+ * Implementations only choose the colors. The pixels are then mapped to the closest color of the palette
+ * with a {@link PaletteMapper}, which is the same for all quantizers.<p>
+ *
+ * Pixels with an alpha value below {@link PaletteMapper#DEFAULT_ALPHA_THRESHOLD} are transparent.
+ * If the image contains such pixels, the palette contains a transparent color, which counts
+ * as one of the colors of the palette. All other colors are opaque.<p>
+ *
+ * Implementations must be thread safe.<p>
+ *
+ * @see OctreeQuantizer
+ * @see NeuQuantizer
+ * @see MedianCutQuantizer
+ */
+public interface PaletteQuantizer {
+
+    /**
+     * Calculates a palette with the given maximum number of colors for the given image.<p>
+     *
+     * @param image the image to calculate the palette for
+     * @param maxColors the maximum number of colors of the palette, at most 256
+     *
+     * @return the palette
+     */
+    IndexColorModel createPalette(BufferedImage image, int maxColors);
+}
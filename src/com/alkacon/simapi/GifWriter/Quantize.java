@@ -25,6 +25,8 @@
 
 package com.alkacon.simapi.GifWriter;
 
+import com.alkacon.simapi.SimapiExecutors;
+
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
@@ -473,6 +475,85 @@ public class Quantize {
                 }
             }
 
+            /**
+             * Adds the pixel statistics of the given node of another cube to this node.<p>
+             * 
+             * Missing children are created down to the depth of this cube. The statistics of deeper nodes
+             * of the other cube are added to the node at the depth of this cube.<p>
+             * 
+             * @param other the node of the other cube at the same position in the tree
+             */
+            void merge(Node other) {
+
+                if (m_parent != this) {
+                    numPixels += other.numPixels;
+                }
+                if (m_level == m_cube.depth) {
+                    mergeSubtree(other);
+                    return;
+                }
+                addStatistics(other);
+                if (other.numChildren != 0) {
+                    for (int id = 0; id < MAX_CHILDREN; id++) {
+                        if (other.children[id] != null) {
+                            if (children[id] == null) {
+                                new Node(this, id, m_level + 1);
+                            }
+                            children[id].merge(other.children[id]);
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Adds the color statistics of the given node and all its children to this node.<p>
+             * 
+             * @param other the node to add the statistics of
+             */
+            void mergeSubtree(Node other) {
+
+                addStatistics(other);
+                if (other.numChildren != 0) {
+                    for (int id = 0; id < MAX_CHILDREN; id++) {
+                        if (other.children[id] != null) {
+                            mergeSubtree(other.children[id]);
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Counts the nodes of this tree that represent a color.<p>
+             * 
+             * @return the number of nodes with pixels
+             */
+            int countColors() {
+
+                int result = (unique != 0) ? 1 : 0;
+                if (numChildren != 0) {
+                    for (int id = 0; id < MAX_CHILDREN; id++) {
+                        if (children[id] != null) {
+                            result += children[id].countColors();
+                        }
+                    }
+                }
+                return result;
+            }
+
+            /**
+             * Adds the color statistics of the given node to this node.<p>
+             * 
+             * @param other the node to add the statistics of
+             */
+            private void addStatistics(Node other) {
+
+                unique += other.unique;
+                totalRed += other.totalRed;
+                totalGreen += other.totalGreen;
+                totalBlue += other.totalBlue;
+                totalAlpha += other.totalAlpha;
+            }
+
             /**
              * Remove this children node, and make sure our parent absorbs our
              * pixel statistics.
@@ -632,42 +713,15 @@ public class Quantize {
          * pixel's value in the pixel array becomes the index of this node's
          * mean color in the color map.
          * 
+         * If the alpha values are converted to a bitmask, the palette only contains opaque
+         * colors and the transparent color, and the pixels are mapped with a {@link PaletteMapper}
+         * instead, which is much faster for large images.
+         * 
          * @return the created buffered image 
          */
         BufferedImage assignment() {
 
-            colorMap = new byte[4][m_numColors];
-
-            if (addTransparency) {
-                // if a transparency color is added, firstColor was set to 1,
-                // so color 0 can be used for this
-                colorMap[0][0] = 0;
-                colorMap[1][0] = 0;
-                colorMap[2][0] = 0;
-                colorMap[3][0] = 0;
-            }
-            m_numColors = firstColor;
-            root.mapColors();
-
-            // determine bit depth for palette
-            int dep;
-            for (dep = 1; dep <= 8; dep++) {
-                if ((1 << dep) >= m_numColors) {
-                    break;
-                }
-            }
-
-            // create the right color model, depending on transparency settings:
-            IndexColorModel icm;
-            if (m_alphaToBitmask) {
-                if (addTransparency) {
-                    icm = new IndexColorModel(dep, m_numColors, colorMap[0], colorMap[1], colorMap[2], 0);
-                } else {
-                    icm = new IndexColorModel(dep, m_numColors, colorMap[0], colorMap[1], colorMap[2]);
-                }
-            } else {
-                icm = new IndexColorModel(dep, m_numColors, colorMap[0], colorMap[1], colorMap[2], colorMap[3]);
-            }
+            IndexColorModel icm = createColorModel();
             // create the indexed BufferedImage:
             BufferedImage dest = new BufferedImage(
                 m_source.getWidth(),
@@ -675,9 +729,15 @@ public class Quantize {
                 BufferedImage.TYPE_BYTE_INDEXED,
                 icm);
 
-            Search search = new Search();
             // convert to indexed color
             byte[] dst = ((DataBufferByte)dest.getRaster().getDataBuffer()).getData();
+            if (m_alphaToBitmask) {
+                // all colors except the transparent color are opaque, so an inverse color map can be used
+                new PaletteMapper(icm).map(m_pixels, m_source.getWidth(), m_source.getHeight(), dst, false);
+                return dest;
+            }
+
+            Search search = new Search();
 
             for (int i = 0; i < m_pixels.length; i++) {
                 int pixel = m_pixels[i];
@@ -686,10 +746,6 @@ public class Quantize {
                 int blue = (pixel >> 0) & 0xff;
                 int alpha = (pixel >> 24) & 0xff;
 
-                if (m_alphaToBitmask) {
-                    alpha = alpha < 128 ? 0 : 0xff;
-                }
-
                 // this is super weird: on some systems, transparent pixels are
                 // not calculated correctly if the following block is taken out.
                 // the bug is very strange, isn't related to the code (compiler error?)
@@ -734,9 +790,21 @@ public class Quantize {
          */
         void classification() {
 
+            classification(0, m_pixels.length, 1);
+        }
+
+        /**
+         * Creates the classification from the given range of pixels.<p>
+         * 
+         * @param start the index of the first pixel
+         * @param end the index after the last pixel
+         * @param step the distance between two classified pixels, <code>1</code> to classify all pixels
+         */
+        void classification(int start, int end, int step) {
+
             addTransparency = false;
             firstColor = 0;
-            for (int i = 0; i < m_pixels.length; i++) {
+            for (int i = start; i < end; i += step) {
                 int pixel = m_pixels[i];
                 int red = (pixel >> 16) & 0xff;
                 int green = (pixel >> 8) & 0xff;
@@ -783,6 +851,88 @@ public class Quantize {
             }
         }
 
+        /**
+         * Creates the color map from the pruned tree.<p>
+         * 
+         * For every node with n2 &gt; 0, the mean color of all pixels that classify
+         * no lower than this node becomes an entry in the color map.<p>
+         * 
+         * @return the color model containing the color map
+         */
+        IndexColorModel createColorModel() {
+
+            colorMap = new byte[4][m_numColors];
+
+            if (addTransparency) {
+                // if a transparency color is added, firstColor was set to 1,
+                // so color 0 can be used for this
+                colorMap[0][0] = 0;
+                colorMap[1][0] = 0;
+                colorMap[2][0] = 0;
+                colorMap[3][0] = 0;
+            }
+            m_numColors = firstColor;
+            root.mapColors();
+
+            // determine bit depth for palette
+            int dep;
+            for (dep = 1; dep <= 8; dep++) {
+                if ((1 << dep) >= m_numColors) {
+                    break;
+                }
+            }
+
+            // create the right color model, depending on transparency settings:
+            IndexColorModel icm;
+            if (m_alphaToBitmask) {
+                if (addTransparency) {
+                    icm = new IndexColorModel(dep, m_numColors, colorMap[0], colorMap[1], colorMap[2], 0);
+                } else {
+                    icm = new IndexColorModel(dep, m_numColors, colorMap[0], colorMap[1], colorMap[2]);
+                }
+            } else {
+                icm = new IndexColorModel(dep, m_numColors, colorMap[0], colorMap[1], colorMap[2], colorMap[3]);
+            }
+            return icm;
+        }
+
+        /**
+         * Checks if any of the given pixels is transparent, and reserves the transparent color if so.<p>
+         * 
+         * Used if not all pixels are classified, so that transparent pixels are not missed.<p>
+         */
+        void findTransparency() {
+
+            int threshold = m_alphaToBitmask ? 0x80 : 1;
+            for (int i = 0; !addTransparency && (i < m_pixels.length); i++) {
+                if ((m_pixels[i] >>> 24) < threshold) {
+                    addTransparency = true;
+                    m_numColors++;
+                    firstColor = 1;
+                }
+            }
+        }
+
+        /**
+         * Adds the classification of another cube for a different part of the same image to this cube.<p>
+         * 
+         * @param other the other cube
+         */
+        void merge(Cube other) {
+
+            if (other.addTransparency && !addTransparency) {
+                addTransparency = true;
+                firstColor = 1;
+            }
+            root.merge(other.root);
+            while (numNodes > MAX_NODES) {
+                root.pruneLevel();
+                --depth;
+            }
+            // the color count is not maintained while merging
+            m_numColors = firstColor + root.countColors();
+        }
+
         /**
          * Repeatedly prunes the tree until the number of nodes with
          * unique > 0 is less than or equal to the maximum number of colors
@@ -804,6 +954,9 @@ public class Quantize {
         }
     }
 
+    /** The default maximum number of pixels classified for large images if sampling is used. */
+    public final static int DEFAULT_MAX_SAMPLES = 1 << 20;
+
     /** Maximum number of children. */
     final static int MAX_CHILDREN = 16;
 
@@ -816,6 +969,33 @@ public class Quantize {
     /** Maximum tree depth. */
     final static int MAX_TREE_DEPTH = 8;
 
+    /** Minimum number of pixels classified by one thread. */
+    final static int MIN_STRIPE_PIXELS = 1 << 16;
+
+    /**
+     * Calculates a palette with the given number of colors for the given image, without converting the image.<p>
+     * 
+     * The palette can be used to convert other images, for example scaled versions of the same image,
+     * with a {@link PaletteMapper}.<p>
+     * 
+     * @param image the image to calculate the palette for
+     * @param maxColors the maximum number of colors of the palette
+     * @param alphaToBitmask indicates if alpha information should be converted
+     * @param maxSamples the maximum number of pixels used to build the palette,
+     *      or <code>0</code> to use all pixels, for example {@link #DEFAULT_MAX_SAMPLES}
+     * 
+     * @return the palette
+     */
+    public static IndexColorModel createPalette(
+        BufferedImage image,
+        int maxColors,
+        boolean alphaToBitmask,
+        int maxSamples) {
+
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        return classify(image, pixels, maxColors, alphaToBitmask, maxSamples, getDefaultStripes()).createColorModel();
+    }
+
     /**
      * Reduce the image to the given number of colors.<p>
      * 
@@ -829,12 +1009,153 @@ public class Quantize {
      */
     public static BufferedImage process(BufferedImage image, int maxColors, boolean alphaToBitmask) {
 
-        int[] pixels;
-        pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        return process(image, maxColors, alphaToBitmask, 0);
+    }
+
+    /**
+     * Reduce the image to the given number of colors, choosing the colors from a sample of the pixels.<p>
+     * 
+     * If the image has more than <code>maxSamples</code> pixels, the palette is built from
+     * an evenly distributed subset of about <code>maxSamples</code> pixels.
+     * All pixels are still mapped to the closest palette color.
+     * Large images are classified in parallel stripes with the CPU executor of Simapi.<p>
+     * 
+     * @param image the image to color reduce
+     * @param maxColors the number of colors to reduce the image to
+     * @param alphaToBitmask indicates if alpha information should be converted
+     * @param maxSamples the maximum number of pixels used to build the palette,
+     *      or <code>0</code> to use all pixels, for example {@link #DEFAULT_MAX_SAMPLES}
+     * 
+     * @return the image with the reduced color palette
+     */
+    public static BufferedImage process(
+        BufferedImage image,
+        int maxColors,
+        boolean alphaToBitmask,
+        int maxSamples) {
+
+        return process(image, maxColors, alphaToBitmask, maxSamples, getDefaultStripes());
+    }
 
-        Cube cube = new Cube(image, pixels, maxColors, alphaToBitmask);
-        cube.classification();
+    /**
+     * Reduce the image to the given number of colors, classifying the pixels in at most the given number of stripes.<p>
+     * 
+     * Each stripe is classified in its own color tree, and the trees are merged in the order of the stripes.
+     * The result therefore only depends on the number of stripes, not on the number of threads.
+     * No more stripes are used than rows, and each stripe classifies at least {@link #MIN_STRIPE_PIXELS} pixels.<p>
+     * 
+     * @param image the image to color reduce
+     * @param maxColors the number of colors to reduce the image to
+     * @param alphaToBitmask indicates if alpha information should be converted
+     * @param maxSamples the maximum number of pixels used to build the palette,
+     *      or <code>0</code> to use all pixels, for example {@link #DEFAULT_MAX_SAMPLES}
+     * @param maxStripes the maximum number of stripes, <code>1</code> to classify all pixels in the calling thread
+     * 
+     * @return the image with the reduced color palette
+     */
+    public static BufferedImage process(
+        BufferedImage image,
+        int maxColors,
+        boolean alphaToBitmask,
+        int maxSamples,
+        int maxStripes) {
+
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        return classify(image, pixels, maxColors, alphaToBitmask, maxSamples, maxStripes).assignment();
+    }
+
+    /**
+     * Classifies the pixels of the given image and reduces the color tree to the given number of colors.<p>
+     * 
+     * @param image the image
+     * @param pixels the pixels of the image
+     * @param maxColors the number of colors to reduce the image to
+     * @param alphaToBitmask indicates if alpha information should be converted
+     * @param maxSamples the maximum number of pixels used to build the palette, or <code>0</code> to use all pixels
+     * @param maxStripes the maximum number of stripes classified in parallel
+     * 
+     * @return the reduced color tree
+     */
+    private static Cube classify(
+        final BufferedImage image,
+        final int[] pixels,
+        final int maxColors,
+        final boolean alphaToBitmask,
+        int maxSamples,
+        int maxStripes) {
+
+        int step = 1;
+        if ((maxSamples > 0) && (pixels.length > maxSamples)) {
+            step = pixels.length / maxSamples;
+            // make sure the sampled pixels are not always in the same columns
+            while (gcd(step, image.getWidth()) != 1) {
+                step++;
+            }
+        }
+        final int sampleStep = step;
+
+        Cube cube;
+        int stripes = Math.min(Math.min(maxStripes, image.getHeight()), (pixels.length / step) / MIN_STRIPE_PIXELS);
+        if (stripes > 1) {
+            // classify stripes in parallel, then merge the cubes in the order of the stripes
+            final Cube[] cubes = new Cube[stripes];
+            final int stripeRows = ((image.getHeight() + stripes) - 1) / stripes;
+            SimapiExecutors.forEachStripe(stripes, 1, new SimapiExecutors.StripeTask() {
+
+                public void process(int start, int end) {
+
+                    for (int s = start; s < end; s++) {
+                        Cube stripe = new Cube(image, pixels, maxColors, alphaToBitmask);
+                        int first = Math.min(s * stripeRows, image.getHeight()) * image.getWidth();
+                        int last = Math.min((s + 1) * stripeRows, image.getHeight()) * image.getWidth();
+                        // continue the sampling pattern of the complete image
+                        first += (sampleStep - (first % sampleStep)) % sampleStep;
+                        stripe.classification(first, last, sampleStep);
+                        cubes[s] = stripe;
+                    }
+                }
+            });
+            cube = cubes[0];
+            for (int s = 1; s < stripes; s++) {
+                cube.merge(cubes[s]);
+            }
+        } else {
+            cube = new Cube(image, pixels, maxColors, alphaToBitmask);
+            cube.classification(0, pixels.length, step);
+        }
+        if (step > 1) {
+            cube.findTransparency();
+        }
         cube.reduction();
-        return cube.assignment();
+        return cube;
+    }
+
+    /**
+     * Returns the number of stripes classified in parallel by default.<p>
+     * 
+     * @return the default number of stripes, <code>1</code> on a single processor
+     */
+    private static int getDefaultStripes() {
+
+        int parallelism = SimapiExecutors.getParallelism();
+        return parallelism > 1 ? 2 * parallelism : 1;
+    }
+
+    /**
+     * Returns the greatest common divisor of the given numbers.<p>
+     * 
+     * @param a the first number
+     * @param b the second number
+     * 
+     * @return the greatest common divisor
+     */
+    private static int gcd(int a, int b) {
+
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
     }
-}
\ No newline at end of file
+}
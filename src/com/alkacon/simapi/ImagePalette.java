@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.alkacon.simapi;
+
+import com.alkacon.simapi.GifWriter.OctreeQuantizer;
+import com.alkacon.simapi.GifWriter.PaletteMapper;
+import com.alkacon.simapi.GifWriter.PaletteQuantizer;
+import com.alkacon.simapi.GifWriter.Quantize;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A fixed color palette that is used to write several images with the same colors.<p>
+ *
+ * When several renditions of the same image are written with an indexed color model, for example GIF images
+ * in different sizes, calculating the palette again for every rendition is wasteful, and the renditions
+ * may end up with slightly different colors. Instead, the palette can be calculated once from the original
+ * image with {@link #create(BufferedImage, int)}, or set explicitly with {@link #ImagePalette(IndexColorModel)},
+ * for example to use the colors of a corporate design. Every rendition then only needs to map its pixels
+ * to the palette, which is much faster than a full color reduction.<p>
+ *
+ * Palettes can be stored in a small shared cache with {@link #getOrCreate(String, BufferedImage, int)},
+ * using a key that identifies the original image, for example its path and modification date.
+ * To use a palette for writing, set it with {@link RenderSettings#setPalette(ImagePalette)}.<p>
+ *
+ * Instances are immutable and thread safe.<p>
+ */
+public final class ImagePalette {
+
+    /** The default number of palettes kept in the cache. */
+    public static final int DEFAULT_CACHE_SIZE = 32;
+
+    /** The cached palettes, in access order. */
+    private static final LinkedHashMap<String, ImagePalette> CACHE = new LinkedHashMap<String, ImagePalette>(
+        16,
+        0.75f,
+        true) {
+
+        /** The serial version id. */
+        private static final long serialVersionUID = 3398165741271095582L;
+
+        /**
+         * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+         */
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImagePalette> eldest) {
+
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /** The palettes that are currently calculated by {@link #getOrCreate(String, BufferedImage, int)}. */
+    private static final Map<String, Future<ImagePalette>> PENDING = new HashMap<String, Future<ImagePalette>>();
+
+    /** The maximum number of palettes kept in the cache. */
+    private static int CACHE_SIZE = DEFAULT_CACHE_SIZE;
+
+    /** The mapper used to map images to this palette. */
+    private final PaletteMapper m_mapper;
+
+    /**
+     * Creates a new palette with the colors of the given color model.<p>
+     *
+     * If the color model has a transparent pixel, all pixels with an alpha value below
+     * {@link PaletteMapper#DEFAULT_ALPHA_THRESHOLD} are mapped to it.<p>
+     *
+     * @param colors the colors of the palette, at most 256
+     */
+    public ImagePalette(IndexColorModel colors) {
+
+        m_mapper = new PaletteMapper(colors);
+    }
+
+    /**
+     * Removes all palettes from the cache.<p>
+     */
+    public static void clearCache() {
+
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Calculates a palette with the given number of colors for the given image.<p>
+     *
+     * The colors are chosen from a sample of the pixels of large images.
+     * If the image contains transparent pixels, one palette entry is used for transparency.<p>
+     *
+     * @param source the image to calculate the palette for, usually the original image of all renditions
+     * @param maxColors the maximum number of colors of the palette (usually 256)
+     *
+     * @return the palette for the given image
+     */
+    public static ImagePalette create(BufferedImage source, int maxColors) {
+
+        return create(source, maxColors, new OctreeQuantizer(Quantize.DEFAULT_MAX_SAMPLES));
+    }
+
+    /**
+     * Calculates a palette with the given number of colors for the given image, using the given quantizer.<p>
+     *
+     * If the image contains transparent pixels, one palette entry is used for transparency.<p>
+     *
+     * @param source the image to calculate the palette for, usually the original image of all renditions
+     * @param maxColors the maximum number of colors of the palette (usually 256)
+     * @param quantizer the quantizer used to choose the colors
+     *
+     * @return the palette for the given image
+     */
+    public static ImagePalette create(BufferedImage source, int maxColors, PaletteQuantizer quantizer) {
+
+        return new ImagePalette(quantizer.createPalette(source, maxColors));
+    }
+
+    /**
+     * Returns the cached palette for the given key.<p>
+     *
+     * @param key the key identifying the original image
+     *
+     * @return the cached palette for the given key, or <code>null</code> if no palette is cached
+     */
+    public static ImagePalette get(String key) {
+
+        synchronized (CACHE) {
+            return CACHE.get(key);
+        }
+    }
+
+    /**
+     * Returns the maximum number of palettes kept in the cache.<p>
+     *
+     * @return the maximum number of palettes kept in the cache
+     */
+    public static int getCacheSize() {
+
+        synchronized (CACHE) {
+            return CACHE_SIZE;
+        }
+    }
+
+    /**
+     * Returns the cached palette for the given key, calculating and caching it from the given image if required.<p>
+     *
+     * The palette is calculated only once for a key, even if several threads request it at the same time.
+     * The other threads wait for the result, while palettes for other keys can still be read from the cache.<p>
+     *
+     * @param key the key identifying the original image
+     * @param source the original image, used only if no palette is cached for the key
+     * @param maxColors the maximum number of colors of the palette (usually 256)
+     *
+     * @return the palette for the given key
+     */
+    public static ImagePalette getOrCreate(String key, final BufferedImage source, final int maxColors) {
+
+        Future<ImagePalette> task;
+        FutureTask<ImagePalette> calculation = null;
+        synchronized (CACHE) {
+            ImagePalette cached = CACHE.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            task = PENDING.get(key);
+            if (task == null) {
+                calculation = new FutureTask<ImagePalette>(new Callable<ImagePalette>() {
+
+                    public ImagePalette call() {
+
+                        return create(source, maxColors);
+                    }
+                });
+                task = calculation;
+                PENDING.put(key, task);
+            }
+        }
+        ImagePalette result = null;
+        try {
+            if (calculation != null) {
+                // calculate outside of the cache lock, so other keys are not blocked
+                calculation.run();
+            }
+            result = task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw cause instanceof RuntimeException ? (RuntimeException)cause : new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            // stop waiting for the other thread and calculate the palette in this thread
+            Thread.currentThread().interrupt();
+            result = create(source, maxColors);
+        } finally {
+            if (calculation != null) {
+                synchronized (CACHE) {
+                    PENDING.remove(key);
+                    if (result != null) {
+                        CACHE.put(key, result);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores the given palette in the cache.<p>
+     *
+     * If the cache is full, the palette that was not used for the longest time is removed.<p>
+     *
+     * @param key the key identifying the original image
+     * @param palette the palette to cache
+     */
+    public static void put(String key, ImagePalette palette) {
+
+        synchronized (CACHE) {
+            CACHE.put(key, palette);
+        }
+    }
+
+    /**
+     * Sets the maximum number of palettes kept in the cache.<p>
+     *
+     * @param cacheSize the maximum number of palettes kept in the cache, <code>0</code> disables the cache
+     */
+    public static void setCacheSize(int cacheSize) {
+
+        synchronized (CACHE) {
+            CACHE_SIZE = Math.max(0, cacheSize);
+            while (CACHE.size() > CACHE_SIZE) {
+                CACHE.remove(CACHE.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Converts the given image to this palette, without dithering.<p>
+     *
+     * @param image the image to convert
+     *
+     * @return the image with an indexed color model using this palette
+     */
+    public BufferedImage apply(BufferedImage image) {
+
+        return apply(image, false);
+    }
+
+    /**
+     * Converts the given image to this palette.<p>
+     *
+     * @param image the image to convert
+     * @param dither if <code>true</code>, Floyd-Steinberg error diffusion is used
+     *
+     * @return the image with an indexed color model using this palette
+     */
+    public BufferedImage apply(BufferedImage image, boolean dither) {
+
+        return m_mapper.map(image, dither);
+    }
+
+    /**
+     * Returns the colors of this palette.<p>
+     *
+     * @return the colors of this palette
+     */
+    public IndexColorModel getColorModel() {
+
+        return m_mapper.getPalette();
+    }
+}
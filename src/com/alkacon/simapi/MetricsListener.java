@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+/**
+ * Receives the measurements of the image operations performed by {@link Simapi}.<p>
+ *
+ * Listeners are registered with {@link SimapiMetrics#addListener(MetricsListener)}.
+ * They are called synchronously in the thread that performed the operation, so implementations
+ * must be thread safe and should return quickly.<p>
+ *
+ * @see SimapiStatistics
+ */
+public interface MetricsListener {
+
+    /**
+     * Called when a cache was accessed.<p>
+     *
+     * @param cache the name of the cache, for example {@link SimapiMetrics#CACHE_COLOR_SPACE}
+     * @param hit <code>true</code> if the requested entry was found in the cache
+     */
+    void cacheAccessed(String cache, boolean hit);
+
+    /**
+     * Called when an operation has selected one of several implementations.<p>
+     *
+     * @param stage the stage of the operation, for example {@link SimapiMetrics#STAGE_BLUR}
+     * @param codePath the name of the selected implementation, for example <code>"box"</code>
+     */
+    void codePathSelected(String stage, String codePath);
+
+    /**
+     * Called when a stage of an image operation has completed.<p>
+     *
+     * @param stage the completed stage, for example {@link SimapiMetrics#STAGE_SCALE}
+     * @param nanos the time spent in the stage in nanoseconds
+     * @param allocatedBytes the bytes allocated by the stage, or <code>-1</code> if not supported by the runtime
+     * @param pixels the number of pixels processed by the stage
+     */
+    void stageCompleted(String stage, long nanos, long allocatedBytes, long pixels);
+}
@@ -0,0 +1,785 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi.PngWriter;
+
+import com.alkacon.simapi.Deadline;
+import com.alkacon.simapi.SimapiExecutors;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes images as PNG.<p>
+ *
+ * Images with an {@link IndexColorModel} are written with a palette, using 1, 2, 4 or 8 bits per pixel,
+ * and a <code>tRNS</code> chunk if the palette contains transparent colors. 8 bit gray images are written as gray.
+ * Images with 16 bits per sample, like {@link BufferedImage#TYPE_USHORT_GRAY}, are written with 16 bit gray
+ * or sRGB samples, with alpha if the image has an alpha channel.
+ * All other images are written as 8 bit RGB, or RGBA if the image has an alpha channel.<p>
+ *
+ * For every row, the filter is chosen that gives the smallest sum of absolute differences, which usually gives the best
+ * compression. Palette images are not filtered. Large images are compressed in parallel chunks
+ * on the CPU executor of Simapi, like <code>pigz</code> does: every chunk is compressed independently with
+ * the end of the previous chunk as preset dictionary, and ends on a byte boundary, so the chunks can simply
+ * be concatenated. This costs only a few bytes per chunk.<p>
+ */
+public class PngEncoder {
+
+    /**
+     * A range of rows that is filtered and compressed independently.<p>
+     */
+    private final class Chunk {
+
+        /** The Adler-32 checksum of the uncompressed data of the chunk. */
+        int m_adler;
+
+        /** The compressed data. */
+        byte[] m_data;
+
+        /** The row after the last row of the chunk. */
+        final int m_endRow;
+
+        /** The length of the compressed data. */
+        int m_length;
+
+        /** The length of the uncompressed data. */
+        long m_rawLength;
+
+        /** The first row of the chunk. */
+        final int m_startRow;
+
+        /**
+         * Creates a new chunk.<p>
+         *
+         * @param startRow the first row of the chunk
+         * @param endRow the row after the last row of the chunk
+         */
+        Chunk(int startRow, int endRow) {
+
+            m_startRow = startRow;
+            m_endRow = endRow;
+        }
+
+        /**
+         * Filters and compresses the rows of this chunk.<p>
+         *
+         * @param prefix the number of bytes to reserve before the compressed data
+         * @param last <code>true</code> if this is the last chunk of the image
+         */
+        void compress(int prefix, boolean last) {
+
+            Adler32 adler = new Adler32();
+            Deflater deflater = new Deflater(m_level, true);
+            try {
+                RowFilter rows = new RowFilter();
+                if (m_startRow > 0) {
+                    // the filtered rows before this chunk are the preset dictionary, like in a single stream
+                    int dictionaryRows = Math.min(m_startRow, ((WINDOW_SIZE + m_rowBytes) / (m_rowBytes + 1)) + 1);
+                    byte[] dictionary = new byte[dictionaryRows * (m_rowBytes + 1)];
+                    rows.start(m_startRow - dictionaryRows);
+                    for (int i = 0; i < dictionaryRows; i++) {
+                        rows.next(dictionary, i * (m_rowBytes + 1));
+                    }
+                    int length = Math.min(WINDOW_SIZE, dictionary.length);
+                    deflater.setDictionary(dictionary, dictionary.length - length, length);
+                } else {
+                    rows.start(0);
+                }
+
+                m_rawLength = (long)(m_endRow - m_startRow) * (m_rowBytes + 1);
+                m_data = new byte[(int)Math.min(Integer.MAX_VALUE - 16, (m_rawLength / 4) + 1024)];
+                m_length = prefix;
+                int blockRows = Math.max(1, BLOCK_SIZE / (m_rowBytes + 1));
+                byte[] block = new byte[blockRows * (m_rowBytes + 1)];
+                for (int y = m_startRow; y < m_endRow; y += blockRows) {
+                    if (m_deadline != null) {
+                        m_deadline.check();
+                    }
+                    int count = Math.min(blockRows, m_endRow - y);
+                    for (int i = 0; i < count; i++) {
+                        rows.next(block, i * (m_rowBytes + 1));
+                    }
+                    int length = count * (m_rowBytes + 1);
+                    adler.update(block, 0, length);
+                    deflater.setInput(block, 0, length);
+                    while (!deflater.needsInput()) {
+                        deflate(deflater, Deflater.NO_FLUSH);
+                    }
+                }
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        deflate(deflater, Deflater.NO_FLUSH);
+                    }
+                } else {
+                    // end the chunk on a byte boundary, without marking the last block
+                    while (deflate(deflater, Deflater.SYNC_FLUSH)) {
+                        // continue until all pending output was written
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+            m_adler = (int)adler.getValue();
+        }
+
+        /**
+         * Appends the given bytes to the compressed data.<p>
+         *
+         * @param bytes the bytes to append
+         */
+        void append(byte[] bytes) {
+
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, m_data, m_length, bytes.length);
+            m_length += bytes.length;
+        }
+
+        /**
+         * Compresses the pending input of the given deflater into the data of this chunk.<p>
+         *
+         * @param deflater the deflater
+         * @param flush the flush mode
+         *
+         * @return <code>true</code> if the output buffer was filled completely, so more output may be pending
+         */
+        private boolean deflate(Deflater deflater, int flush) {
+
+            ensureCapacity(BLOCK_SIZE);
+            int space = m_data.length - m_length;
+            int count = deflater.deflate(m_data, m_length, space, flush);
+            m_length += count;
+            return count == space;
+        }
+
+        /**
+         * Makes sure that the given number of bytes can be appended to the compressed data.<p>
+         *
+         * @param size the number of bytes
+         */
+        private void ensureCapacity(int size) {
+
+            if ((m_data.length - m_length) < size) {
+                m_data = Arrays.copyOf(m_data, Math.max(m_data.length * 2, m_length + size));
+            }
+        }
+    }
+
+    /**
+     * Reads and filters consecutive rows of the image.<p>
+     */
+    private final class RowFilter {
+
+        /** The best filtered row so far. */
+        private byte[] m_best;
+
+        /** The candidate filtered row. */
+        private byte[] m_candidate;
+
+        /** The current unfiltered row. */
+        private byte[] m_current;
+
+        /** The buffer for the pixels of a row. */
+        private final int[] m_pixels;
+
+        /** The previous unfiltered row. */
+        private byte[] m_previous;
+
+        /** The next row. */
+        private int m_row;
+
+        /**
+         * Creates a new row filter.<p>
+         */
+        RowFilter() {
+
+            m_pixels = new int[m_bitDepth == 16 ? m_rowBytes / 2 : m_width];
+            m_current = new byte[m_rowBytes];
+            m_previous = new byte[m_rowBytes];
+            m_best = new byte[m_rowBytes + 1];
+            m_candidate = new byte[m_rowBytes + 1];
+        }
+
+        /**
+         * Reads and filters the next row.<p>
+         *
+         * @param dest the array to write the filter type and the filtered row to
+         * @param offset the position of the filter type in the array
+         */
+        void next(byte[] dest, int offset) {
+
+            byte[] swap = m_previous;
+            m_previous = m_current;
+            m_current = swap;
+            readRow(m_row++, m_current, m_pixels);
+            int bpp = m_bytesPerPixel;
+            if (m_filter != FILTER_ADAPTIVE) {
+                dest[offset] = (byte)m_filter;
+                filter(m_filter, m_current, m_previous, bpp, dest, offset + 1);
+                return;
+            }
+            // use the filter with the smallest sum of absolute differences
+            long bestSum = Long.MAX_VALUE;
+            for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+                long sum = filter(type, m_current, m_previous, bpp, m_candidate, 1);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    m_candidate[0] = (byte)type;
+                    swap = m_best;
+                    m_best = m_candidate;
+                    m_candidate = swap;
+                }
+            }
+            System.arraycopy(m_best, 0, dest, offset, m_rowBytes + 1);
+        }
+
+        /**
+         * Starts reading at the given row.<p>
+         *
+         * @param row the first row to read
+         */
+        void start(int row) {
+
+            m_row = row;
+            if (row > 0) {
+                readRow(row - 1, m_current, m_pixels);
+            } else {
+                Arrays.fill(m_current, (byte)0);
+            }
+        }
+    }
+
+    /** The minimum number of uncompressed bytes of a chunk compressed in parallel. */
+    static final int MIN_CHUNK_BYTES = 1 << 18;
+
+    /**
+     * Compress large images in parallel on all processors, at the cost of slightly larger files.
+     * May be disabled by setting the system property to <code>false</code>.
+     */
+    static final boolean PARALLEL_COMPRESSION = !"false".equalsIgnoreCase(
+        System.getProperty("com.alkacon.simapi.PngWriter.parallelCompression"));
+
+    /** The number of uncompressed bytes passed to the deflater at once. */
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    /** Color type for gray images. */
+    private static final int COLOR_GRAY = 0;
+
+    /** Color type for gray images with alpha. */
+    private static final int COLOR_GRAY_ALPHA = 4;
+
+    /** Color type for palette images. */
+    private static final int COLOR_PALETTE = 3;
+
+    /** Color type for RGB images. */
+    private static final int COLOR_RGB = 2;
+
+    /** Color type for RGB images with alpha. */
+    private static final int COLOR_RGBA = 6;
+
+    /** Filter mode that chooses the best filter for every row. */
+    private static final int FILTER_ADAPTIVE = -1;
+
+    /** Filter type Average. */
+    private static final int FILTER_AVERAGE = 3;
+
+    /** Filter type None. */
+    private static final int FILTER_NONE = 0;
+
+    /** Filter type Paeth. */
+    private static final int FILTER_PAETH = 4;
+
+    /** Filter type Sub. */
+    private static final int FILTER_SUB = 1;
+
+    /** Filter type Up. */
+    private static final int FILTER_UP = 2;
+
+    /** The PNG signature. */
+    private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+
+    /** The size of the deflate window, which is the maximum size of a preset dictionary. */
+    private static final int WINDOW_SIZE = 1 << 15;
+
+    /** The number of bits per sample. */
+    private final int m_bitDepth;
+
+    /** The number of bytes of a complete pixel, at least 1. */
+    private final int m_bytesPerPixel;
+
+    /** The PNG color type. */
+    private final int m_colorType;
+
+    /** The deadline, checked between compressed blocks. */
+    private Deadline m_deadline;
+
+    /** The filter type used for all rows, or {@link #FILTER_ADAPTIVE}. */
+    private int m_filter;
+
+    /** The height of the image. */
+    private final int m_height;
+
+    /** The image to write. */
+    private final BufferedImage m_image;
+
+    /** Indicates if the samples of the image can be read without conversion. */
+    private final boolean m_isDirectRead;
+
+    /** The deflate compression level. */
+    private int m_level;
+
+    /** The maximum number of chunks compressed in parallel. */
+    private int m_maxChunks;
+
+    /** The number of bytes of a row. */
+    private final int m_rowBytes;
+
+    /** The width of the image. */
+    private final int m_width;
+
+    /**
+     * Creates a new PNG encoder for the given image.<p>
+     *
+     * @param image the image to write
+     */
+    public PngEncoder(BufferedImage image) {
+
+        m_image = image;
+        m_width = image.getWidth();
+        m_height = image.getHeight();
+        int wideSamples = getWideSamples(image.getColorModel());
+        if (wideSamples > 0) {
+            int[] colorTypes = {COLOR_GRAY, COLOR_GRAY_ALPHA, COLOR_RGB, COLOR_RGBA};
+            m_colorType = colorTypes[wideSamples - 1];
+            m_bitDepth = 16;
+            m_bytesPerPixel = wideSamples * 2;
+        } else if ((image.getColorModel() instanceof IndexColorModel)
+            && (((IndexColorModel)image.getColorModel()).getMapSize() <= 256)) {
+            int size = ((IndexColorModel)image.getColorModel()).getMapSize();
+            m_colorType = COLOR_PALETTE;
+            m_bitDepth = (size <= 2) ? 1 : ((size <= 4) ? 2 : ((size <= 16) ? 4 : 8));
+            m_bytesPerPixel = 1;
+        } else if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            m_colorType = COLOR_GRAY;
+            m_bitDepth = 8;
+            m_bytesPerPixel = 1;
+        } else if (image.getColorModel().hasAlpha()) {
+            m_colorType = COLOR_RGBA;
+            m_bitDepth = 8;
+            m_bytesPerPixel = 4;
+        } else {
+            m_colorType = COLOR_RGB;
+            m_bitDepth = 8;
+            m_bytesPerPixel = 3;
+        }
+        int type = image.getType();
+        m_isDirectRead = ((type == BufferedImage.TYPE_BYTE_GRAY) && (m_bitDepth == 8))
+            || ((type == BufferedImage.TYPE_BYTE_INDEXED) && (m_bitDepth == 8))
+            || ((type == BufferedImage.TYPE_3BYTE_BGR) && (m_colorType == COLOR_RGB))
+            || ((type == BufferedImage.TYPE_4BYTE_ABGR) && (m_colorType == COLOR_RGBA));
+        int bitsPerPixel = (m_colorType == COLOR_PALETTE) ? m_bitDepth : (m_bytesPerPixel * 8);
+        m_rowBytes = (int)((((long)m_width * bitsPerPixel) + 7) / 8);
+        setParallel(PARALLEL_COMPRESSION);
+        setCompressionLevel(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive parts of data.<p>
+     *
+     * @param adler1 the checksum of the first part
+     * @param adler2 the checksum of the second part
+     * @param length2 the length of the second part
+     *
+     * @return the checksum of both parts
+     */
+    static int combineAdler(int adler1, int adler2, long length2) {
+
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += ((adler2 & 0xffff) + base) - 1;
+        sum2 += (((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base) - rem;
+        sum1 %= base;
+        sum2 %= base;
+        return (int)((sum2 << 16) | sum1);
+    }
+
+    /**
+     * Filters a row with the given filter type.<p>
+     *
+     * @param type the filter type
+     * @param row the unfiltered row
+     * @param previous the unfiltered previous row, all <code>0</code> for the first row
+     * @param bpp the number of bytes of a complete pixel
+     * @param dest the array to write the filtered row to
+     * @param offset the position of the filtered row in the array
+     *
+     * @return the sum of the absolute values of the filtered bytes
+     */
+    static long filter(int type, byte[] row, byte[] previous, int bpp, byte[] dest, int offset) {
+
+        int length = row.length;
+        long sum = 0;
+        switch (type) {
+            case FILTER_SUB:
+                // the first pixel has no left neighbor, so it is not changed by the Sub filter
+                for (int i = 0; i < bpp; i++) {
+                    dest[offset + i] = row[i];
+                    sum += Math.abs(row[i]);
+                }
+                for (int i = bpp; i < length; i++) {
+                    byte value = (byte)(row[i] - row[i - bpp]);
+                    dest[offset + i] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 0; i < length; i++) {
+                    byte value = (byte)(row[i] - previous[i]);
+                    dest[offset + i] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < bpp; i++) {
+                    byte value = (byte)(row[i] - ((previous[i] & 0xff) >> 1));
+                    dest[offset + i] = value;
+                    sum += Math.abs(value);
+                }
+                for (int i = bpp; i < length; i++) {
+                    byte value = (byte)(row[i] - (((row[i - bpp] & 0xff) + (previous[i] & 0xff)) >> 1));
+                    dest[offset + i] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+            case FILTER_PAETH:
+                // for the first pixel, the Paeth predictor is always the pixel above
+                for (int i = 0; i < bpp; i++) {
+                    byte value = (byte)(row[i] - previous[i]);
+                    dest[offset + i] = value;
+                    sum += Math.abs(value);
+                }
+                for (int i = bpp; i < length; i++) {
+                    int a = row[i - bpp] & 0xff;
+                    int b = previous[i] & 0xff;
+                    int c = previous[i - bpp] & 0xff;
+                    int pa = Math.abs(b - c);
+                    int pb = Math.abs(a - c);
+                    int pc = Math.abs((a + b) - c - c);
+                    int predictor = ((pa <= pb) && (pa <= pc)) ? a : ((pb <= pc) ? b : c);
+                    byte value = (byte)(row[i] - predictor);
+                    dest[offset + i] = value;
+                    sum += Math.abs(value);
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    dest[offset + i] = row[i];
+                    sum += Math.abs(row[i]);
+                }
+                break;
+        }
+        return sum;
+    }
+
+    /**
+     * Writes a PNG chunk.<p>
+     *
+     * @param out the output
+     * @param type the chunk type
+     * @param data the chunk data
+     * @param offset the start of the chunk data in the array
+     * @param length the length of the chunk data
+     *
+     * @throws IOException in case writing fails
+     */
+    private static void writeChunk(DataOutput out, String type, byte[] data, int offset, int length)
+    throws IOException {
+
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int)crc.getValue());
+    }
+
+    /**
+     * Sets the deflate compression level.<p>
+     *
+     * Level <code>1</code> is the fastest, level <code>9</code> gives the smallest files. With level <code>0</code>,
+     * the data is stored without compression or filtering.<p>
+     *
+     * @param level the compression level from <code>0</code> to <code>9</code>,
+     *      or {@link Deflater#DEFAULT_COMPRESSION} for the default level <code>6</code>
+     */
+    public void setCompressionLevel(int level) {
+
+        m_level = (level == Deflater.DEFAULT_COMPRESSION) ? 6 : Math.max(0, Math.min(9, level));
+        if ((m_level == 0) || (m_colorType == COLOR_PALETTE)) {
+            // filters rarely help for palette images, as recommended by the PNG specification
+            m_filter = FILTER_NONE;
+        } else {
+            m_filter = FILTER_ADAPTIVE;
+        }
+    }
+
+    /**
+     * Sets the deadline checked while the image is compressed.<p>
+     *
+     * @param deadline the deadline, or <code>null</code>
+     */
+    public void setDeadline(Deadline deadline) {
+
+        m_deadline = deadline;
+    }
+
+    /**
+     * Enables or disables the parallel compression of large images.<p>
+     *
+     * In parallel mode, the image is split into chunks of rows that are compressed independently
+     * on the CPU executor of Simapi. This produces slightly larger files.
+     * Unless disabled with a system property, this is enabled by default.<p>
+     *
+     * @param parallel if <code>true</code>, large images are compressed in parallel
+     */
+    public void setParallel(boolean parallel) {
+
+        m_maxChunks = parallel ? 2 * SimapiExecutors.getParallelism() : 1;
+    }
+
+    /**
+     * Writes the image as PNG to the given output.<p>
+     *
+     * @param out the output
+     *
+     * @throws IOException in case writing fails
+     */
+    public void write(DataOutput out) throws IOException {
+
+        out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, m_width);
+        putInt(header, 4, m_height);
+        header[8] = (byte)m_bitDepth;
+        header[9] = (byte)m_colorType;
+        // compression, filter and interlace methods are all 0
+        writeChunk(out, "IHDR", header, 0, header.length);
+
+        if (m_colorType == COLOR_PALETTE) {
+            IndexColorModel palette = (IndexColorModel)m_image.getColorModel();
+            int size = palette.getMapSize();
+            byte[] colors = new byte[size * 3];
+            byte[] alphas = new byte[size];
+            int transparent = 0;
+            for (int i = 0; i < size; i++) {
+                int argb = palette.getRGB(i);
+                colors[i * 3] = (byte)(argb >> 16);
+                colors[(i * 3) + 1] = (byte)(argb >> 8);
+                colors[(i * 3) + 2] = (byte)argb;
+                alphas[i] = (byte)(argb >>> 24);
+                if ((argb >>> 24) != 0xff) {
+                    transparent = i + 1;
+                }
+            }
+            writeChunk(out, "PLTE", colors, 0, colors.length);
+            if (transparent > 0) {
+                // only the alpha values up to the last transparent color are written
+                writeChunk(out, "tRNS", alphas, 0, transparent);
+            }
+        }
+
+        // compress the chunks of rows, in parallel if the image is large enough
+        long rawLength = (long)m_height * (m_rowBytes + 1);
+        int count = (int)Math.max(1, Math.min(Math.min(m_maxChunks, m_height), rawLength / MIN_CHUNK_BYTES));
+        final Chunk[] chunks = new Chunk[count];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = new Chunk((int)(((long)i * m_height) / count), (int)(((long)(i + 1) * m_height) / count));
+        }
+        SimapiExecutors.forEachStripe(count, 1, new SimapiExecutors.StripeTask() {
+
+            public void process(int start, int end) {
+
+                for (int i = start; i < end; i++) {
+                    chunks[i].compress(i == 0 ? 2 : 0, i == (chunks.length - 1));
+                }
+            }
+        });
+
+        // the zlib header is written before the first chunk, the Adler-32 checksum after the last chunk
+        int flevel = (m_level < 2) ? 0 : ((m_level < 6) ? 1 : ((m_level == 6) ? 2 : 3));
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - (((cmf << 8) + flg) % 31);
+        chunks[0].m_data[0] = (byte)cmf;
+        chunks[0].m_data[1] = (byte)flg;
+        int adler = chunks[0].m_adler;
+        for (int i = 1; i < count; i++) {
+            adler = combineAdler(adler, chunks[i].m_adler, chunks[i].m_rawLength);
+        }
+        byte[] checksum = new byte[4];
+        putInt(checksum, 0, adler);
+        chunks[count - 1].append(checksum);
+        for (Chunk chunk : chunks) {
+            writeChunk(out, "IDAT", chunk.m_data, 0, chunk.m_length);
+        }
+
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+    }
+
+    /**
+     * Returns the number of 16 bit samples per pixel written for images with the given color model.<p>
+     *
+     * Only color models with exactly 16 bits per component are written with 16 bit samples,
+     * if the color space is gray or sRGB and the alpha values are not premultiplied.<p>
+     *
+     * @param model the color model of the image
+     *
+     * @return the number of samples per pixel, or <code>0</code> if the image is written with 8 bit samples
+     */
+    private static int getWideSamples(ColorModel model) {
+
+        if (!(model instanceof ComponentColorModel)
+            || (model.getTransferType() != DataBuffer.TYPE_USHORT)
+            || model.isAlphaPremultiplied()) {
+            return 0;
+        }
+        for (int size : model.getComponentSize()) {
+            if (size != 16) {
+                return 0;
+            }
+        }
+        ColorSpace space = model.getColorSpace();
+        boolean gray = (space.getType() == ColorSpace.TYPE_GRAY) && (space.getNumComponents() == 1);
+        return (gray || space.isCS_sRGB()) ? model.getNumComponents() : 0;
+    }
+
+    /**
+     * Stores a 32 bit value in big endian byte order.<p>
+     *
+     * @param dest the array to store the value in
+     * @param offset the position of the value in the array
+     * @param value the value
+     */
+    private static void putInt(byte[] dest, int offset, int value) {
+
+        dest[offset] = (byte)(value >>> 24);
+        dest[offset + 1] = (byte)(value >>> 16);
+        dest[offset + 2] = (byte)(value >>> 8);
+        dest[offset + 3] = (byte)value;
+    }
+
+    /**
+     * Reads the ARGB values of a row of the image.<p>
+     *
+     * @param y the row
+     * @param pixels the array to write the ARGB values to
+     */
+    private void readPixels(int y, int[] pixels) {
+
+        int type = m_image.getType();
+        if ((type == BufferedImage.TYPE_INT_ARGB) || (type == BufferedImage.TYPE_INT_RGB)) {
+            // the pixels are stored as ARGB values, no need to convert them with the color model
+            m_image.getRaster().getDataElements(0, y, m_width, 1, pixels);
+        } else {
+            m_image.getRGB(0, y, m_width, 1, pixels, 0, m_width);
+        }
+    }
+
+    /**
+     * Reads a row of the image in the PNG sample format.<p>
+     *
+     * @param y the row
+     * @param dest the array to write the samples to
+     * @param pixels a buffer for the pixels of the row
+     */
+    void readRow(int y, byte[] dest, int[] pixels) {
+
+        if (m_isDirectRead) {
+            // the raster returns the samples of every pixel in band order, which is the PNG order
+            m_image.getRaster().getDataElements(0, y, m_width, 1, dest);
+            return;
+        }
+        if (m_bitDepth == 16) {
+            // the bands of the raster are in PNG order, with the alpha band last
+            m_image.getRaster().getPixels(0, y, m_width, 1, pixels);
+            for (int i = 0, j = 0; j < m_rowBytes; i++) {
+                dest[j++] = (byte)(pixels[i] >> 8);
+                dest[j++] = (byte)pixels[i];
+            }
+            return;
+        }
+        switch (m_colorType) {
+            case COLOR_PALETTE:
+            case COLOR_GRAY:
+                m_image.getRaster().getSamples(0, y, m_width, 1, 0, pixels);
+                if (m_bitDepth == 8) {
+                    for (int x = 0; x < m_width; x++) {
+                        dest[x] = (byte)pixels[x];
+                    }
+                } else {
+                    // pack several pixels in one byte, the first pixel in the highest bits
+                    int perByte = 8 / m_bitDepth;
+                    int mask = (1 << m_bitDepth) - 1;
+                    Arrays.fill(dest, (byte)0);
+                    for (int x = 0; x < m_width; x++) {
+                        int shift = 8 - (((x % perByte) + 1) * m_bitDepth);
+                        dest[x / perByte] |= (byte)((pixels[x] & mask) << shift);
+                    }
+                }
+                break;
+            case COLOR_RGBA:
+                readPixels(y, pixels);
+                for (int x = 0, i = 0; x < m_width; x++) {
+                    int argb = pixels[x];
+                    dest[i++] = (byte)(argb >> 16);
+                    dest[i++] = (byte)(argb >> 8);
+                    dest[i++] = (byte)argb;
+                    dest[i++] = (byte)(argb >>> 24);
+                }
+                break;
+            default:
+                readPixels(y, pixels);
+                for (int x = 0, i = 0; x < m_width; x++) {
+                    int rgb = pixels[x];
+                    dest[i++] = (byte)(rgb >> 16);
+                    dest[i++] = (byte)(rgb >> 8);
+                    dest[i++] = (byte)rgb;
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+/**
+ * Signals that an image operation was stopped because its {@link Deadline} expired or was cancelled.<p>
+ */
+public class RenderAbortedException extends RuntimeException {
+
+    /** The serial version id. */
+    private static final long serialVersionUID = -3391648283406011947L;
+
+    /** Indicates if the operation was stopped because of a timeout. */
+    private final boolean m_timeout;
+
+    /**
+     * Creates a new exception.<p>
+     *
+     * @param message the detail message
+     * @param timeout <code>true</code> if the operation was stopped because the deadline expired,
+     *      <code>false</code> if the deadline was cancelled
+     */
+    public RenderAbortedException(String message, boolean timeout) {
+
+        super(message);
+        m_timeout = timeout;
+    }
+
+    /**
+     * Returns <code>true</code> if the operation was stopped because the deadline expired,
+     * or <code>false</code> if the deadline was cancelled.<p>
+     *
+     * @return <code>true</code> if the operation was stopped because the deadline expired
+     */
+    public boolean isTimeout() {
+
+        return m_timeout;
+    }
+}
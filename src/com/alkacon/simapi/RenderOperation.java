@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * An image processing operation that is executed asynchronously with
+ * {@link Simapi#renderAsync(java.util.concurrent.Future, RenderOperation)}.<p>
+ *
+ * Implementations usually call one or more {@link Simapi} operations, for example:
+ * <pre>
+ * Future&lt;BufferedImage&gt; scaled = simapi.renderAsync(Simapi.readAsync(url), new RenderOperation() {
+ *     public BufferedImage render(BufferedImage image) {
+ *         return simapi.resize(image, 200, 150, true);
+ *     }
+ * });
+ * </pre>
+ */
+public interface RenderOperation {
+
+    /**
+     * Processes the given image.<p>
+     *
+     * @param image the image to process
+     *
+     * @return the processed image
+     *
+     * @throws Exception in case the processing fails
+     */
+    BufferedImage render(BufferedImage image) throws Exception;
+}
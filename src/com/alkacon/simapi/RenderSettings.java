@@ -21,6 +21,10 @@
 
 package com.alkacon.simapi;
 
+import com.alkacon.simapi.GifWriter.NeuQuantizer;
+import com.alkacon.simapi.GifWriter.PaletteQuantizer;
+import com.alkacon.simapi.GifWriter.Quantize;
+
 import java.awt.Color;
 import java.awt.RenderingHints;
 import java.awt.image.ImageFilter;
@@ -60,18 +64,33 @@ public class RenderSettings {
     /** The image save quality, used for JPEG images (and other formats that support such a setting). */
     private float m_compressionQuality;
 
+    /** The deadline for long running image operations. */
+    private Deadline m_deadline;
+
     /** The rendering hints of this settings object. */
     private RenderingHints m_hints;
 
     /** The internal list of image filters to apply to the image. */
     private List<ImageFilter> m_imageFilters;
 
+    /** Indicates if PNG images are written with an indexed color model. */
+    private boolean m_isIndexedPng;
+
     /** Used to control if blur is applied when scaling down an image. */
     private boolean m_isUseBlur;
 
     /** The maxmimum image size to apply blur-before-scale (to avoid "out of memory" issues). */
     private int m_maximumBlurSize;
 
+    /** The fixed palette used for images written with an indexed color model. */
+    private ImagePalette m_palette;
+
+    /** The deflate compression level used for PNG images. */
+    private int m_pngCompressionLevel;
+
+    /** The quantizer used to calculate the palette of images written with an indexed color model. */
+    private PaletteQuantizer m_quantizer;
+
     /** Thread priority for image operations. */
     private int m_threadNicePriority;
 
@@ -107,24 +126,28 @@ public class RenderSettings {
             case Simapi.RENDER_SPEED:
                 m_hints = HINTS_SPEED;
                 m_compressionQuality = 0.5f;
+                m_pngCompressionLevel = 1;
                 m_isUseBlur = false;
                 m_blurFactor = 1.0;
                 break;
             case Simapi.RENDER_MEDIUM:
                 m_hints = HINTS_MEDIUM;
                 m_compressionQuality = 0.75f;
+                m_pngCompressionLevel = 4;
                 m_isUseBlur = false;
                 m_blurFactor = 1.0;
                 break;
             case Simapi.RENDER_QUALITY_BICUBIC:
                 m_hints = HINTS_QUALITY_BICUBIC;
                 m_compressionQuality = 0.95f;
+                m_pngCompressionLevel = 6;
                 m_isUseBlur = false;
                 m_blurFactor = 1.0;
                 break;
             case Simapi.RENDER_QUALITY_SOFT:
                 m_hints = HINTS_QUALITY_SOFT;
                 m_compressionQuality = 0.95f;
+                m_pngCompressionLevel = 6;
                 m_isUseBlur = true;
                 m_blurFactor = 1.5;
                 break;
@@ -132,6 +155,7 @@ public class RenderSettings {
             default:
                 m_hints = HINTS_QUALITY;
                 m_compressionQuality = 0.95f;
+                m_pngCompressionLevel = 6;
                 m_isUseBlur = true;
                 m_blurFactor = 1.0;
                 break;
@@ -237,6 +261,16 @@ public class RenderSettings {
         return m_compressionQuality;
     }
 
+    /**
+     * Returns the deadline for long running image operations.<p>
+     *
+     * @return the deadline for long running image operations, or <code>null</code> if no deadline is set
+     */
+    public Deadline getDeadline() {
+
+        return m_deadline;
+    }
+
     /**
      * Returns a copy of the list of image filters that should be applied to the processed image.<p>
      *
@@ -261,6 +295,36 @@ public class RenderSettings {
         return m_maximumBlurSize;
     }
 
+    /**
+     * Returns the fixed palette used for images written with an indexed color model.<p>
+     *
+     * @return the fixed palette, or <code>null</code> if the palette is calculated for every written image
+     */
+    public ImagePalette getPalette() {
+
+        return m_palette;
+    }
+
+    /**
+     * Returns the deflate compression level used for PNG images.<p>
+     *
+     * @return the deflate compression level used for PNG images, from <code>0</code> to <code>9</code>
+     */
+    public int getPngCompressionLevel() {
+
+        return m_pngCompressionLevel;
+    }
+
+    /**
+     * Returns the quantizer used to calculate the palette of images written with an indexed color model.<p>
+     *
+     * @return the quantizer, or <code>null</code> if the default octree quantization of {@link Quantize} is used
+     */
+    public PaletteQuantizer getQuantizer() {
+
+        return m_quantizer;
+    }
+
     /**
      * Returns the background color replacement for the transparent color.<p>
      *
@@ -275,6 +339,16 @@ public class RenderSettings {
         return m_transparentReplaceColor;
     }
 
+    /**
+     * Returns <code>true</code> if PNG images are written with an indexed color model (PNG-8).<p>
+     *
+     * @return <code>true</code> if PNG images are written with an indexed color model
+     */
+    public boolean isIndexedPng() {
+
+        return m_isIndexedPng;
+    }
+
     /**
      * Returns <code>true</code> if blur is used when downscaling an image to a thumbnail.<p>
      *
@@ -304,6 +378,40 @@ public class RenderSettings {
         m_compressionQuality = compressionQuality;
     }
 
+    /**
+     * Sets the deadline for long running image operations.<p>
+     *
+     * Scaling, blurring, filtering and writing operations check the deadline regularly
+     * and stop with a {@link RenderAbortedException} once it has expired or was cancelled.
+     * Since the deadline is usually specific for a single request, a new deadline should be set
+     * for every image that is processed.<p>
+     *
+     * @param deadline the deadline to set, or <code>null</code> to run all operations to completion
+     */
+    public void setDeadline(Deadline deadline) {
+
+        m_deadline = deadline;
+    }
+
+    /**
+     * Sets if PNG images are written with an indexed color model (PNG-8).<p>
+     *
+     * Indexed PNG images use one byte per pixel and a palette of at most 256 colors, which makes them
+     * much smaller for logos, graphics and screenshots, and faster to compress. The palette is calculated
+     * like for GIF images, using the palette or quantizer of these settings if set.
+     * If the image contains partially transparent pixels, the octree quantization is used with colors
+     * that keep their alpha values, which are written to the <code>tRNS</code> chunk of the PNG.
+     * Otherwise pixels are either completely transparent or opaque.<p>
+     *
+     * The default is <code>false</code>, so PNG images are written with full colors.<p>
+     *
+     * @param indexedPng if <code>true</code>, PNG images are written with an indexed color model
+     */
+    public void setIndexedPng(boolean indexedPng) {
+
+        m_isIndexedPng = indexedPng;
+    }
+
     /**
      * Sets the maximum size of an image that is blurred before applying a downscaling operation.<p>
      *
@@ -314,6 +422,55 @@ public class RenderSettings {
         m_maximumBlurSize = maximumBlurSize;
     }
 
+    /**
+     * Sets the fixed palette used for images written with an indexed color model.<p>
+     *
+     * If a palette is set, GIF images and animations are written with the colors of this palette
+     * instead of reducing the colors of every written image separately. This is faster and keeps
+     * the colors of different renditions of the same image consistent.<p>
+     *
+     * @param palette the fixed palette, or <code>null</code> to calculate the palette for every written image
+     *
+     * @see ImagePalette
+     */
+    public void setPalette(ImagePalette palette) {
+
+        m_palette = palette;
+    }
+
+    /**
+     * Sets the deflate compression level used for PNG images.<p>
+     *
+     * PNG compression is lossless, so this is only a trade-off between speed and file size.
+     * Level <code>1</code> is the fastest, level <code>9</code> gives the smallest files,
+     * level <code>0</code> stores the pixels without compression.
+     * The default is <code>1</code> for {@link Simapi#RENDER_SPEED}, <code>4</code> for {@link Simapi#RENDER_MEDIUM}
+     * and <code>6</code> for all other modes.<p>
+     *
+     * @param pngCompressionLevel the compression level to set (must be between 0 and 9)
+     */
+    public void setPngCompressionLevel(int pngCompressionLevel) {
+
+        if ((pngCompressionLevel < 0) || (pngCompressionLevel > 9)) {
+            throw new IllegalArgumentException("PNG compression level must be between 0 and 9");
+        }
+        m_pngCompressionLevel = pngCompressionLevel;
+    }
+
+    /**
+     * Sets the quantizer used to calculate the palette of images written with an indexed color model.<p>
+     *
+     * The quantizer is not used if a fixed palette is set with {@link #setPalette(ImagePalette)}.
+     * For example, a {@link NeuQuantizer} gives better results for photographs, while the default
+     * octree quantization is better for graphics with few colors.<p>
+     *
+     * @param quantizer the quantizer, or <code>null</code> to use the default octree quantization of {@link Quantize}
+     */
+    public void setQuantizer(PaletteQuantizer quantizer) {
+
+        m_quantizer = quantizer;
+    }
+
     /**
      * Sets the backgound color replacement for the transparent color.<p>
      *
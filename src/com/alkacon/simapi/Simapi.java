@@ -21,13 +21,20 @@
 
 package com.alkacon.simapi;
 
+import com.alkacon.simapi.CmykJpegReader.JPEGImageReader;
 import com.alkacon.simapi.CmykJpegReader.JPEGImageReaderSpi;
+import com.alkacon.simapi.CmykJpegReader.ProgressListenerBase;
+import com.alkacon.simapi.GifWriter.GifFrameMetadata;
+import com.alkacon.simapi.GifWriter.GifImageWriter;
 import com.alkacon.simapi.GifWriter.GifImageWriterSpi;
+import com.alkacon.simapi.GifWriter.PaletteQuantizer;
 import com.alkacon.simapi.GifWriter.Quantize;
+import com.alkacon.simapi.PngWriter.PngEncoder;
 import com.alkacon.simapi.filter.WholeImageFilter;
 import com.alkacon.simapi.filter.buffered.BoxBlurFilter;
 import com.alkacon.simapi.filter.buffered.GaussianFilter;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Image;
@@ -38,26 +45,37 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.FilteredImageSource;
 import java.awt.image.ImageFilter;
+import java.awt.image.IndexColorModel;
 import java.awt.image.PixelGrabber;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.imageio.IIOException;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.spi.IIORegistry;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 
+import org.w3c.dom.Node;
+
 /**
  * <b>SIM</b>ple <b>IM</b>age <b>API</b> (SIMAPI) that provides convenient access to commonly used imaging operations.<p>
  *
@@ -140,6 +158,21 @@ public class Simapi {
     /** Constant to identify the <code>TIFF</code> image type. */
     public static final String TYPE_TIFF = "TIFF";
 
+    /** The name of the native stream metadata format of the JDK GIF reader. */
+    private static final String GIF_STREAM_FORMAT_NAME = "javax_imageio_gif_stream_1.0";
+
+    /** The maximum number of frames of an animation that is read. */
+    private static final int MAX_ANIMATION_FRAMES = 1000;
+
+    /** The maximum number of pixels of all frames of an animation that is read, in the full size of the animation. */
+    private static final long MAX_ANIMATION_PIXELS = 1L << 26;
+
+    /** The maximum number of pixels of all frames of an animation for which one shared palette is calculated. */
+    private static final long MAX_SHARED_PALETTE_PIXELS = 1L << 23;
+
+    /** Height of the stripes drawn when scaling with a deadline. */
+    private static final int SCALE_STRIPE_HEIGHT = 128;
+
     /**
      * Register the GIF encoder.<p>
      */
@@ -323,7 +356,10 @@ public class Simapi {
      */
     public static BufferedImage read(File source) throws IOException {
 
-        return ensureImageIsSystemType(ImageIO.read(source), true);
+        SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_DECODE);
+        BufferedImage image = ImageIO.read(source);
+        SimapiMetrics.stop(timer, image);
+        return ensureImageIsSystemType(image, true);
     }
 
     /**
@@ -337,7 +373,10 @@ public class Simapi {
      */
     public static BufferedImage read(InputStream source) throws IOException {
 
-        return ensureImageIsSystemType(ImageIO.read(source), true);
+        SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_DECODE);
+        BufferedImage image = ImageIO.read(source);
+        SimapiMetrics.stop(timer, image);
+        return ensureImageIsSystemType(image, true);
     }
 
     /**
@@ -365,7 +404,509 @@ public class Simapi {
      */
     public static BufferedImage read(URL source) throws IOException {
 
-        return ensureImageIsSystemType(ImageIO.read(source), true);
+        SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_DECODE);
+        BufferedImage image = ImageIO.read(source);
+        SimapiMetrics.stop(timer, image);
+        return ensureImageIsSystemType(image, true);
+    }
+
+    /**
+     * Loads an image from a byte array, stopping when the given deadline expires or is cancelled.<p>
+     *
+     * @param source the byte array to read the image from
+     * @param deadline the deadline for decoding the image
+     *
+     * @return the loaded image
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     */
+    public static BufferedImage read(byte[] source, Deadline deadline) throws IOException, RenderAbortedException {
+
+        return read(new ByteArrayInputStream(source), deadline);
+    }
+
+    /**
+     * Loads an image from a local file, stopping when the given deadline expires or is cancelled.<p>
+     *
+     * @param source the file to read the input image from
+     * @param deadline the deadline for decoding the image
+     *
+     * @return the loaded image
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     */
+    public static BufferedImage read(File source, Deadline deadline) throws IOException, RenderAbortedException {
+
+        if (!source.canRead()) {
+            throw new IIOException("Can't read input file!");
+        }
+        return readImage(source, deadline, 0, 0, false);
+    }
+
+    /**
+     * Loads an image from an InputStream, stopping when the given deadline expires or is cancelled.<p>
+     *
+     * The decoder is aborted as soon as the deadline is over, so that pathological images
+     * do not block the calling thread for a long time.<p>
+     *
+     * @param source the input stream to read the input image from
+     * @param deadline the deadline for decoding the image
+     *
+     * @return the loaded image
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     */
+    public static BufferedImage read(InputStream source, Deadline deadline) throws IOException, RenderAbortedException {
+
+        return readImage(source, deadline, 0, 0, false);
+    }
+
+    /**
+     * Loads an image from a URL, stopping when the given deadline expires or is cancelled.<p>
+     *
+     * @param source the URL to read the input image from
+     * @param deadline the deadline for decoding the image
+     *
+     * @return the loaded image
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     */
+    public static BufferedImage read(URL source, Deadline deadline) throws IOException, RenderAbortedException {
+
+        InputStream in = source.openStream();
+        try {
+            return readImage(in, deadline, 0, 0, false);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads all frames of an animated image from a byte array.<p>
+     *
+     * @param source the byte array to read the image from
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readAnimation(File)
+     */
+    public static AnimatedImage readAnimation(byte[] source) throws IOException {
+
+        return readAnimation(new ByteArrayInputStream(source));
+    }
+
+    /**
+     * Loads all frames of an animated image from a byte array, stopping when the given deadline is over.<p>
+     *
+     * @param source the byte array to read the image from
+     * @param deadline the deadline for decoding the image
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     *
+     * @see #readAnimation(File)
+     */
+    public static AnimatedImage readAnimation(byte[] source, Deadline deadline)
+    throws IOException, RenderAbortedException {
+
+        return readAnimation(new ByteArrayInputStream(source), deadline);
+    }
+
+    /**
+     * Loads all frames of an animated image from a local file.<p>
+     *
+     * The frames are returned as they are displayed, with the frame positions and disposal methods
+     * of the GIF already applied, so that every frame can be scaled or cropped on its own.
+     * Images that are not animated are returned as an animation with a single frame.<p>
+     *
+     * Since every frame is stored in the full size of the animation, animations with more than
+     * 1000 frames, or with more than 64M pixels in all frames, are rejected with an {@link IIOException}.<p>
+     *
+     * @param source the file to read the image from
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded
+     */
+    public static AnimatedImage readAnimation(File source) throws IOException {
+
+        return readAnimation(source, null);
+    }
+
+    /**
+     * Loads all frames of an animated image from a local file, stopping when the given deadline is over.<p>
+     *
+     * @param source the file to read the image from
+     * @param deadline the deadline for decoding the image
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     *
+     * @see #readAnimation(File)
+     */
+    public static AnimatedImage readAnimation(File source, Deadline deadline)
+    throws IOException, RenderAbortedException {
+
+        if (!source.canRead()) {
+            throw new IIOException("Can't read input file!");
+        }
+        return readAnimationFrames(source, deadline);
+    }
+
+    /**
+     * Loads all frames of an animated image from an InputStream.<p>
+     *
+     * @param source the input stream to read the image from
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readAnimation(File)
+     */
+    public static AnimatedImage readAnimation(InputStream source) throws IOException {
+
+        return readAnimationFrames(source, null);
+    }
+
+    /**
+     * Loads all frames of an animated image from an InputStream, stopping when the given deadline is over.<p>
+     *
+     * @param source the input stream to read the image from
+     * @param deadline the deadline for decoding the image
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     *
+     * @see #readAnimation(File)
+     */
+    public static AnimatedImage readAnimation(InputStream source, Deadline deadline)
+    throws IOException, RenderAbortedException {
+
+        return readAnimationFrames(source, deadline);
+    }
+
+    /**
+     * Loads all frames of an animated image from a URL.<p>
+     *
+     * @param source the URL to read the image from
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readAnimation(File)
+     */
+    public static AnimatedImage readAnimation(URL source) throws IOException {
+
+        return readAnimation(source, null);
+    }
+
+    /**
+     * Loads all frames of an animated image from a URL, stopping when the given deadline is over.<p>
+     *
+     * @param source the URL to read the image from
+     * @param deadline the deadline for decoding the image
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     *
+     * @see #readAnimation(File)
+     */
+    public static AnimatedImage readAnimation(URL source, Deadline deadline)
+    throws IOException, RenderAbortedException {
+
+        InputStream in = source.openStream();
+        try {
+            return readAnimationFrames(in, deadline);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Asynchronously loads an image from a byte array.<p>
+     *
+     * The image is decoded with the CPU executor of {@link SimapiExecutors}.<p>
+     *
+     * @param source the byte array to read the image from
+     *
+     * @return the future loaded image
+     *
+     * @see #read(byte[])
+     */
+    public static Future<BufferedImage> readAsync(final byte[] source) {
+
+        return SimapiExecutors.submit(SimapiExecutors.getCpuExecutor(), new Callable<BufferedImage>() {
+
+            public BufferedImage call() throws Exception {
+
+                return read(source);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously loads an image from a local file.<p>
+     *
+     * The file is read with the I/O executor, and then decoded with the CPU executor of {@link SimapiExecutors}.<p>
+     *
+     * @param source the file to read the input image from
+     *
+     * @return the future loaded image
+     *
+     * @see #read(File)
+     */
+    public static Future<BufferedImage> readAsync(final File source) {
+
+        return readAsync(new Callable<byte[]>() {
+
+            public byte[] call() throws Exception {
+
+                InputStream in = new FileInputStream(source);
+                try {
+                    return readFully(in);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Asynchronously loads an image from an InputStream.<p>
+     *
+     * The stream is read with the I/O executor, and then decoded with the CPU executor of {@link SimapiExecutors}.
+     * The stream is not closed.<p>
+     *
+     * @param source the input stream to read the input image from
+     *
+     * @return the future loaded image
+     *
+     * @see #read(InputStream)
+     */
+    public static Future<BufferedImage> readAsync(final InputStream source) {
+
+        return readAsync(new Callable<byte[]>() {
+
+            public byte[] call() throws Exception {
+
+                return readFully(source);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously loads an image from a URL.<p>
+     *
+     * The URL is read with the I/O executor, and then decoded with the CPU executor of {@link SimapiExecutors}.<p>
+     *
+     * @param source the URL to read the input image from
+     *
+     * @return the future loaded image
+     *
+     * @see #read(URL)
+     */
+    public static Future<BufferedImage> readAsync(final URL source) {
+
+        return readAsync(new Callable<byte[]>() {
+
+            public byte[] call() throws Exception {
+
+                InputStream in = source.openStream();
+                try {
+                    return readFully(in);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads an image from a byte array for a rendition of the given size.<p>
+     *
+     * @param source the byte array to read the image from
+     * @param width the width of the rendition
+     * @param height the height of the rendition
+     *
+     * @return the loaded image, which may be smaller than the source image
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readForSize(InputStream, int, int)
+     */
+    public static BufferedImage readForSize(byte[] source, int width, int height) throws IOException {
+
+        return readForSize(new ByteArrayInputStream(source), width, height, false);
+    }
+
+    /**
+     * Loads an image from a byte array for a rendition of the given size,
+     * optionally using the thumbnail embedded in the image.<p>
+     *
+     * @param source the byte array to read the image from
+     * @param width the width of the rendition
+     * @param height the height of the rendition
+     * @param useThumbnail if <code>true</code>, an embedded thumbnail is used if it is large enough
+     *
+     * @return the loaded image, which may be smaller than the source image
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readForSize(InputStream, int, int, boolean)
+     */
+    public static BufferedImage readForSize(byte[] source, int width, int height, boolean useThumbnail)
+    throws IOException {
+
+        return readForSize(new ByteArrayInputStream(source), width, height, useThumbnail);
+    }
+
+    /**
+     * Loads an image from a local file for a rendition of the given size.<p>
+     *
+     * @param source the file to read the input image from
+     * @param width the width of the rendition
+     * @param height the height of the rendition
+     *
+     * @return the loaded image, which may be smaller than the source image
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readForSize(InputStream, int, int)
+     */
+    public static BufferedImage readForSize(File source, int width, int height) throws IOException {
+
+        return readForSize(source, width, height, false);
+    }
+
+    /**
+     * Loads an image from a local file for a rendition of the given size,
+     * optionally using the thumbnail embedded in the image.<p>
+     *
+     * @param source the file to read the input image from
+     * @param width the width of the rendition
+     * @param height the height of the rendition
+     * @param useThumbnail if <code>true</code>, an embedded thumbnail is used if it is large enough
+     *
+     * @return the loaded image, which may be smaller than the source image
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readForSize(InputStream, int, int, boolean)
+     */
+    public static BufferedImage readForSize(File source, int width, int height, boolean useThumbnail)
+    throws IOException {
+
+        if (!source.canRead()) {
+            throw new IIOException("Can't read input file!");
+        }
+        return readImage(source, null, width, height, useThumbnail);
+    }
+
+    /**
+     * Loads an image from an InputStream for a rendition of the given size.<p>
+     *
+     * JPEG images are decoded at 1/2, 1/4 or 1/8 of their size if the result is still at least
+     * as large as the given width and height. This is much faster than decoding the complete image
+     * and scaling it down afterwards. Other images are loaded at their original size.<p>
+     *
+     * @param source the input stream to read the input image from
+     * @param width the width of the rendition, or <code>0</code> if only the height matters
+     * @param height the height of the rendition, or <code>0</code> if only the width matters
+     *
+     * @return the loaded image, which may be smaller than the source image
+     *
+     * @throws IOException in case the image could not be loaded
+     */
+    public static BufferedImage readForSize(InputStream source, int width, int height) throws IOException {
+
+        return readImage(source, null, width, height, false);
+    }
+
+    /**
+     * Loads an image from an InputStream for a rendition of the given size,
+     * optionally using the thumbnail embedded in the image.<p>
+     *
+     * If <code>useThumbnail</code> is <code>true</code> and the image contains an EXIF or JFIF thumbnail
+     * that is at least as large as the given size and has the same aspect ratio as the image,
+     * only the thumbnail is decoded. Camera photos usually contain a 160 x 120 pixel thumbnail,
+     * which makes small previews of them very cheap. Note that some applications do not update
+     * the thumbnail when the image is edited, so this should only be used for previews.<p>
+     *
+     * @param source the input stream to read the input image from
+     * @param width the width of the rendition, or <code>0</code> if only the height matters
+     * @param height the height of the rendition, or <code>0</code> if only the width matters
+     * @param useThumbnail if <code>true</code>, an embedded thumbnail is used if it is large enough
+     *
+     * @return the loaded image, which may be smaller than the source image
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readForSize(InputStream, int, int)
+     */
+    public static BufferedImage readForSize(InputStream source, int width, int height, boolean useThumbnail)
+    throws IOException {
+
+        return readImage(source, null, width, height, useThumbnail);
+    }
+
+    /**
+     * Loads an image from a URL for a rendition of the given size.<p>
+     *
+     * @param source the URL to read the input image from
+     * @param width the width of the rendition
+     * @param height the height of the rendition
+     *
+     * @return the loaded image, which may be smaller than the source image
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readForSize(InputStream, int, int)
+     */
+    public static BufferedImage readForSize(URL source, int width, int height) throws IOException {
+
+        return readForSize(source, width, height, false);
+    }
+
+    /**
+     * Loads an image from a URL for a rendition of the given size,
+     * optionally using the thumbnail embedded in the image.<p>
+     *
+     * @param source the URL to read the input image from
+     * @param width the width of the rendition
+     * @param height the height of the rendition
+     * @param useThumbnail if <code>true</code>, an embedded thumbnail is used if it is large enough
+     *
+     * @return the loaded image, which may be smaller than the source image
+     *
+     * @throws IOException in case the image could not be loaded
+     *
+     * @see #readForSize(InputStream, int, int, boolean)
+     */
+    public static BufferedImage readForSize(URL source, int width, int height, boolean useThumbnail)
+    throws IOException {
+
+        InputStream in = source.openStream();
+        try {
+            return readImage(in, null, width, height, useThumbnail);
+        } finally {
+            in.close();
+        }
     }
 
     /**
@@ -391,6 +932,7 @@ public class Simapi {
                 // image must be transformed to system color
         }
 
+        SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_SYSTEM_TYPE);
         BufferedImage result;
         if (allowTransparent && (image.getColorModel().getTransparency() != Transparency.OPAQUE)) {
             // use RGB color model with alpha
@@ -404,6 +946,7 @@ public class Simapi {
         Graphics2D g = result.createGraphics();
         g.drawImage(image, 0, 0, null);
         g.dispose();
+        SimapiMetrics.stop(timer, result);
 
         // flush original - doesn't actually do anything but looks right to me anyway
         image.flush();
@@ -422,6 +965,12 @@ public class Simapi {
      */
     public BufferedImage applyFilter(BufferedImage image, ImageFilter filter) {
 
+        SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_FILTER);
+        if (timer != null) {
+            // the class name is only looked up if the metrics are enabled
+            SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_FILTER, filter.getClass().getSimpleName());
+        }
+
         // apply filter using default AWT toolkit
         Image img = Toolkit.getDefaultToolkit().createImage(new FilteredImageSource(image.getSource(), filter));
 
@@ -444,6 +993,7 @@ public class Simapi {
         Graphics2D g = result.createGraphics();
         g.drawImage(img, 0, 0, null);
         g.dispose();
+        SimapiMetrics.stop(timer, result);
         return result;
     }
 
@@ -482,15 +1032,43 @@ public class Simapi {
 
         threadSetNice();
 
-        for (ImageFilter filter : m_renderSettings.getImageFilters()) {
-            image = applyFilter(image, filter);
+        Deadline deadline = m_renderSettings.getDeadline();
+        try {
+            for (ImageFilter filter : m_renderSettings.getImageFilters()) {
+                if (deadline != null) {
+                    deadline.check();
+                }
+                image = applyFilter(image, filter);
+            }
+        } finally {
+            threadSetNormal();
         }
 
-        threadSetNormal();
-
         return image;
     }
 
+    /**
+     * Crops all frames of an animation.<p>
+     *
+     * @param image the animation to crop
+     * @param x the start x coordinate for the crop operation
+     * @param y the start y coordinate for the crop operation
+     * @param width the width of the crop area
+     * @param height the height of the crop area
+     *
+     * @return the cropped animation
+     *
+     * @see #crop(BufferedImage, int, int, int, int)
+     */
+    public AnimatedImage crop(AnimatedImage image, int x, int y, int width, int height) {
+
+        AnimatedImage result = new AnimatedImage(image.getLoopCount());
+        for (int i = 0; i < image.getFrameCount(); i++) {
+            result.addFrame(crop(image.getFrame(i), x, y, width, height), image.getDelay(i));
+        }
+        return result;
+    }
+
     /**
      * Crops an image according to the width and height specified.<p>
      *
@@ -834,6 +1412,22 @@ public class Simapi {
         return image;
     }
 
+    /**
+     * Returns the byte contents of the given animation as animated GIF.<p>
+     *
+     * @param image the animation to get the byte contents for
+     *
+     * @return the byte contents of the given animation
+     *
+     * @throws IOException in case the animation could not be converted to bytes
+     */
+    public byte[] getBytes(AnimatedImage image) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        write(image, out);
+        return out.toByteArray();
+    }
+
     /**
      * Returns the byte contents of the given image.<p>
      *
@@ -858,11 +1452,135 @@ public class Simapi {
      * @param maxColors the maximum number of allowed colors in the output image (usually 256)
      * @param alphaToBitmask indicates if alpha information should be converted
      *
-     * @return the transformed image
+     * @return the transformed image
+     */
+    public BufferedImage reduceColors(BufferedImage image, int maxColors, boolean alphaToBitmask) {
+
+        return Quantize.process(image, maxColors, alphaToBitmask);
+    }
+
+    /**
+     * Reduces the colors in the given image to the given maximum color number, using the given quantizer.<p>
+     *
+     * Pixels with an alpha value below 128 are transparent, all other pixels are opaque.<p>
+     *
+     * @param image the image to reduce the colors from
+     * @param maxColors the maximum number of allowed colors in the output image (usually 256)
+     * @param quantizer the quantizer used to choose the colors
+     *
+     * @return the transformed image
+     */
+    public BufferedImage reduceColors(BufferedImage image, int maxColors, PaletteQuantizer quantizer) {
+
+        return ImagePalette.create(image, maxColors, quantizer).apply(image);
+    }
+
+    /**
+     * Reduces the colors in the given image to the colors of the given palette.<p>
+     *
+     * This is much faster than calculating a new palette, so different renditions of the same image
+     * should use a palette calculated once from the original image.<p>
+     *
+     * @param image the image to reduce the colors from
+     * @param palette the palette to use
+     *
+     * @return the transformed image
+     *
+     * @see ImagePalette#getOrCreate(String, BufferedImage, int)
+     */
+    public BufferedImage reduceColors(BufferedImage image, ImagePalette palette) {
+
+        return palette.apply(image);
+    }
+
+    /**
+     * Applies the given operation to every frame of an animation.<p>
+     *
+     * The operation must return frames of the same size for all frames of the animation.<p>
+     *
+     * @param image the animation to process
+     * @param operation the operation to apply to every frame
+     *
+     * @return the processed animation
+     *
+     * @throws Exception in case the operation fails
+     */
+    public AnimatedImage render(AnimatedImage image, RenderOperation operation) throws Exception {
+
+        Deadline deadline = m_renderSettings.getDeadline();
+        AnimatedImage result = new AnimatedImage(image.getLoopCount());
+        for (int i = 0; i < image.getFrameCount(); i++) {
+            if (deadline != null) {
+                deadline.check();
+            }
+            result.addFrame(operation.render(image.getFrame(i)), image.getDelay(i));
+        }
+        return result;
+    }
+
+    /**
+     * Asynchronously applies the given operation to the given image, using the CPU executor of {@link SimapiExecutors}.<p>
+     *
+     * @param image the image to process
+     * @param operation the operation to apply
+     *
+     * @return the future processed image
+     */
+    public Future<BufferedImage> renderAsync(final BufferedImage image, final RenderOperation operation) {
+
+        return SimapiExecutors.submit(SimapiExecutors.getCpuExecutor(), new Callable<BufferedImage>() {
+
+            public BufferedImage call() throws Exception {
+
+                return operation.render(image);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously applies the given operation to the given future image, using the CPU executor of {@link SimapiExecutors}.<p>
+     *
+     * The operation is started as soon as the image is available.
+     * If the image was obtained from one of the asynchronous methods of this class, no thread is blocked while waiting.<p>
+     *
+     * @param image the future image to process
+     * @param operation the operation to apply
+     *
+     * @return the future processed image
+     */
+    public Future<BufferedImage> renderAsync(Future<BufferedImage> image, final RenderOperation operation) {
+
+        return SimapiExecutors.then(
+            image,
+            SimapiExecutors.getCpuExecutor(),
+            new SimapiExecutors.Stage<BufferedImage, BufferedImage>() {
+
+                public BufferedImage apply(BufferedImage input) throws Exception {
+
+                    return operation.render(input);
+                }
+            });
+    }
+
+    /**
+     * Resizes all frames of an animation.<p>
+     *
+     * @param image the animation to resize
+     * @param width the target width
+     * @param height the target height
+     * @param bestfit if true, the target size will be calculated based on the aspect ratio of the image
+     *
+     * @return the resized animation
+     *
+     * @see #resize(BufferedImage, int, int, boolean)
      */
-    public BufferedImage reduceColors(BufferedImage image, int maxColors, boolean alphaToBitmask) {
+    public AnimatedImage resize(AnimatedImage image, int width, int height, boolean bestfit) {
 
-        return Quantize.process(image, maxColors, alphaToBitmask);
+        AnimatedImage result = new AnimatedImage(image.getLoopCount());
+        for (int i = 0; i < image.getFrameCount(); i++) {
+            result.addFrame(resize(image.getFrame(i), width, height, bestfit), image.getDelay(i));
+        }
+        return result;
     }
 
     /**
@@ -1185,46 +1903,55 @@ public class Simapi {
             // must apply blur before scaling or the result image will look jagged
 
             threadSetNice();
+            // make the deadline available to the blur filters
+            Deadline previousDeadline = Deadline.bind(m_renderSettings.getDeadline());
+            try {
 
-            int pixel = image.getWidth() * image.getHeight();
-            if (pixel > m_renderSettings.getMaximumBlurSize()) {
-                // input image too big - scale down to the maximum blur size first
-                // this is done to avoid "out of memory" errors and CPU overhead when blurring
-                double fac = Math.sqrt((double)m_renderSettings.getMaximumBlurSize() / pixel);
-                int height = (int)(image.getHeight() * fac);
-                int width = (int)(image.getWidth() * fac);
-                image = scale(image, width, height);
-                // recalculate the image scale for the reduced image
-                widthScale = (targetWidth / (float)width);
-                heightScale = (targetHeight / (float)height);
-            }
+                int pixel = image.getWidth() * image.getHeight();
+                if (pixel > m_renderSettings.getMaximumBlurSize()) {
+                    // input image too big - scale down to the maximum blur size first
+                    // this is done to avoid "out of memory" errors and CPU overhead when blurring
+                    double fac = Math.sqrt((double)m_renderSettings.getMaximumBlurSize() / pixel);
+                    int height = (int)(image.getHeight() * fac);
+                    int width = (int)(image.getWidth() * fac);
+                    image = scale(image, width, height);
+                    // recalculate the image scale for the reduced image
+                    widthScale = (targetWidth / (float)width);
+                    heightScale = (targetHeight / (float)height);
+                }
 
-            double factor = ((1 / widthScale) + (1 / heightScale)) / 2.0;
-            int average = (image.getWidth() + image.getHeight()) / 2;
-            if (((factor < 10.0) && (average < 1000))) {
-                // image is quite small and suitable factor - use gaussian blur
-                GaussianFilter gauss = new GaussianFilter();
-                double radius = Math.sqrt(1.5 * factor * m_renderSettings.getBlurFactor());
-                gauss.setRadius((float)radius);
-                image = gauss.filter(image, null);
-            } else {
-                // image is rather large, use much faster box blur
-                double root = Math.sqrt(0.75 * factor * m_renderSettings.getBlurFactor());
-                int radius;
-                if ((factor < 3.5) || (pixel > m_renderSettings.getMaximumBlurSize())) {
-                    // this is a rather small scale factor, use Math.floor() or image might get blurry
-                    // also do this if the input image was pre-scaled
-                    radius = (int)Math.floor(root);
+                SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_BLUR);
+                double factor = ((1 / widthScale) + (1 / heightScale)) / 2.0;
+                int average = (image.getWidth() + image.getHeight()) / 2;
+                if (((factor < 10.0) && (average < 1000))) {
+                    // image is quite small and suitable factor - use gaussian blur
+                    SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_BLUR, "gaussian");
+                    GaussianFilter gauss = new GaussianFilter();
+                    double radius = Math.sqrt(1.5 * factor * m_renderSettings.getBlurFactor());
+                    gauss.setRadius((float)radius);
+                    image = gauss.filter(image, null);
                 } else {
-                    // scale factor is rather large, use Math.round() for better result
-                    radius = (int)Math.round(root);
+                    // image is rather large, use much faster box blur
+                    double root = Math.sqrt(0.75 * factor * m_renderSettings.getBlurFactor());
+                    int radius;
+                    if ((factor < 3.5) || (pixel > m_renderSettings.getMaximumBlurSize())) {
+                        // this is a rather small scale factor, use Math.floor() or image might get blurry
+                        // also do this if the input image was pre-scaled
+                        radius = (int)Math.floor(root);
+                    } else {
+                        // scale factor is rather large, use Math.round() for better result
+                        radius = (int)Math.round(root);
+                    }
+                    SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_BLUR, "box");
+                    BoxBlurFilter blur = new BoxBlurFilter();
+                    blur.setRadius(radius);
+                    image = blur.filter(image, null);
                 }
-                BoxBlurFilter blur = new BoxBlurFilter();
-                blur.setRadius(radius);
-                image = blur.filter(image, null);
+                SimapiMetrics.stop(timer, image);
+            } finally {
+                Deadline.restore(previousDeadline);
+                threadSetNormal();
             }
-
-            threadSetNormal();
         }
 
         return scale(image, targetWidth, targetHeight);
@@ -1241,16 +1968,62 @@ public class Simapi {
      */
     public BufferedImage scale(BufferedImage image, int targetWidth, int targetHeight) {
 
+        SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_SCALE);
         BufferedImage result = createImage(image.getColorModel(), targetWidth, targetHeight);
         Graphics2D g = result.createGraphics();
 
         g.setRenderingHints(m_renderSettings.getRenderingHints());
-        g.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+        Deadline deadline = m_renderSettings.getDeadline();
+        if (deadline == null) {
+            g.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+        } else {
+            // draw the image in horizontal stripes so that the deadline can be checked in between
+            try {
+                for (int y = 0; y < targetHeight; y += SCALE_STRIPE_HEIGHT) {
+                    deadline.check();
+                    g.setClip(0, y, targetWidth, Math.min(SCALE_STRIPE_HEIGHT, targetHeight - y));
+                    g.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+                }
+            } catch (RenderAbortedException e) {
+                g.dispose();
+                throw e;
+            }
+        }
         g.dispose();
+        SimapiMetrics.stop(timer, result);
 
         return result;
     }
 
+    /**
+     * Writes an animation as animated GIF to a local file.<p>
+     *
+     * @param image the animation to write
+     * @param destination the destination file
+     *
+     * @throws IOException in case the animation could not be written
+     */
+    public void write(AnimatedImage image, File destination) throws IOException {
+
+        writeAnimation(image, destination);
+    }
+
+    /**
+     * Writes an animation as animated GIF to an output stream.<p>
+     *
+     * If the frames are not small enough to share one palette, every frame gets its own palette.
+     * Only the changed part of every frame is written.<p>
+     *
+     * @param image the animation to write
+     * @param destination the output stream to write the animation to
+     *
+     * @throws IOException in case the animation could not be written
+     */
+    public void write(AnimatedImage image, OutputStream destination) throws IOException {
+
+        writeAnimation(image, destination);
+    }
+
     /**
      * Writes an image to a local file.<p>
      *
@@ -1293,6 +2066,59 @@ public class Simapi {
         write(image, new File(destination), type);
     }
 
+    /**
+     * Asynchronously writes the given future image to an output stream.<p>
+     *
+     * The image is encoded with the CPU executor as soon as it is available,
+     * and the encoded bytes are then written with the I/O executor of {@link SimapiExecutors}.
+     * The output stream is not closed.<p>
+     *
+     * @param image the future image to write
+     * @param destination the output stream to write the image to
+     * @param type the type of the image to write
+     *
+     * @return the future that is done when the image has been written
+     */
+    public Future<Void> writeAsync(Future<BufferedImage> image, OutputStream destination, final String type) {
+
+        Future<byte[]> bytes = SimapiExecutors.then(
+            image,
+            SimapiExecutors.getCpuExecutor(),
+            new SimapiExecutors.Stage<BufferedImage, byte[]>() {
+
+                public byte[] apply(BufferedImage input) throws Exception {
+
+                    return getBytes(input, type);
+                }
+            });
+        return writeAsync(bytes, destination);
+    }
+
+    /**
+     * Asynchronously writes an image to an output stream.<p>
+     *
+     * The image is encoded with the CPU executor, and the encoded bytes are then
+     * written with the I/O executor of {@link SimapiExecutors}.
+     * The output stream is not closed.<p>
+     *
+     * @param image the image to write
+     * @param destination the output stream to write the image to
+     * @param type the type of the image to write
+     *
+     * @return the future that is done when the image has been written
+     */
+    public Future<Void> writeAsync(final BufferedImage image, OutputStream destination, final String type) {
+
+        Future<byte[]> bytes = SimapiExecutors.submit(SimapiExecutors.getCpuExecutor(), new Callable<byte[]>() {
+
+            public byte[] call() throws Exception {
+
+                return getBytes(image, type);
+            }
+        });
+        return writeAsync(bytes, destination);
+    }
+
     /**
      * Creates a buffered image that has the given dimensions and uses the given color model.<p>
      *
@@ -1354,6 +2180,9 @@ public class Simapi {
             throw new IllegalArgumentException("no writers found for format '" + formatName + "'");
         }
 
+        SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_ENCODE);
+        SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_ENCODE, formatName);
+
         // make sure there are no transparent pixels left if not supported by the written image format
         if (im.getColorModel().hasAlpha()
             && ((TYPE_JPEG == formatName) || (TYPE_TIFF == formatName) || (TYPE_BMP == formatName))) {
@@ -1367,6 +2196,30 @@ public class Simapi {
             g.dispose();
             im = result;
         }
+        if (!(im.getColorModel() instanceof IndexColorModel)) {
+            if ((TYPE_GIF == formatName)
+                && ((m_renderSettings.getPalette() != null) || (m_renderSettings.getQuantizer() != null))) {
+                // otherwise the GIF writer uses the default octree quantization
+                im = getIndexedImage(im, false);
+            } else if ((TYPE_PNG == formatName) && m_renderSettings.isIndexedPng()) {
+                im = getIndexedImage(im, true);
+            }
+        }
+
+        if (TYPE_PNG == formatName) {
+            // the built-in encoder is much faster than the JDK PNG writer and compresses large images in parallel
+            if (m_renderSettings.getDeadline() != null) {
+                m_renderSettings.getDeadline().check();
+            }
+            PngEncoder encoder = new PngEncoder(im);
+            encoder.setCompressionLevel(m_renderSettings.getPngCompressionLevel());
+            encoder.setDeadline(m_renderSettings.getDeadline());
+            encoder.write(stream);
+            stream.flush();
+            stream.close();
+            SimapiMetrics.stop(timer, im);
+            return;
+        }
 
         // obtain the writer for the image
         // this must work since it is already done in the #getImageType(String) call above
@@ -1384,12 +2237,506 @@ public class Simapi {
             param.setCompressionQuality(m_renderSettings.getCompressionQuality());
         }
 
+        final Deadline deadline = m_renderSettings.getDeadline();
+        if (deadline != null) {
+            deadline.check();
+            writer.addIIOWriteProgressListener(new ProgressListenerBase() {
+
+                @Override
+                public void imageProgress(ImageWriter source, float percentageDone) {
+
+                    if (deadline.isOver()) {
+                        source.abort();
+                    }
+                }
+            });
+        }
+
         // now write the image
         writer.setOutput(stream);
         writer.write(null, new IIOImage(im, null, null), param);
         stream.flush();
         writer.dispose();
         stream.close();
+        SimapiMetrics.stop(timer, im);
+
+        if (deadline != null) {
+            // the writer stops early if it was aborted
+            deadline.check();
+        }
+    }
+
+    /**
+     * Writes an animation as animated GIF to the given output object.<p>
+     *
+     * @param image the animation to write
+     * @param output the destination to write the animation to
+     *
+     * @throws IOException in case the animation could not be written
+     */
+    protected void writeAnimation(AnimatedImage image, Object output) throws IOException {
+
+        if (output == null) {
+            throw new IllegalArgumentException("output == null!");
+        }
+        if ((image == null) || (image.getFrameCount() == 0)) {
+            throw new IllegalArgumentException("image == null!");
+        }
+
+        ImageOutputStream stream = null;
+        try {
+            stream = ImageIO.createImageOutputStream(output);
+        } catch (IOException e) {
+            throw new IIOException("Can't create output stream!", e);
+        }
+
+        SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_ENCODE);
+        SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_ENCODE, "GIF-animated");
+
+        BufferedImage[] frames = reduceFrameColors(image, m_renderSettings.getPalette(), m_renderSettings.getQuantizer());
+        Deadline deadline = m_renderSettings.getDeadline();
+        ImageWriter writer = new GifImageWriter(new GifImageWriterSpi());
+        writer.setOutput(stream);
+        writer.prepareWriteSequence(null);
+        long pixels = 0;
+        for (int i = 0; i < frames.length; i++) {
+            if (deadline != null) {
+                deadline.check();
+            }
+            // GIF delays are stored in hundredths of a second
+            GifFrameMetadata metadata = new GifFrameMetadata((image.getDelay(i) + 5) / 10, image.getLoopCount());
+            writer.writeToSequence(new IIOImage(frames[i], null, metadata), null);
+            pixels += (long)frames[i].getWidth() * frames[i].getHeight();
+        }
+        writer.endWriteSequence();
+        stream.flush();
+        writer.dispose();
+        stream.close();
+        SimapiMetrics.stop(timer, pixels);
+    }
+
+    /**
+     * Returns a copy of the given image.<p>
+     *
+     * @param image the image to copy
+     *
+     * @return a copy of the given image
+     */
+    private static BufferedImage copyImage(BufferedImage image) {
+
+        return new BufferedImage(image.getColorModel(), image.copyData(null), image.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Returns the largest JPEG subsampling (1, 2, 4 or 8) for which the image is still at least as large as the given size.<p>
+     *
+     * @param imageWidth the width of the image
+     * @param imageHeight the height of the image
+     * @param width the required width, or <code>0</code> if any width is acceptable
+     * @param height the required height, or <code>0</code> if any height is acceptable
+     *
+     * @return the largest possible subsampling
+     */
+    private static int getSubsampling(int imageWidth, int imageHeight, int width, int height) {
+
+        int result = 1;
+        for (int subsampling = 2; subsampling <= 8; subsampling *= 2) {
+            if (((((imageWidth + subsampling) - 1) / subsampling) >= width)
+                && ((((imageHeight + subsampling) - 1) / subsampling) >= height)) {
+                result = subsampling;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads an image from the given input, aborting the decoder once the given deadline is over.<p>
+     *
+     * If a size is given, JPEG images are decoded at a reduced size that is still at least as large as the given size.<p>
+     *
+     * @param input the input to read the image from, must be supported by {@link ImageIO#createImageInputStream(Object)}
+     * @param deadline the deadline for decoding the image, may be <code>null</code>
+     * @param width the width the image is needed for, or <code>0</code> to read the image at its full size
+     * @param height the height the image is needed for, or <code>0</code> to read the image at its full size
+     * @param useThumbnail if <code>true</code>, an embedded thumbnail is used if it is large enough
+     *
+     * @return the loaded image
+     *
+     * @throws IOException in case the image could not be loaded
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     */
+    private static BufferedImage readImage(
+        Object input,
+        final Deadline deadline,
+        int width,
+        int height,
+        boolean useThumbnail)
+    throws IOException {
+
+        if (deadline != null) {
+            deadline.check();
+        }
+
+        ImageInputStream stream = ImageIO.createImageInputStream(input);
+        if (stream == null) {
+            throw new IIOException("Can't create an ImageInputStream!");
+        }
+        BufferedImage image = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    // thumbnails are only available if the metadata is read
+                    reader.setInput(stream, true, !useThumbnail);
+                    if (deadline != null) {
+                        reader.addIIOReadProgressListener(new ProgressListenerBase() {
+
+                            @Override
+                            public void imageProgress(ImageReader source, float percentageDone) {
+
+                                if (deadline.isOver()) {
+                                    source.abort();
+                                }
+                            }
+                        });
+                    }
+                    SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_DECODE);
+                    if (useThumbnail && ((width > 0) || (height > 0)) && reader.readerSupportsThumbnails()) {
+                        image = readThumbnail(reader, width, height);
+                    }
+                    if (image == null) {
+                        ImageReadParam param = reader.getDefaultReadParam();
+                        if (((width > 0) || (height > 0)) && (reader instanceof JPEGImageReader)) {
+                            // the JPEG reader decodes subsampled images in the DCT domain
+                            int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0), width, height);
+                            if (subsampling > 1) {
+                                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                            }
+                        }
+                        image = reader.read(0, param);
+                    }
+                    SimapiMetrics.stop(timer, image);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        if (deadline != null) {
+            // the reader returns a partial image if it was aborted
+            deadline.check();
+        }
+        return ensureImageIsSystemType(image, true);
+    }
+
+    /**
+     * Returns the given image with an indexed color model, using the palette or quantizer of the render settings.<p>
+     *
+     * @param image the image to reduce the colors from
+     * @param paletteAlpha if <code>true</code>, partially transparent pixels are kept with the alpha values
+     *      of the palette, otherwise pixels are either completely transparent or opaque
+     *
+     * @return the image with an indexed color model
+     */
+    private BufferedImage getIndexedImage(BufferedImage image, boolean paletteAlpha) {
+
+        if (m_renderSettings.getPalette() != null) {
+            return m_renderSettings.getPalette().apply(image);
+        }
+        if (paletteAlpha && hasTranslucentPixels(image)) {
+            // only the octree quantization supports colors with alpha
+            return Quantize.process(image, 256, false);
+        }
+        if (m_renderSettings.getQuantizer() != null) {
+            return reduceColors(image, 256, m_renderSettings.getQuantizer());
+        }
+        return Quantize.process(image, 256, true);
+    }
+
+    /**
+     * Checks if the given image contains pixels that are neither completely transparent nor opaque.<p>
+     *
+     * @param image the image to check
+     *
+     * @return <code>true</code> if the image contains partially transparent pixels
+     */
+    private static boolean hasTranslucentPixels(BufferedImage image) {
+
+        if (image.getColorModel().getTransparency() != Transparency.TRANSLUCENT) {
+            return false;
+        }
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int alpha = row[x] >>> 24;
+                if ((alpha != 0) && (alpha != 0xff)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reduces the colors of all frames of an animation to a palette with at most 255 colors.<p>
+     *
+     * If the frames are small enough, all frames share one palette, which is calculated from all frames.
+     * Otherwise every frame gets its own palette. One palette entry is always left free,
+     * so that unchanged pixels can be written as transparent.<p>
+     *
+     * If a fixed palette is given, all frames are mapped to this palette instead.<p>
+     *
+     * @param image the animation
+     * @param palette the fixed palette, or <code>null</code> to calculate the palette from the frames
+     * @param quantizer the quantizer used to calculate the palette, or <code>null</code> to use the octree quantization
+     *
+     * @return the frames with an indexed color model
+     */
+    private static BufferedImage[] reduceFrameColors(
+        AnimatedImage image,
+        ImagePalette palette,
+        PaletteQuantizer quantizer) {
+
+        int count = image.getFrameCount();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage[] result = new BufferedImage[count];
+        if (palette != null) {
+            for (int i = 0; i < count; i++) {
+                result[i] = palette.apply(image.getFrame(i));
+            }
+            return result;
+        }
+        boolean shared = (((long)width * height * count) <= MAX_SHARED_PALETTE_PIXELS);
+        for (int i = 0; shared && (i < count); i++) {
+            shared = (image.getFrame(i).getWidth() == width) && (image.getFrame(i).getHeight() == height);
+        }
+        if (shared && (count > 1)) {
+            // quantize all frames stacked in one image, so that they share the palette
+            BufferedImage stack = new BufferedImage(width, height * count, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = stack.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            for (int i = 0; i < count; i++) {
+                g.drawImage(image.getFrame(i), 0, i * height, null);
+            }
+            g.dispose();
+            BufferedImage indexed;
+            if (quantizer != null) {
+                indexed = ImagePalette.create(stack, 255, quantizer).apply(stack);
+            } else {
+                indexed = Quantize.process(stack, 255, true, Quantize.DEFAULT_MAX_SAMPLES);
+            }
+            for (int i = 0; i < count; i++) {
+                result[i] = indexed.getSubimage(0, i * height, width, height);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                if (quantizer != null) {
+                    result[i] = ImagePalette.create(image.getFrame(i), 255, quantizer).apply(image.getFrame(i));
+                } else {
+                    result[i] = Quantize.process(image.getFrame(i), 255, true);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads all frames of an animated image from the given input.<p>
+     *
+     * @param input the input to read the image from, must be supported by {@link ImageIO#createImageInputStream(Object)}
+     * @param deadline the deadline for decoding the image, or <code>null</code> to use the deadline bound to the thread
+     *
+     * @return the loaded animation, or <code>null</code> if the image format is not supported
+     *
+     * @throws IOException in case the image could not be loaded, or exceeds the maximum number of frames or pixels
+     * @throws RenderAbortedException in case the deadline expired or was cancelled
+     */
+    private static AnimatedImage readAnimationFrames(Object input, Deadline deadline)
+    throws IOException, RenderAbortedException {
+
+        ImageInputStream stream = ImageIO.createImageInputStream(input);
+        if (stream == null) {
+            throw new IIOException("Can't create an ImageInputStream!");
+        }
+        AnimatedImage result = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    // the frame positions and delays are stored in the metadata
+                    reader.setInput(stream, false, false);
+                    SimapiMetrics.Timer timer = SimapiMetrics.start(SimapiMetrics.STAGE_DECODE);
+                    result = new AnimatedImage(AnimatedImage.LOOP_NONE);
+                    BufferedImage canvas = null;
+                    long pixels = 0;
+                    int count = reader.getNumImages(true);
+                    if (count > MAX_ANIMATION_FRAMES) {
+                        throw new IIOException(
+                            "Animation has " + count + " frames, the maximum is " + MAX_ANIMATION_FRAMES);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        if (deadline != null) {
+                            deadline.check();
+                        } else {
+                            Deadline.checkCurrent();
+                        }
+                        BufferedImage frame = reader.read(i);
+                        GifFrameMetadata metadata = GifFrameMetadata.getFrameMetadata(reader.getImageMetadata(i));
+                        if (metadata == null) {
+                            metadata = new GifFrameMetadata(0, AnimatedImage.LOOP_NONE);
+                        }
+                        if (canvas == null) {
+                            int width = frame.getWidth() + metadata.getLeft();
+                            int height = frame.getHeight() + metadata.getTop();
+                            IIOMetadata streamMetadata = reader.getStreamMetadata();
+                            if ((streamMetadata != null)
+                                && GIF_STREAM_FORMAT_NAME.equals(streamMetadata.getNativeMetadataFormatName())) {
+                                // the size of the animation is the logical screen size
+                                Node screen = ((IIOMetadataNode)streamMetadata.getAsTree(
+                                    GIF_STREAM_FORMAT_NAME)).getElementsByTagName("LogicalScreenDescriptor").item(0);
+                                if (screen != null) {
+                                    width = Integer.parseInt(
+                                        ((IIOMetadataNode)screen).getAttribute("logicalScreenWidth"));
+                                    height = Integer.parseInt(
+                                        ((IIOMetadataNode)screen).getAttribute("logicalScreenHeight"));
+                                }
+                            }
+                            if (((long)width * height * count) > MAX_ANIMATION_PIXELS) {
+                                throw new IIOException(
+                                    "Animation of "
+                                        + count
+                                        + " frames with "
+                                        + width
+                                        + "x"
+                                        + height
+                                        + " pixels exceeds the maximum of "
+                                        + MAX_ANIMATION_PIXELS
+                                        + " pixels");
+                            }
+                            canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                            result.setLoopCount(metadata.getLoopCount());
+                        }
+                        BufferedImage previous = null;
+                        if (metadata.getDisposalMethod() == GifFrameMetadata.DISPOSAL_RESTORE_TO_PREVIOUS) {
+                            previous = copyImage(canvas);
+                        }
+                        Graphics2D g = canvas.createGraphics();
+                        g.drawImage(frame, metadata.getLeft(), metadata.getTop(), null);
+                        result.addFrame(copyImage(canvas), metadata.getDelayTime() * 10);
+                        pixels += (long)frame.getWidth() * frame.getHeight();
+
+                        // prepare the canvas for the next frame
+                        if (metadata.getDisposalMethod() == GifFrameMetadata.DISPOSAL_RESTORE_TO_BACKGROUND) {
+                            g.setComposite(AlphaComposite.Clear);
+                            g.fillRect(metadata.getLeft(), metadata.getTop(), frame.getWidth(), frame.getHeight());
+                        } else if (previous != null) {
+                            canvas = previous;
+                        }
+                        g.dispose();
+                    }
+                    SimapiMetrics.stop(timer, pixels);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        return result;
+    }
+
+    /**
+     * Reads all bytes from the given input stream, without closing the stream.<p>
+     *
+     * @param in the stream to read
+     *
+     * @return the bytes read
+     *
+     * @throws IOException in case of read errors
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+        byte[] buffer = new byte[16384];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the smallest embedded thumbnail that is at least as large as the given size
+     * and has the same aspect ratio as the image.<p>
+     *
+     * @param reader the reader, with the input already set
+     * @param width the required width, or <code>0</code> if any width is acceptable
+     * @param height the required height, or <code>0</code> if any height is acceptable
+     *
+     * @return the thumbnail, or <code>null</code> if there is no suitable thumbnail
+     */
+    private static BufferedImage readThumbnail(ImageReader reader, int width, int height) {
+
+        try {
+            long imageWidth = reader.getWidth(0);
+            long imageHeight = reader.getHeight(0);
+            int best = -1;
+            int bestWidth = Integer.MAX_VALUE;
+            for (int i = 0; i < reader.getNumThumbnails(0); i++) {
+                int thumbWidth = reader.getThumbnailWidth(0, i);
+                int thumbHeight = reader.getThumbnailHeight(0, i);
+                // allow for one pixel rounding, but not for letterboxed thumbnails
+                long aspectDiff = Math.abs((thumbWidth * imageHeight) - (thumbHeight * imageWidth));
+                if ((thumbWidth >= width)
+                    && (thumbHeight >= height)
+                    && (aspectDiff <= Math.max(imageWidth, imageHeight))
+                    && (thumbWidth < bestWidth)) {
+                    best = i;
+                    bestWidth = thumbWidth;
+                }
+            }
+            if (best >= 0) {
+                BufferedImage result = reader.readThumbnail(0, best);
+                if ((result != null) && (result.getWidth() >= width) && (result.getHeight() >= height)) {
+                    SimapiMetrics.codePathSelected(SimapiMetrics.STAGE_DECODE, "thumbnail");
+                    return result;
+                }
+            }
+        } catch (IOException e) {
+            // broken thumbnail or metadata, decode the image itself
+        } catch (RuntimeException e) {
+            // the metadata parsers are not very robust for broken data, decode the image itself
+        }
+        return null;
+    }
+
+    /**
+     * Asynchronously reads the source bytes of an image with the I/O executor,
+     * and then decodes them with the CPU executor.<p>
+     *
+     * @param source the task providing the source bytes
+     *
+     * @return the future loaded image
+     */
+    private static Future<BufferedImage> readAsync(Callable<byte[]> source) {
+
+        Future<byte[]> bytes = SimapiExecutors.submit(SimapiExecutors.getIoExecutor(), source);
+        return SimapiExecutors.then(
+            bytes,
+            SimapiExecutors.getCpuExecutor(),
+            new SimapiExecutors.Stage<byte[], BufferedImage>() {
+
+                public BufferedImage apply(byte[] input) throws Exception {
+
+                    return read(input);
+                }
+            });
     }
 
     /**
@@ -1422,4 +2769,25 @@ public class Simapi {
             }
         }
     }
+
+    /**
+     * Asynchronously writes the given future bytes to an output stream with the I/O executor.<p>
+     *
+     * @param bytes the future bytes to write
+     * @param destination the output stream to write the bytes to
+     *
+     * @return the future that is done when the bytes have been written
+     */
+    private Future<Void> writeAsync(Future<byte[]> bytes, final OutputStream destination) {
+
+        return SimapiExecutors.then(bytes, SimapiExecutors.getIoExecutor(), new SimapiExecutors.Stage<byte[], Void>() {
+
+            public Void apply(byte[] input) throws Exception {
+
+                destination.write(input);
+                destination.flush();
+                return null;
+            }
+        });
+    }
 }
\ No newline at end of file
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Provides the executors used by the asynchronous operations of {@link Simapi}.<p>
+ *
+ * Blocking I/O (reading source bytes, writing encoded bytes) is done on the I/O executor,
+ * which uses virtual threads if the runtime supports them, and an unbounded pool of daemon threads otherwise.
+ * Pixel work (decoding, scaling, filtering, encoding) is done on the CPU executor, which is bounded
+ * to the number of available processors so that concurrent renderings do not oversubscribe the cores.<p>
+ *
+ * Both executors can be replaced, for example with container managed thread pools.<p>
+ */
+public final class SimapiExecutors {
+
+    /**
+     * A part of a pixel operation that can be executed in parallel with the other parts.<p>
+     *
+     * @see SimapiExecutors#forEachStripe(int, int, StripeTask)
+     */
+    public interface StripeTask {
+
+        /**
+         * Processes the stripe from <code>start</code> (inclusive) to <code>end</code> (exclusive).<p>
+         *
+         * @param start the first row (or element) of the stripe
+         * @param end the row (or element) after the last row of the stripe
+         */
+        void process(int start, int end);
+    }
+
+    /**
+     * A single step in a chain of asynchronous operations.<p>
+     *
+     * @param <S> the type of the input of the step
+     * @param <V> the type of the result of the step
+     */
+    interface Stage<S, V> {
+
+        /**
+         * Executes this step.<p>
+         *
+         * @param input the result of the previous step
+         *
+         * @return the result of this step
+         *
+         * @throws Exception in case the step fails
+         */
+        V apply(S input) throws Exception;
+    }
+
+    /**
+     * Thread factory creating named daemon threads.<p>
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        /** The thread counter. */
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        /** The prefix for the thread names. */
+        private final String m_prefix;
+
+        /**
+         * Creates a new thread factory.<p>
+         *
+         * @param prefix the prefix for the thread names
+         */
+        DaemonThreadFactory(String prefix) {
+
+            m_prefix = prefix;
+        }
+
+        /**
+         * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+         */
+        public Thread newThread(Runnable r) {
+
+            Thread t = new Thread(r, m_prefix + m_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** The number of available processors. */
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /** The executor used for pixel work. */
+    private static volatile ExecutorService m_cpuExecutor;
+
+    /** The executor used for blocking I/O. */
+    private static volatile ExecutorService m_ioExecutor;
+
+    /**
+     * Hide constructor to prevent generation of class instances.<p>
+     */
+    private SimapiExecutors() {
+
+        // empty
+    }
+
+    /**
+     * Processes the range from <code>0</code> to <code>length</code> in parallel stripes.<p>
+     *
+     * The calling thread processes stripes itself and is helped by the threads of the CPU executor,
+     * so this method can safely be called from a task that is already running on the CPU executor.
+     * Ranges shorter than two minimum stripes are processed in the calling thread only.<p>
+     *
+     * @param length the length of the range, usually the number of rows
+     * @param minStripe the minimum length of a stripe
+     * @param task the task processing a stripe
+     */
+    public static void forEachStripe(int length, int minStripe, final StripeTask task) {
+
+        int stripes = Math.min(2 * PARALLELISM, length / Math.max(1, minStripe));
+        if (stripes <= 1) {
+            task.process(0, length);
+            return;
+        }
+
+        final int count = stripes;
+        final int stripeLength = ((length + count) - 1) / count;
+        final int total = length;
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Runnable worker = new Runnable() {
+
+            public void run() {
+
+                int stripe;
+                while ((stripe = next.getAndIncrement()) < count) {
+                    try {
+                        if (error.get() == null) {
+                            int start = stripe * stripeLength;
+                            task.process(Math.min(start, total), Math.min(start + stripeLength, total));
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        ExecutorService executor = getCpuExecutor();
+        for (int i = Math.min(PARALLELISM, count) - 1; i > 0; i--) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // the calling thread will process the remaining stripes
+                break;
+            }
+        }
+        worker.run();
+
+        // all stripes have been claimed by running threads, so waiting can not dead lock
+        boolean interrupted = false;
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Throwable t = error.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        } else if (t instanceof Error) {
+            throw (Error)t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Returns the executor used for CPU bound pixel work.<p>
+     *
+     * Unless set otherwise, this is a pool with one thread per available processor.<p>
+     *
+     * @return the executor used for CPU bound pixel work
+     */
+    public static ExecutorService getCpuExecutor() {
+
+        ExecutorService result = m_cpuExecutor;
+        if (result == null) {
+            synchronized (SimapiExecutors.class) {
+                if (m_cpuExecutor == null) {
+                    m_cpuExecutor = new ThreadPoolExecutor(
+                        PARALLELISM,
+                        PARALLELISM,
+                        60L,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new DaemonThreadFactory("simapi-cpu-"));
+                }
+                result = m_cpuExecutor;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of parallel stripes a pixel operation should be split into to use all processors.<p>
+     *
+     * @return the number of available processors
+     */
+    public static int getParallelism() {
+
+        return PARALLELISM;
+    }
+
+    /**
+     * Returns the executor used for blocking I/O.<p>
+     *
+     * Unless set otherwise, this is a virtual thread per task executor if the runtime supports it,
+     * or a cached pool of daemon threads otherwise.<p>
+     *
+     * @return the executor used for blocking I/O
+     */
+    public static ExecutorService getIoExecutor() {
+
+        ExecutorService result = m_ioExecutor;
+        if (result == null) {
+            synchronized (SimapiExecutors.class) {
+                if (m_ioExecutor == null) {
+                    m_ioExecutor = createIoExecutor();
+                }
+                result = m_ioExecutor;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the executor used for CPU bound pixel work.<p>
+     *
+     * The previous executor is not shut down.<p>
+     *
+     * @param executor the executor to use, if <code>null</code> the default executor will be created on demand
+     */
+    public static synchronized void setCpuExecutor(ExecutorService executor) {
+
+        m_cpuExecutor = executor;
+    }
+
+    /**
+     * Sets the executor used for blocking I/O.<p>
+     *
+     * The previous executor is not shut down.<p>
+     *
+     * @param executor the executor to use, if <code>null</code> the default executor will be created on demand
+     */
+    public static synchronized void setIoExecutor(ExecutorService executor) {
+
+        m_ioExecutor = executor;
+    }
+
+    /**
+     * Executes the given task with the given executor.<p>
+     *
+     * @param <V> the result type
+     * @param executor the executor to use
+     * @param task the task to execute
+     *
+     * @return the future result of the task
+     */
+    static <V> SimapiFuture<V> submit(ExecutorService executor, final Callable<V> task) {
+
+        final SimapiFuture<V> result = new SimapiFuture<V>();
+        Future<?> stage = executor.submit(new Runnable() {
+
+            public void run() {
+
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    result.complete(task.call());
+                } catch (Throwable t) {
+                    result.fail(t);
+                }
+            }
+        });
+        result.setStage(stage);
+        return result;
+    }
+
+    /**
+     * Executes the given step with the given executor as soon as the source future is done.<p>
+     *
+     * If the source is a future created by this class, no thread is blocked while waiting for it.
+     * Otherwise the wait is done on the I/O executor.<p>
+     *
+     * @param <S> the source type
+     * @param <V> the result type
+     * @param source the source future
+     * @param executor the executor to run the step with
+     * @param stage the step to execute
+     *
+     * @return the future result of the step
+     */
+    static <S, V> SimapiFuture<V> then(final Future<S> source, final ExecutorService executor, final Stage<S, V> stage) {
+
+        final SimapiFuture<V> result = new SimapiFuture<V>();
+        result.setUpstream(source);
+        final Runnable next = new Runnable() {
+
+            public void run() {
+
+                final S input;
+                try {
+                    input = source.get();
+                } catch (Throwable t) {
+                    result.fail(SimapiFuture.unwrap(t));
+                    return;
+                }
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    result.setStage(executor.submit(new Runnable() {
+
+                        public void run() {
+
+                            if (result.isDone()) {
+                                return;
+                            }
+                            try {
+                                result.complete(stage.apply(input));
+                            } catch (Throwable t) {
+                                result.fail(t);
+                            }
+                        }
+                    }));
+                } catch (Throwable t) {
+                    result.fail(t);
+                }
+            }
+        };
+        if (source instanceof SimapiFuture) {
+            ((SimapiFuture<S>)source).onDone(next);
+        } else {
+            result.setStage(getIoExecutor().submit(next));
+        }
+        return result;
+    }
+
+    /**
+     * Creates the default I/O executor.<p>
+     *
+     * @return the default I/O executor
+     */
+    private static ExecutorService createIoExecutor() {
+
+        try {
+            // virtual threads are only available in recent Java versions, so they must be looked up by reflection
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (Throwable t) {
+            // virtual threads not available, use a classic thread pool
+        }
+        return Executors.newCachedThreadPool(new DaemonThreadFactory("simapi-io-"));
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future result of an asynchronous {@link Simapi} operation.<p>
+ *
+ * In contrast to a plain {@link java.util.concurrent.FutureTask}, follow up operations can be attached
+ * to this future without blocking a thread while waiting for the result.
+ * Cancelling this future also cancels the currently running step of the operation.<p>
+ *
+ * @param <V> the result type
+ */
+final class SimapiFuture<V> implements Future<V> {
+
+    /** Signals the completion of this future. */
+    private final CountDownLatch m_done = new CountDownLatch(1);
+
+    /** Tasks to run when this future is done. */
+    private List<Runnable> m_listeners = new ArrayList<Runnable>();
+
+    /** Indicates if this future was cancelled. */
+    private volatile boolean m_cancelled;
+
+    /** The error, if the operation failed. */
+    private volatile Throwable m_error;
+
+    /** The result of the operation. */
+    private volatile V m_result;
+
+    /** The currently running step of the operation. */
+    private volatile Future<?> m_stage;
+
+    /** The future this future depends on. */
+    private volatile Future<?> m_upstream;
+
+    /**
+     * Returns the cause of an exception thrown by {@link Future#get()}.<p>
+     *
+     * @param t the exception thrown
+     *
+     * @return the cause of the exception
+     */
+    static Throwable unwrap(Throwable t) {
+
+        if ((t instanceof ExecutionException) && (t.getCause() != null)) {
+            return t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+
+        if (!finish(null, null, true)) {
+            return false;
+        }
+        Future<?> stage = m_stage;
+        if (stage != null) {
+            stage.cancel(mayInterruptIfRunning);
+        }
+        Future<?> upstream = m_upstream;
+        if (upstream != null) {
+            upstream.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    /**
+     * @see java.util.concurrent.Future#get()
+     */
+    public V get() throws InterruptedException, ExecutionException {
+
+        m_done.await();
+        return getResult();
+    }
+
+    /**
+     * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+
+        if (!m_done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    /**
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    public boolean isCancelled() {
+
+        return m_cancelled;
+    }
+
+    /**
+     * @see java.util.concurrent.Future#isDone()
+     */
+    public boolean isDone() {
+
+        return m_done.getCount() == 0;
+    }
+
+    /**
+     * Completes this future with the given result.<p>
+     *
+     * @param result the result
+     */
+    void complete(V result) {
+
+        finish(result, null, false);
+    }
+
+    /**
+     * Completes this future with the given error.<p>
+     *
+     * @param error the error
+     */
+    void fail(Throwable error) {
+
+        finish(null, error, false);
+    }
+
+    /**
+     * Runs the given task as soon as this future is done, in the thread that completes the future.<p>
+     *
+     * If this future is already done, the task is run immediately in the calling thread.<p>
+     *
+     * @param task the task to run
+     */
+    void onDone(Runnable task) {
+
+        synchronized (this) {
+            if (m_listeners != null) {
+                m_listeners.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Sets the currently running step of the operation.<p>
+     *
+     * @param stage the currently running step
+     */
+    void setStage(Future<?> stage) {
+
+        m_stage = stage;
+        if (m_cancelled) {
+            stage.cancel(true);
+        }
+    }
+
+    /**
+     * Sets the future this future depends on, which will be cancelled together with this future.<p>
+     *
+     * @param upstream the future this future depends on
+     */
+    void setUpstream(Future<?> upstream) {
+
+        m_upstream = upstream;
+    }
+
+    /**
+     * Completes this future.<p>
+     *
+     * @param result the result
+     * @param error the error
+     * @param cancelled if <code>true</code>, the future was cancelled
+     *
+     * @return <code>true</code> if this call completed the future, <code>false</code> if it was already done
+     */
+    private boolean finish(V result, Throwable error, boolean cancelled) {
+
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (m_listeners == null) {
+                return false;
+            }
+            m_result = result;
+            m_error = error;
+            m_cancelled = cancelled;
+            listeners = m_listeners;
+            m_listeners = null;
+        }
+        m_done.countDown();
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the result of the completed operation.<p>
+     *
+     * @return the result of the completed operation
+     *
+     * @throws ExecutionException in case the operation failed
+     */
+    private V getResult() throws ExecutionException {
+
+        if (m_cancelled) {
+            throw new CancellationException();
+        }
+        if (m_error != null) {
+            throw new ExecutionException(m_error);
+        }
+        return m_result;
+    }
+}
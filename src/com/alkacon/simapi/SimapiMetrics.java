@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects timing and allocation measurements of the stages of the image operations.<p>
+ *
+ * Measuring is disabled as long as no {@link MetricsListener} is registered.
+ * In this case the instrumentation calls in the image operations only read a single volatile field.<p>
+ *
+ * To expose the measurements with JMX, call {@link #registerMBean()} once at application startup.<p>
+ */
+public final class SimapiMetrics {
+
+    /**
+     * Measures the time and memory allocation of a stage.<p>
+     *
+     * A timer measures only the current thread. It can be paused and resumed
+     * to measure the parts of a stage that are interleaved with other work.<p>
+     */
+    public static final class Timer {
+
+        /** The bytes allocated by the current thread when the timer was last resumed. */
+        private long m_allocatedStart;
+
+        /** The bytes allocated while the timer was running. */
+        private long m_allocatedBytes;
+
+        /** The time spent while the timer was running, in nanoseconds. */
+        private long m_nanos;
+
+        /** The time when the timer was last resumed, or <code>-1</code> if the timer is paused. */
+        private long m_nanoStart;
+
+        /** The measured stage. */
+        private final String m_stage;
+
+        /**
+         * Creates a new paused timer.<p>
+         *
+         * @param stage the measured stage
+         */
+        Timer(String stage) {
+
+            m_stage = stage;
+            m_nanoStart = -1;
+        }
+
+        /**
+         * Pauses this timer.<p>
+         */
+        public void pause() {
+
+            if (m_nanoStart != -1) {
+                m_nanos += System.nanoTime() - m_nanoStart;
+                m_nanoStart = -1;
+                if (m_allocatedStart == -1) {
+                    // allocations can not be measured
+                    m_allocatedBytes = -1;
+                } else {
+                    m_allocatedBytes += getAllocatedBytes() - m_allocatedStart;
+                }
+            }
+        }
+
+        /**
+         * Resumes this timer.<p>
+         */
+        public void resume() {
+
+            if (m_nanoStart == -1) {
+                m_allocatedStart = m_allocatedBytes != -1 ? getAllocatedBytes() : -1;
+                m_nanoStart = System.nanoTime();
+            }
+        }
+    }
+
+    /** Name of the cache of ICC color spaces. */
+    public static final String CACHE_COLOR_SPACE = "colorSpace";
+
+    /** Name of the cache of ICC color transform lookup tables. */
+    public static final String CACHE_COLOR_TRANSFORM = "colorTransform";
+
+    /** The name of the statistics MBean. */
+    public static final String MBEAN_NAME = "com.alkacon.simapi:type=SimapiStatistics";
+
+    /** Stage: Blurring an image before it is scaled down. */
+    public static final String STAGE_BLUR = "blur";
+
+    /** Stage: Converting decoded pixels to RGB. */
+    public static final String STAGE_COLOR_CONVERT = "colorConvert";
+
+    /** Stage: Decoding an image. */
+    public static final String STAGE_DECODE = "decode";
+
+    /** Stage: Encoding an image. */
+    public static final String STAGE_ENCODE = "encode";
+
+    /** Stage: Applying an image filter. */
+    public static final String STAGE_FILTER = "filter";
+
+    /** Stage: Scaling an image. */
+    public static final String STAGE_SCALE = "scale";
+
+    /** Stage: Converting an image to a system compatible type. */
+    public static final String STAGE_SYSTEM_TYPE = "systemType";
+
+    /** Empty listener array. */
+    private static final MetricsListener[] NO_LISTENERS = new MetricsListener[0];
+
+    /** The thread bean used to measure allocations, or <code>null</code> if not supported. */
+    private static final ThreadMXBean THREAD_BEAN = initThreadBean();
+
+    /** Indicates if measuring is enabled. */
+    private static volatile boolean m_enabled;
+
+    /** The registered listeners, replaced on every change. */
+    private static volatile MetricsListener[] m_listeners = NO_LISTENERS;
+
+    /** The statistics registered as MBean. */
+    private static SimapiStatistics m_statistics;
+
+    /**
+     * Hide constructor to prevent generation of class instances.<p>
+     */
+    private SimapiMetrics() {
+
+        // empty
+    }
+
+    /**
+     * Registers a listener that receives all measurements.<p>
+     *
+     * @param listener the listener to register
+     */
+    public static synchronized void addListener(MetricsListener listener) {
+
+        MetricsListener[] listeners = new MetricsListener[m_listeners.length + 1];
+        System.arraycopy(m_listeners, 0, listeners, 0, m_listeners.length);
+        listeners[m_listeners.length] = listener;
+        m_listeners = listeners;
+        m_enabled = true;
+    }
+
+    /**
+     * Reports a cache access.<p>
+     *
+     * @param cache the name of the cache
+     * @param hit <code>true</code> if the requested entry was found in the cache
+     */
+    public static void cacheAccessed(String cache, boolean hit) {
+
+        if (m_enabled) {
+            for (MetricsListener listener : m_listeners) {
+                listener.cacheAccessed(cache, hit);
+            }
+        }
+    }
+
+    /**
+     * Reports the implementation selected for a stage.<p>
+     *
+     * @param stage the stage
+     * @param codePath the name of the selected implementation
+     */
+    public static void codePathSelected(String stage, String codePath) {
+
+        if (m_enabled) {
+            for (MetricsListener listener : m_listeners) {
+                listener.codePathSelected(stage, codePath);
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if measuring is enabled.<p>
+     *
+     * @return <code>true</code> if measuring is enabled
+     */
+    public static boolean isEnabled() {
+
+        return m_enabled;
+    }
+
+    /**
+     * Registers a {@link SimapiStatistics} listener as MBean with the platform MBean server.<p>
+     *
+     * Calling this method more than once returns the already registered statistics.<p>
+     *
+     * @return the registered statistics
+     *
+     * @throws Exception in case the MBean could not be registered
+     */
+    public static synchronized SimapiStatistics registerMBean() throws Exception {
+
+        if (m_statistics == null) {
+            SimapiStatistics statistics = new SimapiStatistics();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(statistics, new ObjectName(MBEAN_NAME));
+            addListener(statistics);
+            m_statistics = statistics;
+        }
+        return m_statistics;
+    }
+
+    /**
+     * Removes a registered listener.<p>
+     *
+     * @param listener the listener to remove
+     */
+    public static synchronized void removeListener(MetricsListener listener) {
+
+        int index = -1;
+        for (int i = 0; i < m_listeners.length; i++) {
+            if (m_listeners[i] == listener) {
+                index = i;
+                break;
+            }
+        }
+        if (index == -1) {
+            return;
+        }
+        MetricsListener[] listeners = new MetricsListener[m_listeners.length - 1];
+        System.arraycopy(m_listeners, 0, listeners, 0, index);
+        System.arraycopy(m_listeners, index + 1, listeners, index, listeners.length - index);
+        m_listeners = listeners.length > 0 ? listeners : NO_LISTENERS;
+        m_enabled = listeners.length > 0;
+        if (listener == m_statistics) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                // ignore, the MBean is no longer used anyway
+            }
+            m_statistics = null;
+        }
+    }
+
+    /**
+     * Starts measuring a stage in the current thread.<p>
+     *
+     * @param stage the stage to measure
+     *
+     * @return the running timer, or <code>null</code> if measuring is disabled
+     */
+    public static Timer start(String stage) {
+
+        if (!m_enabled) {
+            return null;
+        }
+        Timer timer = new Timer(stage);
+        timer.resume();
+        return timer;
+    }
+
+    /**
+     * Stops the given timer and reports the measurement of the stage.<p>
+     *
+     * @param timer the timer returned by {@link #start(String)} or {@link #timer(String)}, may be <code>null</code>
+     * @param image the image that was processed by the stage, used to count the pixels, may be <code>null</code>
+     */
+    public static void stop(Timer timer, BufferedImage image) {
+
+        if (timer != null) {
+            stop(timer, image != null ? (long)image.getWidth() * image.getHeight() : 0);
+        }
+    }
+
+    /**
+     * Stops the given timer and reports the measurement of the stage.<p>
+     *
+     * @param timer the timer returned by {@link #start(String)} or {@link #timer(String)}, may be <code>null</code>
+     * @param pixels the number of pixels processed by the stage
+     */
+    public static void stop(Timer timer, long pixels) {
+
+        if (timer == null) {
+            return;
+        }
+        timer.pause();
+        for (MetricsListener listener : m_listeners) {
+            listener.stageCompleted(timer.m_stage, timer.m_nanos, timer.m_allocatedBytes, pixels);
+        }
+    }
+
+    /**
+     * Creates a paused timer for a stage that is measured in several parts.<p>
+     *
+     * @param stage the stage to measure
+     *
+     * @return the paused timer, or <code>null</code> if measuring is disabled
+     */
+    public static Timer timer(String stage) {
+
+        return m_enabled ? new Timer(stage) : null;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread so far.<p>
+     *
+     * @return the number of bytes allocated by the current thread, or <code>-1</code> if not supported
+     */
+    static long getAllocatedBytes() {
+
+        if (THREAD_BEAN == null) {
+            return -1;
+        }
+        // the bean is only set if it implements the HotSpot extension, see #initThreadBean()
+        return ((com.sun.management.ThreadMXBean)THREAD_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Looks up the thread bean that supports measuring allocations.<p>
+     *
+     * Only the HotSpot extension of the thread bean can measure allocations. On other runtimes,
+     * the allocated bytes are reported as <code>-1</code>, which means not available.<p>
+     *
+     * @return the thread bean, or <code>null</code> if the runtime does not support measuring allocations
+     */
+    private static ThreadMXBean initThreadBean() {
+
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean result = (com.sun.management.ThreadMXBean)bean;
+                if (result.isThreadAllocatedMemorySupported()) {
+                    if (!result.isThreadAllocatedMemoryEnabled()) {
+                        result.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    return bean;
+                }
+            }
+        } catch (Throwable t) {
+            // not a HotSpot based runtime, allocations can not be measured
+        }
+        return null;
+    }
+}
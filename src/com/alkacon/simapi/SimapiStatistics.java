@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Default {@link MetricsListener} that aggregates the measurements for JMX.<p>
+ *
+ * Latencies are counted in histograms with exponentially growing buckets,
+ * so that percentiles can be estimated without storing the individual measurements.<p>
+ *
+ * @see SimapiMetrics#registerMBean()
+ */
+public class SimapiStatistics implements MetricsListener, SimapiStatisticsMXBean {
+
+    /**
+     * Aggregated measurements of a single stage.<p>
+     */
+    private static class StageStatistics {
+
+        /** The total bytes allocated. */
+        final AtomicLong m_allocatedBytes = new AtomicLong();
+
+        /** The number of completed executions. */
+        final AtomicLong m_count = new AtomicLong();
+
+        /** The latency histogram. */
+        final AtomicLongArray m_histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        /** The total time in nanoseconds. */
+        final AtomicLong m_nanos = new AtomicLong();
+
+        /** The total number of pixels. */
+        final AtomicLong m_pixels = new AtomicLong();
+
+        /**
+         * Estimates a latency percentile.<p>
+         *
+         * @param percentile the percentile, between 0 and 1
+         *
+         * @return the estimated latency in microseconds
+         */
+        long getPercentileMicros(double percentile) {
+
+            long count = 0;
+            long[] buckets = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                buckets[i] = m_histogram.get(i);
+                count += buckets[i];
+            }
+            long threshold = (long)Math.ceil(count * percentile);
+            long sum = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                sum += buckets[i];
+                if ((sum >= threshold) && (sum > 0)) {
+                    // report the upper bound of the bucket
+                    return 1L << (i + 1);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /** The number of histogram buckets, the last bucket counts all executions longer than about 35 minutes. */
+    static final int HISTOGRAM_BUCKETS = 32;
+
+    /** The cache hit counters. */
+    private final ConcurrentMap<String, AtomicLong> m_cacheHits = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** The cache miss counters. */
+    private final ConcurrentMap<String, AtomicLong> m_cacheMisses = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** The code path counters. */
+    private final ConcurrentMap<String, AtomicLong> m_codePaths = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** The statistics per stage. */
+    private final ConcurrentMap<String, StageStatistics> m_stages = new ConcurrentHashMap<String, StageStatistics>();
+
+    /**
+     * Returns the histogram bucket for the given latency.<p>
+     *
+     * @param nanos the latency in nanoseconds
+     *
+     * @return the histogram bucket for the given latency
+     */
+    static int getBucket(long nanos) {
+
+        long micros = nanos / 1000;
+        if (micros <= 1) {
+            return 0;
+        }
+        return Math.min(HISTOGRAM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Increments the counter with the given key.<p>
+     *
+     * @param counters the counters
+     * @param key the key of the counter to increment
+     */
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String key) {
+
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Returns a sorted snapshot of the given counters.<p>
+     *
+     * @param counters the counters
+     *
+     * @return a sorted snapshot of the given counters
+     */
+    private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counters) {
+
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        return result;
+    }
+
+    /**
+     * @see com.alkacon.simapi.MetricsListener#cacheAccessed(java.lang.String, boolean)
+     */
+    public void cacheAccessed(String cache, boolean hit) {
+
+        increment(hit ? m_cacheHits : m_cacheMisses, cache);
+    }
+
+    /**
+     * @see com.alkacon.simapi.MetricsListener#codePathSelected(java.lang.String, java.lang.String)
+     */
+    public void codePathSelected(String stage, String codePath) {
+
+        increment(m_codePaths, stage + ":" + codePath);
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getAllocatedBytes()
+     */
+    public Map<String, Long> getAllocatedBytes() {
+
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, StageStatistics> entry : m_stages.entrySet()) {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().m_allocatedBytes.get()));
+        }
+        return result;
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getCacheHits()
+     */
+    public Map<String, Long> getCacheHits() {
+
+        return snapshot(m_cacheHits);
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getCacheMisses()
+     */
+    public Map<String, Long> getCacheMisses() {
+
+        return snapshot(m_cacheMisses);
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getCodePaths()
+     */
+    public Map<String, Long> getCodePaths() {
+
+        return snapshot(m_codePaths);
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getCounts()
+     */
+    public Map<String, Long> getCounts() {
+
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, StageStatistics> entry : m_stages.entrySet()) {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().m_count.get()));
+        }
+        return result;
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getHistogram(java.lang.String)
+     */
+    public long[] getHistogram(String stage) {
+
+        long[] result = new long[HISTOGRAM_BUCKETS];
+        StageStatistics stats = m_stages.get(stage);
+        if (stats != null) {
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                result[i] = stats.m_histogram.get(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getP50Micros()
+     */
+    public Map<String, Long> getP50Micros() {
+
+        return getPercentileMicros(0.5);
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getP99Micros()
+     */
+    public Map<String, Long> getP99Micros() {
+
+        return getPercentileMicros(0.99);
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getPixels()
+     */
+    public Map<String, Long> getPixels() {
+
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, StageStatistics> entry : m_stages.entrySet()) {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().m_pixels.get()));
+        }
+        return result;
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#getTotalMillis()
+     */
+    public Map<String, Long> getTotalMillis() {
+
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, StageStatistics> entry : m_stages.entrySet()) {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().m_nanos.get() / 1000000L));
+        }
+        return result;
+    }
+
+    /**
+     * @see com.alkacon.simapi.SimapiStatisticsMXBean#reset()
+     */
+    public void reset() {
+
+        m_stages.clear();
+        m_codePaths.clear();
+        m_cacheHits.clear();
+        m_cacheMisses.clear();
+    }
+
+    /**
+     * @see com.alkacon.simapi.MetricsListener#stageCompleted(java.lang.String, long, long, long)
+     */
+    public void stageCompleted(String stage, long nanos, long allocatedBytes, long pixels) {
+
+        StageStatistics stats = m_stages.get(stage);
+        if (stats == null) {
+            StageStatistics newStats = new StageStatistics();
+            stats = m_stages.putIfAbsent(stage, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        stats.m_count.incrementAndGet();
+        stats.m_nanos.addAndGet(nanos);
+        stats.m_pixels.addAndGet(pixels);
+        if (allocatedBytes > 0) {
+            stats.m_allocatedBytes.addAndGet(allocatedBytes);
+        }
+        stats.m_histogram.incrementAndGet(getBucket(nanos));
+    }
+
+    /**
+     * Estimates a latency percentile for all stages.<p>
+     *
+     * @param percentile the percentile, between 0 and 1
+     *
+     * @return the estimated latency per stage in microseconds
+     */
+    private Map<String, Long> getPercentileMicros(double percentile) {
+
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, StageStatistics> entry : m_stages.entrySet()) {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().getPercentileMicros(percentile)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Alkacon Software GmbH (http://www.alkacon.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * For further information about Alkacon Software GmbH, please see the
+ * company website: http://www.alkacon.com
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.alkacon.simapi;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link SimapiStatistics}.<p>
+ *
+ * All maps are keyed by the stage names defined in {@link SimapiMetrics}.<p>
+ */
+public interface SimapiStatisticsMXBean {
+
+    /**
+     * Returns the total number of bytes allocated per stage.<p>
+     *
+     * @return the total number of bytes allocated per stage
+     */
+    Map<String, Long> getAllocatedBytes();
+
+    /**
+     * Returns the number of cache hits per cache.<p>
+     *
+     * @return the number of cache hits per cache
+     */
+    Map<String, Long> getCacheHits();
+
+    /**
+     * Returns the number of cache misses per cache.<p>
+     *
+     * @return the number of cache misses per cache
+     */
+    Map<String, Long> getCacheMisses();
+
+    /**
+     * Returns how often each code path was selected, keyed by <code>stage:codePath</code>.<p>
+     *
+     * @return how often each code path was selected
+     */
+    Map<String, Long> getCodePaths();
+
+    /**
+     * Returns the number of completed executions per stage.<p>
+     *
+     * @return the number of completed executions per stage
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * Returns the latency histogram of the given stage.<p>
+     *
+     * Bucket <code>i</code> counts the executions that took less than <code>2^(i+1)</code> microseconds.<p>
+     *
+     * @param stage the stage
+     *
+     * @return the latency histogram of the given stage
+     */
+    long[] getHistogram(String stage);
+
+    /**
+     * Returns the median latency per stage in microseconds.<p>
+     *
+     * @return the median latency per stage in microseconds
+     */
+    Map<String, Long> getP50Micros();
+
+    /**
+     * Returns the 99th percentile latency per stage in microseconds.<p>
+     *
+     * @return the 99th percentile latency per stage in microseconds
+     */
+    Map<String, Long> getP99Micros();
+
+    /**
+     * Returns the total number of pixels processed per stage.<p>
+     *
+     * @return the total number of pixels processed per stage
+     */
+    Map<String, Long> getPixels();
+
+    /**
+     * Returns the total time spent per stage in milliseconds.<p>
+     *
+     * @return the total time spent per stage in milliseconds
+     */
+    Map<String, Long> getTotalMillis();
+
+    /**
+     * Resets all statistics.<p>
+     */
+    void reset();
+}
@@ -4,6 +4,8 @@
 
 package com.alkacon.simapi.filter.buffered;
 
+import com.alkacon.simapi.Deadline;
+
 import java.awt.image.BufferedImage;
 
 public class BoxBlurFilter extends AbstractBufferedImageOp {
@@ -43,6 +45,8 @@ public class BoxBlurFilter extends AbstractBufferedImageOp {
         int inIndex = 0;
         
         for ( int y = 0; y < height; y++ ) {
+            if ( (y & 31) == 0 )
+                Deadline.checkCurrent();
             int outIndex = y;
             int ta = 0, tr = 0, tg = 0, tb = 0;
 
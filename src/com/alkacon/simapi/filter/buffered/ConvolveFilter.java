@@ -4,6 +4,7 @@
 
 package com.alkacon.simapi.filter.buffered;
 
+import com.alkacon.simapi.Deadline;
 import com.alkacon.simapi.filter.PixelUtils;
 
 import java.awt.Rectangle;
@@ -104,6 +105,9 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
         int cols2 = cols / 2;
 
         for (int y = 0; y < height; y++) {
+            if ((y & 31) == 0) {
+                Deadline.checkCurrent();
+            }
             int ioffset = y * width;
             for (int x = 0; x < width; x++) {
                 float r = 0, g = 0, b = 0, a = 0;
@@ -162,6 +166,9 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
         int cols2 = cols / 2;
 
         for (int y = 0; y < height; y++) {
+            if ((y & 31) == 0) {
+                Deadline.checkCurrent();
+            }
             for (int x = 0; x < width; x++) {
                 float r = 0, g = 0, b = 0, a = 0;
 
@@ -227,6 +234,9 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
         int rows2 = rows / 2;
 
         for (int y = 0; y < height; y++) {
+            if ((y & 31) == 0) {
+                Deadline.checkCurrent();
+            }
             for (int x = 0; x < width; x++) {
                 float r = 0, g = 0, b = 0, a = 0;
 
@@ -21,6 +21,18 @@
 
 package com.alkacon.simapi;
 
+import com.alkacon.simapi.CmykJpegReader.ColorSpaces;
+import com.alkacon.simapi.CmykJpegReader.ImageUtil;
+import com.alkacon.simapi.CmykJpegReader.JPEGImageReader;
+import com.alkacon.simapi.GifWriter.GifAcmeEncoder;
+import com.alkacon.simapi.GifWriter.GifImageWriter;
+import com.alkacon.simapi.GifWriter.GifImageWriterSpi;
+import com.alkacon.simapi.GifWriter.GifWriteParam;
+import com.alkacon.simapi.GifWriter.MedianCutQuantizer;
+import com.alkacon.simapi.GifWriter.NeuQuantizer;
+import com.alkacon.simapi.GifWriter.OctreeQuantizer;
+import com.alkacon.simapi.GifWriter.PaletteQuantizer;
+import com.alkacon.simapi.GifWriter.Quantize;
 import com.alkacon.simapi.filter.ContrastFilter;
 import com.alkacon.simapi.filter.GrayscaleFilter;
 import com.alkacon.simapi.filter.ImageMath;
@@ -29,17 +41,48 @@ import com.alkacon.simapi.filter.LookupFilter;
 import com.alkacon.simapi.filter.RotateFilter;
 import com.alkacon.simapi.filter.ShadowFilter;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
-
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 import junit.extensions.TestSetup;
 import junit.framework.Test;
@@ -71,13 +114,33 @@ public class TestSimapi extends VisualTestCase {
         suite.setName(TestSimapi.class.getName());
 
         suite.addTest(new TestSimapi("testCMYKJpeg"));
+        suite.addTest(new TestSimapi("testCMYKJpegStreaming"));
+        suite.addTest(new TestSimapi("testColorSpaces"));
 
         suite.addTest(new TestSimapi("testSpecialScaleSize"));
         suite.addTest(new TestSimapi("testCropPointToSize"));
 
         suite.addTest(new TestSimapi("testRead"));
+        suite.addTest(new TestSimapi("testReadForSize"));
+        suite.addTest(new TestSimapi("testJpegScaledDecoding"));
+        suite.addTest(new TestSimapi("testReadRenderWriteAsync"));
+        suite.addTest(new TestSimapi("testDeadline"));
+        suite.addTest(new TestSimapi("testMetrics"));
         suite.addTest(new TestSimapi("testWriteGif"));
+        suite.addTest(new TestSimapi("testGifWriteParam"));
+        suite.addTest(new TestSimapi("testGifParallelCompression"));
+        suite.addTest(new TestSimapi("testGifParallelCompressionChunks"));
+        suite.addTest(new TestSimapi("testAnimatedGif"));
+        suite.addTest(new TestSimapi("testAnimatedGifLimits"));
+        suite.addTest(new TestSimapi("testFixedPalette"));
+        suite.addTest(new TestSimapi("testFixedPaletteConcurrent"));
+        suite.addTest(new TestSimapi("testQuantizers"));
+        suite.addTest(new TestSimapi("testQuantizeSampling"));
+        suite.addTest(new TestSimapi("testQuantizeStripes"));
         suite.addTest(new TestSimapi("testWriteJpegAndPng"));
+        suite.addTest(new TestSimapi("testWriteIndexedPng"));
+        suite.addTest(new TestSimapi("testPngEncoder"));
+        suite.addTest(new TestSimapi("testPngEncoderSixteenBit"));
         suite.addTest(new TestSimapi("testWriteJpegQuality"));
 
         suite.addTest(new TestSimapi("testBadScaleQualityIssue"));
@@ -87,6 +150,7 @@ public class TestSimapi extends VisualTestCase {
 
         suite.addTest(new TestSimapi("testCrop"));
         suite.addTest(new TestSimapi("testImageCropping"));
+        suite.addTest(new TestSimapi("testIndexedImage"));
 
         suite.addTest(new TestSimapi("testFilters"));
         suite.addTest(new TestSimapi("testGIFProcessing"));
@@ -104,6 +168,110 @@ public class TestSimapi extends VisualTestCase {
         return wrapper;
     }
 
+    /**
+     * Tests writing, reading and resizing an animated GIF.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testAnimatedGif() throws Exception {
+
+        Simapi simapi = new Simapi();
+
+        // a red square moving over a blue background, with transparent areas in some frames
+        AnimatedImage animation = new AnimatedImage();
+        for (int i = 0; i < 4; i++) {
+            BufferedImage frame = new BufferedImage(200, 150, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = frame.createGraphics();
+            g.setColor(Color.BLUE);
+            g.fillRect(0, 0, 200, 150);
+            g.setColor(Color.RED);
+            g.fillRect(10 + (i * 30), 20, 40, 40);
+            if (i >= 2) {
+                g.setComposite(AlphaComposite.Clear);
+                g.fillRect(i * 20, 100, 30, 30);
+            }
+            g.dispose();
+            animation.addFrame(frame, 100 + (i * 50));
+        }
+
+        byte[] bytes = simapi.getBytes(animation);
+        AnimatedImage read = Simapi.readAnimation(bytes);
+        assertEquals(4, read.getFrameCount());
+        assertEquals(AnimatedImage.LOOP_FOREVER, read.getLoopCount());
+        assertEquals(200, read.getWidth());
+        assertEquals(150, read.getHeight());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(100 + (i * 50), read.getDelay(i));
+            for (int y = 0; y < 150; y++) {
+                for (int x = 0; x < 200; x++) {
+                    int expected = animation.getFrame(i).getRGB(x, y);
+                    int actual = read.getFrame(i).getRGB(x, y);
+                    if ((expected >>> 24) == 0) {
+                        assertEquals(0, actual >>> 24);
+                    } else {
+                        assertEquals(expected, actual);
+                    }
+                }
+            }
+        }
+
+        AnimatedImage resized = Simapi.readAnimation(simapi.getBytes(simapi.resize(read, 100, 100, true)));
+        assertEquals(4, resized.getFrameCount());
+        assertEquals(100, resized.getWidth());
+        assertEquals(75, resized.getHeight());
+    }
+
+    /**
+     * Tests that reading an animated GIF stops at the frame and pixel limits and at the deadline.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testAnimatedGifLimits() throws Exception {
+
+        Simapi simapi = new Simapi();
+
+        AnimatedImage animation = new AnimatedImage();
+        for (int i = 0; i < 1001; i++) {
+            BufferedImage frame = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+            frame.setRGB(i % 2, i % 2, Color.RED.getRGB());
+            animation.addFrame(frame, 10);
+        }
+        try {
+            Simapi.readAnimation(simapi.getBytes(animation));
+            fail("Reading an animation with too many frames must fail");
+        } catch (IIOException e) {
+            // expected
+        }
+
+        animation = new AnimatedImage();
+        animation.addFrame(new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB), 10);
+        animation.addFrame(new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB), 10);
+        byte[] bytes = simapi.getBytes(animation);
+        assertEquals(2, Simapi.readAnimation(bytes).getFrameCount());
+
+        // a huge logical screen must be rejected before the frames are allocated in its size
+        byte[] huge = bytes.clone();
+        huge[6] = (byte)0xff;
+        huge[7] = (byte)0xff;
+        huge[8] = (byte)0xff;
+        huge[9] = (byte)0xff;
+        try {
+            Simapi.readAnimation(huge);
+            fail("Reading an animation with too many pixels must fail");
+        } catch (IIOException e) {
+            // expected
+        }
+
+        Deadline cancelled = new Deadline(60, TimeUnit.SECONDS);
+        cancelled.cancel();
+        try {
+            Simapi.readAnimation(bytes, cancelled);
+            fail("Reading an animation with a cancelled deadline must fail");
+        } catch (RenderAbortedException e) {
+            assertFalse(e.isTimeout());
+        }
+    }
+
     /**
      * Tests "bad quality" issue encountered when scaling large images to a very small size.<p>
      *
@@ -247,6 +415,120 @@ public class TestSimapi extends VisualTestCase {
             "Has the CMYK image been written to disk as JPEG in a scaled version?");
     }
 
+    /**
+     * Tests that CMYK JPEG images decoded in a single pass have the same pixels as the images decoded in strips.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testCMYKJpegStreaming() throws Exception {
+
+        String[] names = {"blume-CMYK.jpg", "cms-tueten-cmyk.jpg", "CMYK-p2.jpg", "CMYK-p4.jpg"};
+        for (String name : names) {
+            File input = new File(getClass().getResource(name).getPath());
+
+            // sequential CMYK images are decoded in a single pass by default
+            BufferedImage streamed = Simapi.read(input);
+
+            // selecting the source bands makes the reader decode the image in strips
+            ImageInputStream stream = ImageIO.createImageInputStream(input);
+            ImageReader reader = ImageIO.getImageReaders(stream).next();
+            assertTrue(name, reader instanceof JPEGImageReader);
+            BufferedImage strips;
+            try {
+                reader.setInput(stream);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceBands(new int[] {0, 1, 2, 3});
+                strips = reader.read(0, param);
+            } finally {
+                reader.dispose();
+                stream.close();
+            }
+
+            assertEquals(name, strips.getWidth(), streamed.getWidth());
+            assertEquals(name, strips.getHeight(), streamed.getHeight());
+            int maxDiff = 0;
+            for (int y = 0; y < strips.getHeight(); y++) {
+                for (int x = 0; x < strips.getWidth(); x++) {
+                    int expected = strips.getRGB(x, y);
+                    int actual = streamed.getRGB(x, y);
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        int diff = ((expected >> shift) & 0xff) - ((actual >> shift) & 0xff);
+                        maxDiff = Math.max(maxDiff, Math.abs(diff));
+                    }
+                }
+            }
+            assertTrue(name + " differs by " + maxDiff, maxDiff <= 1);
+        }
+    }
+
+    /**
+     * Tests that ICC profiles are shared by content and the standard profiles are loaded only once.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testColorSpaces() throws Exception {
+
+        ColorSpaces.warmUp();
+        int loads = ColorSpaces.getProfileLoadCount();
+
+        Simapi.read(getClass().getResource("cms-tueten-cmyk.jpg"));
+        int created = ColorSpaces.getColorSpaceCreateCount();
+        Simapi.read(getClass().getResource("cms-tueten-cmyk.jpg"));
+        assertEquals(created, ColorSpaces.getColorSpaceCreateCount());
+
+        ColorSpaces.warmUp();
+        assertEquals(loads, ColorSpaces.getProfileLoadCount());
+
+        // a modified creation date makes this a custom profile, equal content must give the same color space
+        byte[] data = ICC_Profile.getInstance(ColorSpace.CS_sRGB).getData();
+        data[ICC_Profile.icHdrDate] ^= 1;
+        ICC_ColorSpace cs = ColorSpaces.createColorSpace(ICC_Profile.getInstance(data));
+        assertSame(cs, ColorSpaces.createColorSpace(ICC_Profile.getInstance(data.clone())));
+        assertFalse(cs.isCS_sRGB());
+
+        // without profile ID, profiles with the same header but different content must not share the color space
+        Arrays.fill(data, ICC_Profile.icHdrProfileID, ICC_Profile.icHdrProfileID + 16, (byte)0);
+        byte[] other = data.clone();
+        int tags = ((other[128] & 0xff) << 24) | ((other[129] & 0xff) << 16)
+            | ((other[130] & 0xff) << 8) | (other[131] & 0xff);
+        int red = -1;
+        for (int i = 0; i < tags; i++) {
+            int entry = 132 + (i * 12);
+            if (new String(other, entry, 4, "US-ASCII").equals("rXYZ")) {
+                red = ((other[entry + 4] & 0xff) << 24) | ((other[entry + 5] & 0xff) << 16)
+                    | ((other[entry + 6] & 0xff) << 8) | (other[entry + 7] & 0xff);
+            }
+        }
+        other[red + 11] ^= 1;
+        cs = ColorSpaces.createColorSpace(ICC_Profile.getInstance(data));
+        ICC_ColorSpace otherCs = ColorSpaces.createColorSpace(ICC_Profile.getInstance(other));
+        assertNotSame(cs, otherCs);
+        assertSame(cs, ColorSpaces.createColorSpace(ICC_Profile.getInstance(data.clone())));
+        assertSame(otherCs, ColorSpaces.createColorSpace(ICC_Profile.getInstance(other.clone())));
+
+        // a profile ID in the header is not trusted, profiles with the same ID but different content are kept apart
+        Arrays.fill(data, ICC_Profile.icHdrProfileID, ICC_Profile.icHdrProfileID + 16, (byte)0x42);
+        Arrays.fill(other, ICC_Profile.icHdrProfileID, ICC_Profile.icHdrProfileID + 16, (byte)0x42);
+        // change the X value of the red colorant by 1/8, enough to change the converted colors
+        other[red + 9] ^= 0x20;
+        ICC_Profile profile = ICC_Profile.getInstance(data);
+        ICC_Profile otherProfile = ICC_Profile.getInstance(other);
+        assertTrue(Arrays.equals(profile.getData(ICC_Profile.icSigHead), otherProfile.getData(ICC_Profile.icSigHead)));
+        cs = ColorSpaces.createColorSpace(profile);
+        otherCs = ColorSpaces.createColorSpace(otherProfile);
+        assertNotSame(cs, otherCs);
+        assertFalse(Arrays.equals(cs.toRGB(new float[] {1, 0, 0}), otherCs.toRGB(new float[] {1, 0, 0})));
+
+        // the registry evicts the least recently used color spaces, a color space in use is kept
+        for (int i = 0; i < 100; i++) {
+            byte[] filler = data.clone();
+            filler[ICC_Profile.icHdrDate + 1] = (byte)i;
+            filler[ICC_Profile.icHdrDate + 2] = (byte)1;
+            ColorSpaces.createColorSpace(ICC_Profile.getInstance(filler));
+            assertSame(cs, ColorSpaces.createColorSpace(ICC_Profile.getInstance(data.clone())));
+        }
+    }
+
     /**
      * Tests cropping an image.<p>
      *
@@ -330,6 +612,44 @@ public class TestSimapi extends VisualTestCase {
             "Has it been cropped around the point and downscaled?");
     }
 
+    /**
+     * Tests aborting image operations with a deadline.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testDeadline() throws Exception {
+
+        BufferedImage img1 = Simapi.read(getClass().getResource("113_org.jpg"));
+
+        // a deadline that does not expire must not change the result
+        RenderSettings settings = new RenderSettings(Simapi.RENDER_QUALITY);
+        settings.setDeadline(new Deadline(60, TimeUnit.SECONDS));
+        BufferedImage result1 = new Simapi().scale(img1, 333, 250);
+        BufferedImage result2 = new Simapi(settings).scale(img1, 333, 250);
+        for (int y = 0; y < 250; y++) {
+            for (int x = 0; x < 333; x++) {
+                assertEquals(result1.getRGB(x, y), result2.getRGB(x, y));
+            }
+        }
+
+        Deadline cancelled = new Deadline(60, TimeUnit.SECONDS);
+        cancelled.cancel();
+        settings.setDeadline(cancelled);
+        try {
+            new Simapi(settings).resize(img1, 150, 113, true);
+            fail("Resizing with a cancelled deadline must fail");
+        } catch (RenderAbortedException e) {
+            assertFalse(e.isTimeout());
+        }
+
+        try {
+            Simapi.read(getClass().getResource("113_org.jpg"), new Deadline(0));
+            fail("Reading with an expired deadline must fail");
+        } catch (RenderAbortedException e) {
+            assertTrue(e.isTimeout());
+        }
+    }
+
     /**
      * Tests writing an image as JPEG with different quality settings.<p>
      *
@@ -456,6 +776,77 @@ public class TestSimapi extends VisualTestCase {
         assertEquals(read.getHeight(), combined.getHeight());
     }
 
+    /**
+     * Tests writing several renditions of the same image as GIF with a cached fixed palette.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testFixedPalette() throws Exception {
+
+        BufferedImage original = Simapi.read(getClass().getResource("113_org.jpg"));
+        ImagePalette palette = ImagePalette.getOrCreate("113_org.jpg", original, 256);
+        assertSame(palette, ImagePalette.getOrCreate("113_org.jpg", null, 256));
+        assertEquals(-1, palette.getColorModel().getTransparentPixel());
+
+        Set<Integer> colors = new HashSet<Integer>();
+        for (int i = 0; i < palette.getColorModel().getMapSize(); i++) {
+            colors.add(Integer.valueOf(palette.getColorModel().getRGB(i)));
+        }
+
+        RenderSettings settings = new RenderSettings(Simapi.RENDER_QUALITY);
+        settings.setPalette(palette);
+        Simapi simapi = new Simapi(settings);
+        int[] sizes = {400, 150, 50};
+        for (int size : sizes) {
+            BufferedImage scaled = simapi.resize(original, size, size, true);
+            BufferedImage read = ImageIO.read(new ByteArrayInputStream(simapi.getBytes(scaled, Simapi.TYPE_GIF)));
+            assertEquals(scaled.getWidth(), read.getWidth());
+            for (int y = 0; y < read.getHeight(); y++) {
+                for (int x = 0; x < read.getWidth(); x++) {
+                    // all renditions use only the colors of the original palette
+                    assertTrue(colors.contains(Integer.valueOf(read.getRGB(x, y))));
+                }
+            }
+        }
+        ImagePalette.clearCache();
+        assertNull(ImagePalette.get("113_org.jpg"));
+    }
+
+    /**
+     * Tests that a cached palette is calculated only once if several threads request it at the same time.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testFixedPaletteConcurrent() throws Exception {
+
+        final BufferedImage original = Simapi.read(getClass().getResource("Messdiener_sml.jpg"));
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<ImagePalette>> results = new ArrayList<Future<ImagePalette>>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<ImagePalette>() {
+
+                    public ImagePalette call() throws Exception {
+
+                        start.await();
+                        return ImagePalette.getOrCreate("concurrent", original, 256);
+                    }
+                }));
+            }
+            start.countDown();
+            ImagePalette palette = results.get(0).get();
+            assertNotNull(palette);
+            for (Future<ImagePalette> result : results) {
+                assertSame(palette, result.get());
+            }
+            assertSame(palette, ImagePalette.get("concurrent"));
+        } finally {
+            executor.shutdown();
+            ImagePalette.clearCache();
+        }
+    }
+
     /**
      * Tests an issue with JDK 6 and GIF image processing.<p>
      *
@@ -486,6 +877,94 @@ public class TestSimapi extends VisualTestCase {
         assertEquals(27, read.getHeight()); // aspect ratio kept intact
     }
 
+    /**
+     * Tests the parallel compression of a GIF image with a byte raster, decoded again with ImageIO.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGifParallelCompression() throws Exception {
+
+        // large enough to be split into 3 chunks
+        BufferedImage image = createIndexedImage(1024, 768, 256);
+        byte[] serial = encodeGif(image, false, 1);
+        byte[] parallel = encodeGif(image, false, 4);
+
+        // every chunk starts with a new code table, so the compressed data differs
+        assertFalse(Arrays.equals(serial, parallel));
+        assertGifPixels(image, serial);
+        assertGifPixels(image, parallel);
+    }
+
+    /**
+     * Tests the parallel GIF compression of images that are split into chunks, decoded again with ImageIO.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGifParallelCompressionChunks() throws Exception {
+
+        // all 256 colors in random order, so the code table is also reset within the chunks
+        BufferedImage noise = createIndexedImage(800, 800, 256);
+        byte[] pixels = new byte[800 * 800];
+        new Random(7).nextBytes(pixels);
+        noise.getRaster().setDataElements(0, 0, 800, 800, pixels);
+
+        // GIF images are at most 65535 pixels high, so very narrow images are split into 2 chunks
+        BufferedImage[] images = {
+            createIndexedImage(1024, 768, 256),
+            noise,
+            createIndexedImage(9, 65535, 256),
+            createIndexedImage(10, 60000, 16),
+            createIndexedImage(1024, 600, 2)};
+        for (BufferedImage image : images) {
+            for (boolean interlace : new boolean[] {false, true}) {
+                String label = image.getWidth() + "x" + image.getHeight() + (interlace ? " interlaced" : "");
+                byte[] serial = encodeGif(image, interlace, 1);
+                byte[] parallel = encodeGif(image, interlace, 8);
+                assertFalse(label, Arrays.equals(serial, parallel));
+                assertGifPixels(image, parallel);
+            }
+        }
+    }
+
+    /**
+     * Tests the parameters of the GIF writer.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testGifWriteParam() throws Exception {
+
+        BufferedImage image = Simapi.read(getClass().getResource("alkacon_text.jpg"));
+        ImageWriter writer = new GifImageWriter(new GifImageWriterSpi());
+        GifWriteParam param = (GifWriteParam)writer.getDefaultWriteParam();
+        assertEquals(256, param.getMaxColors());
+        assertFalse(param.isInterlaced());
+
+        byte[] full = writeGif(writer, image, param);
+        param.setMaxColors(16);
+        byte[] small = writeGif(writer, image, param);
+        assertTrue(small.length < full.length);
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(small));
+        assertTrue(((IndexColorModel)read.getColorModel()).getMapSize() <= 16);
+
+        // the interlaced image must contain the same pixels
+        param.setDitherMode(GifWriteParam.DITHER_ORDERED);
+        BufferedImage ordered = ImageIO.read(new ByteArrayInputStream(writeGif(writer, image, param)));
+        param.setInterlaced(true);
+        BufferedImage interlaced = ImageIO.read(new ByteArrayInputStream(writeGif(writer, image, param)));
+        assertEquals(image.getWidth(), interlaced.getWidth());
+        assertEquals(image.getHeight(), interlaced.getHeight());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(ordered.getRGB(x, y), interlaced.getRGB(x, y));
+            }
+        }
+
+        param.setDitherMode(GifWriteParam.DITHER_DIFFUSION);
+        read = ImageIO.read(new ByteArrayInputStream(writeGif(writer, image, param)));
+        assertEquals(image.getWidth(), read.getWidth());
+        writer.dispose();
+    }
+
     /**
      * Tests image cropping.<p>
      *
@@ -525,6 +1004,153 @@ public class TestSimapi extends VisualTestCase {
         checkImage(new BufferedImage[] {result}, "Has it been cropped with green bg color and transformed?");
     }
 
+    /**
+     * Tests mapping an image to a fixed palette with and without error diffusion.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testIndexedImage() throws Exception {
+
+        BufferedImage image = Simapi.read(getClass().getResource("Messdiener_sml.jpg"));
+        byte[] r = new byte[216];
+        byte[] g = new byte[216];
+        byte[] b = new byte[216];
+        for (int i = 0; i < 216; i++) {
+            r[i] = (byte)((i / 36) * 51);
+            g[i] = (byte)(((i / 6) % 6) * 51);
+            b[i] = (byte)((i % 6) * 51);
+        }
+        IndexColorModel palette = new IndexColorModel(8, 216, r, g, b);
+
+        // without dithering, every pixel must be mapped to the closest palette color
+        BufferedImage plain = ImageUtil.createIndexed(image, palette, null, ImageUtil.DITHER_NONE);
+        assertSame(palette, plain.getColorModel());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y);
+                int best = Integer.MAX_VALUE;
+                for (int i = 0; i < 216; i++) {
+                    best = Math.min(best, getDistance(rgb, palette.getRGB(i)));
+                }
+                assertEquals("pixel " + x + "," + y, best, getDistance(rgb, plain.getRGB(x, y)));
+            }
+        }
+
+        // error diffusion keeps the average color, the alternating scans differ from the second row on
+        BufferedImage diffused = ImageUtil.createIndexed(image, palette, null, ImageUtil.DITHER_DIFFUSION);
+        BufferedImage alternate = ImageUtil.createIndexed(image, palette, null, ImageUtil.DITHER_DIFFUSION_ALTSCANS);
+        long[] sums = new long[9];
+        boolean firstRowEqual = true;
+        boolean otherRowsEqual = true;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int[] rgbs = {image.getRGB(x, y), diffused.getRGB(x, y), alternate.getRGB(x, y)};
+                for (int k = 0; k < rgbs.length; k++) {
+                    for (int c = 0; c < 3; c++) {
+                        sums[(k * 3) + c] += (rgbs[k] >> (c * 8)) & 0xff;
+                    }
+                }
+                if (rgbs[1] != rgbs[2]) {
+                    if (y == 0) {
+                        firstRowEqual = false;
+                    } else {
+                        otherRowsEqual = false;
+                    }
+                }
+            }
+        }
+        assertTrue(firstRowEqual);
+        assertFalse(otherRowsEqual);
+        double pixels = image.getWidth() * image.getHeight();
+        for (int c = 0; c < 3; c++) {
+            assertEquals(sums[c] / pixels, sums[3 + c] / pixels, 1.0);
+            assertEquals(sums[c] / pixels, sums[6 + c] / pixels, 1.0);
+        }
+    }
+
+    /**
+     * Tests decoding JPEG images at a reduced size in the DCT domain.<p>
+     *
+     * The scaled images are compared with the averaged pixels of the images decoded at full size.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testJpegScaledDecoding() throws Exception {
+
+        // the JPEG reader of this library is registered when the Simapi class is initialized
+        Class.forName(Simapi.class.getName());
+
+        // baseline, progressive, baseline with restart intervals and gray scale with restart intervals
+        String[] names = {"Messdiener_sml.jpg", "slow_scale02.jpg", "frau-g.jpg", "113_org.jpg"};
+        int[] scales = {2, 4, 8};
+        for (String name : names) {
+            File input = new File(getClass().getResource(name).getPath());
+            Raster full = readJpeg(input, 1).getRaster();
+
+            for (int scale : scales) {
+                String label = name + " 1/" + scale;
+                SimapiStatistics statistics = new SimapiStatistics();
+                SimapiMetrics.addListener(statistics);
+                Raster scaled;
+                try {
+                    scaled = readJpeg(input, scale).getRaster();
+                } finally {
+                    SimapiMetrics.removeListener(statistics);
+                }
+
+                assertTrue(label, statistics.getCodePaths().containsKey(SimapiMetrics.STAGE_DECODE + ":jpegScaled"));
+                assertEquals(label, (full.getWidth() + scale - 1) / scale, scaled.getWidth());
+                assertEquals(label, (full.getHeight() + scale - 1) / scale, scaled.getHeight());
+                assertEquals(label, full.getNumBands(), scaled.getNumBands());
+
+                // the decoder scales in the DCT domain, which keeps edges sharper than averaging the pixels
+                long diff = 0;
+                for (int y = 0; y < scaled.getHeight(); y++) {
+                    for (int x = 0; x < scaled.getWidth(); x++) {
+                        for (int b = 0; b < scaled.getNumBands(); b++) {
+                            int sum = 0;
+                            int count = 0;
+                            for (int fy = y * scale; fy < Math.min(full.getHeight(), (y + 1) * scale); fy++) {
+                                for (int fx = x * scale; fx < Math.min(full.getWidth(), (x + 1) * scale); fx++) {
+                                    sum += full.getSample(fx, fy, b);
+                                    count++;
+                                }
+                            }
+                            diff += Math.abs(scaled.getSample(x, y, b) - Math.round((float)sum / count));
+                        }
+                    }
+                }
+                double meanDiff = (double)diff / (scaled.getWidth() * scaled.getHeight() * scaled.getNumBands());
+                assertTrue(label + " differs by " + meanDiff + " on average", meanDiff < 6);
+            }
+        }
+    }
+
+    /**
+     * Tests collecting metrics for the stages of an image operation.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testMetrics() throws Exception {
+
+        SimapiStatistics statistics = new SimapiStatistics();
+        SimapiMetrics.addListener(statistics);
+        try {
+            Simapi simapi = new Simapi();
+            BufferedImage img1 = Simapi.read(getClass().getResource("screen_1280.png"));
+            simapi.getBytes(simapi.resize(img1, 150, 113, true), Simapi.TYPE_JPEG);
+        } finally {
+            SimapiMetrics.removeListener(statistics);
+        }
+
+        assertEquals(Long.valueOf(1), statistics.getCounts().get(SimapiMetrics.STAGE_DECODE));
+        assertEquals(Long.valueOf(1), statistics.getCounts().get(SimapiMetrics.STAGE_BLUR));
+        assertEquals(Long.valueOf(1), statistics.getCounts().get(SimapiMetrics.STAGE_ENCODE));
+        assertTrue(statistics.getPixels().get(SimapiMetrics.STAGE_DECODE).longValue() > 0);
+        assertTrue(statistics.getCodePaths().containsKey(SimapiMetrics.STAGE_ENCODE + ":" + Simapi.TYPE_JPEG));
+        assertFalse(SimapiMetrics.isEnabled());
+    }
+
     /**
      * Tests "not sharp enough" issue encountered when scaling large images to a very small size.<p>
      *
@@ -564,6 +1190,216 @@ public class TestSimapi extends VisualTestCase {
         checkImage(new BufferedImage[] {imgA, imgB, imgC, imgD, imgE}, "Are the images sharp enough?");
     }
 
+    /**
+     * Tests writing PNG images with the built-in encoder.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testPngEncoder() throws Exception {
+
+        // large enough to be compressed in several parallel chunks
+        BufferedImage photo = Simapi.read(getClass().getResource("alkacon.png"));
+        RenderSettings settings = new RenderSettings(Simapi.RENDER_SPEED);
+        assertEquals(1, settings.getPngCompressionLevel());
+        byte[] fast = new Simapi(settings).getBytes(photo, Simapi.TYPE_PNG);
+        settings.setPngCompressionLevel(9);
+        byte[] small = new Simapi(settings).getBytes(photo, Simapi.TYPE_PNG);
+        assertTrue(small.length <= fast.length);
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(small));
+        assertEquals(photo.getWidth(), read.getWidth());
+        assertEquals(photo.getHeight(), read.getHeight());
+        for (int y = 0; y < photo.getHeight(); y++) {
+            for (int x = 0; x < photo.getWidth(); x++) {
+                assertEquals(photo.getRGB(x, y), read.getRGB(x, y));
+            }
+        }
+
+        // alpha values and palettes with less than 8 bits per pixel are written without loss
+        Simapi simapi = new Simapi();
+        BufferedImage argb = new BufferedImage(97, 61, BufferedImage.TYPE_INT_ARGB);
+        byte[] levels = {0, (byte)0x55, (byte)0xaa, (byte)0xff};
+        BufferedImage packed = new BufferedImage(
+            97,
+            61,
+            BufferedImage.TYPE_BYTE_BINARY,
+            new IndexColorModel(2, 4, levels, levels, levels, levels));
+        for (int y = 0; y < 61; y++) {
+            for (int x = 0; x < 97; x++) {
+                argb.setRGB(x, y, ((x * 2) << 24) | ((y * 4) << 16) | ((x + y) << 8) | (x ^ y));
+                packed.getRaster().setSample(x, y, 0, (x + (y / 3)) % 4);
+            }
+        }
+        for (BufferedImage image : new BufferedImage[] {argb, packed}) {
+            read = ImageIO.read(new ByteArrayInputStream(simapi.getBytes(image, Simapi.TYPE_PNG)));
+            for (int y = 0; y < 61; y++) {
+                for (int x = 0; x < 97; x++) {
+                    assertEquals(image.getRGB(x, y), read.getRGB(x, y));
+                }
+            }
+        }
+        assertTrue(read.getColorModel() instanceof IndexColorModel);
+
+        try {
+            settings.setPngCompressionLevel(10);
+            fail("Setting an invalid PNG compression level must fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that images with 16 bit samples are written as 16 bit PNG without loss.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testPngEncoderSixteenBit() throws Exception {
+
+        BufferedImage gray = new BufferedImage(301, 203, BufferedImage.TYPE_USHORT_GRAY);
+        ComponentColorModel model = new ComponentColorModel(
+            ColorSpace.getInstance(ColorSpace.CS_sRGB),
+            true,
+            false,
+            Transparency.TRANSLUCENT,
+            DataBuffer.TYPE_USHORT);
+        BufferedImage rgba = new BufferedImage(model, model.createCompatibleWritableRaster(301, 203), false, null);
+        Random random = new Random(42);
+        for (int y = 0; y < 203; y++) {
+            for (int x = 0; x < 301; x++) {
+                gray.getRaster().setSample(x, y, 0, ((x * 217) + (y * 331)) & 0xffff);
+                for (int b = 0; b < 4; b++) {
+                    rgba.getRaster().setSample(x, y, b, random.nextInt(0x10000));
+                }
+            }
+        }
+
+        Simapi simapi = new Simapi();
+        // the PNG color types of gray and RGBA images
+        int[] colorTypes = {0, 6};
+        BufferedImage[] images = {gray, rgba};
+        for (int i = 0; i < images.length; i++) {
+            BufferedImage image = images[i];
+            byte[] png = simapi.getBytes(image, Simapi.TYPE_PNG);
+            // the bit depth and the color type follow the signature, the chunk header, the width and the height
+            assertEquals(16, png[24]);
+            assertEquals(colorTypes[i], png[25]);
+            BufferedImage read = ImageIO.read(new ByteArrayInputStream(png));
+            assertEquals(image.getRaster().getNumBands(), read.getRaster().getNumBands());
+            for (int b = 0; b < read.getRaster().getNumBands(); b++) {
+                assertEquals(16, read.getColorModel().getComponentSize(b));
+            }
+            int[] expected = image.getRaster().getPixels(0, 0, 301, 203, (int[])null);
+            assertTrue(Arrays.equals(expected, read.getRaster().getPixels(0, 0, 301, 203, (int[])null)));
+        }
+    }
+
+    /**
+     * Tests writing GIF images with the different quantizers.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testQuantizers() throws Exception {
+
+        BufferedImage original = Simapi.read(getClass().getResource("alkacon_text.jpg"));
+        BufferedImage image = new BufferedImage(original.getWidth(), original.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.drawImage(original, 0, 0, null);
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, 20, 20);
+        g.dispose();
+
+        PaletteQuantizer[] quantizers = {new OctreeQuantizer(), new NeuQuantizer(), new MedianCutQuantizer()};
+        for (PaletteQuantizer quantizer : quantizers) {
+            RenderSettings settings = new RenderSettings(Simapi.RENDER_QUALITY);
+            settings.setQuantizer(quantizer);
+            Simapi simapi = new Simapi(settings);
+            BufferedImage read = ImageIO.read(new ByteArrayInputStream(simapi.getBytes(image, Simapi.TYPE_GIF)));
+            assertEquals(image.getWidth(), read.getWidth());
+            assertEquals(image.getHeight(), read.getHeight());
+            assertTrue(read.getColorModel() instanceof IndexColorModel);
+
+            double error = 0;
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int expected = image.getRGB(x, y);
+                    int actual = read.getRGB(x, y);
+                    if ((expected >>> 24) == 0) {
+                        assertEquals(0, actual >>> 24);
+                    } else {
+                        assertEquals(0xff, actual >>> 24);
+                        for (int shift = 0; shift < 24; shift += 8) {
+                            int d = ((expected >> shift) & 0xff) - ((actual >> shift) & 0xff);
+                            error += d * d;
+                        }
+                    }
+                }
+            }
+            double rmse = Math.sqrt(error / (3.0 * image.getWidth() * image.getHeight()));
+            assertTrue(quantizer.getClass().getName() + " error " + rmse, rmse < 5);
+        }
+    }
+
+    /**
+     * Tests that building the palette from a sample of the pixels keeps colors used by only a few pixels.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testQuantizeSampling() throws Exception {
+
+        // a gray gradient with small patches of saturated colors, less than 256 colors in total
+        BufferedImage image = new BufferedImage(2048, 2048, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int gray = (((x + y) * 240) / 4095) + 8;
+                image.setRGB(x, y, (gray << 16) | (gray << 8) | gray);
+            }
+        }
+        int[] colors = {0xff0000, 0x00ff00, 0x0000ff, 0xffff00, 0xff00ff, 0x00ffff, 0x804000, 0x004080};
+        for (int i = 0; i < colors.length; i++) {
+            // 16 of 4M pixels, about 3 of them are sampled
+            for (int y = 0; y < 4; y++) {
+                for (int x = 0; x < 4; x++) {
+                    image.setRGB(101 + (i * 250) + x, 100 + (i * 240) + y, colors[i]);
+                }
+            }
+        }
+
+        BufferedImage sampled = Quantize.process(image, 256, true, Quantize.DEFAULT_MAX_SAMPLES);
+        for (int i = 0; i < colors.length; i++) {
+            for (int y = 0; y < 4; y++) {
+                for (int x = 0; x < 4; x++) {
+                    assertEquals(
+                        Integer.toHexString(colors[i]),
+                        Integer.toHexString(sampled.getRGB(101 + (i * 250) + x, 100 + (i * 240) + y) & 0xffffff));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that classifying the colors in several stripes gives the same result as classifying all pixels at once.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testQuantizeStripes() throws Exception {
+
+        BufferedImage image = Simapi.read(getClass().getResource("Messdiener_sml.jpg"));
+        int[] samples = {0, image.getWidth() * image.getHeight() / 2};
+        for (int maxSamples : samples) {
+            BufferedImage serial = Quantize.process(image, 256, true, maxSamples, 1);
+            for (int stripes = 2; stripes <= 4; stripes++) {
+                BufferedImage striped = Quantize.process(image, 256, true, maxSamples, stripes);
+                String message = maxSamples + " samples, " + stripes + " stripes";
+                assertEquals(message, serial.getWidth(), striped.getWidth());
+                assertEquals(message, serial.getHeight(), striped.getHeight());
+                for (int y = 0; y < serial.getHeight(); y++) {
+                    for (int x = 0; x < serial.getWidth(); x++) {
+                        assertEquals(message, serial.getRGB(x, y), striped.getRGB(x, y));
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Tests reading an image.<p>
      *
@@ -578,6 +1414,85 @@ public class TestSimapi extends VisualTestCase {
         checkImage(new BufferedImage[] {img1, img2, img3}, "Do you see 3 images?");
     }
 
+    /**
+     * Tests reading JPEG images at a reduced size for a rendition.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testReadForSize() throws Exception {
+
+        // 1120 x 1440 pixels, YCbCr
+        BufferedImage full = Simapi.read(getClass().getResource("112_org.jpg"));
+        BufferedImage img1 = Simapi.readForSize(getClass().getResource("112_org.jpg"), 200, 200);
+        assertEquals(280, img1.getWidth());
+        assertEquals(360, img1.getHeight());
+
+        // the reduced image must look like the scaled down full image
+        long diff = 0;
+        for (int y = 0; y < img1.getHeight(); y++) {
+            for (int x = 0; x < img1.getWidth(); x++) {
+                int a = full.getRGB((x * 4) + 2, (y * 4) + 2);
+                int b = img1.getRGB(x, y);
+                diff += Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff));
+            }
+        }
+        assertTrue(diff / (img1.getWidth() * img1.getHeight()) < 16);
+
+        // 2362 x 3543 pixels, YCCK with embedded profile
+        BufferedImage img2 = Simapi.readForSize(getClass().getResource("CMYK-p1.jpg"), 250, 0);
+        assertEquals(296, img2.getWidth());
+        assertEquals(443, img2.getHeight());
+
+        // images smaller than the rendition are read at full size
+        BufferedImage img3 = Simapi.readForSize(getClass().getResource("Messdiener_sml.jpg"), 1000, 1000);
+        assertEquals(800, img3.getWidth());
+
+        // 3264 x 2448 pixels with a 160 x 120 pixel EXIF thumbnail
+        BufferedImage img4 = Simapi.readForSize(getClass().getResource("DSCN0754.JPG"), 160, 120, true);
+        assertEquals(160, img4.getWidth());
+        assertEquals(120, img4.getHeight());
+        img4 = Simapi.readForSize(getClass().getResource("DSCN0754.JPG"), 200, 150, true);
+        assertEquals(408, img4.getWidth());
+
+        // 3776 x 2520 pixels with a letterboxed 160 x 120 pixel EXIF thumbnail, which must not be used
+        BufferedImage img5 = Simapi.readForSize(getClass().getResource("img_0005.jpg"), 160, 100, true);
+        assertEquals(472, img5.getWidth());
+        assertEquals(315, img5.getHeight());
+    }
+
+    /**
+     * Tests reading, scaling and writing an image with the asynchronous operations.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testReadRenderWriteAsync() throws Exception {
+
+        final Simapi simapi = new Simapi();
+
+        Future<BufferedImage> source = Simapi.readAsync(getClass().getResource("screen_1280.png"));
+        Future<BufferedImage> scaled = simapi.renderAsync(source, new RenderOperation() {
+
+            public BufferedImage render(BufferedImage image) {
+
+                return simapi.resize(image, 200, 150, true);
+            }
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        simapi.writeAsync(scaled, out, Simapi.TYPE_PNG).get(60, TimeUnit.SECONDS);
+
+        BufferedImage read = Simapi.read(out.toByteArray());
+        assertEquals(150, read.getHeight());
+        checkImage(new BufferedImage[] {read}, "Has the image been scaled and written asynchronously?");
+
+        Future<BufferedImage> missing = Simapi.readAsync(new File("does-not-exist.png"));
+        try {
+            simapi.renderAsync(missing, null).get(60, TimeUnit.SECONDS);
+            fail("Reading a missing file must fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
     /**
      * Tests cropping and resizing an image.<p>
      *
@@ -1046,6 +1961,40 @@ public class TestSimapi extends VisualTestCase {
         checkImage(new BufferedImage[] {img1, read}, "Has it been written to disk as GIF in a scaled version?");
     }
 
+    /**
+     * Tests writing PNG images with an indexed color model.<p>
+     *
+     * @throws Exception if the test fails
+     */
+    public void testWriteIndexedPng() throws Exception {
+
+        BufferedImage screen = Simapi.read(getClass().getResource("screen1.png"));
+        RenderSettings settings = new RenderSettings(Simapi.RENDER_QUALITY);
+        byte[] full = new Simapi(settings).getBytes(screen, Simapi.TYPE_PNG);
+        settings.setIndexedPng(true);
+        Simapi simapi = new Simapi(settings);
+        byte[] indexed = simapi.getBytes(screen, Simapi.TYPE_PNG);
+        assertTrue(indexed.length < full.length);
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(indexed));
+        assertTrue(read.getColorModel() instanceof IndexColorModel);
+        assertEquals(screen.getWidth(), read.getWidth());
+        assertEquals(screen.getHeight(), read.getHeight());
+
+        // partially transparent pixels keep their alpha values in the palette
+        BufferedImage gradient = new BufferedImage(256, 16, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 256; x++) {
+            for (int y = 0; y < 16; y++) {
+                gradient.setRGB(x, y, (x << 24) | 0x3366cc);
+            }
+        }
+        read = ImageIO.read(new ByteArrayInputStream(simapi.getBytes(gradient, Simapi.TYPE_PNG)));
+        assertTrue(read.getColorModel() instanceof IndexColorModel);
+        assertTrue(read.getColorModel().hasAlpha());
+        for (int x = 0; x < 256; x++) {
+            assertTrue(Math.abs((read.getRGB(x, 8) >>> 24) - x) <= 8);
+        }
+    }
+
     /**
      * Tests writing an image as JPEG and PNG.<p>
      *
@@ -1128,4 +2077,155 @@ public class TestSimapi extends VisualTestCase {
 
         return image;
     }
-}
\ No newline at end of file
+
+    /**
+     * Asserts that the given GIF, decoded with ImageIO, has the same palette indices as the given image.<p>
+     *
+     * @param expected the image that was encoded
+     * @param gif the encoded GIF
+     *
+     * @throws IOException if decoding fails
+     */
+    private void assertGifPixels(BufferedImage expected, byte[] gif) throws IOException {
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(gif));
+        assertEquals(expected.getWidth(), decoded.getWidth());
+        assertEquals(expected.getHeight(), decoded.getHeight());
+        int width = expected.getWidth();
+        int[] expectedRow = new int[width];
+        int[] decodedRow = new int[width];
+        for (int y = 0; y < expected.getHeight(); y++) {
+            expected.getRaster().getPixels(0, y, width, 1, expectedRow);
+            decoded.getRaster().getPixels(0, y, width, 1, decodedRow);
+            if (!Arrays.equals(expectedRow, decodedRow)) {
+                fail("Row " + y + " differs");
+            }
+        }
+    }
+
+    /**
+     * Creates an indexed image with a byte raster, with diagonal stripes of all palette colors and some noise.<p>
+     *
+     * @param width the image width
+     * @param height the image height
+     * @param colors the number of palette colors
+     *
+     * @return the created image
+     */
+    private BufferedImage createIndexedImage(int width, int height, int colors) {
+
+        byte[] r = new byte[colors];
+        byte[] g = new byte[colors];
+        byte[] b = new byte[colors];
+        for (int i = 0; i < colors; i++) {
+            r[i] = (byte)((i * 255) / Math.max(1, colors - 1));
+            g[i] = (byte)(i * 37);
+            b[i] = (byte)(255 - (i * 91));
+        }
+        BufferedImage image = new BufferedImage(
+            width,
+            height,
+            BufferedImage.TYPE_BYTE_INDEXED,
+            new IndexColorModel(8, colors, r, g, b));
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = ((x / 7) + (y / 5)) % colors;
+                if (random.nextInt(4) == 0) {
+                    index = random.nextInt(colors);
+                }
+                image.getRaster().setSample(x, y, 0, index);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encodes an indexed image as GIF.<p>
+     *
+     * @param image the image to encode
+     * @param interlace if <code>true</code>, the image is written interlaced
+     * @param maxChunks the maximum number of chunks compressed in parallel, <code>1</code> for sequential compression
+     *
+     * @return the encoded GIF
+     *
+     * @throws IOException if encoding fails
+     */
+    private byte[] encodeGif(BufferedImage image, boolean interlace, int maxChunks) throws IOException {
+
+        GifAcmeEncoder encoder = new GifAcmeEncoder(image);
+        encoder.setInterlace(interlace);
+        encoder.setParallel(maxChunks > 1);
+        encoder.setMaxChunks(maxChunks);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        encoder.write(data);
+        data.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the squared distance of the given colors.<p>
+     *
+     * @param rgb1 the first color
+     * @param rgb2 the second color
+     *
+     * @return the sum of the squared differences of the color components
+     */
+    private int getDistance(int rgb1, int rgb2) {
+
+        int result = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int d = ((rgb1 >> shift) & 0xff) - ((rgb2 >> shift) & 0xff);
+            result += d * d;
+        }
+        return result;
+    }
+
+    /**
+     * Reads a JPEG image with the given uniform source subsampling.<p>
+     *
+     * @param input the JPEG file
+     * @param subsampling the source subsampling
+     *
+     * @return the read image
+     *
+     * @throws IOException if reading fails
+     */
+    private BufferedImage readJpeg(File input, int subsampling) throws IOException {
+
+        ImageInputStream stream = ImageIO.createImageInputStream(input);
+        ImageReader reader = ImageIO.getImageReaders(stream).next();
+        assertTrue(reader instanceof JPEGImageReader);
+        try {
+            reader.setInput(stream);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    /**
+     * Writes the given image as GIF with the given writer and parameters.<p>
+     *
+     * @param writer the GIF writer
+     * @param image the image to write
+     * @param param the write parameters
+     *
+     * @return the written GIF
+     *
+     * @throws IOException if writing fails
+     */
+    private byte[] writeGif(ImageWriter writer, BufferedImage image, ImageWriteParam param) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, null), param);
+        stream.close();
+        return out.toByteArray();
+    }
+}